@@ -21,6 +21,7 @@ package snodes;
 
 import snodes.gui.GUIController;
 import snodes.net.ConnectionManager;
+import snodes.net.Message;
 import snodes.net.PacketListener;
 import snodes.net.PacketFilter;
 import snodes.net.Packet;
@@ -139,7 +140,7 @@ public abstract class Controller implements PacketListener, PacketFilter, Connec
 				if (connectionMap.get(conn.getHost()) != null) {
 					logger.finer("Found attempt: " + conn);
 
-					Integer sessionIDObj = null;
+					Message.AcceptConnection accept = (Message.AcceptConnection) packet.getMessage();
 					int sessionID = -1;
 					byte[] encryptKey = new byte[32];
 
@@ -149,11 +150,10 @@ public abstract class Controller implements PacketListener, PacketFilter, Connec
 					new Random().nextBytes(encryptKey);
 
 					try {
-						sessionIDObj = (Integer) packet.getProperty("Id");
-						assert sessionIDObj != null : "Packet Id is null";
-						sessionID = sessionIDObj.intValue();
+						sessionID = accept.getId();
 						
-						String base64key = (String) packet.getProperty("EncryptKey");
+						String base64key = accept.getEncryptKey();
+						assert base64key != null : "Packet EncryptKey is null";
 						byte[] newkey = Base64.decode(base64key);
 						conn.authorize(sessionID, newkey);
 						conn.accept();
@@ -163,8 +163,6 @@ public abstract class Controller implements PacketListener, PacketFilter, Connec
 						logger.log(Level.SEVERE, null, ex);
 					} catch (IllegalStateException ex) {
 						logger.log(Level.SEVERE, null, ex);
-					} catch (ClassCastException e) {
-						logger.log(Level.SEVERE, "Cannot get session ID", e);
 					}
 				} else {
 					logger.severe("No attempted connection: " + conn);
@@ -117,6 +117,7 @@ public final class ControllerMain {
         
         controller = GUIController.getInstance();
         server.setConnectionManager(controller);
+        server.setShards(Runtime.getRuntime().availableProcessors());
         server.start();
     }
     
@@ -20,18 +20,19 @@
 
 package snodes.fs;
 
-import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 
@@ -39,6 +40,24 @@ import java.util.logging.Logger;
  * Provides methods for breaking up files into chunks in preparation for
  * transmission.
  *
+ * <p>Segments are read with positional reads on a channel that is shared by
+ * every reader of a file, so no reader ever moves another's file pointer and
+ * no lock is held while reading. Many segments of many files can therefore
+ * be read at once, by as many threads as there are peers. Files are kept
+ * open between reads by a bounded {@link HandleCache}.</p>
+ *
+ * <p>Files of at least {@link #getMapThreshold} bytes are served from
+ * memory-mapped windows instead, so that segments of the large files that
+ * many peers ask for come straight from the page cache, without a read
+ * call for each. {@link #readSegmentBuffer}, which the send path uses,
+ * returns such a segment as a view of the window, without copying it at
+ * all; {@link #readSegment} has to copy it into the array it returns.</p>
+ *
+ * <p>Segments of smaller files that are read often are kept in the shared
+ * {@link SegmentCache}, keyed by file, modification time and segment, so
+ * that a file being sent to many peers is read from the disk once. Mapped
+ * files are not cached there, since the page cache already holds them.</p>
+ *
  * @author Chris Shake
  * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
  * @version 0.1
@@ -51,17 +70,22 @@ public class FileRead {
 	public static final int DEFAULT_SEGMENT_SIZE = 131072;  // 128k
 	/** The maximum segment size, in bytes. */
 	public static final int MAX_SEGMENT_SIZE = 1048576; // 1M
+	/** The default size from which files are memory-mapped, in bytes. */
+	public static final long DEFAULT_MAP_THRESHOLD = 16777216L; // 16M
 	
 	/** The singleton instance of the class. */
 	private static FileRead singleton = null;
 	
 	/** The maximum size of a segment. */
-	@GuardedBy("segSizeLock")
-	private int maxSegmentSize;
-	/** A lock for {@link #maxSegmentSize}. */
-	private Object segSizeLock;
-	/** A map of files to random access files. */
-	private Map<File, RandomAccessFile> fileMap;
+	private volatile int maxSegmentSize;
+	/** The size from which files are memory-mapped. */
+	private volatile long mapThreshold;
+	/** The files that are open for reading. */
+	private HandleCache handles;
+	/** The segments that have been read most often. */
+	private SegmentCache cache;
+	/** The hash trees of shared files, built as files are requested. */
+	private Map<File, HashedFile> treeMap;
 	
 	/**
 	 * Creates new instance of FileRead.
@@ -72,9 +96,11 @@ public class FileRead {
 	 *
 	 */
 	private FileRead() {
-		fileMap = new HashMap<File, RandomAccessFile>();
-		segSizeLock = new Object();
+		handles = new HandleCache(HandleCache.DEFAULT_CAPACITY, HandleCache.DEFAULT_IDLE_TIMEOUT);
+		cache = SegmentCache.getInstance();
+		treeMap = new ConcurrentHashMap<File, HashedFile>();
 		maxSegmentSize = DEFAULT_SEGMENT_SIZE;
+		mapThreshold = DEFAULT_MAP_THRESHOLD;
 
 		registerFileCloseHook();
 	}
@@ -109,32 +135,21 @@ public class FileRead {
 		Runtime.getRuntime().addShutdownHook(new Thread(runner, "File Close Hook"));
 	}
 	
-	/** Closes any files in the file map. */
+	/** Closes any open files. */
 	private void closeFiles()
 	{
 		logger.finer("Closing random access files...");
-		
-		Iterator<File> iter = fileMap.keySet().iterator();
-		while (iter.hasNext()) {
-			File key = iter.next();
-			RandomAccessFile file = fileMap.get(key);
-			try {
-				file.close();
-			} catch (IOException e) {
-				// Ignore.
-			} finally {
-				logger.fine("Closed random access file: " + key);
-				fileMap.remove(key);
-			}
-		}
-		
+		handles.closeAll();
 		logger.finer("Random access files closed.");
 	}
 	
 	/**
 	 * Closes a random-access file.
 	 *
-	 * <p>Files should be closed once they have been read completely.</p>
+	 * <p>Files are closed on their own once they have not been read for a
+	 * while, or when too many others are open, but may be closed sooner once
+	 * they have been read completely. A read of the file that is in progress
+	 * on another thread finishes first.</p>
 	 *
 	 * @param fileName
 	 *     The name of the file to close.
@@ -143,18 +158,7 @@ public class FileRead {
 	public void closeFile(String fileName)
 	{
 		try {
-			File keyFile = realPath(fileName);
-			RandomAccessFile file = fileMap.get(keyFile);
-			if (file != null) {
-				try {
-					file.close();
-				} catch (IOException e) {
-					// Ignore.
-				} finally {
-					logger.fine("Closed random access file: " + keyFile);
-					fileMap.remove(keyFile);
-				}
-			}
+			handles.close(realPath(fileName));
 		} catch (FileNotFoundException e) {
 			// Ignore. There's nothing to close if the file path is invalid.
 		}
@@ -203,47 +207,245 @@ public class FileRead {
 	public byte[] readSegment(String fileName, int segmentNumber)
 		throws IOException, FileNotFoundException, EOFException
 	{
-		synchronized (segSizeLock) {
-			File path = realPath(fileName);
-			RandomAccessFile file = fileMap.get(path);
-			if (file == null) {
-				// We have to open a RandomAccessFile object to get random
-				// access to file contents, but this can conceivably leave a
-				// lot of open file handles laying around. I have a quick hack
-				// to close file handles with closeFile(), but we should try
-				// to come up with a way to do this automagically -- otherwise
-				// we might end up with A LOT of open file handles (maybe even
-				// too many for the Java VM to handle).
-				
-				file = new RandomAccessFile(path, "r");
-				fileMap.put(path, file);
-			}
-		
-			byte[] contents = new byte[maxSegmentSize];
-			long offset = segmentNumber * maxSegmentSize;
-			int bytesRead = -1;
+		int segSize = maxSegmentSize;
+		File path = realPath(fileName);
+		// Mapped files are already served from the page cache.
+		if (path.length() >= mapThreshold) return read(path, segSize, segmentNumber);
 		
-			file.seek(offset);
-			bytesRead = file.read(contents);
+		SegmentKey key = new SegmentKey(path, path.lastModified(), path.length(), segSize, segmentNumber);
+		SegmentCache.Entry entry = cache.acquire(key);
 		
-			if (bytesRead == -1) {
-				throw new EOFException("End of file reached");
-			} else if (bytesRead == 0) {
-				throw new IOException("0 bytes read");
+		if (entry != null) {
+			try {
+				ByteBuffer cached = entry.buffer();
+				byte[] contents = new byte[cached.remaining()];
+				cached.get(contents);
+				return contents;
+			} finally {
+				entry.release();
 			}
+		}
+		
+		byte[] contents = read(path, segSize, segmentNumber);
+		cache.put(key, ByteBuffer.wrap(contents));
+		return contents;
+	}
+	
+	/**
+	 * Returns specified segment of a file as a read-only buffer. Segments of
+	 * files of at least {@link #getMapThreshold} bytes are views of a
+	 * memory-mapped window of the file, and are not copied at all; they can
+	 * be handed straight to {@link snodes.net.FileTransfer#send(ByteBuffer, int, long)},
+	 * which compresses them and copies them into datagrams from the page
+	 * cache. Segments of smaller files are read as by {@link #readSegment}.
+	 *
+	 * @param fileName
+	 *     String path of file
+	 * @param segmentNumber
+	 *     The segment number.
+	 * @return
+	 *     A read-only buffer of the segment's bytes.
+	 * @throws IOException
+	 *     If an I/O error occurs while reading the file.
+	 * @throws FileNotFoundException
+	 *     If fileName does not exist, is not readable, or is not a shared
+	 *     file.
+	 * @throws EOFException
+	 *     If the end of the file has been reached.
+	 * @see #readSegment
+	 */
+	public ByteBuffer readSegmentBuffer(String fileName, int segmentNumber)
+		throws IOException, FileNotFoundException, EOFException
+	{
+		File path = realPath(fileName);
 		
-			if (bytesRead != maxSegmentSize) {
-				byte[] returncontents = new byte[bytesRead];
+		if (path.length() >= mapThreshold) return map(path, maxSegmentSize, segmentNumber);
+		return ByteBuffer.wrap(readSegment(fileName, segmentNumber)).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Reads a segment of a file from the disk.
+	 *
+	 * @param path
+	 *     The file.
+	 * @param segSize
+	 *     The segment size.
+	 * @param segmentNumber
+	 *     The segment number.
+	 * @return
+	 *     The segment's bytes.
+	 * @throws IOException
+	 *     If an I/O error occurs while reading the file.
+	 */
+	private byte[] read(File path, int segSize, int segmentNumber) throws IOException
+	{
+		HandleCache.Handle handle = handles.acquire(path);
+		long offset = (long) segmentNumber * segSize;
+		
+		try {
+			FileChannel file = handle.channel();
+			long size = file.size();
+			if (offset >= size) throw new EOFException("End of file reached");
 			
-				for(int i = 0; i < bytesRead; i++){
-					returncontents[i] = contents[i];
-				}
+			int length = (int) Math.min(segSize, size - offset);
+			if (size >= mapThreshold) {
+				byte[] contents = new byte[length];
+				handle.map(offset, length, size).get(contents);
+				return contents;
+			}
 			
-				contents = returncontents;
+			ByteBuffer contents = ByteBuffer.allocate(length);
+			while (contents.hasRemaining()) {
+				if (file.read(contents, offset + contents.position()) < 0) break;
 			}
+			if (contents.position() == 0) throw new EOFException("End of file reached");
+			
+			// The file may have been truncated since its size was read.
+			if (contents.hasRemaining()) return Arrays.copyOf(contents.array(), contents.position());
+			return contents.array();
+		} catch (ClosedChannelException e) {
+			// A thread that is interrupted while reading closes the channel
+			// for every reader, so drop it and open the file again next time.
+			handles.close(path);
+			throw e;
+		} finally {
+			handle.release();
+		}
+	}
+	
+	/**
+	 * Returns a segment of a file from a memory-mapped window of the file,
+	 * whatever its size. The segment is not copied: the buffer is a view of
+	 * the page cache, so it is cheap to get even for files that are being
+	 * sent to many peers at once.
+	 *
+	 * @param fileName
+	 *     String path of file
+	 * @param segmentNumber
+	 *     The segment number.
+	 * @return
+	 *     A read-only buffer of the segment's bytes.
+	 * @throws IOException
+	 *     If an I/O error occurs while mapping the file.
+	 * @throws FileNotFoundException
+	 *     If fileName does not exist, is not readable, or is not a shared
+	 *     file.
+	 * @throws EOFException
+	 *     If the end of the file has been reached.
+	 * @see #readSegment
+	 */
+	public ByteBuffer mapSegment(String fileName, int segmentNumber)
+		throws IOException, FileNotFoundException, EOFException
+	{
+		return map(realPath(fileName), maxSegmentSize, segmentNumber);
+	}
+	
+	/**
+	 * Returns a segment of a file from a memory-mapped window of the file.
+	 *
+	 * @param path
+	 *     The file.
+	 * @param segSize
+	 *     The segment size.
+	 * @param segmentNumber
+	 *     The segment number.
+	 * @return
+	 *     A read-only view of the segment's bytes.
+	 * @throws IOException
+	 *     If an I/O error occurs while mapping the file.
+	 */
+	private ByteBuffer map(File path, int segSize, int segmentNumber) throws IOException
+	{
+		HandleCache.Handle handle = handles.acquire(path);
+		long offset = (long) segmentNumber * segSize;
+		
+		try {
+			long size = handle.channel().size();
+			if (offset >= size) throw new EOFException("End of file reached");
+			return handle.map(offset, (int) Math.min(segSize, size - offset), size);
+		} catch (ClosedChannelException e) {
+			handles.close(path);
+			throw e;
+		} finally {
+			handle.release();
+		}
+	}
+	
+	/**
+	 * Returns the hash tree of a shared file, split into segments of the
+	 * current segment size.
+	 *
+	 * <p>Building the tree reads the whole file, so it is only done the first
+	 * time a file is asked for, and again if the file or the segment size has
+	 * changed since.</p>
+	 *
+	 * @param fileName
+	 *     String path of file
+	 * @return
+	 *     The file's hash tree.
+	 * @throws IOException
+	 *     If an I/O error occurs while reading the file.
+	 * @throws FileNotFoundException
+	 *     If fileName does not exist, is not readable, or is not a shared
+	 *     file.
+	 * @see MerkleTree
+	 */
+	public MerkleTree getHashTree(String fileName) throws IOException, FileNotFoundException
+	{
+		File path = realPath(fileName);
+		int segSize = getSegmentSize();
+		HashedFile hashed = treeMap.get(path);
 		
-			return contents;
+		if (hashed == null || !hashed.isCurrent(path, segSize)) {
+			long modified = path.lastModified();
+			long length = path.length();
+			MerkleTree tree = MerkleTree.build(path, segSize);
+			
+			logger.fine("Hashed " + path + ": " + tree);
+			hashed = new HashedFile(tree, length, modified);
+			treeMap.put(path, hashed);
 		}
+		
+		return hashed.tree;
+	}
+	
+	/**
+	 * Returns the cache of open files, through which its limits can be
+	 * changed and its use followed.
+	 *
+	 * @return
+	 *     The cache of files open for reading.
+	 */
+	public HandleCache getHandleCache()
+	{
+		return handles;
+	}
+	
+	/**
+	 * Returns the size from which files are served from memory-mapped
+	 * windows by {@link #readSegment} and {@link #readSegmentBuffer}.
+	 *
+	 * @return
+	 *     The size, in bytes.
+	 */
+	public long getMapThreshold()
+	{
+		return mapThreshold;
+	}
+	
+	/**
+	 * Sets the size from which files are served from memory-mapped windows
+	 * by {@link #readSegment} and {@link #readSegmentBuffer}. Mapping pays off for large files that are
+	 * read over and over; small files are cheaper to read.
+	 *
+	 * @param size
+	 *     The size, in bytes: 0 to map every file, or
+	 *     {@link Long#MAX_VALUE} to map none.
+	 */
+	public void setMapThreshold(long size)
+	{
+		if (size < 0L) throw new IllegalArgumentException("Bad map threshold: " + size);
+		mapThreshold = size;
 	}
 	
 	/**
@@ -265,15 +467,13 @@ public class FileRead {
 	 * @return
 	 *     The maximum segment size after the change.
 	 */
-	public int setSegmentSize(int size){
-		synchronized (segSizeLock) {
-			if (size > MAX_SEGMENT_SIZE) {
-				maxSegmentSize = size;
-			} else {
-				logger.warning("segment size cannot be set to " + size);
-			}
-			return maxSegmentSize;
+	public synchronized int setSegmentSize(int size){
+		if (size > 0 && size <= MAX_SEGMENT_SIZE) {
+			maxSegmentSize = size;
+		} else {
+			logger.warning("segment size cannot be set to " + size);
 		}
+		return maxSegmentSize;
 	}
 	
 	/**
@@ -312,6 +512,68 @@ public class FileRead {
 		return new File(path);
 	}
 	
+	/** Identifies a segment of a particular version of a file in the segment cache. */
+	private static final class SegmentKey
+	{
+		final File path;
+		final long modified;
+		final long length;
+		final int segSize;
+		final int segment;
+		
+		SegmentKey(File path, long modified, long length, int segSize, int segment)
+		{
+			this.path = path;
+			this.modified = modified;
+			this.length = length;
+			this.segSize = segSize;
+			this.segment = segment;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof SegmentKey)) return false;
+			
+			SegmentKey k = (SegmentKey) o;
+			return path.equals(k.path) && modified == k.modified && length == k.length
+				&& segSize == k.segSize && segment == k.segment;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int h = path.hashCode();
+			h = 31 * h + (int) (modified ^ (modified >>> 32));
+			h = 31 * h + (int) (length ^ (length >>> 32));
+			h = 31 * h + segSize;
+			return 31 * h + segment;
+		}
+	}
+	
+	/** A hash tree, and the state of the file it was built from. */
+	private static final class HashedFile
+	{
+		final MerkleTree tree;
+		final long length;
+		final long modified;
+		
+		HashedFile(MerkleTree tree, long length, long modified)
+		{
+			this.tree = tree;
+			this.length = length;
+			this.modified = modified;
+		}
+		
+		/** Returns true if the tree still describes the file. */
+		boolean isCurrent(File path, int segSize)
+		{
+			return tree.getSegmentSize() == segSize
+				&& path.length() == length
+				&& path.lastModified() == modified;
+		}
+	}
+	
 	/**
 	 * Creates a clone of this instance. Clones of FileRead cannot
 	 * be created, so this method <em>always</em> throws an exception. To get
@@ -25,22 +25,47 @@ import net.jcip.annotations.ThreadSafe;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.BufferedOutputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
-import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 
 /**
  * Provides methods for reassembling file chunks into cohesive files.
  *
+ * <p>Each incomplete download has a journal next to it recording which of
+ * its segments have been written, so a download that is interrupted, even by
+ * a crash, can be resumed by calling {@link #readyFile} again with the same
+ * layout; only the segments it is still missing then need to be fetched. The
+ * journal is deleted once the download is complete.</p>
+ *
+ * <p>Each incomplete download is kept open from {@link #readyFile} until it
+ * is complete or {@link #closeFile closed}, and segments are written to it
+ * with positional writes, so any number of segments of the same file can
+ * be written at once without opening the file for each. How often the data
+ * is forced to the disk is set by the {@link SyncPolicy}.</p>
+ *
+ * <p>Segments can also be written {@link #writeSegmentAsync asynchronously}:
+ * they are queued, up to {@link #getWriteBehindLimit} bytes, and written on
+ * a thread of their own in large sequential runs, so the network threads
+ * that receive them never wait for the disk.</p>
+ *
  * @author Chris Shake
  * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
  * @version 0.1
  */
 @ThreadSafe
 public class FileWrite {
+	private static final Logger logger = Logger.getLogger("snodes.fs");
+	
 	/** The singleton instance of the class. */
 	private static FileWrite singleton = null;
 	
@@ -48,6 +73,41 @@ public class FileWrite {
 	private File saveDir;
 	/** The list of current file handles. */
 	private Map<File,FileInfo> currentHandles;
+	/** The journals of the incomplete files in {@link #currentHandles}. */
+	private Map<File,SegmentJournal> journals;
+	/** The open incomplete files in {@link #currentHandles}. */
+	private Map<File,OpenFile> openFiles;
+	/** When written data is forced to the disk. */
+	private volatile SyncPolicy syncPolicy;
+	/** The bytes after which data is forced to the disk, if that is the policy. */
+	private volatile long syncInterval;
+	/** Writes segments in the background. */
+	private WriteBehind writeBehind;
+	
+	/** The default number of bytes after which data is forced to the disk. */
+	public static final long DEFAULT_SYNC_INTERVAL = 16777216L; // 16M
+	
+	/** When the data written to a download is forced to the disk. */
+	public enum SyncPolicy
+	{
+		/**
+		 * Never; the operating system writes the data back when it sees
+		 * fit. This is the fastest, but a power failure may lose segments
+		 * that the journal says were written.
+		 */
+		NEVER,
+		/** Once the download is complete, before its journal is deleted. */
+		ON_COMPLETION,
+		/**
+		 * Every {@link #getSyncInterval} bytes, and on completion. Segments
+		 * are only recorded in the journal once their data has been forced,
+		 * so even if the journal reaches the disk early, a power failure
+		 * never leaves it recording a segment that was lost. At most the
+		 * last interval's segments are written again when the download is
+		 * resumed.
+		 */
+		PERIODIC
+	}
 	
 	/**
 	 * Creates new instance of FileWrite.
@@ -60,6 +120,17 @@ public class FileWrite {
 		// Get save directory from some utility
 		saveDir = PathManager.getManager().getDataDirectory();
 		currentHandles = new ConcurrentHashMap<File, FileInfo>();
+		journals = new ConcurrentHashMap<File, SegmentJournal>();
+		openFiles = new ConcurrentHashMap<File, OpenFile>();
+		syncPolicy = SyncPolicy.ON_COMPLETION;
+		syncInterval = DEFAULT_SYNC_INTERVAL;
+		writeBehind = new WriteBehind(new WriteBehind.Committer() {
+			public void committed(File save, int seg, int bytes) throws IOException {
+				FileWrite.this.committed(save, seg, bytes);
+			}
+		});
+		
+		registerJournalCloseHook();
 	}
 	
 	/**
@@ -75,9 +146,67 @@ public class FileWrite {
 		return singleton;
 	}
 	
+	/**
+	 * Registers a hook with the Java runtime that closes every incomplete file
+	 * and writes its journal through to the disk on exit.
+	 */
+	private void registerJournalCloseHook()
+	{
+		Runnable runner = new Runnable() {
+			public void run() {
+				closeJournals();
+			}
+		};
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(runner, "Journal Close Hook"));
+	}
+	
+	/** Closes every incomplete file and its journal. */
+	private void closeJournals()
+	{
+		try {
+			writeBehind.flush();
+		} catch (InterruptedException e) {
+			// Close what we can.
+		}
+		
+		Iterator<File> files = openFiles.keySet().iterator();
+		while (files.hasNext()) {
+			File key = files.next();
+			OpenFile file = openFiles.remove(key);
+			if (file == null) continue;
+			
+			try {
+				if (file.isUnforced()) sync(file, journals.get(key));
+			} catch (IOException e) {
+				// Keep only what the journal already records.
+			}
+			file.close();
+		}
+		
+		Iterator<File> iter = journals.keySet().iterator();
+		while (iter.hasNext()) {
+			File key = iter.next();
+			try {
+				journals.get(key).close();
+			} catch (IOException e) {
+				// Ignore.
+			} finally {
+				iter.remove();
+			}
+		}
+	}
+	
 	/**
 	 * Sets up the instance to accept a new incoming file
 	 *
+	 * <p>If part of the file has already been downloaded with the same
+	 * segment size and number of segments, the download is resumed: the
+	 * segments recorded in its journal are kept, and
+	 * {@link #getSegmentStatus} and {@link #nextSegmentNeeded} report only
+	 * the segments that are still missing. Otherwise any existing file is
+	 * downloaded over from the start.</p>
+	 *
 	 * @param fileName
 	 *     The name of the file.
 	 * @param segSize
@@ -87,12 +216,204 @@ public class FileWrite {
 	 * @throws IOException
 	 *     If an I/O error occurs.
 	 */
-	public void readyFile(String fileName, int segSize, int numSegments) throws IOException
+	public synchronized void readyFile(String fileName, int segSize, int numSegments) throws IOException
 	{
 		File saveFile = new File(saveDir, fileName);
-		saveFile.createNewFile(); // This currently doesn't allow resuming incomplete files
+		File journalFile = SegmentJournal.journalFor(saveFile);
+		
+		flush(saveFile);
+		SegmentJournal old = journals.remove(saveFile);
+		if (old != null) old.close();
+		OpenFile oldFile = openFiles.remove(saveFile);
+		if (oldFile != null) oldFile.close();
+		
+		currentHandles.remove(saveFile);
+		
+		boolean resume = saveFile.exists() && journalFile.exists();
+		if (!resume) journalFile.delete();
+		saveFile.createNewFile();
+		
+		SegmentJournal journal = new SegmentJournal(journalFile, segSize, numSegments);
 		FileInfo saveInfo = new FileInfo(fileName, numSegments, segSize);
+		boolean[] status = journal.getStatus();
+		int written = 0;
+		
+		for (int i = 0; i < status.length; i++) {
+			if (status[i]) {
+				saveInfo.segmentWritten(i);
+				written++;
+			}
+		}
+		if (written > 0) {
+			logger.info("Resuming " + fileName + " with " + written + "/" + numSegments + " segments");
+		}
+		
+		OpenFile file = null;
+		try {
+			file = new OpenFile(new RandomAccessFile(saveFile, "rw").getChannel(), segSize);
+		} catch (IOException e) {
+			journal.close();
+			throw e;
+		}
+		
+		journals.put(saveFile, journal);
+		openFiles.put(saveFile, file);
 		currentHandles.put(saveFile,saveInfo);
+		writeBehind.open(saveFile);
+	}
+	
+	/**
+	 * Returns which segments of an incoming file have been written.
+	 *
+	 * @param fileName
+	 *     The incoming file name.
+	 * @return
+	 *     An array with an element for each segment, true if the segment has
+	 *     been written.
+	 * @throws IOException
+	 *     If the file has not been set up with {@link #readyFile}.
+	 */
+	public boolean[] getSegmentStatus(String fileName) throws IOException
+	{
+		FileInfo saveInfo = currentHandles.get(new File(saveDir, fileName));
+		
+		if (saveInfo == null) {
+			throw new IOException("File not initialized for writing");
+		}
+		
+		return saveInfo.segmentStatusArray();
+	}
+	
+	/**
+	 * Stops accepting segments of an incoming file, once every segment that
+	 * has been queued for it is written. If the file is not yet complete,
+	 * its journal is kept, so it can be resumed by {@link #readyFile} later.
+	 *
+	 * @param fileName
+	 *     The incoming file name.
+	 * @throws IOException
+	 *     If an I/O error occurs.
+	 */
+	public synchronized void closeFile(String fileName) throws IOException
+	{
+		File save = new File(saveDir, fileName);
+		flush(save);
+		
+		SegmentJournal journal = journals.remove(save);
+		OpenFile file = openFiles.remove(save);
+		
+		currentHandles.remove(save);
+		try {
+			if (file != null && (syncPolicy == SyncPolicy.PERIODIC || file.isUnforced())) sync(file, journal);
+		} finally {
+			// Segments still meant for the closed channel are refused.
+			if (file != null) file.close();
+			writeBehind.open(save);
+		}
+		if (journal != null) journal.close();
+	}
+	
+	/**
+	 * Stops queueing segments of a file, and waits until every segment
+	 * already queued for it has been written.
+	 *
+	 * @param save
+	 *     The file.
+	 * @throws InterruptedIOException
+	 *     If the calling thread is interrupted while waiting.
+	 */
+	private void flush(File save) throws InterruptedIOException
+	{
+		try {
+			writeBehind.close(save);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while flushing " + save);
+		}
+	}
+	
+	/**
+	 * Sets the most bytes of segments that may be queued by
+	 * {@link #writeSegmentAsync} before it waits for the disk to catch up.
+	 *
+	 * @param bytes
+	 *     The number of bytes.
+	 */
+	public void setWriteBehindLimit(long bytes)
+	{
+		writeBehind.setLimit(bytes);
+	}
+	
+	/**
+	 * Returns the most bytes of segments that may be queued by
+	 * {@link #writeSegmentAsync}.
+	 *
+	 * @return
+	 *     The number of bytes.
+	 */
+	public long getWriteBehindLimit()
+	{
+		return writeBehind.getLimit();
+	}
+	
+	/**
+	 * Returns the bytes of segments that have been queued by
+	 * {@link #writeSegmentAsync} and not yet written.
+	 *
+	 * @return
+	 *     The number of bytes.
+	 */
+	public long getWriteBehindQueued()
+	{
+		return writeBehind.getQueued();
+	}
+	
+	/**
+	 * Sets when the data written to downloads is forced to the disk.
+	 *
+	 * @param policy
+	 *     The policy.
+	 */
+	public void setSyncPolicy(SyncPolicy policy)
+	{
+		if (policy == null) throw new NullPointerException("policy");
+		syncPolicy = policy;
+	}
+	
+	/**
+	 * Returns when the data written to downloads is forced to the disk.
+	 *
+	 * @return
+	 *     The policy. The default is {@link SyncPolicy#ON_COMPLETION}.
+	 */
+	public SyncPolicy getSyncPolicy()
+	{
+		return syncPolicy;
+	}
+	
+	/**
+	 * Sets how many bytes are written to a download before they are forced
+	 * to the disk under the {@link SyncPolicy#PERIODIC} policy.
+	 *
+	 * @param bytes
+	 *     The number of bytes.
+	 */
+	public void setSyncInterval(long bytes)
+	{
+		if (bytes <= 0L) throw new IllegalArgumentException("Bad sync interval: " + bytes);
+		syncInterval = bytes;
+	}
+	
+	/**
+	 * Returns how many bytes are written to a download before they are
+	 * forced to the disk under the {@link SyncPolicy#PERIODIC} policy.
+	 *
+	 * @return
+	 *     The number of bytes.
+	 */
+	public long getSyncInterval()
+	{
+		return syncInterval;
 	}
 	
 	/**
@@ -151,28 +472,256 @@ public class FileWrite {
 	 *     If an I/O error occurs.
 	 */
 	public void writeSegment(String fileName, byte[] data, int segmentNum) throws IOException {
+		writeSegment(fileName, ByteBuffer.wrap(data), segmentNum);
+	}
+	
+	/**
+	 * Writes a chunk of incoming data to a file. Different segments of the
+	 * same file may be written by several threads at once.
+	 *
+	 * @param fileName
+	 *     The place to save incoming file.
+	 * @param data
+	 *     The segment's bytes. The buffer's position is not changed.
+	 * @param segmentNum
+	 *     The segment number.
+	 * @throws IOException
+	 *     If an I/O error occurs.
+	 */
+	public void writeSegment(String fileName, ByteBuffer data, int segmentNum) throws IOException {
+		File save = new File(saveDir, fileName);
+		OpenFile file = check(save, data, segmentNum);
+		long offset = (long) segmentNum * file.segSize;
+		ByteBuffer buf = data.duplicate();
+		
+		while (buf.hasRemaining()) {
+			file.channel.write(buf, offset + buf.position() - data.position());
+		}
+		
+		committed(save, segmentNum, data.remaining());
+	}
+	
+	/**
+	 * Queues a chunk of incoming data to be written to a file, and returns at
+	 * once, unless more data is queued than {@link #getWriteBehindLimit}
+	 * allows, in which case it waits for room. The data is copied.
+	 *
+	 * <p>Queued segments are written on a thread of their own. All the
+	 * segments queued for a file are written together, in order of offset,
+	 * with adjacent segments coalesced into large sequential writes. Once a
+	 * segment has been written and recorded in the file's journal, its
+	 * future completes; if it cannot be written, the future fails with the
+	 * reason.</p>
+	 *
+	 * @param fileName
+	 *     The place to save incoming file.
+	 * @param data
+	 *     The segment's bytes. The buffer's position is not changed, and it
+	 *     may be reused once this returns.
+	 * @param segmentNum
+	 *     The segment number.
+	 * @return
+	 *     A future that completes once the segment has been written.
+	 * @throws IOException
+	 *     If the file is not ready for writing, the segment is the wrong size
+	 *     or has already been written or queued, or the calling thread is
+	 *     interrupted while waiting for room.
+	 */
+	public Future<Void> writeSegmentAsync(String fileName, ByteBuffer data, int segmentNum) throws IOException {
 		File save = new File(saveDir, fileName);
+		OpenFile file = check(save, data, segmentNum);
+		long offset = (long) segmentNum * file.segSize;
+		
+		try {
+			return writeBehind.submit(save, file.channel, segmentNum, offset, data);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing segment " + segmentNum + " of " + save);
+		}
+	}
+	
+	/**
+	 * Checks that a segment may be written to a file.
+	 *
+	 * @return
+	 *     The open file.
+	 * @throws IOException
+	 *     If the segment cannot be written.
+	 */
+	private OpenFile check(File save, ByteBuffer data, int segmentNum) throws IOException {
 		FileInfo saveInfo =	currentHandles.get(save);
+		OpenFile file = openFiles.get(save);
 		
-		if (saveInfo == null) {
+		if (saveInfo == null || file == null) {
 			throw new IOException("File not initialized for writing");
 		}
 		
-		if (saveInfo.segmentStatus(segmentNum)) {
-			throw new IOException("Current segment already written");
+		synchronized (saveInfo) {
+			if (saveInfo.segmentStatus(segmentNum)) {
+				throw new IOException("Current segment already written");
+			}
 		}
 		
-		if (data.length != saveInfo.fileSegmentSize() && segmentNum < saveInfo.numberOfSegments()-1) {
+		if (data.remaining() != saveInfo.fileSegmentSize() && segmentNum < saveInfo.numberOfSegments()-1) {
 			throw new IOException("Segment is wrong size");
 		}
 		
-		long offset = (long) segmentNum * saveInfo.fileSegmentSize();
-		RandomAccessFile fout = new RandomAccessFile(save,"rw");
+		return file;
+	}
+	
+	/**
+	 * Records a segment whose data has been written to its file, forcing the
+	 * file to the disk if the sync policy calls for it, and finishing the
+	 * file if it is now complete.
+	 *
+	 * @param save
+	 *     The file.
+	 * @param segmentNum
+	 *     The segment number.
+	 * @param bytes
+	 *     The size of the segment.
+	 * @throws IOException
+	 *     If the file cannot be forced to the disk.
+	 */
+	private void committed(File save, int segmentNum, int bytes) throws IOException {
+		FileInfo saveInfo = currentHandles.get(save);
+		OpenFile file = openFiles.get(save);
+		SegmentJournal journal = journals.get(save);
+		
+		if (saveInfo == null) {
+			throw new IOException("File closed while being written");
+		}
+		
+		// Only journal the segment once its data is in the file, so a crash
+		// in between costs the segment rather than corrupting the download.
+		boolean done = false;
+		synchronized (saveInfo) {
+			saveInfo.segmentWritten(segmentNum);
+			done = saveInfo.fileDone();
+		}
 		
-		fout.seek(offset);
-		fout.write(data);
-		saveInfo.segmentWritten(segmentNum);
-		fout.close();
+		if (!done) {
+			if (file != null && syncPolicy == SyncPolicy.PERIODIC) {
+				// Wait until the data has been forced as well.
+				file.unforced(segmentNum);
+				if (file.written(bytes, syncInterval)) sync(file, journal);
+			} else if (journal != null) {
+				journal.mark(segmentNum);
+			}
+			return;
+		}
+		
+		// Only the thread that takes the journal finishes the file.
+		journal = journals.remove(save);
+		if (journal != null) {
+			OpenFile finished = openFiles.remove(save);
+			if (finished != null) {
+				if (syncPolicy != SyncPolicy.NEVER) finished.sync();
+				finished.close();
+			}
+			journal.delete();
+		}
+	}
+	
+	
+	/**
+	 * Forces a file's data to the disk, and then records the segments that
+	 * were waiting for it in the file's journal.
+	 *
+	 * @param file
+	 *     The file.
+	 * @param journal
+	 *     The file's journal, or null.
+	 * @throws IOException
+	 *     If the file cannot be forced to the disk.
+	 */
+	private static void sync(OpenFile file, SegmentJournal journal) throws IOException {
+		BitSet forced = file.sync();
+		if (journal == null) return;
+		
+		for (int seg = forced.nextSetBit(0); seg >= 0; seg = forced.nextSetBit(seg + 1)) {
+			journal.mark(seg);
+		}
+		journal.force();
+	}
+	
+	
+	/** An incomplete file that is open for writing. */
+	private static final class OpenFile
+	{
+		/** The file's channel. */
+		final FileChannel channel;
+		/** The size of a segment of the file. */
+		final int segSize;
+		/** The bytes written since the file was last forced to the disk. */
+		private final AtomicLong unsynced;
+		/** The segments written since the file was last forced to the disk. */
+		@GuardedBy("this")
+		private BitSet unforced;
+		
+		OpenFile(FileChannel channel, int segSize)
+		{
+			this.channel = channel;
+			this.segSize = segSize;
+			this.unsynced = new AtomicLong(0L);
+			this.unforced = new BitSet();
+		}
+		
+		/** Holds a written segment back from the journal until the file is forced. */
+		synchronized void unforced(int seg)
+		{
+			unforced.set(seg);
+		}
+		
+		/** Returns whether any segment is waiting for the file to be forced. */
+		synchronized boolean isUnforced()
+		{
+			return !unforced.isEmpty();
+		}
+		
+		/**
+		 * Counts bytes that have been written, returning true if the file
+		 * should now be forced to the disk.
+		 */
+		boolean written(long bytes, long interval)
+		{
+			long total = unsynced.addAndGet(bytes);
+			return total >= interval && unsynced.compareAndSet(total, 0L);
+		}
+		
+		/**
+		 * Forces the file's data to the disk, returning the segments that
+		 * were written before it was.
+		 */
+		BitSet sync() throws IOException
+		{
+			BitSet forced;
+			synchronized (this) {
+				forced = unforced;
+				unforced = new BitSet();
+			}
+			
+			unsynced.set(0L);
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				synchronized (this) {
+					unforced.or(forced);
+				}
+				throw e;
+			}
+			return forced;
+		}
+		
+		/** Closes the file. */
+		void close()
+		{
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+		}
 	}
 	
 	/**
@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2007-2008 Michael Schoonmaker <michael.r.schoonmaker@gmail.com>
+ * Copyright (c) 2007-2008 Chris Shake <cshake@gmail.com>
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package snodes.fs;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Keeps a bounded number of shared files open for reading.
+ *
+ * <p>Opening a file for every segment read is slow, but keeping every file
+ * that has ever been read open soon runs out of file handles. The cache
+ * keeps at most {@link #getCapacity} files open, closing the least recently
+ * used when it needs room, and closes files that have not been read for
+ * {@link #getIdleTimeout} milliseconds.</p>
+ *
+ * <p>Each {@link #acquire} must be followed by a {@link Handle#release}. A
+ * file is never closed while a handle to it is held, so a read in progress
+ * never has its file closed underneath it; if the cache is over capacity
+ * because every file is in use, the extra files are closed as they are
+ * released.</p>
+ *
+ * <p>A handle can also {@link Handle#map map} parts of its file into memory,
+ * in windows of {@value #MAP_WINDOW} bytes. The windows are kept with the
+ * handle and dropped when the file is closed; the operating system unmaps
+ * them once they are no longer referenced.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see FileRead#getHandleCache
+ */
+@ThreadSafe
+public final class HandleCache
+{
+	private static final Logger logger = Logger.getLogger("snodes.fs");
+	
+	/** The default number of files kept open. */
+	public static final int DEFAULT_CAPACITY = 256;
+	/** The default time after which an unused file is closed, in milliseconds. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+	/** How often idle files are looked for, in milliseconds. */
+	private static final long SWEEP_INTERVAL = 5000L;
+	/** The size of each mapped window, in bytes. */
+	static final int MAP_WINDOW = 64 * 1048576;
+	/** The most windows of a file that are kept mapped. */
+	static final int MAX_WINDOWS = 8;
+	
+	/** Closes idle files for every cache. */
+	private static final ScheduledExecutorService sweeper = createSweeper();
+	
+	/** The open files, least recently used first. */
+	@GuardedBy("this")
+	private final Map<File, Handle> handles;
+	/** The most files to keep open. */
+	@GuardedBy("this")
+	private int capacity;
+	/** The time after which an unused file is closed, in milliseconds. */
+	@GuardedBy("this")
+	private long idleTimeout;
+	/** The number of times a file was already open. */
+	@GuardedBy("this")
+	private long hits;
+	/** The number of times a file had to be opened. */
+	@GuardedBy("this")
+	private long misses;
+	/** The number of files closed to make room or because they were idle. */
+	@GuardedBy("this")
+	private long evictions;
+	
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param capacity
+	 *     The most files to keep open.
+	 * @param idleTimeout
+	 *     The time after which an unused file is closed, in milliseconds.
+	 */
+	HandleCache(int capacity, long idleTimeout)
+	{
+		if (capacity < 1) throw new IllegalArgumentException("Bad capacity: " + capacity);
+		
+		this.handles = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+		this.capacity = capacity;
+		this.idleTimeout = idleTimeout;
+		this.hits = 0L;
+		this.misses = 0L;
+		this.evictions = 0L;
+		
+		Runnable task = new Runnable() {
+			public void run() {
+				sweep();
+			}
+		};
+		sweeper.scheduleWithFixedDelay(task, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/** Creates the timer shared by every cache. */
+	private static ScheduledExecutorService createSweeper()
+	{
+		return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "File Handle Sweeper");
+				t.setDaemon(true); // Quit when Java VM exits
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Returns a handle to an open file, opening the file if it is not open
+	 * already. The handle must be {@link Handle#release released} once the
+	 * caller is done with it.
+	 *
+	 * @param path
+	 *     The file.
+	 * @return
+	 *     A handle to the file.
+	 * @throws FileNotFoundException
+	 *     If the file cannot be opened.
+	 */
+	Handle acquire(File path) throws FileNotFoundException
+	{
+		synchronized (this) {
+			Handle h = handles.get(path);
+			if (h != null) {
+				hits++;
+				h.refs++;
+				return h;
+			}
+			misses++;
+		}
+		
+		// Open the file without holding the lock, so that reads of other
+		// files are not held up.
+		FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+		List<Handle> closing = null;
+		Handle h = null;
+		
+		synchronized (this) {
+			h = handles.get(path);
+			if (h == null) {
+				h = new Handle(path, channel);
+				h.refs++;
+				handles.put(path, h);
+				closing = trim();
+			} else {
+				// Another thread opened it first.
+				h.refs++;
+				closing = new ArrayList<Handle>();
+				closing.add(new Handle(path, channel));
+			}
+		}
+		
+		close(closing);
+		return h;
+	}
+	
+	/**
+	 * Closes a file. If it is in use, it is closed once the last handle to it
+	 * is released.
+	 *
+	 * @param path
+	 *     The file.
+	 */
+	void close(File path)
+	{
+		List<Handle> closing = new ArrayList<Handle>();
+		
+		synchronized (this) {
+			Handle h = handles.remove(path);
+			if (h != null && retire(h)) closing.add(h);
+		}
+		
+		close(closing);
+	}
+	
+	/** Closes every file, or marks it to be closed once it is released. */
+	void closeAll()
+	{
+		List<Handle> closing = new ArrayList<Handle>();
+		
+		synchronized (this) {
+			for (Handle h : handles.values()) {
+				if (retire(h)) closing.add(h);
+			}
+			handles.clear();
+		}
+		
+		close(closing);
+	}
+	
+	/**
+	 * Sets the most files to keep open. If more are open, the least recently
+	 * used are closed.
+	 *
+	 * @param capacity
+	 *     The number of files, at least 1.
+	 * @throws IllegalArgumentException
+	 *     If the capacity is less than 1.
+	 */
+	public void setCapacity(int capacity) throws IllegalArgumentException
+	{
+		if (capacity < 1) throw new IllegalArgumentException("Bad capacity: " + capacity);
+		
+		List<Handle> closing = null;
+		synchronized (this) {
+			this.capacity = capacity;
+			closing = trim();
+		}
+		close(closing);
+	}
+	
+	/**
+	 * Returns the most files to keep open.
+	 *
+	 * @return
+	 *     The number of files.
+	 */
+	public synchronized int getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * Sets the time after which a file that has not been read is closed.
+	 *
+	 * @param millis
+	 *     The time, in milliseconds, or 0 to keep files open until the cache
+	 *     needs room.
+	 */
+	public synchronized void setIdleTimeout(long millis)
+	{
+		if (millis < 0L) throw new IllegalArgumentException("Bad timeout: " + millis);
+		idleTimeout = millis;
+	}
+	
+	/**
+	 * Returns the time after which a file that has not been read is closed.
+	 *
+	 * @return
+	 *     The time, in milliseconds, or 0 if idle files are not closed.
+	 */
+	public synchronized long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+	
+	/**
+	 * Returns the number of files that are open.
+	 *
+	 * @return
+	 *     The number of open files.
+	 */
+	public synchronized int getOpen()
+	{
+		return handles.size();
+	}
+	
+	/**
+	 * Returns the number of times a file was read while it was already open.
+	 *
+	 * @return
+	 *     The number of hits.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of times a file had to be opened to be read.
+	 *
+	 * @return
+	 *     The number of misses.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of files that were closed to make room for others
+	 * or because they had not been read for a while.
+	 *
+	 * @return
+	 *     The number of evictions.
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+	
+	/** Closes files that have not been used for a while. This is run by the timer. */
+	void sweep()
+	{
+		List<Handle> closing = new ArrayList<Handle>();
+		
+		synchronized (this) {
+			if (idleTimeout == 0L) return;
+			
+			long now = System.currentTimeMillis();
+			Iterator<Handle> iter = handles.values().iterator();
+			while (iter.hasNext()) {
+				Handle h = iter.next();
+				// Files are in order of use, so the rest are newer.
+				if (now - h.lastUsed < idleTimeout) break;
+				if (h.refs > 0) continue;
+				
+				iter.remove();
+				retire(h);
+				closing.add(h);
+				evictions++;
+			}
+		}
+		
+		close(closing);
+	}
+	
+	/**
+	 * Removes the least recently used files that are not in use until there
+	 * are no more than the capacity, returning them so they can be closed
+	 * once the lock is released.
+	 */
+	@GuardedBy("this")
+	private List<Handle> trim()
+	{
+		List<Handle> closing = new ArrayList<Handle>();
+		Iterator<Handle> iter = handles.values().iterator();
+		
+		while (handles.size() > capacity && iter.hasNext()) {
+			Handle h = iter.next();
+			if (h.refs > 0) continue;
+			
+			iter.remove();
+			retire(h);
+			closing.add(h);
+			evictions++;
+		}
+		return closing;
+	}
+	
+	/**
+	 * Marks a handle that has been removed from the cache as retired,
+	 * returning true if it is not in use and can be closed now.
+	 */
+	@GuardedBy("this")
+	private boolean retire(Handle h)
+	{
+		h.retired = true;
+		return h.refs == 0;
+	}
+	
+	/** Releases a handle, closing its file if it was retired while in use. */
+	private void release(Handle h)
+	{
+		List<Handle> closing = null;
+		
+		synchronized (this) {
+			if (h.refs <= 0) throw new IllegalStateException("Handle already released: " + h.path);
+			h.refs--;
+			h.lastUsed = System.currentTimeMillis();
+			
+			if (h.refs > 0) return;
+			if (h.retired) {
+				closing = new ArrayList<Handle>();
+				closing.add(h);
+			} else {
+				closing = trim();
+			}
+		}
+		
+		close(closing);
+	}
+	
+	/** Closes the files of handles that have been removed from the cache. */
+	private static void close(List<Handle> closing)
+	{
+		if (closing == null) return;
+		
+		for (Handle h : closing) {
+			try {
+				h.channel.close();
+			} catch (IOException e) {
+				// Ignore.
+			} finally {
+				logger.fine("Closed random access file: " + h.path);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return new String("HandleCache[open=" + handles.size() + "/" + capacity + ", hits=" + hits
+			+ ", misses=" + misses + ", evictions=" + evictions + "]");
+	}
+	
+	
+	/** An open file, which stays open until it is released. */
+	final class Handle
+	{
+		/** The file. */
+		private final File path;
+		/** The channel from which the file is read. */
+		private final FileChannel channel;
+		/** The number of times the handle has been acquired and not released. */
+		@GuardedBy("HandleCache.this")
+		private int refs;
+		/** The time at which the handle was last released, in milliseconds. */
+		@GuardedBy("HandleCache.this")
+		private long lastUsed;
+		/** True once the handle has been removed from the cache. */
+		@GuardedBy("HandleCache.this")
+		private boolean retired;
+		/** The mapped windows of the file, by index, least recently used first. */
+		@GuardedBy("this")
+		private final Map<Long, MappedByteBuffer> windows;
+		/** The size of the file when its windows were mapped. */
+		@GuardedBy("this")
+		private long mappedSize;
+		
+		private Handle(File path, FileChannel channel)
+		{
+			this.path = path;
+			this.channel = channel;
+			this.refs = 0;
+			this.lastUsed = System.currentTimeMillis();
+			this.retired = false;
+			this.windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true);
+			this.mappedSize = -1L;
+		}
+		
+		/**
+		 * Returns the channel from which the file is read. Reads must use
+		 * positional reads, since the channel is shared.
+		 *
+		 * @return
+		 *     The channel.
+		 */
+		FileChannel channel()
+		{
+			return channel;
+		}
+		
+		/**
+		 * Returns a read-only view of part of the file, mapping the window
+		 * that holds it if it is not mapped already. Nothing is copied; the
+		 * bytes come straight from the page cache.
+		 *
+		 * <p>Windows overlap by {@link FileRead#MAX_SEGMENT_SIZE}, so a
+		 * segment never spans two of them. If the file's size has changed
+		 * since its windows were mapped, they are mapped again, but a file
+		 * that is truncated while a view of it is being read may still
+		 * cause an error.</p>
+		 *
+		 * @param offset
+		 *     The offset of the first byte.
+		 * @param length
+		 *     The number of bytes, at most {@link FileRead#MAX_SEGMENT_SIZE}.
+		 * @param size
+		 *     The current size of the file.
+		 * @return
+		 *     A read-only buffer of the bytes.
+		 * @throws IOException
+		 *     If the file cannot be mapped.
+		 */
+		synchronized ByteBuffer map(long offset, int length, long size) throws IOException
+		{
+			if (length > FileRead.MAX_SEGMENT_SIZE || offset < 0 || offset + length > size) {
+				throw new IllegalArgumentException("Bad range: " + length + " bytes at " + offset);
+			}
+			if (size != mappedSize) {
+				windows.clear();
+				mappedSize = size;
+			}
+			
+			Long index = Long.valueOf(offset / MAP_WINDOW);
+			long start = index.longValue() * MAP_WINDOW;
+			MappedByteBuffer window = windows.get(index);
+			
+			if (window == null) {
+				long span = Math.min((long) MAP_WINDOW + FileRead.MAX_SEGMENT_SIZE, size - start);
+				window = channel.map(FileChannel.MapMode.READ_ONLY, start, span);
+				windows.put(index, window);
+				if (windows.size() > MAX_WINDOWS) {
+					Iterator<Long> iter = windows.keySet().iterator();
+					iter.next();
+					iter.remove();
+				}
+			}
+			
+			ByteBuffer view = window.duplicate();
+			view.position((int) (offset - start));
+			view.limit(view.position() + length);
+			return view.slice().asReadOnlyBuffer();
+		}
+		
+		/** Releases the handle. It must not be used afterwards. */
+		void release()
+		{
+			HandleCache.this.release(this);
+		}
+	}
+}
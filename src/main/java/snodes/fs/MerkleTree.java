@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2007-2008 Michael Schoonmaker <michael.r.schoonmaker@gmail.com>
+ * Copyright (c) 2007-2008 Chris Shake <cshake@gmail.com>
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package snodes.fs;
+
+import net.jcip.annotations.Immutable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * A hash tree over the segments of a file.
+ *
+ * <p>Each segment is hashed with SHA-256 into a leaf. Pairs of hashes are
+ * then hashed together, level by level, until a single <em>root</em> hash is
+ * left; a hash without a partner is carried up to the next level as is.
+ * Leaves and inner hashes are hashed with different prefixes, so one cannot
+ * be passed off as the other. An empty file, which has no segments, has the
+ * hash of an empty leaf as its root.</p>
+ *
+ * <p>The root identifies the whole file. Anyone who knows it can check a
+ * single segment, from any source, given the segment's <em>proof</em>: the
+ * hashes of its partners on the way up to the root, which are
+ * {@value #HASH_SIZE} bytes for each level of the tree. The sharing node
+ * builds the tree once and sends the proof with each segment, so the
+ * receiving node never needs the whole tree.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see FileRead#getHashTree
+ */
+@Immutable
+public final class MerkleTree
+{
+	/** The hash algorithm. */
+	public static final String ALGORITHM = "SHA-256";
+	/** The size of each hash, in bytes. */
+	public static final int HASH_SIZE = 32;
+	
+	/** Prefixes the data of a leaf. */
+	private static final byte LEAF = 0;
+	/** Prefixes the two hashes of an inner node. */
+	private static final byte NODE = 1;
+	/** The root of a tree without any segments. */
+	private static final byte[] EMPTY_ROOT = hashSegment(ByteBuffer.allocate(0));
+	
+	/** The hashes of each level, from the leaves up to the root. */
+	private final byte[][] levels;
+	/** The size of each segment. */
+	private final int segmentSize;
+	/** The number of segments. */
+	private final int segments;
+	
+	/**
+	 * Creates a tree from the hashes of its leaves.
+	 *
+	 * @param leaves
+	 *     The leaf hashes, one after the other. The array is not copied.
+	 * @param segmentSize
+	 *     The size of each segment.
+	 */
+	private MerkleTree(byte[] leaves, int segmentSize)
+	{
+		MessageDigest md = digest();
+		int count = leaves.length / HASH_SIZE;
+		
+		this.segmentSize = segmentSize;
+		this.segments = count;
+		this.levels = new byte[height(count) + 1][];
+		this.levels[0] = leaves;
+		
+		for (int level = 1; level < levels.length; level++) {
+			byte[] below = levels[level - 1];
+			int above = (count + 1) / 2;
+			byte[] hashes = new byte[above * HASH_SIZE];
+			
+			for (int i = 0; i < above; i++) {
+				if (2 * i + 1 < count) {
+					md.update(NODE);
+					md.update(below, 2 * i * HASH_SIZE, 2 * HASH_SIZE);
+					System.arraycopy(md.digest(), 0, hashes, i * HASH_SIZE, HASH_SIZE);
+				} else {
+					System.arraycopy(below, 2 * i * HASH_SIZE, hashes, i * HASH_SIZE, HASH_SIZE);
+				}
+			}
+			
+			levels[level] = hashes;
+			count = above;
+		}
+	}
+	
+	/**
+	 * Builds the tree of a file by reading the whole file once.
+	 *
+	 * @param file
+	 *     The file.
+	 * @param segmentSize
+	 *     The size of each segment.
+	 * @return
+	 *     The tree.
+	 * @throws IOException
+	 *     If the file cannot be read.
+	 */
+	public static MerkleTree build(File file, int segmentSize) throws IOException
+	{
+		if (segmentSize <= 0) throw new IllegalArgumentException("Bad segment size: " + segmentSize);
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		try {
+			FileChannel ch = raf.getChannel();
+			long size = ch.size();
+			long count = (size + segmentSize - 1) / segmentSize;
+			
+			if (count * HASH_SIZE > Integer.MAX_VALUE) {
+				throw new IOException("Too many segments in " + file + ": " + count);
+			}
+			
+			byte[] leaves = new byte[(int) count * HASH_SIZE];
+			ByteBuffer buf = ByteBuffer.allocate(segmentSize);
+			MessageDigest md = digest();
+			
+			for (int seg = 0; seg < count; seg++) {
+				long offset = (long) seg * segmentSize;
+				buf.clear();
+				buf.limit((int) Math.min(segmentSize, size - offset));
+				while (buf.hasRemaining()) {
+					if (ch.read(buf, offset + buf.position()) < 0) {
+						throw new EOFException(file + " was truncated while being hashed");
+					}
+				}
+				buf.flip();
+				leaf(md, buf, leaves, seg * HASH_SIZE);
+			}
+			
+			return new MerkleTree(leaves, segmentSize);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Builds a tree from the leaf hashes of a file's segments.
+	 *
+	 * @param leaves
+	 *     The leaf hashes, as returned by {@link #hashSegment}, one after the
+	 *     other.
+	 * @param segmentSize
+	 *     The size of each segment.
+	 * @return
+	 *     The tree.
+	 */
+	public static MerkleTree fromLeaves(byte[] leaves, int segmentSize)
+	{
+		if (leaves.length % HASH_SIZE != 0) {
+			throw new IllegalArgumentException("Leaves are not a whole number of hashes");
+		}
+		return new MerkleTree(leaves.clone(), segmentSize);
+	}
+	
+	/**
+	 * Returns the leaf hash of a segment's data.
+	 *
+	 * @param data
+	 *     The segment's data. The buffer's position is not changed.
+	 * @return
+	 *     The leaf hash.
+	 */
+	public static byte[] hashSegment(ByteBuffer data)
+	{
+		byte[] hash = new byte[HASH_SIZE];
+		leaf(digest(), data, hash, 0);
+		return hash;
+	}
+	
+	/**
+	 * Checks a segment against the root of the tree of its file.
+	 *
+	 * @param root
+	 *     The root hash.
+	 * @param segments
+	 *     The number of segments in the file.
+	 * @param seg
+	 *     The segment number.
+	 * @param data
+	 *     The segment's data. The buffer's position is not changed.
+	 * @param proof
+	 *     The segment's proof, as returned by {@link #getProof}. The buffer's
+	 *     position is not changed.
+	 * @return
+	 *     True if the segment belongs at that place in the file.
+	 */
+	public static boolean verify(byte[] root, int segments, int seg, ByteBuffer data, ByteBuffer proof)
+	{
+		if (root == null || root.length != HASH_SIZE || seg < 0 || seg >= segments) return false;
+		if (proof == null || proof.remaining() != proofLength(segments, seg)) return false;
+		
+		MessageDigest md = digest();
+		byte[] hash = new byte[HASH_SIZE];
+		byte[] sibling = new byte[HASH_SIZE];
+		ByteBuffer p = proof.duplicate();
+		int index = seg;
+		int count = segments;
+		
+		leaf(md, data, hash, 0);
+		while (count > 1) {
+			int partner = index ^ 1;
+			if (partner < count) {
+				p.get(sibling);
+				md.update(NODE);
+				if ((index & 1) == 0) {
+					md.update(hash);
+					md.update(sibling);
+				} else {
+					md.update(sibling);
+					md.update(hash);
+				}
+				hash = md.digest();
+			}
+			index /= 2;
+			count = (count + 1) / 2;
+		}
+		
+		return MessageDigest.isEqual(hash, root);
+	}
+	
+	/**
+	 * Returns the root hash, which identifies the file. The root of an empty
+	 * file is SHA-256(0x00), the hash of an empty leaf.
+	 *
+	 * @return
+	 *     A copy of the root hash.
+	 */
+	public byte[] getRoot()
+	{
+		if (segments == 0) return EMPTY_ROOT.clone();
+		
+		byte[] top = levels[levels.length - 1];
+		return Arrays.copyOf(top, HASH_SIZE);
+	}
+	
+	/**
+	 * Returns the leaf hash of a segment.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @return
+	 *     A copy of the leaf hash.
+	 */
+	public byte[] getLeaf(int seg)
+	{
+		checkSegment(seg);
+		return Arrays.copyOfRange(levels[0], seg * HASH_SIZE, (seg + 1) * HASH_SIZE);
+	}
+	
+	/**
+	 * Returns the proof of a segment: the hashes needed to get from the
+	 * segment's leaf to the root.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @return
+	 *     The proof.
+	 */
+	public byte[] getProof(int seg)
+	{
+		checkSegment(seg);
+		
+		byte[] proof = new byte[proofLength(segments, seg)];
+		int index = seg;
+		int count = segments;
+		int pos = 0;
+		
+		for (int level = 0; count > 1; level++) {
+			int partner = index ^ 1;
+			if (partner < count) {
+				System.arraycopy(levels[level], partner * HASH_SIZE, proof, pos, HASH_SIZE);
+				pos += HASH_SIZE;
+			}
+			index /= 2;
+			count = (count + 1) / 2;
+		}
+		
+		return proof;
+	}
+	
+	/**
+	 * Checks a segment against this tree's leaf for it, without reading the
+	 * rest of the file.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @param data
+	 *     The segment's data. The buffer's position is not changed.
+	 * @return
+	 *     True if the data is what the tree was built from.
+	 */
+	public boolean verifySegment(int seg, ByteBuffer data)
+	{
+		checkSegment(seg);
+		return MessageDigest.isEqual(hashSegment(data), getLeaf(seg));
+	}
+	
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return
+	 *     The number of segments, or leaves.
+	 */
+	public int getSegments()
+	{
+		return segments;
+	}
+	
+	/**
+	 * Returns the size of each segment.
+	 *
+	 * @return
+	 *     The segment size, in bytes.
+	 */
+	public int getSegmentSize()
+	{
+		return segmentSize;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder hex = new StringBuilder(2 * HASH_SIZE);
+		byte[] root = getRoot();
+		
+		for (int i = 0; i < root.length; i++) {
+			hex.append(Character.forDigit((root[i] >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(root[i] & 0xf, 16));
+		}
+		
+		return new String("MerkleTree " + hex + "[segments=" + segments + ", size=" + segmentSize + "]");
+	}
+	
+	/** Throws an exception if there is no such segment. */
+	private void checkSegment(int seg)
+	{
+		if (seg < 0 || seg >= segments) throw new IndexOutOfBoundsException("No segment " + seg);
+	}
+	
+	/** Returns the number of levels above the leaves. */
+	private static int height(int count)
+	{
+		int height = 0;
+		while (count > 1) {
+			count = (count + 1) / 2;
+			height++;
+		}
+		return height;
+	}
+	
+	/** Returns the length of a segment's proof. */
+	private static int proofLength(int segments, int seg)
+	{
+		int length = 0;
+		int index = seg;
+		int count = segments;
+		
+		while (count > 1) {
+			if ((index ^ 1) < count) length += HASH_SIZE;
+			index /= 2;
+			count = (count + 1) / 2;
+		}
+		
+		return length;
+	}
+	
+	/** Hashes a leaf's data into the given array. */
+	private static void leaf(MessageDigest md, ByteBuffer data, byte[] out, int off)
+	{
+		md.update(LEAF);
+		md.update(data.duplicate());
+		System.arraycopy(md.digest(), 0, out, off, HASH_SIZE);
+	}
+	
+	/** Returns a new digest. */
+	private static MessageDigest digest()
+	{
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		}
+	}
+}
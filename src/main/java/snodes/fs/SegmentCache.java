@@ -0,0 +1,662 @@
+/*
+ * Copyright (c) 2007-2008 Michael Schoonmaker <michael.r.schoonmaker@gmail.com>
+ * Copyright (c) 2007-2008 Chris Shake <cshake@gmail.com>
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package snodes.fs;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Keeps the segments that are sent most often in memory, outside the Java
+ * heap, so that a popular file is not read and compressed again for every
+ * peer that asks for it.
+ *
+ * <p>The cache is shared by everything on the sending side: {@link FileRead}
+ * keeps the raw bytes of segments in it, keyed by file, modification time
+ * and segment, and the network layer keeps the compressed forms it sends.
+ * Its size is bounded in bytes, not entries.</p>
+ *
+ * <p>What to keep is decided as in W-TinyLFU. The cache remembers roughly
+ * how often every key has been asked for recently, in a small sketch of
+ * 4-bit counters that are halved every so often so old popularity fades.
+ * Once the cache is full, a value is only copied into it if its key has
+ * been asked for more than once. New entries go into a small window,
+ * ordered by use; an entry that leaves the window only stays in the cache
+ * if it has been asked for more often than the entry it would push out,
+ * the least recently used entry on <em>probation</em>. The rest of the cache
+ * is split into that probation area, for entries that have not been asked
+ * for again since they left the window, and a <em>protected</em> area, for
+ * those that have. This keeps a burst of one-off reads, such as a single
+ * peer downloading a file no one else wants, from flushing out the segments
+ * of a file that hundreds of peers are downloading.</p>
+ *
+ * <p>Values are held in direct buffers whose sizes are powers of two. The
+ * buffers of evicted entries are pooled and reused for new ones, so a busy
+ * cache does not keep allocating memory outside the heap. An entry is
+ * therefore only valid while it is held: every {@link #acquire} must be
+ * followed by an {@link Entry#release}, and an evicted entry's buffer is
+ * only reused once it has been released.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+public final class SegmentCache
+{
+	/** The default size of the cache, in bytes. */
+	public static final long DEFAULT_CAPACITY = 64L * 1048576; // 64M
+	
+	/** The share of the cache given to the window, in hundredths. */
+	private static final int WINDOW_PERCENT = 1;
+	/** The share of the rest given to the protected area, in hundredths. */
+	private static final int PROTECTED_PERCENT = 80;
+	/** The most unused buffers kept for reuse, in hundredths of the cache's size. */
+	private static final int POOL_PERCENT = 10;
+	/** The size of the smallest buffer, as a power of two. */
+	private static final int MIN_SLAB_SHIFT = 6; // 64 bytes
+	
+	/** The singleton instance of the class. */
+	private static SegmentCache singleton = null;
+	
+	/** Every entry, by key. */
+	@GuardedBy("this")
+	private final Map<Object, Entry> entries;
+	/** New entries, least recently used first. */
+	@GuardedBy("this")
+	private final LinkedHashMap<Object, Entry> window;
+	/** Entries on probation, least recently used first. */
+	@GuardedBy("this")
+	private final LinkedHashMap<Object, Entry> probation;
+	/** Entries that have been used since they were admitted, least recently used first. */
+	@GuardedBy("this")
+	private final LinkedHashMap<Object, Entry> protect;
+	/** Unused buffers, by the power of two of their size. */
+	@GuardedBy("this")
+	private final List<ArrayDeque<ByteBuffer>> pool;
+	/** How often each key has been asked for. */
+	@GuardedBy("this")
+	private Sketch sketch;
+	/** The size of the cache, in bytes. */
+	@GuardedBy("this")
+	private long capacity;
+	/** The bytes held by the window, probation and protected areas. */
+	@GuardedBy("this")
+	private long windowBytes, probationBytes, protectBytes;
+	/** The bytes held by the pool. */
+	@GuardedBy("this")
+	private long poolBytes;
+	/** The number of lookups that found an entry. */
+	@GuardedBy("this")
+	private long hits;
+	/** The number of lookups that did not. */
+	@GuardedBy("this")
+	private long misses;
+	/** The number of entries evicted or turned away. */
+	@GuardedBy("this")
+	private long evictions;
+	
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param capacity
+	 *     The size of the cache, in bytes.
+	 */
+	SegmentCache(long capacity)
+	{
+		this.entries = new HashMap<Object, Entry>();
+		this.window = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+		this.probation = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+		this.protect = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+		this.pool = new ArrayList<ArrayDeque<ByteBuffer>>(Integer.SIZE);
+		for (int shift = 0; shift < Integer.SIZE; shift++) {
+			pool.add(new ArrayDeque<ByteBuffer>());
+		}
+		this.poolBytes = 0L;
+		this.hits = 0L;
+		this.misses = 0L;
+		this.evictions = 0L;
+		setCapacity(capacity);
+	}
+	
+	/**
+	 * Returns the shared instance of this class.
+	 *
+	 * @return
+	 *     The cache shared by the sending side.
+	 */
+	public static synchronized SegmentCache getInstance()
+	{
+		if (singleton == null) singleton = new SegmentCache(DEFAULT_CAPACITY);
+		return singleton;
+	}
+	
+	/**
+	 * Returns a cached value. The entry must be {@link Entry#release released}
+	 * once its value is no longer needed.
+	 *
+	 * @param key
+	 *     The key, which must implement <code>equals</code> and
+	 *     <code>hashCode</code>.
+	 * @return
+	 *     The entry, or null if there is none.
+	 */
+	public synchronized Entry acquire(Object key)
+	{
+		sketch.increment(key);
+		
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		
+		hits++;
+		if (entry.area == probation) {
+			// Asked for again: promote it, making room by demoting the
+			// protected area's least recently used entries.
+			probation.remove(key);
+			probationBytes -= entry.charge;
+			entry.area = protect;
+			protect.put(key, entry);
+			protectBytes += entry.charge;
+			demote();
+		} else {
+			// The areas are ordered by access, so this makes it the most
+			// recently used.
+			entry.area.get(key);
+		}
+		
+		entry.refs++;
+		return entry;
+	}
+	
+	/**
+	 * Adds a value to the cache, unless it is already cached. The value is
+	 * copied out of the Java heap, but only if the cache has room for it or
+	 * its key has been asked for more than once; otherwise it is turned away
+	 * without being copied. Once added, it may still be evicted at once if it
+	 * is not asked for as often as what is already cached.
+	 *
+	 * @param key
+	 *     The key, which must implement <code>equals</code> and
+	 *     <code>hashCode</code>, and must not be modified afterwards.
+	 * @param value
+	 *     The value. Its remaining bytes are copied, and its position is
+	 *     not changed.
+	 * @return
+	 *     True if the value was added.
+	 */
+	public boolean put(Object key, ByteBuffer value)
+	{
+		int size = value.remaining();
+		ByteBuffer slab;
+		
+		synchronized (this) {
+			int shift = shiftOf(size);
+			long charge = 1L << shift;
+			if (charge > capacity || entries.containsKey(key)) return false;
+			
+			if (getSize() + charge > capacity && sketch.frequency(key) <= 1) {
+				evictions++;
+				return false;
+			}
+			
+			slab = take(shift);
+		}
+		
+		// Copy without the lock, so that other threads are not held up.
+		if (slab == null) slab = ByteBuffer.allocateDirect(1 << shiftOf(size));
+		slab.clear();
+		slab.put(value.duplicate());
+		slab.flip();
+		
+		synchronized (this) {
+			if (entries.containsKey(key)) {
+				// Another thread added it while this one was copying.
+				recycle(slab);
+				return false;
+			}
+			
+			Entry entry = new Entry(key, slab, window);
+			entries.put(key, entry);
+			window.put(key, entry);
+			windowBytes += entry.charge;
+			evict();
+			return entries.get(key) == entry;
+		}
+	}
+	
+	/**
+	 * Removes a value from the cache.
+	 *
+	 * @param key
+	 *     The key.
+	 */
+	public synchronized void invalidate(Object key)
+	{
+		Entry entry = entries.get(key);
+		if (entry != null) remove(entry);
+	}
+	
+	/** Removes every value from the cache. */
+	public synchronized void clear()
+	{
+		for (Entry entry : entries.values()) {
+			entry.evicted = true;
+			if (entry.refs == 0) recycle(entry.slab);
+		}
+		
+		entries.clear();
+		window.clear();
+		probation.clear();
+		protect.clear();
+		windowBytes = probationBytes = protectBytes = 0L;
+	}
+	
+	/**
+	 * Sets the size of the cache. If it holds more, the least valuable
+	 * entries are evicted.
+	 *
+	 * @param capacity
+	 *     The size, in bytes.
+	 */
+	public synchronized void setCapacity(long capacity)
+	{
+		if (capacity < 0L) throw new IllegalArgumentException("Bad capacity: " + capacity);
+		
+		this.capacity = capacity;
+		// The sketch only needs a counter or so for each entry that fits.
+		long count = Math.max(64L, capacity / FileRead.DEFAULT_SEGMENT_SIZE);
+		this.sketch = new Sketch((int) Math.min(count, 1 << 24));
+		evict();
+		
+		// Drop the largest unused buffers until the pool fits again.
+		for (int shift = pool.size() - 1; shift >= 0 && poolBytes > poolMax(); shift--) {
+			ArrayDeque<ByteBuffer> slabs = pool.get(shift);
+			while (!slabs.isEmpty() && poolBytes > poolMax()) {
+				slabs.poll();
+				poolBytes -= 1L << shift;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the size of the cache.
+	 *
+	 * @return
+	 *     The size, in bytes.
+	 */
+	public synchronized long getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of bytes cached. This is the size of the buffers
+	 * that hold the values, which are powers of two, so it is usually a
+	 * little more than the size of the values themselves.
+	 *
+	 * @return
+	 *     The bytes held by every entry.
+	 */
+	public synchronized long getSize()
+	{
+		return windowBytes + probationBytes + protectBytes;
+	}
+	
+	/**
+	 * Returns the number of entries cached.
+	 *
+	 * @return
+	 *     The number of entries.
+	 */
+	public synchronized int getEntries()
+	{
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the number of lookups that found a value.
+	 *
+	 * @return
+	 *     The number of hits.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of lookups that did not find a value.
+	 *
+	 * @return
+	 *     The number of misses.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of values that were evicted, or turned away
+	 * because they were not asked for often enough.
+	 *
+	 * @return
+	 *     The number of evictions.
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+	
+	/**
+	 * Returns the share of lookups that found a value.
+	 *
+	 * @return
+	 *     The hit ratio, from 0 to 1, or 0 if nothing has been looked up.
+	 */
+	public synchronized double getHitRatio()
+	{
+		long lookups = hits + misses;
+		return (lookups == 0L) ? 0.0 : (double) hits / lookups;
+	}
+	
+	/** Removes an entry, reusing its buffer once it is no longer held. */
+	@GuardedBy("this")
+	private void remove(Entry entry)
+	{
+		entries.remove(entry.key);
+		entry.area.remove(entry.key);
+		if (entry.area == window) windowBytes -= entry.charge;
+		else if (entry.area == probation) probationBytes -= entry.charge;
+		else protectBytes -= entry.charge;
+		
+		entry.evicted = true;
+		if (entry.refs == 0) recycle(entry.slab);
+	}
+	
+	/** Releases an entry, reusing its buffer if it has been evicted. */
+	private synchronized void release(Entry entry)
+	{
+		if (entry.refs <= 0) throw new IllegalStateException("Entry already released: " + entry.key);
+		if (--entry.refs == 0 && entry.evicted) recycle(entry.slab);
+	}
+	
+	/** Moves the protected area's oldest entries to probation until it fits. */
+	@GuardedBy("this")
+	private void demote()
+	{
+		long max = (capacity - windowMax()) * PROTECTED_PERCENT / 100;
+		
+		while (protectBytes > max && protect.size() > 1) {
+			Entry entry = first(protect);
+			protect.remove(entry.key);
+			protectBytes -= entry.charge;
+			entry.area = probation;
+			probation.put(entry.key, entry);
+			probationBytes += entry.charge;
+		}
+	}
+	
+	/**
+	 * Moves entries out of the window into probation until the window fits.
+	 * While the cache is full, each entry that leaves the window is weighed
+	 * against the least recently used entry on probation, and whichever has
+	 * been asked for less often is evicted. If the cache is still too full,
+	 * the least recently used entries are evicted.
+	 */
+	@GuardedBy("this")
+	private void evict()
+	{
+		long max = windowMax();
+		
+		while (windowBytes > max && window.size() > 1) {
+			Entry candidate = first(window);
+			Entry victim = first(probation);
+			
+			window.remove(candidate.key);
+			windowBytes -= candidate.charge;
+			candidate.area = probation;
+			probation.put(candidate.key, candidate);
+			probationBytes += candidate.charge;
+			
+			if (victim != null && getSize() > capacity) {
+				if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) remove(victim);
+				else remove(candidate);
+				evictions++;
+			}
+		}
+		
+		while (getSize() > capacity) {
+			Entry victim = first(probation);
+			if (victim == null) victim = first(protect);
+			if (victim == null) victim = first(window);
+			
+			remove(victim);
+			evictions++;
+		}
+	}
+	
+	/** Returns the most bytes the window may hold. */
+	@GuardedBy("this")
+	private long windowMax()
+	{
+		return capacity * WINDOW_PERCENT / 100;
+	}
+	
+	/** Returns the most bytes the pool may hold. */
+	@GuardedBy("this")
+	private long poolMax()
+	{
+		return capacity * POOL_PERCENT / 100;
+	}
+	
+	/** Returns an unused buffer of the given power of two, or null. */
+	@GuardedBy("this")
+	private ByteBuffer take(int shift)
+	{
+		ByteBuffer slab = pool.get(shift).poll();
+		if (slab != null) poolBytes -= slab.capacity();
+		return slab;
+	}
+	
+	/** Keeps a buffer that is no longer used for reuse, if the pool has room. */
+	@GuardedBy("this")
+	private void recycle(ByteBuffer slab)
+	{
+		int shift = shiftOf(slab.capacity());
+		if (poolBytes + slab.capacity() > poolMax()) return;
+		
+		pool.get(shift).push(slab);
+		poolBytes += slab.capacity();
+	}
+	
+	/** Returns the power of two of the buffer that holds a value of the given size. */
+	private static int shiftOf(int size)
+	{
+		if (size <= 1 << MIN_SLAB_SHIFT) return MIN_SLAB_SHIFT;
+		return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+	}
+	
+	/** Returns the least recently used entry of an area, or null. */
+	private static Entry first(LinkedHashMap<Object, Entry> area)
+	{
+		Iterator<Entry> iter = area.values().iterator();
+		return iter.hasNext() ? iter.next() : null;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return new String("SegmentCache[size=" + getSize() + "/" + capacity + ", entries=" + entries.size()
+			+ ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]");
+	}
+	
+	
+	/** A cached value, which stays valid until it is released. */
+	public final class Entry
+	{
+		private final Object key;
+		/** The buffer that holds the value. */
+		private final ByteBuffer slab;
+		/** A read-only view of the value. */
+		private final ByteBuffer value;
+		/** The bytes charged against the cache's size. */
+		private final long charge;
+		/** The area that holds the entry. */
+		@GuardedBy("SegmentCache.this")
+		private LinkedHashMap<Object, Entry> area;
+		/** The number of times the entry has been acquired and not released. */
+		@GuardedBy("SegmentCache.this")
+		private int refs;
+		/** Whether the entry has been removed from the cache. */
+		@GuardedBy("SegmentCache.this")
+		private boolean evicted;
+		
+		private Entry(Object key, ByteBuffer slab, LinkedHashMap<Object, Entry> area)
+		{
+			this.key = key;
+			this.slab = slab;
+			this.value = slab.slice().asReadOnlyBuffer();
+			this.charge = slab.capacity();
+			this.area = area;
+			this.refs = 0;
+			this.evicted = false;
+		}
+		
+		/**
+		 * Returns the value. It must not be used after the entry is
+		 * released.
+		 *
+		 * @return
+		 *     A read-only view of the value.
+		 */
+		public ByteBuffer buffer()
+		{
+			return value.duplicate();
+		}
+		
+		/**
+		 * Releases the entry. Each entry returned by {@link SegmentCache#acquire}
+		 * must be released exactly once.
+		 *
+		 * @throws IllegalStateException
+		 *     If the entry has already been released.
+		 */
+		public void release()
+		{
+			SegmentCache.this.release(this);
+		}
+	}
+	
+	
+	/**
+	 * Estimates how often keys have been asked for: a count-min sketch of
+	 * 4-bit counters, sixteen to a word. Every counter is halved once there
+	 * have been ten times as many increments as there are words, so the
+	 * estimates favour what is popular now.
+	 */
+	private static final class Sketch
+	{
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+		};
+		private static final long RESET_MASK = 0x7777777777777777L;
+		
+		private final long[] table;
+		private final int sampleSize;
+		private int additions;
+		
+		private Sketch(int entries)
+		{
+			int length = Integer.highestOneBit(Math.max(entries, 2) - 1) << 1;
+			this.table = new long[length];
+			this.sampleSize = 10 * length;
+			this.additions = 0;
+		}
+		
+		/** Returns the estimated number of times a key was asked for, up to 15. */
+		private int frequency(Object key)
+		{
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int freq = Integer.MAX_VALUE;
+			
+			for (int i = 0; i < 4; i++) {
+				int offset = (start + i) << 2;
+				int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+				freq = Math.min(freq, count);
+			}
+			return freq;
+		}
+		
+		/** Counts a request for a key. */
+		private void increment(Object key)
+		{
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int offset = (start + i) << 2;
+				long mask = 0xfL << offset;
+				if ((table[index] & mask) != mask) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			
+			if (added && ++additions >= sampleSize) {
+				for (int i = 0; i < table.length; i++) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions /= 2;
+			}
+		}
+		
+		/** Returns the word that holds a key's counter in the given row. */
+		private int indexOf(int hash, int row)
+		{
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int) h & (table.length - 1);
+		}
+		
+		/** Mixes the bits of a hash code. */
+		private static int spread(int x)
+		{
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2007-2008 Michael Schoonmaker <michael.r.schoonmaker@gmail.com>
+ * Copyright (c) 2007-2008 Chris Shake <cshake@gmail.com>
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package snodes.fs;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+
+/**
+ * Records which segments of a download have been written to disk, so that
+ * the download can pick up where it left off after a restart.
+ *
+ * <p>The journal is a small sidecar file next to the download. It holds a
+ * header describing the download's segments, followed by a bitmap with one
+ * bit per segment. The file is mapped into memory, so marking a segment
+ * costs no more than setting a bit: the operating system writes the page
+ * back on its own, even if this process is killed.</p>
+ *
+ * <p>A segment must only be {@link #mark marked} once its data has been
+ * written to the download. Since the operating system may write the bitmap
+ * back before the data after a power failure, {@link #force} should be called
+ * after the download itself has been synced when that matters.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class SegmentJournal
+{
+	private static final Logger logger = Logger.getLogger("snodes.fs");
+	
+	/** The extension added to a download's name to name its journal. */
+	static final String SUFFIX = ".journal";
+	
+	/** Identifies a journal file ("SNJ1"). */
+	private static final int MAGIC = 0x534e4a31;
+	/** The size of the journal header, in bytes. */
+	private static final int HEADER_SIZE = 16;
+	
+	/** The journal file. */
+	private final File file;
+	/** The open journal file. */
+	private final RandomAccessFile raf;
+	/** The header and bitmap, mapped into memory. */
+	@GuardedBy("this")
+	private final MappedByteBuffer map;
+	/** The number of segments in the download. */
+	private final int segments;
+	/** True once the journal has been closed. */
+	@GuardedBy("this")
+	private boolean closed;
+	
+	/**
+	 * Opens the journal of a download, creating it if needed.
+	 *
+	 * <p>If the journal already exists but was written for a download with a
+	 * different segment size or segment count, or is damaged, it is cleared,
+	 * since none of its bits can be trusted.</p>
+	 *
+	 * @param file
+	 *     The journal file.
+	 * @param segSize
+	 *     The size of a segment of the download.
+	 * @param segments
+	 *     The number of segments in the download.
+	 * @throws IOException
+	 *     If the journal cannot be opened.
+	 */
+	SegmentJournal(File file, int segSize, int segments) throws IOException
+	{
+		if (segSize <= 0 || segments < 0) {
+			throw new IllegalArgumentException("Bad segment layout: " + segments + " x " + segSize);
+		}
+		
+		long size = HEADER_SIZE + (segments + 7) / 8;
+		
+		this.file = file;
+		this.segments = segments;
+		this.raf = new RandomAccessFile(file, "rw");
+		
+		try {
+			boolean existed = raf.length() > 0;
+			boolean valid = raf.length() == size;
+			
+			if (!valid) raf.setLength(size);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			
+			valid = valid
+				&& map.getInt(0) == MAGIC
+				&& map.getInt(4) == segSize
+				&& map.getInt(8) == segments;
+			
+			if (!valid) {
+				if (existed) {
+					logger.info("Discarding stale journal " + file);
+				}
+				for (int i = 0; i < size; i++) map.put(i, (byte) 0);
+				map.putInt(0, MAGIC);
+				map.putInt(4, segSize);
+				map.putInt(8, segments);
+				map.force();
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the journal file for a download.
+	 *
+	 * @param download
+	 *     The file being downloaded.
+	 * @return
+	 *     Its journal file.
+	 */
+	static File journalFor(File download)
+	{
+		return new File(download.getParentFile(), download.getName() + SUFFIX);
+	}
+	
+	/**
+	 * Records that a segment has been written.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 */
+	synchronized void mark(int seg)
+	{
+		if (seg < 0 || seg >= segments) {
+			throw new IndexOutOfBoundsException("No segment " + seg);
+		}
+		if (closed) return;
+		
+		int index = HEADER_SIZE + seg / 8;
+		map.put(index, (byte) (map.get(index) | (1 << (seg % 8))));
+	}
+	
+	/**
+	 * Returns whether a segment has been recorded as written.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @return
+	 *     True if the segment has been written.
+	 */
+	synchronized boolean isMarked(int seg)
+	{
+		if (seg < 0 || seg >= segments) {
+			throw new IndexOutOfBoundsException("No segment " + seg);
+		}
+		return (map.get(HEADER_SIZE + seg / 8) & (1 << (seg % 8))) != 0;
+	}
+	
+	/**
+	 * Returns the status of every segment.
+	 *
+	 * @return
+	 *     An array with an element for each segment, true if the segment has
+	 *     been written.
+	 */
+	synchronized boolean[] getStatus()
+	{
+		boolean[] status = new boolean[segments];
+		for (int i = 0; i < segments; i++) {
+			status[i] = (map.get(HEADER_SIZE + i / 8) & (1 << (i % 8))) != 0;
+		}
+		return status;
+	}
+	
+	/** Writes the journal through to the disk. */
+	synchronized void force()
+	{
+		if (!closed) map.force();
+	}
+	
+	/**
+	 * Closes the journal, writing it through to the disk first. The journal
+	 * file is kept so the download can be resumed later.
+	 *
+	 * @throws IOException
+	 *     If the journal cannot be closed.
+	 */
+	synchronized void close() throws IOException
+	{
+		if (closed) return;
+		
+		map.force();
+		closed = true;
+		raf.close();
+	}
+	
+	/**
+	 * Closes and deletes the journal, once the download is complete.
+	 *
+	 * @throws IOException
+	 *     If the journal cannot be closed.
+	 */
+	synchronized void delete() throws IOException
+	{
+		close();
+		if (!file.delete()) {
+			// Some platforms will not delete a file that is still mapped.
+			file.deleteOnExit();
+		}
+	}
+	
+	public String toString()
+	{
+		int written = 0;
+		boolean[] status = getStatus();
+		
+		for (int i = 0; i < status.length; i++) {
+			if (status[i]) written++;
+		}
+		
+		return new String("SegmentJournal " + file + "[" + written + "/" + segments + "]");
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) 2007-2008 Michael Schoonmaker <michael.r.schoonmaker@gmail.com>
+ * Copyright (c) 2007-2008 Chris Shake <cshake@gmail.com>
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+
+package snodes.fs;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Writes segments of downloads to the disk on a thread of its own, so that
+ * the threads that receive them never wait for the disk.
+ *
+ * <p>Segments are copied into a queue for their file, up to a budget of
+ * {@link #getLimit} bytes across every file; once the budget is spent,
+ * {@link #submit} waits for room, so a disk that cannot keep up slows the
+ * download down rather than filling the heap. The writing thread takes
+ * every segment queued for a file at once, sorts them by offset, and writes
+ * each run of adjacent segments, up to {@value #MAX_RUN} bytes, with a
+ * single gathering write. Segments that arrive out of order are thus
+ * written as a few large sequential writes rather than many small ones.
+ * Files take turns, so one busy download does not hold up the others.</p>
+ *
+ * <p>Each segment's {@link Future} completes once the segment has been
+ * written and recorded, or fails with the error that stopped it.</p>
+ *
+ * <p>A file that is being {@link #close closed} takes no more segments
+ * until it is {@link #open opened} again, so nothing is queued behind the
+ * last flush for a channel that is about to be closed.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see FileWrite#writeSegmentAsync
+ */
+@ThreadSafe
+final class WriteBehind
+{
+	private static final Logger logger = Logger.getLogger("snodes.fs");
+	
+	/** The default number of bytes that may be queued. */
+	static final long DEFAULT_LIMIT = 32L * 1048576; // 32M
+	/** The most bytes written by one call. */
+	static final int MAX_RUN = 8 * 1048576;
+	
+	/** Records segments once they have been written. */
+	private final Committer committer;
+	/** The queued segments of each file, by offset, in the order the files take turns. */
+	@GuardedBy("this")
+	private final Map<File, TreeMap<Long, Pending>> queues;
+	/** The files whose segments are being written. */
+	@GuardedBy("this")
+	private final Set<File> writing;
+	/** The files that take no more segments. */
+	@GuardedBy("this")
+	private final Set<File> closed;
+	/** The bytes queued or being written. */
+	@GuardedBy("this")
+	private long queued;
+	/** The most bytes that may be queued. */
+	@GuardedBy("this")
+	private long limit;
+	/** The writing thread, once started. */
+	@GuardedBy("this")
+	private Thread thread;
+	
+	/**
+	 * Creates a new queue.
+	 *
+	 * @param committer
+	 *     Records segments once they have been written.
+	 */
+	WriteBehind(Committer committer)
+	{
+		this.committer = committer;
+		this.queues = new LinkedHashMap<File, TreeMap<Long, Pending>>();
+		this.writing = new HashSet<File>();
+		this.closed = new HashSet<File>();
+		this.queued = 0L;
+		this.limit = DEFAULT_LIMIT;
+		this.thread = null;
+	}
+	
+	/**
+	 * Queues a segment to be written.
+	 *
+	 * @param save
+	 *     The file.
+	 * @param channel
+	 *     The file's channel.
+	 * @param seg
+	 *     The segment number.
+	 * @param offset
+	 *     The offset at which the segment is written.
+	 * @param data
+	 *     The segment's bytes, which are copied. The buffer's position is
+	 *     not changed.
+	 * @return
+	 *     A future that completes once the segment has been written.
+	 * @throws IOException
+	 *     If the segment is already queued, or the file is closed.
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting for room.
+	 */
+	Future<Void> submit(File save, FileChannel channel, int seg, long offset, ByteBuffer data)
+		throws IOException, InterruptedException
+	{
+		int size = data.remaining();
+		ByteBuffer copy = ByteBuffer.allocate(size);
+		copy.put(data.duplicate());
+		copy.flip();
+		
+		Pending p = new Pending(channel, seg, offset, copy);
+		
+		synchronized (this) {
+			// A segment larger than the whole budget still gets in alone.
+			while (queued > 0L && queued + size > limit) wait();
+			
+			if (closed.contains(save) || !channel.isOpen()) {
+				throw new IOException("File closed while being written");
+			}
+			
+			TreeMap<Long, Pending> queue = queues.get(save);
+			if (queue == null) {
+				queue = new TreeMap<Long, Pending>();
+				queues.put(save, queue);
+			}
+			if (queue.containsKey(Long.valueOf(offset))) {
+				throw new IOException("Current segment already queued");
+			}
+			
+			queue.put(Long.valueOf(offset), p);
+			queued += size;
+			start();
+			notifyAll();
+		}
+		
+		return p.future;
+	}
+	
+	/**
+	 * Waits until every segment queued for a file has been written.
+	 *
+	 * @param save
+	 *     The file.
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting.
+	 */
+	synchronized void flush(File save) throws InterruptedException
+	{
+		while (queues.containsKey(save) || writing.contains(save)) wait();
+	}
+	
+	/**
+	 * Stops taking segments of a file, and waits until every segment queued
+	 * for it has been written. The file takes no more segments until it is
+	 * {@link #open opened} again.
+	 *
+	 * @param save
+	 *     The file.
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting, in which case
+	 *     the file still takes segments.
+	 */
+	synchronized void close(File save) throws InterruptedException
+	{
+		boolean added = closed.add(save);
+		try {
+			flush(save);
+		} catch (InterruptedException e) {
+			if (added) closed.remove(save);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Lets a file that was {@link #close closed} take segments again. This
+	 * is called once the file's channel has been closed, so segments that
+	 * were meant for that channel are still refused.
+	 *
+	 * @param save
+	 *     The file.
+	 */
+	synchronized void open(File save)
+	{
+		closed.remove(save);
+	}
+	
+	/**
+	 * Waits until every queued segment has been written.
+	 *
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting.
+	 */
+	synchronized void flush() throws InterruptedException
+	{
+		while (queued > 0L) wait();
+	}
+	
+	/**
+	 * Returns the number of bytes queued or being written.
+	 *
+	 * @return
+	 *     The number of bytes.
+	 */
+	synchronized long getQueued()
+	{
+		return queued;
+	}
+	
+	/**
+	 * Returns the most bytes that may be queued.
+	 *
+	 * @return
+	 *     The number of bytes.
+	 */
+	synchronized long getLimit()
+	{
+		return limit;
+	}
+	
+	/**
+	 * Sets the most bytes that may be queued.
+	 *
+	 * @param limit
+	 *     The number of bytes.
+	 */
+	synchronized void setLimit(long limit)
+	{
+		if (limit <= 0L) throw new IllegalArgumentException("Bad limit: " + limit);
+		this.limit = limit;
+		notifyAll();
+	}
+	
+	/** Starts the writing thread, if it is not running. */
+	@GuardedBy("this")
+	private void start()
+	{
+		if (thread != null) return;
+		
+		Runnable runner = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		thread = new Thread(runner, "Write Behind Thread");
+		thread.setDaemon(true); // Quit when Java VM exits
+		thread.start();
+	}
+	
+	/** Writes queued segments, forever. This is run by the writing thread. */
+	private void drain()
+	{
+		while (true) {
+			File save = null;
+			TreeMap<Long, Pending> queue = null;
+			
+			synchronized (this) {
+				while (queues.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Keep going; segments may still be queued.
+					}
+				}
+				
+				// Take the next file's whole queue; new segments for it start
+				// a new queue at the back of the line.
+				Iterator<Map.Entry<File, TreeMap<Long, Pending>>> iter = queues.entrySet().iterator();
+				Map.Entry<File, TreeMap<Long, Pending>> next = iter.next();
+				iter.remove();
+				save = next.getKey();
+				queue = next.getValue();
+				writing.add(save);
+			}
+			
+			long written = 0L;
+			try {
+				written = write(save, queue);
+			} finally {
+				synchronized (this) {
+					writing.remove(save);
+					queued -= written;
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	/** Writes a file's queued segments in runs, returning the bytes taken off the queue. */
+	private long write(File save, TreeMap<Long, Pending> queue)
+	{
+		List<Pending> run = new ArrayList<Pending>();
+		long taken = 0L;
+		long end = -1L;
+		int runBytes = 0;
+		
+		for (Pending p : queue.values()) {
+			int size = p.data.remaining();
+			taken += size;
+			
+			if (!run.isEmpty() && (p.offset != end || p.channel != run.get(0).channel || runBytes + size > MAX_RUN)) {
+				write(save, run);
+				run.clear();
+				runBytes = 0;
+			}
+			run.add(p);
+			runBytes += size;
+			end = p.offset + size;
+		}
+		if (!run.isEmpty()) write(save, run);
+		
+		return taken;
+	}
+	
+	/** Writes a run of adjacent segments with one gathering write, and records them. */
+	private void write(File save, List<Pending> run)
+	{
+		ByteBuffer[] bufs = new ByteBuffer[run.size()];
+		for (int i = 0; i < bufs.length; i++) bufs[i] = run.get(i).data;
+		
+		try {
+			// Only this thread uses the channel's position; every other
+			// write to the file is positional.
+			FileChannel channel = run.get(0).channel;
+			channel.position(run.get(0).offset);
+			while (bufs[bufs.length - 1].hasRemaining()) {
+				channel.write(bufs);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write " + run.size() + " segments of " + save, e);
+			for (Pending p : run) p.future.completeExceptionally(e);
+			return;
+		}
+		
+		for (Pending p : run) {
+			try {
+				committer.committed(save, p.segment, p.data.capacity());
+				p.future.complete(null);
+			} catch (IOException e) {
+				p.future.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				p.future.completeExceptionally(e);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return new String("WriteBehind[queued=" + queued + "/" + limit + ", files=" + queues.size() + "]");
+	}
+	
+	
+	/** Records segments once they have been written. */
+	interface Committer
+	{
+		/**
+		 * Records that a segment has been written to its file.
+		 *
+		 * @param save
+		 *     The file.
+		 * @param seg
+		 *     The segment number.
+		 * @param bytes
+		 *     The size of the segment.
+		 * @throws IOException
+		 *     If the segment cannot be recorded.
+		 */
+		void committed(File save, int seg, int bytes) throws IOException;
+	}
+	
+	
+	/** A segment waiting to be written. */
+	private static final class Pending
+	{
+		private final FileChannel channel;
+		private final int segment;
+		private final long offset;
+		private final ByteBuffer data;
+		private final CompletableFuture<Void> future;
+		
+		private Pending(FileChannel channel, int segment, long offset, ByteBuffer data)
+		{
+			this.channel = channel;
+			this.segment = segment;
+			this.offset = offset;
+			this.data = data;
+			this.future = new CompletableFuture<Void>();
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ * Encodes and decodes packets in the binary SFXP/2.0 format.
+ *
+ * <p>A binary packet is laid out like this:</p>
+ *
+ * <pre>
+ * magic     1 byte   always {@value #MAGIC}
+ * type      1 byte   the packet type's ordinal, plus one
+ * count     varint   the number of properties
+ * property  (count times):
+ *   id      varint   a well-known property ID, or 0 for a named property
+ *   name    string   only present if id is 0
+ *   tag     1 byte   'I' (int), 'L' (long), 'S' (string), or 'B' (bytes)
+ *   value            a zig-zag varint for ints and longs; a varint length
+ *                    followed by that many bytes for strings and bytes
+ * </pre>
+ *
+ * <p>Strings are encoded as UTF-8. Anything after the last property, such as
+ * cipher padding, is ignored. Because the magic byte can never start a text
+ * packet, the two formats can be told apart by their first byte.</p>
+ *
+ * <p><em>The wire codes of packet types and property IDs are part of the
+ * protocol.</em> New packet types must be added to the end of
+ * {@link Packet.Type}, and new properties to the end of {@link Property}.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+final class BinaryCodec
+{
+	/** The first byte of every binary packet. */
+	static final byte MAGIC = 0x02;
+	
+	/** Value tag for ints. */
+	private static final byte TAG_INT = 'I';
+	/** Value tag for longs. */
+	private static final byte TAG_LONG = 'L';
+	/** Value tag for strings. */
+	private static final byte TAG_STRING = 'S';
+	/** Value tag for raw bytes. */
+	private static final byte TAG_BYTES = 'B';
+	
+	/** Every packet type, in order. */
+	private static final Packet.Type[] TYPES = Packet.Type.values();
+	
+	// Don't create instances of this class
+	private BinaryCodec() {}
+	
+	/**
+	 * Encodes a packet.
+	 *
+	 * @param packet
+	 *     The packet.
+	 * @return
+	 *     The packet's binary representation.
+	 * @throws IllegalArgumentException
+	 *     If the packet has a property whose value cannot be encoded.
+	 */
+	static byte[] encode(Packet packet) throws IllegalArgumentException
+	{
+		Message message = packet.getMessage();
+		Map<String, Object> extras = packet.getExtraProperties();
+		final Writer out = new Writer(64);
+		
+		out.put(MAGIC);
+		out.put((byte) (packet.getType().ordinal() + 1));
+		out.putVarint(message.count() + extras.size());
+		
+		message.write(new Message.Sink() {
+			public void putInt(int id, int value) {
+				out.putVarint(id);
+				out.put(TAG_INT);
+				out.putVarint(zigzag(value));
+			}
+			public void putLong(int id, long value) {
+				out.putVarint(id);
+				out.put(TAG_LONG);
+				out.putVarint(zigzag(value));
+			}
+			public void putRaw(int id, Raw value) {
+				out.putVarint(id);
+				out.put(value.isText() ? TAG_STRING : TAG_BYTES);
+				out.putBytes(value.buffer());
+			}
+		});
+		
+		for (Map.Entry<String, Object> entry : extras.entrySet()) {
+			String name = entry.getKey();
+			Object value = entry.getValue();
+			int id = Property.id(name);
+			
+			out.putVarint(id);
+			if (id == Property.NONE) out.putBytes(utf8(name));
+			
+			if (value instanceof Integer) {
+				out.put(TAG_INT);
+				out.putVarint(zigzag(((Integer) value).intValue()));
+			} else if (value instanceof Long) {
+				out.put(TAG_LONG);
+				out.putVarint(zigzag(((Long) value).longValue()));
+			} else if (value instanceof Raw) {
+				Raw raw = (Raw) value;
+				out.put(raw.isText() ? TAG_STRING : TAG_BYTES);
+				out.putBytes(raw.buffer());
+			} else {
+				throw new IllegalArgumentException("Cannot encode " + name + ": " + value.getClass());
+			}
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Decodes a packet.
+	 *
+	 * <p>Strings and byte arrays are not copied out of the packet; they are
+	 * stored as {@link Raw views} of the buffer, so the buffer must not be
+	 * modified afterwards. Well-known properties are stored straight into
+	 * the packet's {@link Message}.</p>
+	 *
+	 * @param buf
+	 *     The unencrypted packet data. All of the remaining bytes are decoded,
+	 *     but the buffer's position is not changed.
+	 * @return
+	 *     The decoded packet.
+	 * @throws IllegalArgumentException
+	 *     If the packet is in an invalid format.
+	 */
+	static Packet decode(ByteBuffer buf) throws IllegalArgumentException
+	{
+		Reader in = new Reader(buf);
+		
+		if (in.get() != MAGIC) throw new IllegalArgumentException("Not a binary packet");
+		
+		int typeCode = (in.get() & 0xff) - 1;
+		if (typeCode < 0 || typeCode >= TYPES.length) {
+			throw new IllegalArgumentException("Unknown packet type: " + (typeCode + 1));
+		}
+		
+		Packet packet = new Packet(TYPES[typeCode]);
+		Message message = packet.getMessage();
+		int count = (int) in.getVarint();
+		
+		for (int i = 0; i < count; i++) {
+			int id = (int) in.getVarint();
+			String name = null;
+			
+			if (id == Property.NONE) {
+				name = in.getRaw(true).getString();
+			} else if ((name = Property.name(id)) == null) {
+				throw new IllegalArgumentException("Unknown property ID: " + id);
+			}
+			
+			byte tag = in.get();
+			switch (tag) {
+			case TAG_INT:
+			{
+				int value = unzigzag((int) in.getVarint());
+				if (!message.setNumber(id, value)) packet.putExtraProperty(name, Integer.valueOf(value));
+				break;
+			}
+			case TAG_LONG:
+			{
+				long value = unzigzag(in.getVarint());
+				if (!message.setNumber(id, value)) packet.putExtraProperty(name, Long.valueOf(value));
+				break;
+			}
+			case TAG_STRING:
+			case TAG_BYTES:
+			{
+				Raw value = in.getRaw(tag == TAG_STRING);
+				if (!message.setRaw(id, value)) packet.putExtraProperty(name, value);
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown value tag: " + tag);
+			}
+		}
+		
+		return packet;
+	}
+	
+	/** Zig-zag encodes an int, so that small negative numbers stay small. */
+	private static long zigzag(int n)
+	{
+		return ((n << 1) ^ (n >> 31)) & 0xffffffffL;
+	}
+	
+	/** Zig-zag encodes a long. */
+	private static long zigzag(long n)
+	{
+		return (n << 1) ^ (n >> 63);
+	}
+	
+	/** Reverses {@link #zigzag(int)}. */
+	private static int unzigzag(int n)
+	{
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	/** Reverses {@link #zigzag(long)}. */
+	private static long unzigzag(long n)
+	{
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	/** Encodes a string as UTF-8. */
+	private static byte[] utf8(String s)
+	{
+		return s.getBytes(Packet.CHARSET);
+	}
+	
+	
+	/** A growable byte array. */
+	private static final class Writer
+	{
+		private byte[] buf;
+		private int len;
+		
+		private Writer(int capacity)
+		{
+			buf = new byte[capacity];
+			len = 0;
+		}
+		
+		private void ensure(int n)
+		{
+			if (len + n > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+			}
+		}
+		
+		private void put(byte b)
+		{
+			ensure(1);
+			buf[len++] = b;
+		}
+		
+		private void putVarint(long n)
+		{
+			ensure(10);
+			while ((n & ~0x7fL) != 0) {
+				buf[len++] = (byte) ((n & 0x7f) | 0x80);
+				n >>>= 7;
+			}
+			buf[len++] = (byte) n;
+		}
+		
+		private void putBytes(byte[] bytes)
+		{
+			putVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, len, bytes.length);
+			len += bytes.length;
+		}
+		
+		private void putBytes(ByteBuffer bytes)
+		{
+			int n = bytes.remaining();
+			putVarint(n);
+			ensure(n);
+			bytes.get(buf, len, n);
+			len += n;
+		}
+		
+		private byte[] toByteArray()
+		{
+			return Arrays.copyOf(buf, len);
+		}
+	}
+	
+	
+	/**
+	 * Reads values out of a packet's bytes, checking bounds as it goes. The
+	 * bytes are read in place with absolute gets, whether the buffer is a
+	 * heap buffer or a direct one.
+	 */
+	private static final class Reader
+	{
+		private final ByteBuffer buf;
+		private final int limit;
+		private int pos;
+		
+		private Reader(ByteBuffer bytes)
+		{
+			this.buf = bytes;
+			this.pos = bytes.position();
+			this.limit = bytes.limit();
+		}
+		
+		private byte get()
+		{
+			if (pos >= limit) throw new IllegalArgumentException("Truncated packet");
+			return buf.get(pos++);
+		}
+		
+		private long getVarint()
+		{
+			long n = 0L;
+			
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = get();
+				n |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return n;
+			}
+			
+			throw new IllegalArgumentException("Malformed varint");
+		}
+		
+		private Raw getRaw(boolean text)
+		{
+			long n = getVarint();
+			if (n < 0 || n > limit - pos) throw new IllegalArgumentException("Truncated packet");
+			
+			Raw raw = new Raw(buf, pos, (int) n, text);
+			pos += (int) n;
+			return raw;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * A fixed ring of direct byte buffers used to receive datagrams.
+ *
+ * <p>All of the buffers are allocated up front, so receiving a datagram does
+ * not allocate any memory. A buffer is {@link #tryAcquire acquired} by the
+ * receive loop, filled from the network, handed off to whoever processes the
+ * datagram, and {@link #release released} back into the ring once the datagram
+ * has been consumed. If every buffer is in use, the receive loop is told as soon as one
+ * is released, and stops reading until then, which leaves unread datagrams in
+ * the kernel's receive buffer; it never waits for a buffer itself, since it
+ * has other work to do in the meantime.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class BufferRing
+{
+	/** The buffers that are not currently in use. */
+	private final BlockingQueue<ByteBuffer> free;
+	/** The number of buffers in the ring. */
+	private final int size;
+	/** Run the next time a buffer is released, or null. */
+	private final AtomicReference<Runnable> waiter;
+	
+	/**
+	 * Creates a new ring.
+	 *
+	 * @param size
+	 *     The number of buffers in the ring.
+	 * @param capacity
+	 *     The capacity of each buffer, in bytes.
+	 */
+	BufferRing(int size, int capacity)
+	{
+		this.size = size;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(size);
+		this.waiter = new AtomicReference<Runnable>();
+		
+		for (int i = 0; i < size; i++) {
+			free.add(ByteBuffer.allocateDirect(capacity));
+		}
+	}
+	
+	/**
+	 * Takes a cleared buffer from the ring, if one is free. This never waits;
+	 * if every buffer is in use, the given task is run (on whichever thread
+	 * releases it) as soon as a buffer is released, so the caller can try
+	 * again then.
+	 *
+	 * @param onRelease
+	 *     The task to run once a buffer is free again, if none is free now.
+	 * @return
+	 *     An empty buffer, or null if every buffer is in use.
+	 */
+	ByteBuffer tryAcquire(Runnable onRelease)
+	{
+		ByteBuffer buf = free.poll();
+		
+		if (buf == null) {
+			waiter.set(onRelease);
+			// A buffer may have been released before the task was set.
+			buf = free.poll();
+			if (buf != null) waiter.compareAndSet(onRelease, null);
+		}
+		
+		if (buf != null) buf.clear();
+		return buf;
+	}
+	
+	/**
+	 * Returns a buffer to the ring. Buffers must not be used after they have
+	 * been released.
+	 *
+	 * @param buf
+	 *     The buffer.
+	 */
+	void release(ByteBuffer buf)
+	{
+		if (buf == null) return;
+		
+		free.offer(buf);
+		
+		Runnable task = waiter.getAndSet(null);
+		if (task != null) task.run();
+	}
+	
+	/**
+	 * Returns the number of buffers that are currently available.
+	 *
+	 * @return
+	 *     The number of free buffers.
+	 */
+	int available()
+	{
+		return free.size();
+	}
+	
+	/**
+	 * Returns true if fewer than a quarter of the buffers are free. Whoever
+	 * is holding on to buffers for a while should copy what they need and
+	 * give the buffers back.
+	 *
+	 * @return
+	 *     true if the ring is running out of buffers.
+	 */
+	boolean isLow()
+	{
+		return free.size() < size / 4;
+	}
+	
+	/**
+	 * Returns the total number of buffers in the ring.
+	 *
+	 * @return
+	 *     The size of the ring.
+	 */
+	int size()
+	{
+		return size;
+	}
+}
@@ -57,9 +57,6 @@ public class Chat
 	 */
 	public void sendMessage(String msg) throws IOException
 	{
-		Packet packet = new Packet(Packet.Type.ChatMessage);
-		packet.putProperty("Id", Integer.valueOf(owner.getID()));
-		packet.putProperty("Message", msg);
-		owner.sendPacket(packet);
+		owner.sendPacket(new Packet(new Message.ChatMessage(owner.getID(), msg)));
 	}
 }
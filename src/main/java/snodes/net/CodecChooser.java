@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+
+/**
+ * Decides how hard to compress each segment of a file transfer.
+ *
+ * <p>Most shared media is already compressed, and deflating it again only
+ * costs time, so each segment is first sampled: a few small, evenly spaced
+ * pieces of it are run through a byte histogram, and if they look close to
+ * random the segment is sent as is. Segments that look very redundant are
+ * compressed at the {@link Deflater#BEST_COMPRESSION best} level, where deflate
+ * finds much longer matches for little extra time; the rest at the
+ * {@link Deflater#BEST_SPEED fastest}.</p>
+ *
+ * <p>The sample can be fooled, so the outcome of each attempt is
+ * {@link #result recorded} too. After an attempt that did not pay off, the
+ * next segment is sent as is without sampling, then the next two, the next
+ * four, and so on up to {@value #MAX_BACKOFF}, until an attempt succeeds
+ * again.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class CodecChooser
+{
+	/** Don't compress the segment. */
+	static final int NONE = Deflater.NO_COMPRESSION;
+	/** Segments smaller than this are never compressed. */
+	static final int MIN_SIZE = 256;
+	/** The most segments sent as is after failed attempts. */
+	static final int MAX_BACKOFF = 32;
+	/** The number of pieces sampled from each segment. */
+	private static final int SAMPLES = 8;
+	/** The size of each sampled piece, in bytes. */
+	private static final int SAMPLE_SIZE = 256;
+	/** Samples with more entropy than this, in bits per byte, are skipped. */
+	private static final double RANDOM = 7.2;
+	/** Samples with less entropy than this are compressed hard. */
+	private static final double REDUNDANT = 3.0;
+	
+	/** log2(n) for every count a histogram can hold. */
+	private static final double[] LOG2 = new double[SAMPLES * SAMPLE_SIZE + 1];
+	
+	static {
+		for (int i = 1; i < LOG2.length; i++) {
+			LOG2[i] = Math.log(i) / Math.log(2);
+		}
+	}
+	
+	/** The number of failed attempts in a row. */
+	@GuardedBy("this")
+	private int failures;
+	/** The number of segments still to be sent as is. */
+	@GuardedBy("this")
+	private int backoff;
+	
+	/** Creates a new chooser. */
+	CodecChooser()
+	{
+		this.failures = 0;
+		this.backoff = 0;
+	}
+	
+	/**
+	 * Returns the compression level for a segment.
+	 *
+	 * @param bytes
+	 *     The segment's bytes.
+	 * @return
+	 *     A compression level, or {@link #NONE} to send the segment as is.
+	 */
+	int level(byte[] bytes)
+	{
+		return level(ByteBuffer.wrap(bytes));
+	}
+	
+	/**
+	 * Returns the compression level for a segment.
+	 *
+	 * @param data
+	 *     The segment's bytes. The buffer's position is not changed.
+	 * @return
+	 *     A compression level, or {@link #NONE} to send the segment as is.
+	 */
+	int level(ByteBuffer data)
+	{
+		if (data.remaining() < MIN_SIZE) return NONE;
+		
+		synchronized (this) {
+			if (backoff > 0) {
+				backoff--;
+				return NONE;
+			}
+		}
+		
+		double entropy = entropy(data);
+		if (entropy > RANDOM) return NONE;
+		return (entropy < REDUNDANT) ? Deflater.BEST_COMPRESSION : Deflater.BEST_SPEED;
+	}
+	
+	/**
+	 * Records whether compressing a segment paid off.
+	 *
+	 * @param success
+	 *     True if the compressed segment was sent.
+	 */
+	synchronized void result(boolean success)
+	{
+		if (success) {
+			failures = 0;
+		} else {
+			failures = Math.min(failures + 1, 31);
+			backoff = Math.min(1 << (failures - 1), MAX_BACKOFF);
+		}
+	}
+	
+	/**
+	 * Estimates the entropy of a segment from evenly spaced samples.
+	 *
+	 * @param data
+	 *     The segment's bytes. The buffer's position is not changed.
+	 * @return
+	 *     The estimated entropy, in bits per byte, from 0 to 8.
+	 */
+	static double entropy(ByteBuffer data)
+	{
+		int[] counts = new int[256];
+		int base = data.position();
+		int length = data.remaining();
+		int pieces = Math.max(1, Math.min(SAMPLES, length / SAMPLE_SIZE));
+		int size = Math.min(SAMPLE_SIZE, length);
+		int step = (length - size) / Math.max(1, pieces - 1);
+		int total = 0;
+		
+		for (int p = 0; p < pieces; p++) {
+			int start = base + p * step;
+			for (int i = start; i < start + size; i++) {
+				counts[data.get(i) & 0xff]++;
+			}
+			total += size;
+		}
+		
+		// H = log2(N) - sum(c * log2(c)) / N
+		double sum = 0.0;
+		for (int c : counts) {
+			if (c > 0) sum += c * LOG2[c];
+		}
+		return LOG2[total] - sum / total;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return new String("CodecChooser[failures=" + failures + ", backoff=" + backoff + "]");
+	}
+}
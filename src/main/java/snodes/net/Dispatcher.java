@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Runs packet-processing tasks off of the server's receive thread.
+ *
+ * <p>A dispatcher never has more than a fixed number of tasks in flight
+ * (running or waiting to run). When that limit is reached, new tasks are
+ * <em>dropped</em> rather than queued without bound, and the drop is counted;
+ * callers can tell whether a task was accepted from the return value of
+ * {@link #dispatch}. Every task runs in isolation: if it throws, the
+ * exception is logged and counted, and the dispatcher keeps running.</p>
+ *
+ * <p>Two kinds of dispatchers are available:</p>
+ *
+ * <ul>
+ * <li>{@link #newThreadPerTaskDispatcher} starts a new thread for every task.
+ *     Virtual threads are used when the Java VM supports them; otherwise
+ *     each task gets its own daemon platform thread.</li>
+ * <li>{@link #newPooledDispatcher} runs tasks on a fixed pool of platform
+ *     threads.</li>
+ * </ul>
+ *
+ * <p>For example, to decrypt packets on four threads with no more than 256
+ * packets pending at a time:</p>
+ *
+ * <pre>
+ * ReceivePipeline pipeline = SnodesServer.getInstance().getPipeline();
+ * pipeline.setDispatcher(ReceivePipeline.Stage.DECRYPT, Dispatcher.newPooledDispatcher(4, 256));
+ * </pre>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see ReceivePipeline
+ */
+@ThreadSafe
+public abstract class Dispatcher
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The name given to threads started by dispatchers. */
+	private static final String THREAD_NAME = "Packet Parser Thread";
+	
+	/** The maximum number of tasks in flight. */
+	private final int limit;
+	/** One permit for each task that may be in flight. */
+	private final Semaphore permits;
+	/** The number of tasks accepted by the dispatcher. */
+	private final AtomicLong dispatched;
+	/** The number of tasks refused because the dispatcher was full. */
+	private final AtomicLong dropped;
+	/** The number of tasks that terminated with an exception. */
+	private final AtomicLong failed;
+	/** The number of tasks that are currently running. */
+	private final AtomicInteger running;
+	/** The largest number of tasks that have been in flight at once. */
+	private final AtomicInteger peak;
+	
+	/**
+	 * Creates a new dispatcher.
+	 *
+	 * @param limit
+	 *     The maximum number of tasks that may be in flight at once.
+	 * @throws IllegalArgumentException
+	 *     If limit is not positive.
+	 */
+	protected Dispatcher(int limit) throws IllegalArgumentException
+	{
+		if (limit < 1) throw new IllegalArgumentException("limit must be positive: " + limit);
+		
+		this.limit = limit;
+		this.permits = new Semaphore(limit);
+		this.dispatched = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.failed = new AtomicLong();
+		this.running = new AtomicInteger();
+		this.peak = new AtomicInteger();
+	}
+	
+	/**
+	 * Creates a dispatcher that runs each task on its own thread. Virtual
+	 * threads are used if the Java VM provides them.
+	 *
+	 * @param limit
+	 *     The maximum number of tasks that may be in flight at once.
+	 * @return
+	 *     A new dispatcher.
+	 */
+	public static Dispatcher newThreadPerTaskDispatcher(int limit)
+	{
+		return new ThreadPerTaskDispatcher(limit);
+	}
+	
+	/**
+	 * Creates a dispatcher that runs tasks on a fixed pool of threads. Tasks
+	 * that arrive while every thread is busy wait in the pool's queue, as long
+	 * as the in-flight limit has not been reached.
+	 *
+	 * @param threads
+	 *     The number of threads in the pool.
+	 * @param limit
+	 *     The maximum number of tasks that may be in flight at once.
+	 * @return
+	 *     A new dispatcher.
+	 */
+	public static Dispatcher newPooledDispatcher(int threads, int limit)
+	{
+		return new PooledDispatcher(threads, limit);
+	}
+	
+	/**
+	 * Runs a task, unless the dispatcher is full or has been shut down.
+	 *
+	 * @param task
+	 *     The task to run.
+	 * @return
+	 *     true if the task was accepted, or false if it was dropped.
+	 */
+	public boolean dispatch(final Runnable task)
+	{
+		if (!permits.tryAcquire()) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		
+		int inFlight = getInFlight();
+		int max = peak.get();
+		while (inFlight > max && !peak.compareAndSet(max, inFlight)) {
+			max = peak.get();
+		}
+		
+		Runnable runner = new Runnable() {
+			public void run() {
+				running.incrementAndGet();
+				try {
+					task.run();
+				} catch (Throwable e) {
+					failed.incrementAndGet();
+					logger.log(Level.SEVERE, Thread.currentThread().getName() + " crashed", e);
+				} finally {
+					running.decrementAndGet();
+					permits.release();
+				}
+			}
+		};
+		
+		try {
+			execute(runner);
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			dropped.incrementAndGet();
+			return false;
+		}
+		
+		dispatched.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Hands a task to the underlying threads.
+	 *
+	 * @param task
+	 *     The task.
+	 * @throws RejectedExecutionException
+	 *     If the task cannot be run.
+	 */
+	protected abstract void execute(Runnable task) throws RejectedExecutionException;
+	
+	/**
+	 * Stops accepting new tasks. Tasks that are already in flight are allowed
+	 * to finish.
+	 */
+	public abstract void shutdown();
+	
+	/**
+	 * Returns the maximum number of tasks that may be in flight at once.
+	 *
+	 * @return
+	 *     The in-flight limit.
+	 */
+	public int getLimit()
+	{
+		return limit;
+	}
+	
+	/**
+	 * Returns the number of tasks that are currently running or waiting to
+	 * run.
+	 *
+	 * @return
+	 *     The number of tasks in flight.
+	 */
+	public int getInFlight()
+	{
+		return limit - permits.availablePermits();
+	}
+	
+	/**
+	 * Returns the number of tasks that have been accepted but have not
+	 * started running yet.
+	 *
+	 * @return
+	 *     The depth of the dispatcher's queue.
+	 */
+	public int getQueueDepth()
+	{
+		return Math.max(0, getInFlight() - running.get());
+	}
+	
+	/**
+	 * Returns the largest number of tasks that have been in flight at once.
+	 *
+	 * @return
+	 *     The high-water mark of tasks in flight.
+	 */
+	public int getPeakInFlight()
+	{
+		return peak.get();
+	}
+	
+	/**
+	 * Returns the number of tasks that have been accepted.
+	 *
+	 * @return
+	 *     The number of dispatched tasks.
+	 */
+	public long getDispatched()
+	{
+		return dispatched.get();
+	}
+	
+	/**
+	 * Returns the number of tasks that were dropped because the dispatcher
+	 * was full or shut down.
+	 *
+	 * @return
+	 *     The number of dropped tasks.
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+	
+	/**
+	 * Returns the number of tasks that terminated by throwing an exception.
+	 *
+	 * @return
+	 *     The number of failed tasks.
+	 */
+	public long getFailed()
+	{
+		return failed.get();
+	}
+	
+	/**
+	 * Returns a string representation of the dispatcher's counters, such as:
+	 *
+	 * <pre>
+	 * PooledDispatcher[inFlight=3/256, queued=1, peak=12, dispatched=1024, dropped=0, failed=1]
+	 * </pre>
+	 *
+	 * @return
+	 *     A string representation of the dispatcher.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder buf = new StringBuilder(getClass().getSimpleName());
+		buf.append("[inFlight=").append(getInFlight()).append("/").append(limit);
+		buf.append(", queued=").append(getQueueDepth());
+		buf.append(", peak=").append(getPeakInFlight());
+		buf.append(", dispatched=").append(getDispatched());
+		buf.append(", dropped=").append(getDropped());
+		buf.append(", failed=").append(getFailed());
+		buf.append("]");
+		return new String(buf);
+	}
+	
+	
+	/** Creates daemon threads with numbered names. */
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, THREAD_NAME + "-" + count.incrementAndGet());
+			t.setDaemon(true); // Quit when Java VM exits
+			return t;
+		}
+	}
+	
+	
+	/** Starts a new thread for every task. */
+	private static class ThreadPerTaskDispatcher extends Dispatcher
+	{
+		private final ThreadFactory factory;
+		private volatile boolean shutdown;
+		
+		private ThreadPerTaskDispatcher(int limit)
+		{
+			super(limit);
+			this.factory = createFactory();
+			this.shutdown = false;
+		}
+		
+		/**
+		 * Returns a factory for virtual threads, or a factory for daemon
+		 * platform threads if the VM does not support virtual threads.
+		 */
+		private static ThreadFactory createFactory()
+		{
+			// Virtual threads are looked up reflectively so the code still
+			// builds and runs on VMs that predate them.
+			try {
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = ofVirtual.invoke(null);
+				builder = builderClass.getMethod("name", String.class, long.class)
+				                      .invoke(builder, THREAD_NAME + "-", 1L);
+				ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+				logger.fine("Dispatching packets on virtual threads");
+				return factory;
+			} catch (Exception e) {
+				logger.fine("Virtual threads unavailable; dispatching packets on platform threads");
+				return new DaemonThreadFactory();
+			}
+		}
+		
+		protected void execute(Runnable task) throws RejectedExecutionException
+		{
+			if (shutdown) throw new RejectedExecutionException("Dispatcher shut down");
+			
+			Thread t = factory.newThread(task);
+			if (t == null) throw new RejectedExecutionException("Cannot create thread");
+			t.start();
+		}
+		
+		public void shutdown()
+		{
+			shutdown = true;
+		}
+	}
+	
+	
+	/** Runs tasks on a fixed pool of threads. */
+	private static class PooledDispatcher extends Dispatcher
+	{
+		private final ExecutorService pool;
+		
+		private PooledDispatcher(int threads, int limit)
+		{
+			super(limit);
+			
+			// The queue does not need a bound of its own; the in-flight limit
+			// keeps it from growing past the limit.
+			this.pool = new ThreadPoolExecutor(
+				threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory()
+			);
+		}
+		
+		protected void execute(Runnable task) throws RejectedExecutionException
+		{
+			pool.execute(task);
+		}
+		
+		public void shutdown()
+		{
+			pool.shutdown();
+		}
+	}
+}
@@ -22,10 +22,11 @@
 
 package snodes.net;
 
-import snodes.util.Base64;
+import snodes.fs.MerkleTree;
+import snodes.fs.SegmentCache;
 
 import java.io.IOException;
-import java.util.zip.Checksum;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 
@@ -43,6 +44,9 @@ import java.util.zip.CRC32;
  * FileTransfer up = conn.createTransfer("myfile.txt");
  * up.send(bytes, 1, 144);
  *
+ * // Or upload the whole file, several segments at a time
+ * TransferWindow window = up.send(source);
+ *
  * // Request a file from another host
  * FileTransfer down = conn.createTransfer("otherfile.txt");
  * down.request();
@@ -56,7 +60,7 @@ import java.util.zip.CRC32;
  * PacketListener ftCreator = new PacketListener() {
  *     public void processPacket(SnodesConnection conn, Packet packet) {
  *         if (packet.getType() == Packet.Type.RequestFile) {
- *             String file = (String) packet.getProperty("ShareName");
+ *             String file = ((Message.RequestFile) packet.getMessage()).getShareName();
  *             FileTransfer ft = conn.createTransfer(file);
  *             processFileRequest(ft);
  *         }
@@ -74,15 +78,47 @@ import java.util.zip.CRC32;
  * @see SnodesConnection#createTransfer
  * @see FileTransfer#send
  * @see FileTransfer#request
+ * @see TransferWindow
  * @see PacketListener
  * @see SnodesConnection#addListener
  */
 public class FileTransfer
 {
+	/** Segment data that is sent as is. */
+	public static final int IDENTITY = 0;
+	/** Segment data that is compressed with gzip. */
+	public static final int GZIP = 1;
+	/** Segment data that is compressed with raw deflate. */
+	public static final int DEFLATE = 2;
+	/** A segment of zero bytes, sent without data. */
+	public static final int ZERO = 3;
+	
+	/**
+	 * The word a node lists among its features to say that it understands
+	 * parity segments.
+	 */
+	static final String PARITY = "parity";
+	
+	/**
+	 * Bytes left free in each datagram for the data's length and the cipher's
+	 * padding.
+	 */
+	private static final int FRAME_SLACK = 32;
+	
 	/** The transfer's owner. */
 	private SnodesConnection owner;
 	/** The name of the file being transferred. */
 	private String filename;
+	/** The window through which the file is being sent, if any. */
+	private volatile TransferWindow window;
+	/** The hash tree of the file being sent, if any. */
+	private volatile MerkleTree tree;
+	/** Decides how hard to compress each segment. */
+	private final CodecChooser chooser;
+	/** The flow through which segments are sent. */
+	private final Transmitter.Flow flow;
+	/** Builds parity segments, if they are being sent. */
+	private volatile ParityEncoder parity;
 	
 	/**
 	 * Creates a new file transfer.
@@ -96,24 +132,52 @@ public class FileTransfer
 	{
 		this.owner = owner;
 		this.filename = filename;
+		this.window = null;
+		this.tree = null;
+		this.chooser = new CodecChooser();
+		this.flow = owner.newFlow();
+		this.parity = null;
 	}
 	
 	/**
 	 * Sends a file segment.
 	 *
-	 * <p><em>The byte array is automatically converted to a Base64 representation and
-	 * gzipped before being sent.</em> When incoming FileTransfer packets
-	 * are received, bear in mind that the data is a Base64 string that is
-	 * compressed using gzip. Thus, when receiving a file, you will have to do
-	 * the following:</p>
+	 * <p>The bytes are sent as they are, unless the remote host has said that
+	 * it understands a {@link SegmentCodec codec} that makes the segment at
+	 * least an eighth smaller. A segment of nothing but zero bytes is sent
+	 * without any data. Other segments are only compressed if a quick sample
+	 * suggests it will pay off, and at a level chosen from the sample; most
+	 * shared media is already compressed, and compressing it only costs time.
+	 * How each segment was encoded is kept in the shared
+	 * {@link SegmentCache}, so a segment of a popular file is only
+	 * compressed once, however many peers it is sent to.
+	 * When incoming FileTransfer packets are received, use
+	 * {@link #getSegmentData} to get the original bytes back:</p>
 	 *
 	 * <pre>
-	 * String data = (String) packet.getProperty("Data");
-	 * byte[] bytes = Base64.decode(data);
+	 * ByteBuffer data = FileTransfer.getSegmentData((Message.TransferFile) packet.getMessage());
 	 * </pre>
 	 *
-	 * <p>This will work fine, since {@link snodes.util.Base64} can automatically
-	 * detect and decompress gzipped data.</p>
+	 * <p>Binary packets carry the data as raw bytes. Text packets carry it as
+	 * a Base64 string, as they always have, so older nodes can still read it
+	 * with {@link snodes.util.Base64}, which only decompresses data that is
+	 * actually gzipped. Such nodes only list gzip, so they are never sent
+	 * the other encodings.</p>
+	 *
+	 * <p>Segments are usually much larger than a datagram. A segment whose
+	 * (possibly compressed) data does not fit in one is split into as many
+	 * fragments as it takes, each sent as its own packet; the remote
+	 * connection puts them back together before its listeners see the
+	 * segment. The segment size and the datagram size can therefore be
+	 * chosen independently.</p>
+	 *
+	 * <p>If the transfer was {@link #confirm confirmed} with the file's hash
+	 * tree, the segment's proof is sent along with it, so the remote host can
+	 * check the segment against the tree's root.</p>
+	 *
+	 * <p>If {@link #setParity parity} is on, and this is the first time the
+	 * last unsent segment of a group is sent, the group's parity segment is
+	 * sent right after it.</p>
 	 *
 	 * @param bytes
 	 *     The data for the file segment.
@@ -123,28 +187,220 @@ public class FileTransfer
 	 *     The <em>total</em> size of the whole file, in bytes.
 	 * @throws IOException
 	 *     If the file cannot be sent due to a disk or network error.
-	 * @see Base64
-	 * @see Base64#decode(String)
-	 * @see Base64#GZIP
+	 * @see Message.TransferFile#getData
 	 */
 	public void send(byte[] bytes, int seg, long size) throws IOException
 	{
-		String data = Base64.encodeBytes(bytes, Base64.GZIP);
-		Checksum crc = new CRC32();
+		send(ByteBuffer.wrap(bytes), seg, size);
+	}
+	
+	/**
+	 * Sends a file segment held in a buffer. This is the same as
+	 * {@link #send(byte[], int, long)}, but the segment may be a view of a
+	 * memory-mapped file, as {@link snodes.fs.FileRead#readSegmentBuffer}
+	 * returns it: it is checked, compressed and copied into its datagrams
+	 * straight from the page cache, without being read into an array first.
+	 *
+	 * @param data
+	 *     The data for the file segment. All of the remaining bytes are sent,
+	 *     and the buffer's position is not changed.
+	 * @param seg
+	 *     The (sequential) ID of the segment.
+	 * @param size
+	 *     The <em>total</em> size of the whole file, in bytes.
+	 * @throws IOException
+	 *     If the file cannot be sent due to a disk or network error.
+	 */
+	public void send(ByteBuffer data, int seg, long size) throws IOException
+	{
+		ParityEncoder p = parity;
+		boolean fec = p != null && owner.hasFeature(PARITY);
+		
+		sendSegment(data, seg, size, fec ? p.getGroupSize() : 0);
+		
+		if (fec) {
+			ParityEncoder.Parity group = p.add(seg, data, size);
+			if (group != null) sendSegment(ByteBuffer.wrap(group.bytes), -1 - group.group, size, group.members);
+		}
+	}
+	
+	/**
+	 * Encodes a segment's bytes into a message, compressing them if it is
+	 * worthwhile, and sends it. A compressed form taken from the
+	 * {@link SegmentCache} is held until the message has been sent, since
+	 * the message's data is a view of it.
+	 *
+	 * @param bytes
+	 *     The segment's bytes. The buffer's position is not changed.
+	 * @param seg
+	 *     The segment number.
+	 * @param size
+	 *     The size of the whole file, in bytes.
+	 * @param members
+	 *     The size of the segment's parity group, or 0 if parity is off.
+	 * @throws IOException
+	 *     If the bytes cannot be compressed or sent.
+	 */
+	private void sendSegment(ByteBuffer bytes, int seg, long size, int members) throws IOException
+	{
+		ByteBuffer data = null;
+		int encoding = IDENTITY;
+		int length = bytes.remaining();
+		CRC32 crc = new CRC32();
 		long hash = 0; // hash is 32 bits, but it is an *unsigned* int
+		SegmentCache.Entry cached = null;
 		
-		crc.update(bytes, 0, bytes.length);
+		crc.update(bytes.duplicate());
 		hash = crc.getValue();
 		
-		Packet packet = new Packet(Packet.Type.TransferFile);
-		packet.putProperty("Id", Integer.valueOf(owner.getID()));
-		packet.putProperty("ShareName", filename);
-		packet.putProperty("TotalSize", Long.valueOf(size));
-		packet.putProperty("SegmentSize", Integer.valueOf(bytes.length));
-		packet.putProperty("Segment", Integer.valueOf(seg));
-		packet.putProperty("Hash", Long.valueOf(hash));
-		packet.putProperty("Data", data);
-		owner.sendPacket(packet);
+		try {
+			if (owner.canCompress(SegmentCodec.ZERO.getName()) && SegmentCodec.isZero(bytes)) {
+				data = SegmentCodec.ZERO.encode(bytes, CodecChooser.NONE, 0);
+				encoding = ZERO;
+			} else {
+				SegmentCodec codec = owner.canCompress(SegmentCodec.DEFLATE.getName()) ? SegmentCodec.DEFLATE
+					: owner.canCompress(SegmentCodec.GZIP.getName()) ? SegmentCodec.GZIP
+					: null;
+				EncodedKey key = (codec != null) ? new EncodedKey(filename, seg, size, length, hash, codec) : null;
+				cached = (key != null) ? SegmentCache.getInstance().acquire(key) : null;
+				
+				if (cached != null) {
+					// An empty entry means the segment did not compress.
+					ByteBuffer entry = cached.buffer();
+					if (entry.hasRemaining()) {
+						data = entry;
+						encoding = codec.getEncoding();
+					}
+				} else if (codec != null) {
+					int level = chooser.level(bytes);
+					if (level != CodecChooser.NONE) {
+						data = codec.encode(bytes, level, length - length / 8);
+						chooser.result(data != null);
+						if (data != null) encoding = codec.getEncoding();
+					}
+					SegmentCache.getInstance().put(key, (data != null) ? data : ByteBuffer.allocate(0));
+				}
+			}
+			if (data == null) data = bytes.slice();
+			
+			Message.TransferFile msg = new Message.TransferFile(owner.getID(), filename, size, length, seg, hash, encoding, data);
+			MerkleTree t = tree;
+			if (t != null && seg >= 0 && seg < t.getSegments()) msg.withProof(t.getProof(seg));
+			if (members > 0) msg.withParity(members);
+			transmit(msg);
+		} finally {
+			if (cached != null) cached.release();
+		}
+	}
+	
+	/**
+	 * Sends a segment, in as many fragments as it takes.
+	 *
+	 * @param msg
+	 *     The segment.
+	 * @throws IOException
+	 *     If the segment cannot be sent.
+	 */
+	private void transmit(Message.TransferFile msg) throws IOException
+	{
+		ByteBuffer data = msg.getData();
+		int length = data.remaining();
+		int room = room(msg, length);
+		
+		if (length <= room) {
+			owner.sendPacket(new Packet(msg), flow);
+			return;
+		}
+		
+		int count = (length + room - 1) / room;
+		int stride = (length + count - 1) / count;
+		for (int i = 0; i < count; i++) {
+			ByteBuffer piece = data.duplicate();
+			piece.position(data.position() + i * stride);
+			piece.limit(piece.position() + Math.min(stride, length - i * stride));
+			owner.sendPacket(new Packet(msg.fragment(i, count, length, piece)), flow);
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes of segment data that fit in one datagram
+	 * alongside the segment's other fields, in the connection's format.
+	 *
+	 * @param msg
+	 *     The segment.
+	 * @param length
+	 *     The length of the segment's data.
+	 * @return
+	 *     The most data that may be sent in one packet, in bytes.
+	 */
+	private int room(Message.TransferFile msg, int length)
+	{
+		// Measure the fields with the largest fragment numbers they could
+		// have, so that every fragment fits.
+		Packet header = new Packet(msg.fragment(length, length, length, ByteBuffer.allocate(0)));
+		int used = (owner.getFormat() == Packet.Format.BINARY)
+			? BinaryCodec.encode(header).length
+			: header.toString().getBytes(Packet.CHARSET).length;
+		int room = SnodesServer.UDP_SNODES_MAX - used - FRAME_SLACK;
+		// Text packets carry the data as Base64, which is a third larger.
+		if (owner.getFormat() != Packet.Format.BINARY) room = room / 4 * 3;
+		return Math.max(room, 1);
+	}
+	
+	/**
+	 * Sends a whole file, keeping a window of segments in flight. The
+	 * remote host should {@link #acknowledge} each segment as it arrives.
+	 * Any window that is already sending the file is cancelled.
+	 *
+	 * @param source
+	 *     Where the file's segments come from.
+	 * @return
+	 *     The window, which can be used to follow or cancel the transfer.
+	 * @throws IOException
+	 *     If the first segments cannot be read or sent.
+	 * @see TransferWindow
+	 */
+	public TransferWindow send(TransferWindow.Source source) throws IOException
+	{
+		TransferWindow old = window;
+		if (old != null) old.cancel();
+		
+		TransferWindow w = new TransferWindow(this, source);
+		window = w;
+		w.start();
+		return w;
+	}
+	
+	/**
+	 * Returns the original bytes of a received file segment, decompressing
+	 * them if necessary.
+	 *
+	 * @param msg
+	 *     The message that carried the segment.
+	 * @return
+	 *     A buffer of the segment's bytes. If the segment was not compressed,
+	 *     this is a read-only view of the packet, and is not copied.
+	 * @throws IOException
+	 *     If the segment's encoding is unknown, or its data is corrupt.
+	 * @see Message.TransferFile#getEncoding
+	 */
+	public static ByteBuffer getSegmentData(Message.TransferFile msg) throws IOException
+	{
+		ByteBuffer data = null;
+		
+		try {
+			data = msg.getData();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Segment " + msg.getSegment() + " is not valid Base64");
+		}
+		
+		if (data == null) throw new IOException("Segment " + msg.getSegment() + " has no data");
+		
+		SegmentCodec codec = SegmentCodec.forEncoding(msg.getEncoding());
+		if (codec == null) {
+			throw new IOException("Unknown encoding for segment " + msg.getSegment() + ": " + msg.getEncoding());
+		}
+		return codec.decode(data, msg.getSegmentSize());
 	}
 	
 	/**
@@ -158,10 +414,27 @@ public class FileTransfer
 	 */
 	public void request() throws IOException
 	{
-		Packet packet = new Packet(Packet.Type.RequestFile);
-		packet.putProperty("Id", Integer.valueOf(owner.getID()));
-		packet.putProperty("ShareName", filename);
-		owner.sendPacket(packet);
+		owner.sendPacket(new Packet(new Message.RequestFile(owner.getID(), filename)));
+	}
+	
+	/**
+	 * Confirms a request for the file, telling the remote host how it will be
+	 * split into segments and the root of its hash tree. Segments sent
+	 * afterwards carry their proofs.
+	 *
+	 * @param size
+	 *     The <em>total</em> size of the whole file, in bytes.
+	 * @param tree
+	 *     The file's hash tree, as returned by
+	 *     {@link snodes.fs.FileRead#getHashTree}.
+	 * @throws IOException
+	 *     If the confirmation cannot be sent due to a network error.
+	 */
+	public void confirm(long size, MerkleTree tree) throws IOException
+	{
+		this.tree = tree;
+		owner.sendPacket(new Packet(new Message.ConfirmFileRequest(owner.getID(), filename, size,
+			tree.getSegmentSize(), tree.getSegments(), tree.getRoot())));
 	}
 	
 	/**
@@ -176,11 +449,40 @@ public class FileTransfer
 	 */
 	public void request(int seg) throws IOException
 	{
-		Packet packet = new Packet(Packet.Type.RequestAgain);
-		packet.putProperty("Id", Integer.valueOf(owner.getID()));
-		packet.putProperty("ShareName", filename);
-		packet.putProperty("Segment", Integer.valueOf(seg));
-		owner.sendPacket(packet);
+		owner.sendPacket(new Packet(new Message.RequestAgain(owner.getID(), filename, seg)));
+	}
+	
+	/**
+	 * Acknowledges a received file segment, so that a sender with a
+	 * {@link TransferWindow} can send more.
+	 *
+	 * @param seg
+	 *     The segment that has just been received.
+	 * @param received
+	 *     The number of leading segments of the file that have been received.
+	 * @throws IOException
+	 *     If the acknowledgement cannot be sent due to a network error.
+	 */
+	public void acknowledge(int seg, int received) throws IOException
+	{
+		owner.sendPacket(new Packet(new Message.Acknowledge(owner.getID(), filename, seg, received)));
+	}
+	
+	/**
+	 * Acknowledges a received file segment, and tells the sender exactly
+	 * which segments are still missing, so that it can resend just those.
+	 *
+	 * @param seg
+	 *     The segment that has just been received.
+	 * @param got
+	 *     The segments of the file that have been received, including this
+	 *     one.
+	 * @throws IOException
+	 *     If the acknowledgement cannot be sent due to a network error.
+	 */
+	public void acknowledge(int seg, ReceivedSegments got) throws IOException
+	{
+		owner.sendPacket(new Packet(new Message.Acknowledge(owner.getID(), filename, seg, got)));
 	}
 	
 	/**
@@ -191,10 +493,91 @@ public class FileTransfer
 	 */
 	public void cancel() throws IOException
 	{
-		Packet packet = new Packet(Packet.Type.CancelTransfer);
-		packet.putProperty("Id", Integer.valueOf(owner.getID()));
-		packet.putProperty("ShareName", filename);
-		owner.sendPacket(packet);
+		TransferWindow w = window;
+		if (w != null) w.cancel();
+		
+		owner.sendPacket(new Packet(new Message.CancelTransfer(owner.getID(), filename)));
+	}
+	
+	/**
+	 * Returns the window through which the file is being sent.
+	 *
+	 * @return
+	 *     The window, or null if the file is not being sent with one.
+	 */
+	public TransferWindow getWindow()
+	{
+		return window;
+	}
+	
+	/**
+	 * Sets the transfer's share of the connection's bandwidth. When several
+	 * transfers are sending at once, each sends in proportion to its weight;
+	 * the default is 1.
+	 *
+	 * @param weight
+	 *     The weight, from 1 to 64.
+	 * @throws IllegalArgumentException
+	 *     If the weight is out of range.
+	 */
+	public void setWeight(int weight) throws IllegalArgumentException
+	{
+		flow.setWeight(weight);
+	}
+	
+	/**
+	 * Returns the transfer's share of the connection's bandwidth.
+	 *
+	 * @return
+	 *     The weight.
+	 */
+	public int getWeight()
+	{
+		return flow.getWeight();
+	}
+	
+	/**
+	 * Turns forward error correction on or off. While it is on, a parity
+	 * segment is sent after every group of <var>k</var> segments, from which
+	 * the remote host can rebuild any one segment of the group that is lost
+	 * without asking for it again; see {@link ParityDecoder}. This costs one
+	 * extra segment in every <var>k</var>. Parity is only sent to hosts that
+	 * say they understand it, and only for groups whose segments are all
+	 * sent through this transfer, as they are when the file is sent through
+	 * a {@link TransferWindow}.
+	 *
+	 * @param k
+	 *     The number of segments in each group, from 2 to 64, or 0 to turn
+	 *     parity off.
+	 * @throws IllegalArgumentException
+	 *     If the group size is out of range.
+	 */
+	public void setParity(int k) throws IllegalArgumentException
+	{
+		parity = (k == 0) ? null : new ParityEncoder(k);
+	}
+	
+	/**
+	 * Returns the number of segments covered by each parity segment.
+	 *
+	 * @return
+	 *     The group size, or 0 if parity is off.
+	 */
+	public int getParity()
+	{
+		ParityEncoder p = parity;
+		return (p != null) ? p.getGroupSize() : 0;
+	}
+	
+	/**
+	 * Returns the hash tree of the file being sent.
+	 *
+	 * @return
+	 *     The tree, or null if the transfer has not been confirmed with one.
+	 */
+	public MerkleTree getHashTree()
+	{
+		return tree;
 	}
 	
 	/**
@@ -238,4 +621,51 @@ public class FileTransfer
 		buf.append(" <").append(filename).append(">");
 		return new String(buf);
 	}
+	
+	
+	/**
+	 * Identifies the encoded form of a segment in the segment cache. The
+	 * network layer does not know the file's modification time, so the
+	 * segment's checksum stands in for the version of the file.
+	 */
+	private static final class EncodedKey
+	{
+		private final String filename;
+		private final int segment;
+		private final long size;
+		private final int length;
+		private final long hash;
+		private final SegmentCodec codec;
+		
+		private EncodedKey(String filename, int segment, long size, int length, long hash, SegmentCodec codec)
+		{
+			this.filename = filename;
+			this.segment = segment;
+			this.size = size;
+			this.length = length;
+			this.hash = hash;
+			this.codec = codec;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof EncodedKey)) return false;
+			
+			EncodedKey k = (EncodedKey) o;
+			return filename.equals(k.filename) && segment == k.segment && size == k.size
+				&& length == k.length && hash == k.hash && codec == k.codec;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int h = filename.hashCode();
+			h = 31 * h + segment;
+			h = 31 * h + (int) (size ^ (size >>> 32));
+			h = 31 * h + length;
+			h = 31 * h + (int) (hash ^ (hash >>> 32));
+			return 31 * h + codec.getEncoding();
+		}
+	}
 }
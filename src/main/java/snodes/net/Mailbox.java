@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A serial mailbox of packets for a single connection.
+ *
+ * <p>A slot is {@link #reserve reserved} in the mailbox as soon as a datagram
+ * is received, so the slots are in the order in which the peer's datagrams
+ * arrived. The datagrams are then decrypted and parsed in parallel with
+ * everyone else's, and each slot is filled in (or {@link #skip skipped}, if its
+ * datagram could not be turned into a packet) whenever that work finishes.
+ * Packets are only handed to the connection once every slot ahead of them
+ * has been filled or skipped, and never more than one at a time. This keeps
+ * the packets from any one peer in order, and means the connection never has
+ * to deal with two of its own packets at once, while the packets of
+ * different peers are still processed in parallel.</p>
+ *
+ * <p>Each slot also holds on to the receive buffer of its datagram, since the
+ * packet is parsed in place and its values are views of that buffer. The
+ * buffer is released back to its ring once the packet has been delivered, or
+ * as soon as the slot is skipped. A slow listener could otherwise hold every
+ * buffer of the ring and stop its shard from reading, so once the ring runs
+ * {@link BufferRing#isLow low}, packets are {@link Packet#detach copied} out of
+ * their buffers as soon as they are parsed, and the buffers are released
+ * right away.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class Mailbox
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The connection to which packets are delivered. */
+	private final SnodesConnection owner;
+	/** The reserved slots, in arrival order. */
+	@GuardedBy("this")
+	private final Deque<Slot> slots;
+	/** True if a thread is currently delivering packets from the mailbox. */
+	@GuardedBy("this")
+	private boolean draining;
+	
+	/**
+	 * Creates a new mailbox.
+	 *
+	 * @param owner
+	 *     The connection to which packets are delivered.
+	 */
+	Mailbox(SnodesConnection owner)
+	{
+		this.owner = owner;
+		this.slots = new ArrayDeque<Slot>();
+		this.draining = false;
+	}
+	
+	/**
+	 * Reserves the next slot in the mailbox. Slots must be reserved in the
+	 * order in which datagrams are received.
+	 *
+	 * @param buf
+	 *     The buffer holding the slot's datagram.
+	 * @param ring
+	 *     The ring to which the buffer is released once the slot is done
+	 *     with it, or null if the buffer does not belong to a ring.
+	 * @return
+	 *     A new slot.
+	 */
+	@GuardedBy("this")
+	synchronized Slot reserve(ByteBuffer buf, BufferRing ring)
+	{
+		Slot slot = new Slot(buf, ring);
+		slots.addLast(slot);
+		return slot;
+	}
+	
+	/**
+	 * Fills a slot with a packet.
+	 *
+	 * @param slot
+	 *     The slot.
+	 * @param packet
+	 *     The packet.
+	 * @param dispatcher
+	 *     The dispatcher on which packets are delivered, if the slot is at the
+	 *     head of the mailbox.
+	 */
+	void complete(Slot slot, Packet packet, Dispatcher dispatcher)
+	{
+		// The packet may wait behind others for a while, so it does not
+		// keep its buffer if the ring is running out.
+		if (slot.ring != null && slot.ring.isLow()) {
+			packet.detach();
+			slot.release();
+		}
+		resolve(slot, packet, dispatcher);
+	}
+	
+	/**
+	 * Marks a slot as empty, so that the packets behind it are not held up
+	 * waiting for it.
+	 *
+	 * @param slot
+	 *     The slot.
+	 * @param dispatcher
+	 *     The dispatcher on which packets are delivered, if any are waiting
+	 *     behind the slot.
+	 */
+	void skip(Slot slot, Dispatcher dispatcher)
+	{
+		resolve(slot, null, dispatcher);
+	}
+	
+	/**
+	 * Returns the number of slots in the mailbox, including ones that are
+	 * still waiting to be filled.
+	 *
+	 * @return
+	 *     The number of slots.
+	 */
+	@GuardedBy("this")
+	synchronized int size()
+	{
+		return slots.size();
+	}
+	
+	/**
+	 * Resolves a slot, and starts delivering packets if the mailbox's head is
+	 * ready and nobody else is delivering them.
+	 */
+	private void resolve(Slot slot, Packet packet, Dispatcher dispatcher)
+	{
+		synchronized (this) {
+			if (slot.resolved) return;
+			
+			slot.packet = packet;
+			slot.resolved = true;
+			
+			// Nothing is left that refers to a skipped datagram.
+			if (packet == null) slot.release();
+			
+			if (draining || !slots.peekFirst().resolved) return;
+			draining = true;
+		}
+		
+		Runnable drainer = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		
+		// Packets must not be lost just because the delivery stage is busy,
+		// so deliver them on this thread if the dispatcher is full.
+		if (!dispatcher.dispatch(drainer)) {
+			drain();
+		}
+	}
+	
+	/** Delivers packets, in order, until the head of the mailbox is not ready. */
+	private void drain()
+	{
+		boolean finished = false;
+		
+		try {
+			while (true) {
+				Slot head = null;
+				
+				synchronized (this) {
+					head = slots.peekFirst();
+					if (head == null || !head.resolved) {
+						draining = false;
+						finished = true;
+						return;
+					}
+					slots.removeFirst();
+				}
+				
+				if (head.packet != null) {
+					try {
+						owner.processPacket(head.packet);
+					} catch (RuntimeException e) {
+						logger.log(Level.SEVERE, "Cannot process " + head.packet.getType() + " from " + owner, e);
+					} finally {
+						head.release();
+					}
+				}
+			}
+		} finally {
+			// Let the next resolved slot start delivery again if a listener
+			// threw an Error out of the loop.
+			if (!finished) {
+				synchronized (this) {
+					draining = false;
+				}
+			}
+		}
+	}
+	
+	
+	/** A place in the mailbox for a packet that has not been parsed yet. */
+	static final class Slot
+	{
+		/** The slot's packet, or null if the slot was skipped. */
+		private Packet packet;   // Guarded by the owning mailbox
+		/** True once the slot has been filled or skipped. */
+		private boolean resolved; // Guarded by the owning mailbox
+		/** The buffer holding the slot's datagram. */
+		private final ByteBuffer buffer;
+		/** The ring to which the buffer belongs, or null. */
+		private final BufferRing ring;
+		/** True once the buffer has been released. */
+		private boolean released; // Ordered by the owning mailbox
+		
+		private Slot(ByteBuffer buffer, BufferRing ring)
+		{
+			this.packet = null;
+			this.resolved = false;
+			this.buffer = buffer;
+			this.ring = ring;
+			this.released = false;
+		}
+		
+		/** Returns the slot's buffer to its ring, unless it already has been. */
+		private void release()
+		{
+			if (released) return;
+			
+			released = true;
+			if (ring != null) ring.release(buffer);
+		}
+	}
+}
@@ -0,0 +1,1652 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package snodes.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * The typed contents of a {@link Packet}.
+ *
+ * <p>There is one message class for each {@link Packet.Type}. Each holds the
+ * fields that the SFXP specification defines for its type as primitives, so
+ * numbers are never boxed and fields are never looked up by name. Packets
+ * are decoded straight into their message, and encoded straight from it.
+ * Listeners should read incoming packets through their messages:</p>
+ *
+ * <pre>
+ * public void processPacket(SnodesConnection conn, Packet packet) {
+ *     Message.TransferFile msg = (Message.TransferFile) packet.getMessage();
+ *     writeSegment(msg.getShareName(), msg.getSegment(), FileTransfer.getSegmentData(msg));
+ * }
+ * </pre>
+ *
+ * <p>The fields are also available through {@link Packet#getProperty} and
+ * {@link Packet#putProperty} under their SFXP names, but those methods box
+ * their values.</p>
+ *
+ * <p>Fields that have not been set are not sent. Numeric getters return 0
+ * and object getters return null for such fields.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+public abstract class Message
+{
+	/** The IDs of the properties that have been set, as a bit set. */
+	private long present;
+	
+	/** Creates a new message with no fields set. */
+	Message()
+	{
+		this.present = 0L;
+	}
+	
+	/**
+	 * Creates an empty message of the given type.
+	 *
+	 * @param type
+	 *     The type.
+	 * @return
+	 *     A new message.
+	 */
+	static Message create(Packet.Type type)
+	{
+		switch (type) {
+		case Connect:            return new Connect();
+		case AcceptConnection:   return new AcceptConnection();
+		case CloseConnection:    return new CloseConnection();
+		case TransferFile:       return new TransferFile();
+		case RequestFile:        return new RequestFile();
+		case ConfirmFileRequest: return new ConfirmFileRequest();
+		case RequestAgain:       return new RequestAgain();
+		case CancelTransfer:     return new CancelTransfer();
+		case ChatMessage:        return new ChatMessage();
+		case Acknowledge:        return new Acknowledge();
+		default:
+			throw new IllegalArgumentException("Unknown packet type: " + type);
+		}
+	}
+	
+	/**
+	 * Returns the type of packet that carries this message.
+	 *
+	 * @return
+	 *     The packet type.
+	 */
+	public abstract Packet.Type getType();
+	
+	/**
+	 * Returns true if a field has been set.
+	 *
+	 * @param id
+	 *     The field's {@link Property} ID.
+	 * @return
+	 *     true if the field has been set.
+	 */
+	final boolean has(int id)
+	{
+		return (present & (1L << id)) != 0L;
+	}
+	
+	/**
+	 * Returns the number of fields that have been set.
+	 *
+	 * @return
+	 *     The number of fields set.
+	 */
+	final int count()
+	{
+		return Long.bitCount(present);
+	}
+	
+	/**
+	 * Marks a field as set.
+	 *
+	 * @param id
+	 *     The field's {@link Property} ID.
+	 */
+	final void mark(int id)
+	{
+		present |= (1L << id);
+	}
+	
+	/**
+	 * Sets a field from a boxed value, as {@link Packet#putProperty} does.
+	 *
+	 * @param id
+	 *     The field's {@link Property} ID.
+	 * @param value
+	 *     The value.
+	 * @return
+	 *     true if the message has such a field and the value was set.
+	 */
+	final boolean set(int id, Object value)
+	{
+		if (value instanceof Integer || value instanceof Long) {
+			return setNumber(id, ((Number) value).longValue());
+		} else if (value instanceof String) {
+			return setRaw(id, Raw.of((String) value));
+		} else if (value instanceof byte[]) {
+			return setRaw(id, Raw.of((byte[]) value));
+		} else if (value instanceof Raw) {
+			return setRaw(id, (Raw) value);
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Sets a numeric field.
+	 *
+	 * @param id
+	 *     The field's {@link Property} ID.
+	 * @param value
+	 *     The value.
+	 * @return
+	 *     true if the message has such a numeric field.
+	 */
+	boolean setNumber(int id, long value)
+	{
+		return false;
+	}
+	
+	/**
+	 * Sets a string or byte array field.
+	 *
+	 * @param id
+	 *     The field's {@link Property} ID.
+	 * @param value
+	 *     The value.
+	 * @return
+	 *     true if the message has such a field.
+	 */
+	boolean setRaw(int id, Raw value)
+	{
+		return false;
+	}
+	
+	/**
+	 * Returns a field as an object, as {@link Packet#getProperty} does.
+	 *
+	 * @param id
+	 *     The field's {@link Property} ID.
+	 * @return
+	 *     An Integer, Long, or {@link Raw}, or null if the message has no
+	 *     such field.
+	 */
+	Object get(int id)
+	{
+		return null;
+	}
+	
+	/**
+	 * Writes every field that has been set.
+	 *
+	 * @param out
+	 *     The sink to which the fields are written.
+	 */
+	void write(Sink out)
+	{
+		// No fields
+	}
+	
+	/**
+	 * Copies every string and byte array field out of the buffer from which
+	 * the message was parsed, so that the buffer can be reused.
+	 */
+	void detach()
+	{
+		write(new Sink() {
+			public void putInt(int id, int value) {}
+			public void putLong(int id, long value) {}
+			public void putRaw(int id, Raw value) {
+				setRaw(id, value.detach());
+			}
+		});
+	}
+	
+	
+	/** Receives the fields of a message as it is encoded. */
+	interface Sink
+	{
+		/**
+		 * Writes an int field.
+		 *
+		 * @param id
+		 *     The field's {@link Property} ID.
+		 * @param value
+		 *     The value.
+		 */
+		void putInt(int id, int value);
+		
+		/**
+		 * Writes a long field.
+		 *
+		 * @param id
+		 *     The field's {@link Property} ID.
+		 * @param value
+		 *     The value.
+		 */
+		void putLong(int id, long value);
+		
+		/**
+		 * Writes a string or byte array field.
+		 *
+		 * @param id
+		 *     The field's {@link Property} ID.
+		 * @param value
+		 *     The value.
+		 */
+		void putRaw(int id, Raw value);
+	}
+	
+	
+	/** A message that belongs to a session, and so carries its ID. */
+	public abstract static class SessionMessage extends Message
+	{
+		private int id;
+		
+		SessionMessage() {}
+		
+		SessionMessage(int id)
+		{
+			this.id = id;
+			mark(Property.ID);
+		}
+		
+		/**
+		 * Returns the session ID.
+		 *
+		 * @return
+		 *     The session ID.
+		 */
+		public int getId()
+		{
+			return id;
+		}
+		
+		@Override
+		boolean setNumber(int pid, long value)
+		{
+			if (pid != Property.ID) return super.setNumber(pid, value);
+			id = (int) value;
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			return (pid == Property.ID) ? Integer.valueOf(id) : super.get(pid);
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.ID)) out.putInt(Property.ID, id);
+		}
+	}
+	
+	
+	/** A message about a shared file. */
+	public abstract static class FileMessage extends SessionMessage
+	{
+		private Raw shareName;
+		
+		FileMessage() {}
+		
+		FileMessage(int id, String shareName)
+		{
+			super(id);
+			setRaw(Property.SHARE_NAME, Raw.of(shareName));
+		}
+		
+		/**
+		 * Returns the name of the shared file.
+		 *
+		 * @return
+		 *     The share name.
+		 */
+		public String getShareName()
+		{
+			return (shareName != null) ? shareName.getString() : null;
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			if (pid != Property.SHARE_NAME || !value.isText()) return super.setRaw(pid, value);
+			shareName = value;
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			return (pid == Property.SHARE_NAME) ? shareName : super.get(pid);
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.SHARE_NAME)) out.putRaw(Property.SHARE_NAME, shareName);
+		}
+	}
+	
+	
+	/** Initiates a connection between two nodes. */
+	public static final class Connect extends Message
+	{
+		private Raw passkey;
+		private Raw formats;
+		private Raw compression;
+		private Raw features;
+		
+		Connect() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param passkey
+		 *     The connection passkey.
+		 * @param formats
+		 *     The packet formats understood by the sender.
+		 * @param compression
+		 *     The segment compression methods understood by the sender.
+		 */
+		public Connect(String passkey, String formats, String compression)
+		{
+			this(passkey, formats, compression, null);
+		}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param passkey
+		 *     The connection passkey.
+		 * @param formats
+		 *     The packet formats understood by the sender.
+		 * @param compression
+		 *     The segment compression methods understood by the sender.
+		 * @param features
+		 *     The optional protocol features understood by the sender.
+		 */
+		public Connect(String passkey, String formats, String compression, String features)
+		{
+			setRaw(Property.PASSKEY, Raw.of(passkey));
+			if (formats != null) setRaw(Property.FORMATS, Raw.of(formats));
+			if (compression != null) setRaw(Property.COMPRESSION, Raw.of(compression));
+			if (features != null) setRaw(Property.FEATURES, Raw.of(features));
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.Connect;
+		}
+		
+		/**
+		 * Returns the connection passkey.
+		 *
+		 * @return
+		 *     The passkey.
+		 */
+		public String getPasskey()
+		{
+			return (passkey != null) ? passkey.getString() : null;
+		}
+		
+		/**
+		 * Returns the packet formats understood by the sender.
+		 *
+		 * @return
+		 *     The formats, or null if the sender did not list any.
+		 * @see Packet.Format
+		 */
+		public String getFormats()
+		{
+			return (formats != null) ? formats.getString() : null;
+		}
+		
+		/**
+		 * Returns the segment compression methods understood by the sender,
+		 * separated by spaces.
+		 *
+		 * @return
+		 *     The compression methods, or null if the sender did not list any.
+		 * @see FileTransfer#GZIP
+		 */
+		public String getCompression()
+		{
+			return (compression != null) ? compression.getString() : null;
+		}
+		
+		/**
+		 * Returns the optional protocol features understood by the sender,
+		 * separated by spaces.
+		 *
+		 * @return
+		 *     The features, or null if the sender did not list any.
+		 * @see FileTransfer#PARITY
+		 */
+		public String getFeatures()
+		{
+			return (features != null) ? features.getString() : null;
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			if (!value.isText()) return super.setRaw(pid, value);
+			
+			switch (pid) {
+			case Property.PASSKEY:     passkey = value; break;
+			case Property.FORMATS:     formats = value; break;
+			case Property.COMPRESSION: compression = value; break;
+			case Property.FEATURES:    features = value; break;
+			default:                   return super.setRaw(pid, value);
+			}
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			switch (pid) {
+			case Property.PASSKEY:     return passkey;
+			case Property.FORMATS:     return formats;
+			case Property.COMPRESSION: return compression;
+			case Property.FEATURES:    return features;
+			default:                   return super.get(pid);
+			}
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.PASSKEY)) out.putRaw(Property.PASSKEY, passkey);
+			if (has(Property.FORMATS)) out.putRaw(Property.FORMATS, formats);
+			if (has(Property.COMPRESSION)) out.putRaw(Property.COMPRESSION, compression);
+			if (has(Property.FEATURES)) out.putRaw(Property.FEATURES, features);
+		}
+	}
+	
+	
+	/** Accepts a previous connection request. */
+	public static final class AcceptConnection extends SessionMessage
+	{
+		private Raw passkey;
+		private Raw encryptKey;
+		private Raw formats;
+		private Raw compression;
+		private Raw features;
+		
+		AcceptConnection() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param passkey
+		 *     The connection passkey.
+		 * @param id
+		 *     The session ID.
+		 * @param encryptKey
+		 *     The Base64 session key.
+		 * @param formats
+		 *     The packet formats understood by the sender.
+		 * @param compression
+		 *     The segment compression methods understood by the sender.
+		 */
+		public AcceptConnection(String passkey, int id, String encryptKey, String formats, String compression)
+		{
+			this(passkey, id, encryptKey, formats, compression, null);
+		}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param passkey
+		 *     The connection passkey.
+		 * @param id
+		 *     The session ID.
+		 * @param encryptKey
+		 *     The Base64 session key.
+		 * @param formats
+		 *     The packet formats understood by the sender.
+		 * @param compression
+		 *     The segment compression methods understood by the sender.
+		 * @param features
+		 *     The optional protocol features understood by the sender.
+		 */
+		public AcceptConnection(String passkey, int id, String encryptKey, String formats, String compression, String features)
+		{
+			super(id);
+			setRaw(Property.PASSKEY, Raw.of(passkey));
+			setRaw(Property.ENCRYPT_KEY, Raw.of(encryptKey));
+			if (formats != null) setRaw(Property.FORMATS, Raw.of(formats));
+			if (compression != null) setRaw(Property.COMPRESSION, Raw.of(compression));
+			if (features != null) setRaw(Property.FEATURES, Raw.of(features));
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.AcceptConnection;
+		}
+		
+		/**
+		 * Returns the connection passkey.
+		 *
+		 * @return
+		 *     The passkey.
+		 */
+		public String getPasskey()
+		{
+			return (passkey != null) ? passkey.getString() : null;
+		}
+		
+		/**
+		 * Returns the session key, which is Base64 encoded.
+		 *
+		 * @return
+		 *     The session key.
+		 */
+		public String getEncryptKey()
+		{
+			return (encryptKey != null) ? encryptKey.getString() : null;
+		}
+		
+		/**
+		 * Returns the packet formats understood by the sender.
+		 *
+		 * @return
+		 *     The formats, or null if the sender did not list any.
+		 * @see Packet.Format
+		 */
+		public String getFormats()
+		{
+			return (formats != null) ? formats.getString() : null;
+		}
+		
+		/**
+		 * Returns the segment compression methods understood by the sender,
+		 * separated by spaces.
+		 *
+		 * @return
+		 *     The compression methods, or null if the sender did not list any.
+		 * @see FileTransfer#GZIP
+		 */
+		public String getCompression()
+		{
+			return (compression != null) ? compression.getString() : null;
+		}
+		
+		/**
+		 * Returns the optional protocol features understood by the sender,
+		 * separated by spaces.
+		 *
+		 * @return
+		 *     The features, or null if the sender did not list any.
+		 * @see FileTransfer#PARITY
+		 */
+		public String getFeatures()
+		{
+			return (features != null) ? features.getString() : null;
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			if (!value.isText()) return super.setRaw(pid, value);
+			
+			switch (pid) {
+			case Property.PASSKEY:     passkey = value; break;
+			case Property.ENCRYPT_KEY: encryptKey = value; break;
+			case Property.FORMATS:     formats = value; break;
+			case Property.COMPRESSION: compression = value; break;
+			case Property.FEATURES:    features = value; break;
+			default:                   return super.setRaw(pid, value);
+			}
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			switch (pid) {
+			case Property.PASSKEY:     return passkey;
+			case Property.ENCRYPT_KEY: return encryptKey;
+			case Property.FORMATS:     return formats;
+			case Property.COMPRESSION: return compression;
+			case Property.FEATURES:    return features;
+			default:                   return super.get(pid);
+			}
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			if (has(Property.PASSKEY)) out.putRaw(Property.PASSKEY, passkey);
+			super.write(out);
+			if (has(Property.ENCRYPT_KEY)) out.putRaw(Property.ENCRYPT_KEY, encryptKey);
+			if (has(Property.FORMATS)) out.putRaw(Property.FORMATS, formats);
+			if (has(Property.COMPRESSION)) out.putRaw(Property.COMPRESSION, compression);
+			if (has(Property.FEATURES)) out.putRaw(Property.FEATURES, features);
+		}
+	}
+	
+	
+	/** Closes a connection. */
+	public static final class CloseConnection extends Message
+	{
+		/** Creates a new message. */
+		public CloseConnection() {}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.CloseConnection;
+		}
+	}
+	
+	
+	/**
+	 * Sends a file segment to a remote host.
+	 *
+	 * <p>A segment that is too large for one datagram is split into
+	 * {@link #getFragments} fragments, each sent in its own message. Every
+	 * fragment carries the whole segment's fields, plus its own index and a
+	 * piece of the data; all fragments but the last hold the same number of
+	 * bytes. Fragments are put back together before listeners see them, so
+	 * listeners only ever receive whole segments.</p>
+	 */
+	public static final class TransferFile extends FileMessage
+	{
+		private long totalSize;
+		private int segmentSize;
+		private int segment;
+		private long hash;
+		private int encoding;
+		private Raw data;
+		private int fragment;
+		private int fragments;
+		private int length;
+		private Raw proof;
+		private int parity;
+		
+		TransferFile() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 * @param totalSize
+		 *     The size of the whole file, in bytes.
+		 * @param segmentSize
+		 *     The size of the segment, in bytes.
+		 * @param segment
+		 *     The segment number.
+		 * @param hash
+		 *     The segment's checksum.
+		 * @param encoding
+		 *     The compression applied to the data, such as
+		 *     {@link FileTransfer#IDENTITY}.
+		 * @param data
+		 *     The segment's data. The remaining bytes in the buffer are sent;
+		 *     they are not copied, so the buffer must not be modified until
+		 *     the packet has been sent.
+		 */
+		public TransferFile(int id, String shareName, long totalSize, int segmentSize, int segment, long hash, int encoding, ByteBuffer data)
+		{
+			super(id, shareName);
+			setNumber(Property.TOTAL_SIZE, totalSize);
+			setNumber(Property.SEGMENT_SIZE, segmentSize);
+			setNumber(Property.SEGMENT, segment);
+			setNumber(Property.HASH, hash);
+			setNumber(Property.ENCODING, encoding);
+			setRaw(Property.DATA, Raw.of(data));
+		}
+		
+		/**
+		 * Creates a fragment of a segment, carrying the segment's fields and
+		 * a piece of its data.
+		 *
+		 * @param index
+		 *     The index of the fragment.
+		 * @param count
+		 *     The number of fragments.
+		 * @param length
+		 *     The length of the whole segment's data, as sent.
+		 * @param piece
+		 *     The fragment's data. The remaining bytes in the buffer are sent;
+		 *     they are not copied.
+		 * @return
+		 *     The fragment.
+		 */
+		TransferFile fragment(int index, int count, int length, ByteBuffer piece)
+		{
+			TransferFile frag = withData(piece);
+			frag.setNumber(Property.FRAGMENT, index);
+			frag.setNumber(Property.FRAGMENTS, count);
+			frag.setNumber(Property.LENGTH, length);
+			return frag;
+		}
+		
+		/**
+		 * Creates a whole segment with this message's fields and the given
+		 * data. The fragment fields are not copied.
+		 *
+		 * @param whole
+		 *     The segment's data, as sent. It is not copied.
+		 * @return
+		 *     The segment.
+		 */
+		TransferFile withData(ByteBuffer whole)
+		{
+			TransferFile msg = new TransferFile();
+			if (has(Property.ID)) msg.setNumber(Property.ID, getId());
+			if (has(Property.SHARE_NAME)) msg.setRaw(Property.SHARE_NAME, (Raw) get(Property.SHARE_NAME));
+			if (has(Property.TOTAL_SIZE)) msg.setNumber(Property.TOTAL_SIZE, totalSize);
+			if (has(Property.SEGMENT_SIZE)) msg.setNumber(Property.SEGMENT_SIZE, segmentSize);
+			if (has(Property.SEGMENT)) msg.setNumber(Property.SEGMENT, segment);
+			if (has(Property.HASH)) msg.setNumber(Property.HASH, hash);
+			if (has(Property.ENCODING)) msg.setNumber(Property.ENCODING, encoding);
+			if (has(Property.PROOF)) msg.setRaw(Property.PROOF, proof);
+			if (has(Property.PARITY)) msg.setNumber(Property.PARITY, parity);
+			msg.setRaw(Property.DATA, Raw.of(whole));
+			return msg;
+		}
+		
+		/**
+		 * Attaches the segment's hash tree proof.
+		 *
+		 * @param proof
+		 *     The proof, as returned by
+		 *     {@link snodes.fs.MerkleTree#getProof}. It is not copied.
+		 * @return
+		 *     This message.
+		 */
+		TransferFile withProof(byte[] proof)
+		{
+			setRaw(Property.PROOF, Raw.of(proof));
+			return this;
+		}
+		
+		/**
+		 * Sets the parity group size. On data segments, this is the number of
+		 * segments in each group; on parity segments, the number of segments
+		 * in the group this one covers.
+		 *
+		 * @param n
+		 *     The number of segments.
+		 * @return
+		 *     This message.
+		 */
+		TransferFile withParity(int n)
+		{
+			setNumber(Property.PARITY, n);
+			return this;
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.TransferFile;
+		}
+		
+		/**
+		 * Returns the size of the whole file.
+		 *
+		 * @return
+		 *     The file size, in bytes.
+		 */
+		public long getTotalSize()
+		{
+			return totalSize;
+		}
+		
+		/**
+		 * Returns the size of the segment.
+		 *
+		 * @return
+		 *     The segment size, in bytes.
+		 */
+		public int getSegmentSize()
+		{
+			return segmentSize;
+		}
+		
+		/**
+		 * Returns the segment number.
+		 *
+		 * @return
+		 *     The segment number.
+		 */
+		public int getSegment()
+		{
+			return segment;
+		}
+		
+		/**
+		 * Returns the segment's checksum.
+		 *
+		 * @return
+		 *     The checksum.
+		 */
+		public long getHash()
+		{
+			return hash;
+		}
+		
+		/**
+		 * Returns the compression applied to the segment's data. Older nodes
+		 * do not say, but always gzip their segments.
+		 *
+		 * @return
+		 *     The encoding, such as {@link FileTransfer#IDENTITY}.
+		 * @see FileTransfer#getSegmentData
+		 */
+		public int getEncoding()
+		{
+			return has(Property.ENCODING) ? encoding : FileTransfer.GZIP;
+		}
+		
+		/**
+		 * Returns the segment's data, exactly as it was sent. For received
+		 * packets, this is a view of the packet itself, and is not copied. The
+		 * data may be compressed; see {@link #getEncoding}.
+		 *
+		 * @return
+		 *     A read-only buffer of the data, or null if there is none.
+		 * @throws IllegalArgumentException
+		 *     If the data in a text packet is not valid Base64.
+		 */
+		public ByteBuffer getData() throws IllegalArgumentException
+		{
+			Raw d = data;
+			if (d == null) return null;
+			
+			// Text packets carry the data as a Base64 string
+			if (d.isText()) {
+				d = d.decodeBase64();
+				data = d;
+			}
+			return d.buffer();
+		}
+		
+		/**
+		 * Returns the hashes that link the segment to the root of its file's
+		 * hash tree, to be checked with {@link snodes.fs.MerkleTree#verify}.
+		 *
+		 * @return
+		 *     A read-only buffer of the proof, or null if there is none.
+		 * @throws IllegalArgumentException
+		 *     If the proof in a text packet is not valid Base64.
+		 */
+		public ByteBuffer getProof() throws IllegalArgumentException
+		{
+			Raw p = proof;
+			if (p == null) return null;
+			
+			if (p.isText()) {
+				p = p.decodeBase64();
+				proof = p;
+			}
+			return p.buffer();
+		}
+		
+		/**
+		 * Returns true if this message carries a parity segment rather than
+		 * part of the file. A parity segment is the exclusive or of a group
+		 * of data segments, so any one of them can be rebuilt from it and
+		 * the others; see {@link ParityDecoder}. Its segment number is
+		 * <code>-1 - g</code> for group <var>g</var>, so that receivers
+		 * that do not look for parity never mistake it for data.
+		 *
+		 * @return
+		 *     true if this is a parity segment.
+		 */
+		public boolean isParity()
+		{
+			return segment < 0 && parity > 0;
+		}
+		
+		/**
+		 * Returns the parity group size. On data segments, this is the number
+		 * of segments in each group, if the sender is sending parity; on
+		 * parity segments, it is the number of data segments covered.
+		 *
+		 * @return
+		 *     The number of segments, or 0 if there is no parity.
+		 */
+		public int getParity()
+		{
+			return parity;
+		}
+		
+		/**
+		 * Returns true if this message carries only a fragment of the segment.
+		 *
+		 * @return
+		 *     true if the segment was split into more than one fragment.
+		 */
+		public boolean isFragment()
+		{
+			return fragments > 1;
+		}
+		
+		/**
+		 * Returns the index of the fragment carried by this message.
+		 *
+		 * @return
+		 *     The fragment's index, starting from 0.
+		 */
+		public int getFragment()
+		{
+			return fragment;
+		}
+		
+		/**
+		 * Returns the number of fragments into which the segment was split.
+		 *
+		 * @return
+		 *     The number of fragments, or 0 if the segment was not split.
+		 */
+		public int getFragments()
+		{
+			return fragments;
+		}
+		
+		/**
+		 * Returns the length of the whole segment's data, as sent. This is
+		 * the length after compression, and is only given for fragments.
+		 *
+		 * @return
+		 *     The length of the data, in bytes.
+		 */
+		public int getLength()
+		{
+			return length;
+		}
+		
+		@Override
+		boolean setNumber(int pid, long value)
+		{
+			switch (pid) {
+			case Property.TOTAL_SIZE:   totalSize = value; break;
+			case Property.SEGMENT_SIZE: segmentSize = (int) value; break;
+			case Property.SEGMENT:      segment = (int) value; break;
+			case Property.HASH:         hash = value; break;
+			case Property.ENCODING:     encoding = (int) value; break;
+			case Property.FRAGMENT:     fragment = (int) value; break;
+			case Property.FRAGMENTS:    fragments = (int) value; break;
+			case Property.LENGTH:       length = (int) value; break;
+			case Property.PARITY:       parity = (int) value; break;
+			default:                    return super.setNumber(pid, value);
+			}
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			switch (pid) {
+			case Property.DATA:  data = value; break;
+			case Property.PROOF: proof = value; break;
+			default:             return super.setRaw(pid, value);
+			}
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			switch (pid) {
+			case Property.TOTAL_SIZE:   return Long.valueOf(totalSize);
+			case Property.SEGMENT_SIZE: return Integer.valueOf(segmentSize);
+			case Property.SEGMENT:      return Integer.valueOf(segment);
+			case Property.HASH:         return Long.valueOf(hash);
+			case Property.ENCODING:     return Integer.valueOf(encoding);
+			case Property.DATA:         return data;
+			case Property.FRAGMENT:     return Integer.valueOf(fragment);
+			case Property.FRAGMENTS:    return Integer.valueOf(fragments);
+			case Property.LENGTH:       return Integer.valueOf(length);
+			case Property.PROOF:        return proof;
+			case Property.PARITY:       return Integer.valueOf(parity);
+			default:                    return super.get(pid);
+			}
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.TOTAL_SIZE)) out.putLong(Property.TOTAL_SIZE, totalSize);
+			if (has(Property.SEGMENT_SIZE)) out.putInt(Property.SEGMENT_SIZE, segmentSize);
+			if (has(Property.SEGMENT)) out.putInt(Property.SEGMENT, segment);
+			if (has(Property.HASH)) out.putLong(Property.HASH, hash);
+			if (has(Property.ENCODING)) out.putInt(Property.ENCODING, encoding);
+			if (has(Property.FRAGMENT)) out.putInt(Property.FRAGMENT, fragment);
+			if (has(Property.FRAGMENTS)) out.putInt(Property.FRAGMENTS, fragments);
+			if (has(Property.LENGTH)) out.putInt(Property.LENGTH, length);
+			if (has(Property.PROOF)) out.putRaw(Property.PROOF, proof);
+			if (has(Property.PARITY)) out.putInt(Property.PARITY, parity);
+			if (has(Property.DATA)) out.putRaw(Property.DATA, data);
+		}
+	}
+	
+	
+	/** Requests a file. */
+	public static final class RequestFile extends FileMessage
+	{
+		RequestFile() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 */
+		public RequestFile(int id, String shareName)
+		{
+			super(id, shareName);
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.RequestFile;
+		}
+	}
+	
+	
+	/** Confirms that a node has a file and can send it. */
+	public static final class ConfirmFileRequest extends FileMessage
+	{
+		private long totalSize;
+		private int segmentSize;
+		private int segments;
+		private Raw root;
+		
+		ConfirmFileRequest() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 * @param totalSize
+		 *     The size of the file, in bytes.
+		 * @param segmentSize
+		 *     The size of each segment, in bytes.
+		 * @param segments
+		 *     The number of segments in the file.
+		 */
+		public ConfirmFileRequest(int id, String shareName, long totalSize, int segmentSize, int segments)
+		{
+			super(id, shareName);
+			setNumber(Property.TOTAL_SIZE, totalSize);
+			setNumber(Property.SEGMENT_SIZE, segmentSize);
+			setNumber(Property.SEGMENTS, segments);
+		}
+		
+		/**
+		 * Creates a new message that also gives the root of the file's hash
+		 * tree, so that each segment can be checked as it arrives.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 * @param totalSize
+		 *     The size of the file, in bytes.
+		 * @param segmentSize
+		 *     The size of each segment, in bytes.
+		 * @param segments
+		 *     The number of segments in the file.
+		 * @param root
+		 *     The root hash, as returned by
+		 *     {@link snodes.fs.MerkleTree#getRoot}. It is not copied.
+		 */
+		public ConfirmFileRequest(int id, String shareName, long totalSize, int segmentSize, int segments, byte[] root)
+		{
+			this(id, shareName, totalSize, segmentSize, segments);
+			setRaw(Property.ROOT, Raw.of(root));
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.ConfirmFileRequest;
+		}
+		
+		/**
+		 * Returns the root of the file's hash tree.
+		 *
+		 * @return
+		 *     A copy of the root hash, or null if the remote host did not give
+		 *     one or it is not valid Base64.
+		 */
+		public byte[] getRoot()
+		{
+			Raw r = root;
+			if (r == null) return null;
+			
+			try {
+				r = r.decodeBase64();
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+			ByteBuffer b = r.buffer();
+			byte[] hash = new byte[b.remaining()];
+			b.get(hash);
+			return hash;
+		}
+		
+		/**
+		 * Returns the size of the file.
+		 *
+		 * @return
+		 *     The file size, in bytes.
+		 */
+		public long getTotalSize()
+		{
+			return totalSize;
+		}
+		
+		/**
+		 * Returns the size of each segment.
+		 *
+		 * @return
+		 *     The segment size, in bytes.
+		 */
+		public int getSegmentSize()
+		{
+			return segmentSize;
+		}
+		
+		/**
+		 * Returns the number of segments in the file.
+		 *
+		 * @return
+		 *     The number of segments.
+		 */
+		public int getSegments()
+		{
+			return segments;
+		}
+		
+		@Override
+		boolean setNumber(int pid, long value)
+		{
+			switch (pid) {
+			case Property.TOTAL_SIZE:   totalSize = value; break;
+			case Property.SEGMENT_SIZE: segmentSize = (int) value; break;
+			case Property.SEGMENTS:     segments = (int) value; break;
+			default:                    return super.setNumber(pid, value);
+			}
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			if (pid != Property.ROOT) return super.setRaw(pid, value);
+			root = value;
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			switch (pid) {
+			case Property.TOTAL_SIZE:   return Long.valueOf(totalSize);
+			case Property.SEGMENT_SIZE: return Integer.valueOf(segmentSize);
+			case Property.SEGMENTS:     return Integer.valueOf(segments);
+			case Property.ROOT:         return root;
+			default:                    return super.get(pid);
+			}
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.TOTAL_SIZE)) out.putLong(Property.TOTAL_SIZE, totalSize);
+			if (has(Property.SEGMENT_SIZE)) out.putInt(Property.SEGMENT_SIZE, segmentSize);
+			if (has(Property.SEGMENTS)) out.putInt(Property.SEGMENTS, segments);
+			if (has(Property.ROOT)) out.putRaw(Property.ROOT, root);
+		}
+	}
+	
+	
+	/** Requests that a file segment be resent. */
+	public static final class RequestAgain extends FileMessage
+	{
+		private int segment;
+		
+		RequestAgain() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 * @param segment
+		 *     The segment number.
+		 */
+		public RequestAgain(int id, String shareName, int segment)
+		{
+			super(id, shareName);
+			setNumber(Property.SEGMENT, segment);
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.RequestAgain;
+		}
+		
+		/**
+		 * Returns the segment number.
+		 *
+		 * @return
+		 *     The segment number.
+		 */
+		public int getSegment()
+		{
+			return segment;
+		}
+		
+		@Override
+		boolean setNumber(int pid, long value)
+		{
+			if (pid != Property.SEGMENT) return super.setNumber(pid, value);
+			segment = (int) value;
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			return (pid == Property.SEGMENT) ? Integer.valueOf(segment) : super.get(pid);
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.SEGMENT)) out.putInt(Property.SEGMENT, segment);
+		}
+	}
+	
+	
+	/** Cancels a file transfer. */
+	public static final class CancelTransfer extends FileMessage
+	{
+		CancelTransfer() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 */
+		public CancelTransfer(int id, String shareName)
+		{
+			super(id, shareName);
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.CancelTransfer;
+		}
+	}
+	
+	
+	/** A chat message. */
+	public static final class ChatMessage extends SessionMessage
+	{
+		private Raw message;
+		
+		ChatMessage() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param message
+		 *     The text of the message.
+		 */
+		public ChatMessage(int id, String message)
+		{
+			super(id);
+			setRaw(Property.MESSAGE, Raw.of(message));
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.ChatMessage;
+		}
+		
+		/**
+		 * Returns the text of the message.
+		 *
+		 * @return
+		 *     The message text.
+		 */
+		public String getMessage()
+		{
+			return (message != null) ? message.getString() : null;
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			if (pid != Property.MESSAGE || !value.isText()) return super.setRaw(pid, value);
+			message = value;
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			return (pid == Property.MESSAGE) ? message : super.get(pid);
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.MESSAGE)) out.putRaw(Property.MESSAGE, message);
+		}
+	}
+	
+	
+	/**
+	 * Acknowledges that a file segment has been received, and says which other
+	 * segments have been.
+	 *
+	 * <p>Besides the number of leading segments that have been received, an
+	 * acknowledgement may list the ranges of segments that have been received
+	 * after the first missing one, such as 12-15, 20 and 22-30. Everything
+	 * between those ranges is missing. At most {@value #MAX_RANGES} ranges
+	 * are sent; nothing is said about the segments after the last one.</p>
+	 *
+	 * <p>The ranges are sent as a byte array of varint pairs: for each range,
+	 * the number of missing segments before it (counting from the end of the
+	 * previous range, or from the received count for the first), followed by
+	 * the number of segments in it.</p>
+	 */
+	public static final class Acknowledge extends FileMessage
+	{
+		/** The largest number of ranges in an acknowledgement. */
+		public static final int MAX_RANGES = 400;
+		
+		/** An empty list of ranges. */
+		private static final int[] NO_RANGES = new int[0];
+		
+		private int segment;
+		private int received;
+		private Raw ranges;
+		private int[] parsed;
+		
+		Acknowledge() {}
+		
+		/**
+		 * Creates a new message.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 * @param segment
+		 *     The segment that has just been received.
+		 * @param received
+		 *     The number of leading segments that have been received; that
+		 *     is, every segment before this one has been received.
+		 */
+		public Acknowledge(int id, String shareName, int segment, int received)
+		{
+			super(id, shareName);
+			setNumber(Property.SEGMENT, segment);
+			setNumber(Property.RECEIVED, received);
+		}
+		
+		/**
+		 * Creates a new message from the segments of a file that have been
+		 * received so far.
+		 *
+		 * @param id
+		 *     The session ID.
+		 * @param shareName
+		 *     The name of the shared file.
+		 * @param segment
+		 *     The segment that has just been received.
+		 * @param got
+		 *     The segments that have been received.
+		 */
+		public Acknowledge(int id, String shareName, int segment, ReceivedSegments got)
+		{
+			super(id, shareName);
+			
+			// Read both under one lock, so the ranges start after the count
+			int[] pairs;
+			int n;
+			synchronized (got) {
+				n = got.getReceived();
+				pairs = got.getRanges(MAX_RANGES);
+			}
+			setNumber(Property.SEGMENT, segment);
+			setNumber(Property.RECEIVED, n);
+			if (pairs.length > 0) {
+				setRaw(Property.RANGES, Raw.of(encodeRanges(pairs, n)));
+				parsed = pairs;
+			}
+		}
+		
+		/** Encodes ranges as varint pairs of gap and length. */
+		private static byte[] encodeRanges(int[] pairs, int from)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(pairs.length * 2);
+			int last = from;
+			for (int i = 0; i < pairs.length; i += 2) {
+				putVarint(out, pairs[i] - last);
+				putVarint(out, pairs[i + 1] - pairs[i]);
+				last = pairs[i + 1];
+			}
+			return out.toByteArray();
+		}
+		
+		/** Writes an unsigned varint. */
+		private static void putVarint(ByteArrayOutputStream out, int n)
+		{
+			while ((n & ~0x7F) != 0) {
+				out.write((n & 0x7F) | 0x80);
+				n >>>= 7;
+			}
+			out.write(n);
+		}
+		
+		@Override
+		public Packet.Type getType()
+		{
+			return Packet.Type.Acknowledge;
+		}
+		
+		/**
+		 * Returns the segment that has just been received.
+		 *
+		 * @return
+		 *     The segment number.
+		 */
+		public int getSegment()
+		{
+			return segment;
+		}
+		
+		/**
+		 * Returns the number of leading segments that have been received.
+		 * Since this is repeated in every acknowledgement, a lost
+		 * acknowledgement is made up for by the next one.
+		 *
+		 * @return
+		 *     The number of segments, starting from segment 0, that have all
+		 *     been received.
+		 */
+		public int getReceived()
+		{
+			return received;
+		}
+		
+		/**
+		 * Returns the ranges of segments that have been received after the
+		 * first missing one.
+		 *
+		 * @return
+		 *     Pairs of segment numbers: the first segment of each range,
+		 *     followed by the segment after its last one. The array is empty
+		 *     if there are no such ranges.
+		 * @throws IllegalArgumentException
+		 *     If the ranges are malformed.
+		 */
+		public int[] getRanges() throws IllegalArgumentException
+		{
+			if (parsed == null) {
+				if (ranges != null && ranges.isText()) ranges = ranges.decodeBase64();
+				parsed = (ranges != null) ? decodeRanges(ranges.buffer(), received) : NO_RANGES;
+			}
+			return parsed.clone();
+		}
+		
+		/** Decodes ranges sent as varint pairs of gap and length. */
+		private static int[] decodeRanges(ByteBuffer b, int from) throws IllegalArgumentException
+		{
+			int[] pairs = new int[16];
+			int n = 0;
+			long last = from;
+			int pos = b.position();
+			int limit = b.limit();
+			
+			while (pos < limit) {
+				if (n >= 2 * MAX_RANGES) throw new IllegalArgumentException("Too many ranges");
+				if (n == pairs.length) pairs = Arrays.copyOf(pairs, 2 * n);
+				
+				long gap = 0;
+				long length = 0;
+				for (int k = 0; k < 2; k++) {
+					long v = 0;
+					int shift = 0;
+					while (true) {
+						if (pos >= limit || shift > 28) throw new IllegalArgumentException("Malformed ranges");
+						int x = b.get(pos++);
+						v |= (long) (x & 0x7F) << shift;
+						if ((x & 0x80) == 0) break;
+						shift += 7;
+					}
+					if (k == 0) gap = v; else length = v;
+				}
+				
+				long start = last + gap;
+				long end = start + length;
+				if (length < 1 || end > Integer.MAX_VALUE) throw new IllegalArgumentException("Malformed ranges");
+				pairs[n++] = (int) start;
+				pairs[n++] = (int) end;
+				last = end;
+			}
+			return (n == pairs.length) ? pairs : Arrays.copyOf(pairs, n);
+		}
+		
+		@Override
+		boolean setNumber(int pid, long value)
+		{
+			switch (pid) {
+			case Property.SEGMENT:  segment = (int) value; break;
+			case Property.RECEIVED: received = (int) value; break;
+			default:                return super.setNumber(pid, value);
+			}
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		Object get(int pid)
+		{
+			switch (pid) {
+			case Property.SEGMENT:  return Integer.valueOf(segment);
+			case Property.RECEIVED: return Integer.valueOf(received);
+			case Property.RANGES:   return ranges;
+			default:                return super.get(pid);
+			}
+		}
+		
+		@Override
+		boolean setRaw(int pid, Raw value)
+		{
+			if (pid != Property.RANGES) return super.setRaw(pid, value);
+			ranges = value;
+			parsed = null;
+			mark(pid);
+			return true;
+		}
+		
+		@Override
+		void write(Sink out)
+		{
+			super.write(out);
+			if (has(Property.SEGMENT)) out.putInt(Property.SEGMENT, segment);
+			if (has(Property.RECEIVED)) out.putInt(Property.RECEIVED, received);
+			if (has(Property.RANGES)) out.putRaw(Property.RANGES, ranges);
+		}
+	}
+}
@@ -23,17 +23,19 @@
 package snodes.net;
 
 import snodes.crypto.Key;
+import snodes.util.Base64;
 
 import org.bouncycastle.crypto.engines.TwofishEngine;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.paddings.BlockCipherPadding;
 import org.bouncycastle.crypto.paddings.PKCS7Padding;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -51,6 +53,16 @@ import java.util.logging.Logger;
  * data for the packet. The exact structure of the dictionary differs depending
  * upon the packet type.</p>
  *
+ * <p>The properties defined by the SFXP specification are held by the
+ * packet's typed {@link Message}, which is the fastest way to read them; the
+ * dictionary methods are kept for convenience, and for properties that the
+ * message does not know about.</p>
+ *
+ * <p>Packets can be sent in either of two {@link Format formats}: the original
+ * text format, SFXP/1.0, or the more compact binary format, SFXP/2.0. The
+ * format is negotiated when a connection is established; incoming packets are
+ * recognized in either format.</p>
+ *
  * <p>This class is loosely modeled after the Cocoa class NSNotification.</p>
  *
  * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
@@ -67,9 +79,20 @@ public class Packet
 	/** The encoding used by the packet. */
 	public static final String ENCODING = "UTF-8";
 	
-	/** The packet's type. */
-	private Type type;
-	/** A dictionary mapping keys to values. */
+	/** The charset for {@link #ENCODING}. */
+	static final Charset CHARSET = Charset.forName(ENCODING);
+	
+	/** Each thread's cipher for decrypting received packets. */
+	private static final ThreadLocal<Decrypter> decrypters = new ThreadLocal<Decrypter>() {
+		@Override
+		protected Decrypter initialValue() {
+			return new Decrypter();
+		}
+	};
+	
+	/** The packet's typed contents. */
+	private final Message message;
+	/** A dictionary mapping keys to values, for properties not in the message. */
 	private Map<String, Object> info;
 	
 	/**
@@ -80,7 +103,18 @@ public class Packet
 	 */
 	Packet(Type type)
 	{
-		this.type = type;
+		this(Message.create(type));
+	}
+	
+	/**
+	 * Creates a new packet that carries the given message.
+	 *
+	 * @param message
+	 *     The message.
+	 */
+	Packet(Message message)
+	{
+		this.message = message;
 		this.info = null;
 	}
 	
@@ -89,7 +123,7 @@ public class Packet
 	 * acts as a decoder for the bytes of an encoded packet.
 	 *
 	 * @param bytes
-	 *     The byte array.
+	 *     The byte array. The array is not modified.
 	 * @param len
 	 *     The length of the data array.
 	 * @param key
@@ -99,9 +133,32 @@ public class Packet
 	 */
 	static Packet fromBytes(byte[] bytes, int len, Key key) throws IllegalArgumentException
 	{
-		byte[] data = decrypt(bytes, len, key);
+		return fromBuffer(ByteBuffer.wrap(Arrays.copyOf(bytes, len)), key);
+	}
+	
+	/**
+	 * Creates a new packet object from the remaining bytes in the buffer. This
+	 * is the same as {@link #fromBytes}, but the packet is decrypted in place
+	 * and parsed straight out of the buffer, so received datagrams are never
+	 * copied into an intermediate array.
+	 *
+	 * <p>The packet's string and byte array values are views of the buffer,
+	 * so the buffer must not be reused while the packet is in use.</p>
+	 *
+	 * @param buf
+	 *     The buffer containing the encrypted packet.
+	 * @param key
+	 *     The key used to decrypt the packet.
+	 * @return
+	 *     The decoded packet.
+	 * @throws IllegalArgumentException
+	 *     If the packet is in an invalid format.
+	 */
+	static Packet fromBuffer(ByteBuffer buf, Key key) throws IllegalArgumentException
+	{
+		decrypt(buf, key);
 		logger.fine("Creating packet with key: " + key);
-		return parse(data, len);
+		return parse(buf);
 	}
 	
 	/**
@@ -111,87 +168,46 @@ public class Packet
 	 *     The unencrypted packet data.
 	 * @param len
 	 *     The length of the packet data.
+	 * @return
+	 *     The parsed packet.
 	 * @throws IllegalArgumentException
 	 *     If the packet is in an invalid format.
 	 */
-	private static Packet parse(byte[] bytes, int len) throws IllegalArgumentException
+	static Packet parse(byte[] bytes, int len) throws IllegalArgumentException
 	{
-		Packet packet = new Packet(null);
-		
-		logger.finest("Parsing " + len + " bytes...");
+		return parse(ByteBuffer.wrap(bytes, 0, len));
+	}
+	
+	/**
+	 * Parses the <em>unencrypted</em> packet data in a buffer. The packet can
+	 * be in either {@link Format format}.
+	 *
+	 * <p>The data is parsed in place. String and byte array values are not
+	 * copied out of the buffer until they are asked for, so the buffer must
+	 * not be modified while the packet is in use.</p>
+	 *
+	 * @param buf
+	 *     The unencrypted packet data. All of the remaining bytes are parsed.
+	 * @return
+	 *     The parsed packet.
+	 * @throws IllegalArgumentException
+	 *     If the packet is in an invalid format.
+	 */
+	static Packet parse(ByteBuffer buf) throws IllegalArgumentException
+	{
+		logger.finest("Parsing " + buf.remaining() + " bytes...");
 		
-		try {
-			String str = new String(bytes, 0, len, ENCODING);
-			BufferedReader in = new BufferedReader(new StringReader(str));
-			String line = null;
-			
-			while ((line = in.readLine()) != null) {
-				if (packet.type == null) { // First line, since packet type not set
-					
-					int firstSpace = line.indexOf(' ');
-					if (firstSpace > -1) {
-						String typeStr = line.substring(0, firstSpace);
-						
-						try {
-							packet.type = Type.valueOf(typeStr);
-						} catch (IllegalArgumentException e) {
-							throw new RuntimeException(e);
-						}
-					} else {
-						// Probably the wrong decryption key was used. But sometimes
-						// just the version part of the line is cut off, so try to
-						// convert to a packet type anyway. This means we ignore
-						// the version. This is a hack but will work for now. - mpd
-						try {
-							logger.info("Attempting to parse packet line again");
-							packet.type = Type.valueOf(line);
-						} catch (IllegalArgumentException e) {
-							throw new IllegalArgumentException(line);
-						}
-					}
-				} else if (!line.trim().equals("")) { // Skip empty lines
-					String prop = null;
-					String value = null;
-					int colon = line.indexOf(':');
-					
-					prop = line.substring(0, colon);
-					value = line.substring(colon+1).trim();
-					
-					if (value.charAt(0) == '\"') { // Strings are quoted
-						value = value.substring(1, value.length()-1);
-						packet.putProperty(prop, new String(value));
-					} else { // If it's not a string, it can only be an int or a long
-						try {
-							int last = value.length()-1;
-							
-							if (value.charAt(last) == 'L') {
-								value = value.substring(0, last);
-								packet.putProperty(prop, Long.valueOf(value));
-							} else {
-								packet.putProperty(prop, Integer.valueOf(value));
-							}
-						} catch (NumberFormatException e) {
-							throw new RuntimeException(e);
-						}
-					}
-				}
-			}
-			
-			return packet;
-		} catch (UnsupportedEncodingException e) {
-			assert false : (ENCODING + " is not a valid encoding.");
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			// Don't want to throw an I/O exception here, because that's
-			// highly unlikely to happen with a StringReader; just throw a
-			// RuntimeException instead.
-			throw new RuntimeException(e);
+		if (buf.hasRemaining() && buf.get(buf.position()) == BinaryCodec.MAGIC) {
+			return BinaryCodec.decode(buf);
+		} else {
+			return TextCodec.decode(buf);
 		}
 	}
 	
 	/**
 	 * Converts the packet into a sequence of bytes that can be transmitted over
-	 * a network connection. The packet is encrypted with the given key.
+	 * a network connection. The packet is encoded in the
+	 * {@link Format#TEXT text} format and encrypted with the given key.
 	 *
 	 * @param key
 	 *     The key used to encrypt the packet.
@@ -201,13 +217,38 @@ public class Packet
 	 *     If key is too short.
 	 */
 	byte[] toByteArray(Key key) throws IllegalArgumentException
+	{
+		return toByteArray(key, Format.TEXT);
+	}
+	
+	/**
+	 * Converts the packet into a sequence of bytes that can be transmitted over
+	 * a network connection. The packet is encoded in the given format and
+	 * encrypted with the given key.
+	 *
+	 * @param key
+	 *     The key used to encrypt the packet.
+	 * @param format
+	 *     The format in which the packet is encoded.
+	 * @return
+	 *     The packet's byte representation.
+	 * @throws IllegalArgumentException
+	 *     If key is too short.
+	 */
+	byte[] toByteArray(Key key, Format format) throws IllegalArgumentException
 	{
 		if (key == null) throw new IllegalArgumentException("null key");
 		
 		try {
-			byte[] raw = toString().getBytes(ENCODING);
+			byte[] raw = null;
 			byte[] encrypted = null;
 			
+			if (format == Format.BINARY) {
+				raw = BinaryCodec.encode(this);
+			} else {
+				raw = toString().getBytes(ENCODING);
+			}
+			
 			encrypted = encrypt(raw, key);
 			
 			if (encrypted.length <= SnodesServer.UDP_MAX) {
@@ -274,44 +315,27 @@ public class Packet
 	}
 	
 	/**
-	 * Decrypts the packet using the given key.
+	 * Decrypts the packet in place using the given key. Nothing is allocated
+	 * unless the calling thread last decrypted a packet with a different key.
 	 *
-	 * @param bytes
-	 *     The packet data.
-	 * @param len
-	 *     The length of the data array.
+	 * @param buf
+	 *     The packet data. All of the remaining bytes are decrypted, and the
+	 *     buffer's position and limit are left where they were.
 	 * @param key
 	 *     The key previously used to encrypt the data.
-	 * @return
-	 *     The decrypted packet data.
+	 * @throws IllegalArgumentException
+	 *     If the data is not a whole number of cipher blocks long.
 	 */
-	private static byte[] decrypt(byte[] bytes, int len, Key key)
+	static void decrypt(ByteBuffer buf, Key key) throws IllegalArgumentException
 	{
-		logger.finest("Initial decrypt size: " + len + " bytes");
-		
-		KeyParameter fishkey = new KeyParameter(key.toByteArray());
-		TwofishEngine twofish = new TwofishEngine();
-		byte[] decrypted = new byte[len];
-		int blocksize = twofish.getBlockSize();
-		int blocks = (int) Math.ceil((double) len / (double) blocksize);
-		
-		assert len % blocksize == 0 : "len is not a multiple of blocksize";
-		twofish.init(false, fishkey); // false = decrypt
-		
-		//logger.finest("Decrypting " + len + " bytes (" + blocks + " blocks)");
-		for (int i = 0; i < blocks; i++) {
-			byte[] block = new byte[blocksize];
-			int offset = i * blocksize;
-			twofish.processBlock(bytes, offset, block, 0);
-			
-			System.arraycopy(block, 0, decrypted, offset, blocksize);
-		}
-		
-		return decrypted;
+		logger.finest("Initial decrypt size: " + buf.remaining() + " bytes");
+		decrypters.get().decrypt(buf, key);
 	}
 	
 	/**
-	 * Returns a string representation of the packet.
+	 * Returns a string representation of the packet. This is the packet's
+	 * {@link Format#TEXT text} encoding; byte array values are written as
+	 * quoted Base64 strings.
 	 *
 	 * @return
 	 *     The string representation of the packet.
@@ -319,9 +343,21 @@ public class Packet
 	@Override
 	public String toString()
 	{
-		StringBuilder buf = new StringBuilder();
+		final StringBuilder buf = new StringBuilder();
+		
+		buf.append(getType()).append(" ").append(VERSION).append("\n");
 		
-		buf.append(type).append(" ").append(VERSION).append("\n");
+		message.write(new Message.Sink() {
+			public void putInt(int id, int value) {
+				buf.append(Property.name(id)).append(": ").append(value).append("\n");
+			}
+			public void putLong(int id, long value) {
+				buf.append(Property.name(id)).append(": ").append(value).append("L\n");
+			}
+			public void putRaw(int id, Raw value) {
+				buf.append(Property.name(id)).append(": \"").append(value).append("\"\n");
+			}
+		});
 		
 		if (info != null) {
 			Iterator<String> keyIter = info.keySet().iterator();
@@ -332,7 +368,7 @@ public class Packet
 				
 				buf.append(key).append(": ");
 				if (value != null) {
-					if (value instanceof String) { // Strings get quoted
+					if (value instanceof Raw) { // Strings and bytes get quoted
 						buf.append("\"").append(value).append("\"");
 					} else {
 						buf.append(value);
@@ -356,11 +392,25 @@ public class Packet
 	 */
 	public Type getType()
 	{
-		return type;
+		return message.getType();
+	}
+	
+	/**
+	 * Returns the packet's typed contents. The message's class depends on the
+	 * packet's type; for example, TransferFile packets carry a
+	 * {@link Message.TransferFile}.
+	 *
+	 * @return
+	 *     The packet's message.
+	 */
+	public Message getMessage()
+	{
+		return message;
 	}
 	
 	/**
-	 * Adds an attribute to the packet.
+	 * Adds an attribute to the packet. Attributes defined by the packet's
+	 * {@link #getMessage message} are stored in the message.
 	 *
 	 * @param key
 	 *   The name of the attribute.
@@ -380,17 +430,25 @@ public class Packet
 			throw new IllegalArgumentException("'value' may not be null");
 		}
 		
-		if (info == null) {
-			info = new HashMap<String,Object>();
+		if (!message.set(Property.id(key), value)) {
+			if (value instanceof String) {
+				value = Raw.of((String) value);
+			} else if (value instanceof byte[]) {
+				value = Raw.of((byte[]) value);
+			}
+			putExtraProperty(key, value);
 		}
-		
-		info.put(key, value);
 		return this;
 	}
 	
 	/**
 	 * Returns the specified property from the packet.
 	 *
+	 * <p>String and byte array values of received packets are decoded the
+	 * first time they are asked for. Use {@link #getBuffer} to read them
+	 * without decoding them at all, or better yet, use the getters of the
+	 * packet's {@link #getMessage message}.</p>
+	 *
 	 * @param key
 	 *     The property.
 	 * @return
@@ -398,8 +456,85 @@ public class Packet
 	 *     property is not defined.
 	 */
 	public Object getProperty(String key)
+	{
+		Object value = getRawProperty(key);
+		return (value instanceof Raw) ? ((Raw) value).get() : value;
+	}
+	
+	/**
+	 * Returns the bytes of a string or byte array property without copying
+	 * them. For strings, these are the string's UTF-8 bytes; for example, a
+	 * Base64 Data property can be handed straight to
+	 * {@link Base64#decode(byte[], int, int, int)}.
+	 *
+	 * @param key
+	 *     The property.
+	 * @return
+	 *     A read-only buffer of the property's bytes, or null if the property
+	 *     is not defined or is not a string or byte array.
+	 */
+	public ByteBuffer getBuffer(String key)
+	{
+		Object value = getRawProperty(key);
+		return (value instanceof Raw) ? ((Raw) value).buffer() : null;
+	}
+	
+	/**
+	 * Adds an attribute that is not part of the packet's message.
+	 *
+	 * @param key
+	 *     The name of the attribute.
+	 * @param value
+	 *     An Integer, a Long, or a {@link Raw} string or byte array.
+	 */
+	void putExtraProperty(String key, Object value)
+	{
+		if (info == null) {
+			info = new HashMap<String,Object>();
+		}
+		
+		info.put(key, value);
+	}
+	
+	/**
+	 * Returns the attributes that are not part of the packet's message.
+	 *
+	 * @return
+	 *     An unmodifiable map of the extra attributes.
+	 */
+	Map<String, Object> getExtraProperties()
 	{
 		if (info != null) {
+			return Collections.unmodifiableMap(info);
+		} else {
+			return Collections.emptyMap();
+		}
+	}
+	
+	/**
+	 * Copies every string and byte array value out of the buffer from which
+	 * the packet was {@link #parse(ByteBuffer) parsed}, so that the buffer
+	 * can be reused while the packet is still in use.
+	 */
+	void detach()
+	{
+		message.detach();
+		
+		if (info != null) {
+			for (Map.Entry<String, Object> entry : info.entrySet()) {
+				if (entry.getValue() instanceof Raw) entry.setValue(((Raw) entry.getValue()).detach());
+			}
+		}
+	}
+	
+	/** Returns a property without decoding {@link Raw} values. */
+	private Object getRawProperty(String key)
+	{
+		int id = Property.id(key);
+		
+		if (id != Property.NONE && message.has(id)) {
+			return message.get(id);
+		} else if (info != null) {
 			return info.get(key);
 		} else {
 			return null;
@@ -435,6 +570,162 @@ public class Packet
 		CancelTransfer,
 		/** A simple chat packet. */
 		//TODO - implement chat after nodes are properly connected.
-		ChatMessage
+		ChatMessage,
+		/** Acknowledges that a file segment has been received. */
+		Acknowledge
+	}
+	
+	
+	/**
+	 * The wire formats in which a packet can be encoded.
+	 *
+	 * <p>Every node understands the text format. Connect and AcceptConnection
+	 * packets are always sent as text, and advertise the formats that the
+	 * sender understands in their "Formats" property; once both sides have
+	 * seen each other's formats, the rest of the session is encoded in the
+	 * best format that both of them understand.</p>
+	 */
+	public enum Format
+	{
+		/** The original, human-readable format. */
+		TEXT("SFXP/1.0"),
+		/** The compact binary format. See {@link BinaryCodec}. */
+		BINARY("SFXP/2.0");
+		
+		/** The protocol version that identifies the format. */
+		private final String version;
+		
+		private Format(String version)
+		{
+			this.version = version;
+		}
+		
+		/**
+		 * Returns the protocol version that identifies the format.
+		 *
+		 * @return
+		 *     The format's version, such as "SFXP/2.0".
+		 */
+		public String getVersion()
+		{
+			return version;
+		}
+		
+		/**
+		 * Returns the versions of every format that this node understands,
+		 * separated by spaces. This is the value of the "Formats" property.
+		 *
+		 * @return
+		 *     The supported versions.
+		 */
+		static String supported()
+		{
+			StringBuilder buf = new StringBuilder();
+			for (Format format : values()) {
+				if (buf.length() > 0) buf.append(' ');
+				buf.append(format.version);
+			}
+			return buf.toString();
+		}
+		
+		/**
+		 * Chooses the best format understood by both this node and a peer.
+		 *
+		 * @param formats
+		 *     The value of the peer's "Formats" property, or null if the peer
+		 *     did not send one.
+		 * @return
+		 *     The best common format. Peers that do not list their formats
+		 *     only understand {@link #TEXT}.
+		 */
+		static Format negotiate(String formats)
+		{
+			Format best = TEXT;
+			
+			if (formats != null) {
+				for (String version : formats.trim().split("\\s+")) {
+					for (Format format : values()) {
+						if (format.version.equals(version) && format.compareTo(best) > 0) {
+							best = format;
+						}
+					}
+				}
+			}
+			
+			return best;
+		}
+	}
+	
+	
+	/**
+	 * A Twofish engine that decrypts packets in place. Expanding a key is
+	 * expensive, so each thread keeps its engine set up for the last key it
+	 * used; keys are immutable, and each connection keeps the same key
+	 * objects, so an identity check is enough to tell whether the key changed.
+	 */
+	private static final class Decrypter
+	{
+		/** The engine. */
+		private final TwofishEngine twofish;
+		/** The block being decrypted. */
+		private final byte[] block;
+		/** The key with which the engine was last initialized. */
+		private Key key;
+		
+		private Decrypter()
+		{
+			this.twofish = new TwofishEngine();
+			this.block = new byte[twofish.getBlockSize()];
+			this.key = null;
+		}
+		
+		/**
+		 * Decrypts the remaining bytes of a buffer in place.
+		 *
+		 * @param buf
+		 *     The buffer.
+		 * @param k
+		 *     The key.
+		 * @throws IllegalArgumentException
+		 *     If the buffer is not a whole number of blocks long.
+		 */
+		void decrypt(ByteBuffer buf, Key k) throws IllegalArgumentException
+		{
+			if (key != k) {
+				key = null; // In case the key is rejected
+				twofish.init(false, new KeyParameter(k.toByteArray())); // false = decrypt
+				key = k;
+			}
+			
+			int start = buf.position();
+			int end = buf.limit();
+			int blocksize = block.length;
+			
+			if ((end - start) % blocksize != 0) {
+				throw new IllegalArgumentException("Packet is not a whole number of blocks: " + (end - start) + " bytes");
+			}
+			
+			try {
+				if (buf.hasArray()) {
+					// Twofish reads a whole block before writing it, so the
+					// blocks can be decrypted in place.
+					byte[] bytes = buf.array();
+					int base = buf.arrayOffset();
+					for (int offset = start; offset + blocksize <= end; offset += blocksize) {
+						twofish.processBlock(bytes, base + offset, bytes, base + offset);
+					}
+				} else {
+					for (int offset = start; offset + blocksize <= end; offset += blocksize) {
+						buf.position(offset);
+						buf.get(block);
+						twofish.processBlock(block, 0, block, 0);
+						buf.position(offset);
+						buf.put(block);
+					}
+				}
+			} finally {
+				buf.position(start);
+			}
+		}
 	}
 }
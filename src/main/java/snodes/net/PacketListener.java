@@ -47,6 +47,11 @@ public interface PacketListener
 	/**
 	 * Handles an incoming packet.
 	 *
+	 * <p>A received packet's string and byte array values are views of the
+	 * buffer into which its datagram was received, and that buffer is reused
+	 * as soon as the listeners return. Listeners that hold on to a packet, or
+	 * to the buffers it hands out, must copy what they need first.</p>
+	 *
 	 * @param conn
 	 *     The connection on which the packet event occurred.
 	 * @param packet
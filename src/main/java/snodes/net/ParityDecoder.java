@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Rebuilds lost segments of a file from parity segments.
+ *
+ * <p>When a transfer {@link FileTransfer#setParity sends parity}, the file's
+ * segments are split into groups of <var>k</var>, and after the last segment
+ * of each group the sender sends the exclusive or of the whole group. If any
+ * one segment of the group is lost, it is the exclusive or of the parity and
+ * the others, and can be rebuilt without being requested again. Every data
+ * segment says how large the groups are, and every parity segment how many
+ * segments it covers, which is <var>k</var> except perhaps for the last
+ * group.</p>
+ *
+ * <p>Give every valid segment that arrives, data or parity, to {@link #add};
+ * once all but one of a group's segments and its parity have been added, the
+ * missing segment is returned. Only {@value #MAX_GROUPS} groups are tracked
+ * at once; if more are in progress, the oldest is forgotten.</p>
+ *
+ * <p>A rebuilt segment is only as good as the segments it was rebuilt from,
+ * and cannot be checked against a hash tree, since no proof comes with it.
+ * Downloads that check segments against a hash tree should ignore
+ * parity.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see Message.TransferFile#isParity
+ */
+@ThreadSafe
+public final class ParityDecoder
+{
+	/** The most groups that are tracked at once. */
+	static final int MAX_GROUPS = 64;
+	
+	/** The number of segments in each group, or 0 until it is known. */
+	@GuardedBy("this")
+	private int k;
+	/** The groups in progress, least recently used first. */
+	@GuardedBy("this")
+	private final Map<Integer, Group> groups;
+	/** The groups that are complete, or were rebuilt. */
+	@GuardedBy("this")
+	private final BitSet closed;
+	/** The number of segments rebuilt. */
+	@GuardedBy("this")
+	private long recovered;
+	
+	/** Creates a new decoder. */
+	public ParityDecoder()
+	{
+		this.k = 0;
+		this.groups = new LinkedHashMap<Integer, Group>(16, 0.75f, true);
+		this.closed = new BitSet();
+		this.recovered = 0L;
+	}
+	
+	/**
+	 * Adds a segment that has arrived.
+	 *
+	 * @param msg
+	 *     The message that carried the segment, which must already have
+	 *     been checked.
+	 * @param data
+	 *     The segment's original bytes, as returned by
+	 *     {@link FileTransfer#getSegmentData}. The buffer's position is not
+	 *     changed.
+	 * @return
+	 *     A segment of the same group that was missing and has now been
+	 *     rebuilt, or null.
+	 */
+	public synchronized Segment add(Message.TransferFile msg, ByteBuffer data)
+	{
+		int n = msg.getParity();
+		if (n <= 0 || n > ParityEncoder.MAX_GROUP) return null;
+		
+		if (!msg.isParity()) {
+			if (n < ParityEncoder.MIN_GROUP) return null;
+			if (k == 0) k = n;
+			if (n != k) return null;
+		}
+		if (k == 0) return null;
+		
+		int g = msg.isParity() ? -1 - msg.getSegment() : msg.getSegment() / k;
+		if (closed.get(g)) return null;
+		
+		Integer key = Integer.valueOf(g);
+		Group group = groups.get(key);
+		if (group == null) {
+			group = new Group();
+			groups.put(key, group);
+			if (groups.size() > MAX_GROUPS) {
+				Iterator<Integer> iter = groups.keySet().iterator();
+				iter.next();
+				iter.remove();
+			}
+		}
+		
+		if (msg.isParity()) {
+			if (group.members > 0 || n > k) return null;
+			group.members = n;
+			group.length = data.remaining();
+			group.totalSize = msg.getTotalSize();
+		} else {
+			long bit = 1L << (msg.getSegment() % k);
+			if ((group.received & bit) != 0) return null;
+			group.received |= bit;
+		}
+		group.fold(data);
+		
+		int have = Long.bitCount(group.received);
+		if (group.members == 0) {
+			if (have >= k) close(key);
+			return null;
+		}
+		if (have >= group.members) {
+			close(key);
+			return null;
+		}
+		if (have < group.members - 1) return null;
+		
+		int missing = Long.numberOfTrailingZeros(~group.received);
+		int seg = g * k + missing;
+		int length = group.length;
+		if (group.members > 1) {
+			length = (int) Math.max(0L, Math.min(length, group.totalSize - (long) seg * group.length));
+		}
+		
+		close(key);
+		recovered++;
+		return new Segment(seg, ByteBuffer.wrap(Arrays.copyOf(group.xor, length)));
+	}
+	
+	/**
+	 * Returns the number of segments that have been rebuilt.
+	 *
+	 * @return
+	 *     The number of segments rebuilt from parity.
+	 */
+	public synchronized long getRecovered()
+	{
+		return recovered;
+	}
+	
+	/** Forgets a group that is finished. */
+	@GuardedBy("this")
+	private void close(Integer g)
+	{
+		groups.remove(g);
+		closed.set(g.intValue());
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return new String("ParityDecoder[k=" + k + ", groups=" + groups.size() + ", recovered=" + recovered + "]");
+	}
+	
+	
+	/** A segment that was rebuilt. */
+	public static final class Segment
+	{
+		private final int segment;
+		private final ByteBuffer data;
+		
+		private Segment(int segment, ByteBuffer data)
+		{
+			this.segment = segment;
+			this.data = data;
+		}
+		
+		/**
+		 * Returns the segment number.
+		 *
+		 * @return
+		 *     The segment number.
+		 */
+		public int getSegment()
+		{
+			return segment;
+		}
+		
+		/**
+		 * Returns the segment's bytes.
+		 *
+		 * @return
+		 *     A buffer of the segment's bytes.
+		 */
+		public ByteBuffer getData()
+		{
+			return data.duplicate();
+		}
+	}
+	
+	
+	/** A group that is being received. */
+	private static final class Group
+	{
+		/** The group's data segments that have arrived. */
+		private long received;
+		/** The number of segments in the group, or 0 until its parity arrives. */
+		private int members;
+		/** The length of the parity, which is that of the group's longest segment. */
+		private int length;
+		/** The size of the whole file. */
+		private long totalSize;
+		/** The exclusive or of everything that has arrived. */
+		private byte[] xor;
+		
+		private Group()
+		{
+			this.received = 0L;
+			this.members = 0;
+			this.length = 0;
+			this.totalSize = 0L;
+			this.xor = new byte[0];
+		}
+		
+		/** Folds a segment into the group. */
+		private void fold(ByteBuffer data)
+		{
+			ByteBuffer buf = data.duplicate();
+			int n = buf.remaining();
+			
+			if (n > xor.length) xor = Arrays.copyOf(xor, n);
+			for (int i = 0; i < n; i++) {
+				xor[i] ^= buf.get();
+			}
+		}
+	}
+}
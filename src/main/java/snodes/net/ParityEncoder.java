@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Builds parity segments for a file as its segments are sent.
+ *
+ * <p>The file's segments are split into groups of <var>k</var>: segments 0
+ * to <var>k</var> - 1 form group 0, and so on. As each segment is sent for
+ * the first time, it is folded into its group's parity with exclusive or.
+ * Once every segment in a group has been sent, the parity is complete and is
+ * handed back to be sent as well. Segments that are sent again are not
+ * folded in twice.</p>
+ *
+ * <p>Only {@value #MAX_GROUPS} groups are built at once. If segments are sent
+ * so far out of order that more are open, the oldest is abandoned, and that
+ * group gets no parity.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see ParityDecoder
+ */
+@ThreadSafe
+final class ParityEncoder
+{
+	/** The smallest group. */
+	static final int MIN_GROUP = 2;
+	/** The largest group. */
+	static final int MAX_GROUP = 64;
+	/** The most groups that may be open at once. */
+	static final int MAX_GROUPS = 64;
+	
+	/** The number of segments in each group. */
+	private final int k;
+	/** The open groups, oldest first. */
+	@GuardedBy("this")
+	private final Map<Integer, Group> groups;
+	/**
+	 * The largest segment seen, which is the file's segment size unless only
+	 * the last segment has been seen.
+	 */
+	@GuardedBy("this")
+	private int segmentSize;
+	/** The groups that have been completed or abandoned. */
+	@GuardedBy("this")
+	private final BitSet closed;
+	
+	/**
+	 * Creates a new encoder.
+	 *
+	 * @param k
+	 *     The number of segments in each group.
+	 */
+	ParityEncoder(int k)
+	{
+		if (k < MIN_GROUP || k > MAX_GROUP) throw new IllegalArgumentException("Bad parity group: " + k);
+		
+		this.k = k;
+		this.groups = new LinkedHashMap<Integer, Group>();
+		this.segmentSize = 0;
+		this.closed = new BitSet();
+	}
+	
+	/**
+	 * Returns the number of segments in each group.
+	 *
+	 * @return
+	 *     The group size.
+	 */
+	int getGroupSize()
+	{
+		return k;
+	}
+	
+	/**
+	 * Folds a segment that has just been sent into its group's parity.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @param bytes
+	 *     The segment's bytes.
+	 * @param size
+	 *     The size of the whole file, in bytes.
+	 * @return
+	 *     The group's parity segment, if the segment completed the group, or
+	 *     null.
+	 */
+	Parity add(int seg, byte[] bytes, long size)
+	{
+		return add(seg, ByteBuffer.wrap(bytes), size);
+	}
+	
+	/**
+	 * Folds a segment that has just been sent into its group's parity.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @param data
+	 *     The segment's bytes. The buffer's position is not changed.
+	 * @param size
+	 *     The size of the whole file, in bytes.
+	 * @return
+	 *     The group's parity segment, if the segment completed the group, or
+	 *     null.
+	 */
+	synchronized Parity add(int seg, ByteBuffer data, long size)
+	{
+		if (seg < 0) return null;
+		
+		segmentSize = Math.max(segmentSize, data.remaining());
+		
+		Integer g = Integer.valueOf(seg / k);
+		Group group = groups.get(g);
+		
+		if (group == null) {
+			// Groups that were completed or abandoned stay that way
+			if (closed.get(g.intValue())) return null;
+			
+			group = new Group(segmentSize);
+			groups.put(g, group);
+			if (groups.size() > MAX_GROUPS) {
+				Iterator<Integer> iter = groups.keySet().iterator();
+				closed.set(iter.next().intValue());
+				iter.remove();
+			}
+		}
+		
+		int bit = seg % k;
+		if ((group.sent & (1L << bit)) != 0) return null;
+		group.sent |= 1L << bit;
+		group.fold(data);
+		
+		long segments = (size + segmentSize - 1) / segmentSize;
+		int members = (int) Math.min(k, segments - (long) g.intValue() * k);
+		if (Long.bitCount(group.sent) < members) return null;
+		
+		groups.remove(g);
+		closed.set(g.intValue());
+		return new Parity(g.intValue(), members, group.xor, group.length);
+	}
+	
+	
+	/** A completed parity segment. */
+	static final class Parity
+	{
+		/** The group number. */
+		final int group;
+		/** The number of segments in the group. */
+		final int members;
+		/** The exclusive or of the group's segments. */
+		final byte[] bytes;
+		
+		private Parity(int group, int members, byte[] xor, int length)
+		{
+			this.group = group;
+			this.members = members;
+			this.bytes = (length == xor.length) ? xor : Arrays.copyOf(xor, length);
+		}
+	}
+	
+	
+	/** A group whose parity is being built. */
+	private static final class Group
+	{
+		/** The segments in the group that have been folded in. */
+		private long sent;
+		/** The exclusive or of those segments. */
+		private byte[] xor;
+		/** The length of the longest of those segments. */
+		private int length;
+		
+		private Group(int size)
+		{
+			this.sent = 0L;
+			this.xor = new byte[size];
+			this.length = 0;
+		}
+		
+		/** Folds a segment into the parity. */
+		private void fold(ByteBuffer data)
+		{
+			int n = data.remaining();
+			int base = data.position();
+			
+			if (n > xor.length) xor = Arrays.copyOf(xor, n);
+			for (int i = 0; i < n; i++) {
+				xor[i] ^= data.get(base + i);
+			}
+			length = Math.max(length, n);
+		}
+	}
+}
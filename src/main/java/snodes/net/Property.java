@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The well-known packet properties.
+ *
+ * <p>Each property has a small ID number, which is how it is identified in
+ * binary packets and in {@link Message} objects. <em>The IDs are part of the
+ * protocol</em>, so new properties must be added to the end of the list.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+final class Property
+{
+	/** Reserved for properties that are not well-known. */
+	static final int NONE = 0;
+	/** The session ID. */
+	static final int ID = 1;
+	/** The connection passkey. */
+	static final int PASSKEY = 2;
+	/** The Base64 session key. */
+	static final int ENCRYPT_KEY = 3;
+	/** The name of a shared file. */
+	static final int SHARE_NAME = 4;
+	/** The size of a file. */
+	static final int TOTAL_SIZE = 5;
+	/** The size of a file segment. */
+	static final int SEGMENT_SIZE = 6;
+	/** The number of a file segment. */
+	static final int SEGMENT = 7;
+	/** The number of segments in a file. */
+	static final int SEGMENTS = 8;
+	/** The checksum of a file segment. */
+	static final int HASH = 9;
+	/** The contents of a file segment. */
+	static final int DATA = 10;
+	/** A chat message. */
+	static final int MESSAGE = 11;
+	/** The packet formats understood by a node. */
+	static final int FORMATS = 12;
+	/** A packet format. */
+	static final int FORMAT = 13;
+	/** The segment compression methods understood by a node. */
+	static final int COMPRESSION = 14;
+	/** The compression method applied to a segment's data. */
+	static final int ENCODING = 15;
+	/** The number of leading segments of a file that have been received. */
+	static final int RECEIVED = 16;
+	/** The ranges of segments of a file that have been received. */
+	static final int RANGES = 17;
+	/** The index of a fragment of a segment. */
+	static final int FRAGMENT = 18;
+	/** The number of fragments into which a segment was split. */
+	static final int FRAGMENTS = 19;
+	/** The length of a segment's data, as sent, before it was split. */
+	static final int LENGTH = 20;
+	/** The root of a file's hash tree. */
+	static final int ROOT = 21;
+	/** The hashes that link a segment to its file's hash tree root. */
+	static final int PROOF = 22;
+	/** The number of segments covered by each parity segment. */
+	static final int PARITY = 23;
+	/** The optional protocol features understood by a node. */
+	static final int FEATURES = 24;
+	
+	/** The property names, indexed by ID. */
+	private static final String[] NAMES = {
+		null,
+		"Id",
+		"Passkey",
+		"EncryptKey",
+		"ShareName",
+		"TotalSize",
+		"SegmentSize",
+		"Segment",
+		"Segments",
+		"Hash",
+		"Data",
+		"Message",
+		"Formats",
+		"Format",
+		"Compression",
+		"Encoding",
+		"Received",
+		"Ranges",
+		"Fragment",
+		"Fragments",
+		"Length",
+		"Root",
+		"Proof",
+		"Parity",
+		"Features"
+	};
+	
+	/** Maps property names to their IDs. */
+	private static final Map<String, Integer> IDS;
+	
+	static {
+		IDS = new HashMap<String, Integer>();
+		for (int i = 1; i < NAMES.length; i++) {
+			IDS.put(NAMES[i], Integer.valueOf(i));
+		}
+	}
+	
+	// Don't create instances of this class
+	private Property() {}
+	
+	/**
+	 * Returns the name of a property.
+	 *
+	 * @param id
+	 *     The property's ID.
+	 * @return
+	 *     The property's name, or null if the ID is unknown.
+	 */
+	static String name(int id)
+	{
+		return (id > NONE && id < NAMES.length) ? NAMES[id] : null;
+	}
+	
+	/**
+	 * Returns the ID of a property.
+	 *
+	 * @param name
+	 *     The property's name.
+	 * @return
+	 *     The property's ID, or {@link #NONE} if it is not well-known.
+	 */
+	static int id(String name)
+	{
+		Integer id = IDS.get(name);
+		return (id != null) ? id.intValue() : NONE;
+	}
+	
+	/**
+	 * Returns the ID of a property whose name is given as ASCII bytes.
+	 *
+	 * @param bytes
+	 *     The bytes. Only absolute gets are used, so the buffer's position
+	 *     does not matter.
+	 * @param start
+	 *     The index of the first byte of the name.
+	 * @param end
+	 *     The index after the last byte of the name.
+	 * @return
+	 *     The property's ID, or {@link #NONE} if it is not well-known.
+	 */
+	static int id(ByteBuffer bytes, int start, int end)
+	{
+		for (int i = 1; i < NAMES.length; i++) {
+			if (matches(bytes, start, end, NAMES[i])) return i;
+		}
+		return NONE;
+	}
+	
+	/**
+	 * Returns true if the given bytes are the ASCII characters of s.
+	 *
+	 * @param bytes
+	 *     The bytes.
+	 * @param start
+	 *     The index of the first byte.
+	 * @param end
+	 *     The index after the last byte.
+	 * @param s
+	 *     The string.
+	 * @return
+	 *     true if the bytes match the string.
+	 */
+	static boolean matches(ByteBuffer bytes, int start, int end, String s)
+	{
+		if (end - start != s.length()) return false;
+		
+		for (int i = start; i < end; i++) {
+			if (bytes.get(i) != s.charAt(i - start)) return false;
+		}
+		return true;
+	}
+}
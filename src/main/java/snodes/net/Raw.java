@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package snodes.net;
+
+import snodes.util.Base64;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A string or byte array property value, kept as bytes.
+ *
+ * <p>Values of received packets are views of the packet's own bytes; they are
+ * only decoded (or copied) the first time they are asked for. Values created
+ * locally keep whatever form they were created in, and are only encoded when
+ * the packet is sent.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+final class Raw
+{
+	/** The value's bytes, or null if they have not been encoded yet. */
+	private volatile ByteBuffer bytes;
+	/** True for strings, false for byte arrays. */
+	private final boolean text;
+	/** The decoded value, or null if it has not been asked for yet. */
+	private volatile Object value;
+	
+	/**
+	 * Creates a view of part of a buffer, which may be a direct buffer. The
+	 * bytes are not copied, and the buffer's position is not changed.
+	 *
+	 * @param bytes
+	 *     The bytes.
+	 * @param offset
+	 *     The absolute index of the value in the buffer.
+	 * @param length
+	 *     The length of the value.
+	 * @param text
+	 *     True if the value is a UTF-8 string, false if it is a byte array.
+	 */
+	Raw(ByteBuffer bytes, int offset, int length, boolean text)
+	{
+		this(view(bytes, offset, length), text, null);
+	}
+	
+	/** Returns a slice of part of a buffer, leaving the buffer itself alone. */
+	private static ByteBuffer view(ByteBuffer bytes, int offset, int length)
+	{
+		ByteBuffer b = bytes.duplicate();
+		b.limit(offset + length);
+		b.position(offset);
+		return b.slice();
+	}
+	
+	private Raw(ByteBuffer bytes, boolean text, Object value)
+	{
+		this.bytes = bytes;
+		this.text = text;
+		this.value = value;
+	}
+	
+	/**
+	 * Creates a string value.
+	 *
+	 * @param s
+	 *     The string.
+	 * @return
+	 *     The value.
+	 */
+	static Raw of(String s)
+	{
+		return new Raw(null, true, s);
+	}
+	
+	/**
+	 * Creates a byte array value. The array is not copied.
+	 *
+	 * @param b
+	 *     The bytes.
+	 * @return
+	 *     The value.
+	 */
+	static Raw of(byte[] b)
+	{
+		return new Raw(ByteBuffer.wrap(b), false, b);
+	}
+	
+	/**
+	 * Creates a byte array value from the remaining bytes in a buffer. The
+	 * bytes are not copied, and the buffer's position is not changed.
+	 *
+	 * @param b
+	 *     The bytes.
+	 * @return
+	 *     The value.
+	 */
+	static Raw of(ByteBuffer b)
+	{
+		return new Raw(b.slice(), false, null);
+	}
+	
+	/**
+	 * Returns a copy of the value that no longer refers to the bytes it was
+	 * parsed from, so that they can be reused.
+	 *
+	 * @return
+	 *     A value with its own copy of the bytes.
+	 */
+	Raw detach()
+	{
+		ByteBuffer b = bytes;
+		if (b == null) return this; // Created from a string
+		
+		ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+		copy.put(b.duplicate());
+		copy.flip();
+		return new Raw(copy, text, value);
+	}
+	
+	/**
+	 * Returns the value, decoding it if necessary.
+	 *
+	 * @return
+	 *     A String or a byte array.
+	 */
+	Object get()
+	{
+		Object v = value;
+		if (v == null) {
+			ByteBuffer b = bytes.duplicate();
+			if (text) {
+				if (b.hasArray()) {
+					v = new String(b.array(), b.arrayOffset() + b.position(), b.remaining(), Packet.CHARSET);
+				} else {
+					v = Packet.CHARSET.decode(b).toString();
+				}
+			} else {
+				byte[] copy = new byte[b.remaining()];
+				b.get(copy);
+				v = copy;
+			}
+			value = v;
+		}
+		return v;
+	}
+	
+	/**
+	 * Returns the value as a string.
+	 *
+	 * @return
+	 *     The string, or null if the value is a byte array.
+	 */
+	String getString()
+	{
+		return text ? (String) get() : null;
+	}
+	
+	/**
+	 * Returns a view of the value's bytes. For strings, these are the
+	 * string's UTF-8 bytes.
+	 *
+	 * @return
+	 *     A read-only buffer of the value's bytes.
+	 */
+	ByteBuffer buffer()
+	{
+		ByteBuffer b = bytes;
+		if (b == null) { // Created from a string
+			b = ByteBuffer.wrap(((String) value).getBytes(Packet.CHARSET));
+			bytes = b;
+		}
+		return b.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Returns true if the value is a string.
+	 *
+	 * @return
+	 *     True for strings, false for byte arrays.
+	 */
+	boolean isText()
+	{
+		return text;
+	}
+	
+	/**
+	 * Decodes a Base64 string value. This is how byte arrays are sent in text
+	 * packets.
+	 *
+	 * @return
+	 *     The decoded byte array value, or this value if it is not a string.
+	 * @throws IllegalArgumentException
+	 *     If the string is not valid Base64.
+	 */
+	Raw decodeBase64() throws IllegalArgumentException
+	{
+		if (!text) return this;
+		
+		buffer(); // Make sure the string has been encoded
+		ByteBuffer b = bytes.duplicate();
+		byte[] src = null;
+		int off = 0;
+		
+		if (b.hasArray()) {
+			src = b.array();
+			off = b.arrayOffset() + b.position();
+		} else {
+			src = new byte[b.remaining()];
+			b.duplicate().get(src);
+		}
+		
+		byte[] decoded = Base64.decode(src, off, b.remaining(), Base64.NO_OPTIONS);
+		if (decoded == null) throw new IllegalArgumentException("Invalid Base64 value");
+		return of(decoded);
+	}
+	
+	/**
+	 * Returns the value as a string. Byte arrays are Base64 encoded.
+	 *
+	 * @return
+	 *     A string representation of the value.
+	 */
+	@Override
+	public String toString()
+	{
+		if (text) {
+			return (String) get();
+		} else {
+			ByteBuffer b = buffer();
+			byte[] bytes = new byte[b.remaining()];
+			b.get(bytes);
+			return Base64.encodeBytes(bytes, Base64.DONT_BREAK_LINES);
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Puts fragmented file segments back together.
+ *
+ * <p>Each partly received segment is copied into a buffer of its own as its
+ * fragments arrive, in whatever order they come. Once every fragment is
+ * there, the whole segment is handed back, and its buffer is
+ * {@link #release released} into a pool once the segment has been processed,
+ * so busy transfers reuse the same few buffers instead of allocating new ones
+ * for every segment.</p>
+ *
+ * <p>The buffers, pooled and in use, never take up more than
+ * {@value #MAX_BYTES} bytes between them. A segment whose fragments have not
+ * all arrived within {@link #STALE_TIMEOUT} of the last one is dropped, since
+ * its sender will have to send it again anyway; when room is needed for a new
+ * segment, pooled buffers are freed first, then the least recently touched
+ * segments are dropped.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class Reassembler
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The most memory that the buffers may take up, in bytes. */
+	static final int MAX_BYTES = 32 * 1024 * 1024;
+	/** The longest segment that will be reassembled, in bytes. */
+	static final int MAX_LENGTH = 4 * 1024 * 1024;
+	/** The smallest buffer that is allocated, in bytes. */
+	static final int MIN_BUFFER = 4096;
+	/** How long a partly received segment is kept after its last fragment, in nanoseconds. */
+	static final long STALE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+	
+	/** The partly received segments, least recently touched first. */
+	@GuardedBy("this")
+	private final LinkedHashMap<Key, Partial> partials;
+	/** Free buffers, by capacity. */
+	@GuardedBy("this")
+	private final Map<Integer, Deque<byte[]>> pool;
+	/** The number of bytes in buffers that are in use. */
+	@GuardedBy("this")
+	private long inUse;
+	/** The number of bytes in pooled buffers. */
+	@GuardedBy("this")
+	private long pooled;
+	/** The number of segments that have been reassembled. */
+	@GuardedBy("this")
+	private long completed;
+	/** The number of partly received segments that have been dropped. */
+	@GuardedBy("this")
+	private long evicted;
+	
+	/** Creates a new reassembler. */
+	Reassembler()
+	{
+		this.partials = new LinkedHashMap<Key, Partial>(16, 0.75f, true);
+		this.pool = new HashMap<Integer, Deque<byte[]>>();
+		this.inUse = 0L;
+		this.pooled = 0L;
+		this.completed = 0L;
+		this.evicted = 0L;
+	}
+	
+	/**
+	 * Adds a fragment.
+	 *
+	 * @param conn
+	 *     The connection on which the fragment arrived.
+	 * @param frag
+	 *     The fragment.
+	 * @return
+	 *     The whole segment if this was its last missing fragment, or null.
+	 *     The segment's data lives in a pooled buffer, which must be
+	 *     {@link #release released} once the segment has been processed.
+	 * @throws IllegalArgumentException
+	 *     If the fragment does not fit the segment's other fragments.
+	 */
+	Segment add(SnodesConnection conn, Message.TransferFile frag) throws IllegalArgumentException
+	{
+		int count = frag.getFragments();
+		int index = frag.getFragment();
+		int length = frag.getLength();
+		ByteBuffer data = frag.getData();
+		
+		if (length <= 0 || length > MAX_LENGTH || count > length || index < 0 || index >= count) {
+			throw new IllegalArgumentException("Bad fragment " + index + "/" + count + " of " + length + " bytes");
+		}
+		
+		int stride = (length + count - 1) / count;
+		int offset = index * stride;
+		int size = Math.min(stride, length - offset);
+		if (data == null || data.remaining() != size) {
+			throw new IllegalArgumentException("Fragment " + index + "/" + count + " should have " + size + " bytes");
+		}
+		
+		Key key = new Key(conn, frag.getShareName(), frag.getSegment());
+		long now = System.nanoTime();
+		
+		synchronized (this) {
+			expire(now);
+			
+			Partial p = partials.get(key);
+			if (p != null && (p.length != length || p.count != count)) {
+				// The segment was sent again, differently; start over.
+				drop(key);
+				p = null;
+			}
+			if (p == null) {
+				byte[] buf = allocate(length);
+				if (buf == null) {
+					logger.fine("No room to reassemble " + length + " bytes");
+					return null;
+				}
+				p = new Partial(buf, length, count);
+				partials.put(key, p);
+			}
+			
+			p.touched = now;
+			if (p.got.get(index)) return null; // Duplicate
+			
+			data.duplicate().get(p.buf, offset, size);
+			p.got.set(index);
+			if (p.got.cardinality() < count) return null;
+			
+			partials.remove(key);
+			completed++;
+			return new Segment(frag.withData(ByteBuffer.wrap(p.buf, 0, length).asReadOnlyBuffer()), p.buf);
+		}
+	}
+	
+	/**
+	 * Returns a reassembled segment's buffer to the pool. The segment's data
+	 * must not be used afterwards.
+	 *
+	 * @param seg
+	 *     The segment returned by {@link #add}.
+	 */
+	synchronized void release(Segment seg)
+	{
+		if (seg == null || seg.buf == null) return;
+		
+		recycle(seg.buf);
+		seg.buf = null;
+	}
+	
+	/**
+	 * Drops every partly received segment from the given connection.
+	 *
+	 * @param conn
+	 *     The connection.
+	 */
+	synchronized void discard(SnodesConnection conn)
+	{
+		Iterator<Map.Entry<Key, Partial>> iter = partials.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Partial> entry = iter.next();
+			if (entry.getKey().conn == conn) {
+				iter.remove();
+				recycle(entry.getValue().buf);
+				evicted++;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of segments that have been reassembled.
+	 *
+	 * @return
+	 *     The number of whole segments.
+	 */
+	synchronized long getCompleted()
+	{
+		return completed;
+	}
+	
+	/**
+	 * Returns the number of partly received segments that have been dropped,
+	 * because they went stale or to make room.
+	 *
+	 * @return
+	 *     The number of dropped segments.
+	 */
+	synchronized long getEvicted()
+	{
+		return evicted;
+	}
+	
+	/**
+	 * Returns the number of segments that are partly received.
+	 *
+	 * @return
+	 *     The number of incomplete segments.
+	 */
+	synchronized int getPending()
+	{
+		return partials.size();
+	}
+	
+	/** Drops segments that have not been touched for too long. */
+	@GuardedBy("this")
+	private void expire(long now)
+	{
+		Iterator<Map.Entry<Key, Partial>> iter = partials.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key, Partial> entry = iter.next();
+			if (now - entry.getValue().touched < STALE_TIMEOUT) break; // The rest are newer
+			
+			iter.remove();
+			recycle(entry.getValue().buf);
+			evicted++;
+			logger.finer("Dropped stale segment " + entry.getKey());
+		}
+	}
+	
+	/** Drops a partly received segment. */
+	@GuardedBy("this")
+	private void drop(Key key)
+	{
+		Partial p = partials.remove(key);
+		if (p != null) {
+			recycle(p.buf);
+			evicted++;
+		}
+	}
+	
+	/**
+	 * Takes a buffer of at least the given length from the pool, or allocates
+	 * one if there is room. Returns null if there is no room even after
+	 * freeing pooled buffers and dropping every partly received segment.
+	 */
+	@GuardedBy("this")
+	private byte[] allocate(int length)
+	{
+		int capacity = capacity(length);
+		Deque<byte[]> free = pool.get(Integer.valueOf(capacity));
+		
+		if (free != null && !free.isEmpty()) {
+			byte[] buf = free.removeFirst();
+			pooled -= capacity;
+			inUse += capacity;
+			return buf;
+		}
+		
+		if (inUse + pooled + capacity > MAX_BYTES) {
+			pool.clear();
+			pooled = 0L;
+		}
+		while (inUse + capacity > MAX_BYTES && !partials.isEmpty()) {
+			Key oldest = partials.keySet().iterator().next();
+			Partial p = partials.remove(oldest);
+			inUse -= p.buf.length;
+			evicted++;
+			logger.finer("Dropped segment " + oldest + " to make room");
+		}
+		if (inUse + capacity > MAX_BYTES) return null;
+		
+		inUse += capacity;
+		return new byte[capacity];
+	}
+	
+	/** Returns a buffer to the pool, if there is room for it. */
+	@GuardedBy("this")
+	private void recycle(byte[] buf)
+	{
+		inUse -= buf.length;
+		if (inUse + pooled + buf.length > MAX_BYTES) return;
+		
+		Integer capacity = Integer.valueOf(buf.length);
+		Deque<byte[]> free = pool.get(capacity);
+		if (free == null) {
+			free = new ArrayDeque<byte[]>();
+			pool.put(capacity, free);
+		}
+		free.addFirst(buf);
+		pooled += buf.length;
+	}
+	
+	/** Rounds a length up to a power of two, so buffers can be shared by segments of similar sizes. */
+	private static int capacity(int length)
+	{
+		int capacity = MIN_BUFFER;
+		while (capacity < length) capacity <<= 1;
+		return capacity;
+	}
+	
+	
+	/** A whole segment, put back together from its fragments. */
+	static final class Segment
+	{
+		private final Message.TransferFile msg;
+		private byte[] buf;
+		
+		private Segment(Message.TransferFile msg, byte[] buf)
+		{
+			this.msg = msg;
+			this.buf = buf;
+		}
+		
+		/**
+		 * Returns the segment's message, whose data is the whole segment.
+		 *
+		 * @return
+		 *     The message.
+		 */
+		Message.TransferFile getMessage()
+		{
+			return msg;
+		}
+	}
+	
+	
+	/** Identifies a segment of a file coming from a connection. */
+	private static final class Key
+	{
+		private final SnodesConnection conn;
+		private final String shareName;
+		private final int segment;
+		
+		private Key(SnodesConnection conn, String shareName, int segment)
+		{
+			this.conn = conn;
+			this.shareName = shareName;
+			this.segment = segment;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj) {
+				return true;
+			} else if (!(obj instanceof Key)) {
+				return false;
+			} else {
+				Key k = (Key) obj;
+				return conn == k.conn && segment == k.segment
+					&& (shareName == null ? k.shareName == null : shareName.equals(k.shareName));
+			}
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int h = System.identityHashCode(conn);
+			h = 31 * h + (shareName != null ? shareName.hashCode() : 0);
+			return 31 * h + segment;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return shareName + "#" + segment + "@" + conn;
+		}
+	}
+	
+	
+	/** A segment whose fragments have not all arrived. */
+	private static final class Partial
+	{
+		private final byte[] buf;
+		private final int length;
+		private final int count;
+		private final BitSet got;
+		private long touched;
+		
+		private Partial(byte[] buf, int length, int count)
+		{
+			this.buf = buf;
+			this.length = length;
+			this.count = count;
+			this.got = new BitSet(count);
+			this.touched = 0L;
+		}
+	}
+}
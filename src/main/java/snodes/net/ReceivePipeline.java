@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+
+/**
+ * The staged pipeline that incoming datagrams pass through on their way from
+ * the network to a connection's {@link PacketListener}s.
+ *
+ * <p>Each datagram goes through three {@link Stage stages}: it is decrypted,
+ * parsed into a {@link Packet}, and finally delivered to the listeners of the
+ * connection that sent it. Packets from the same connection are delivered one
+ * at a time and in the order in which they arrived; packets from different
+ * connections are delivered in parallel. Every stage has its own
+ * {@link Dispatcher}, and therefore its own queue, threads, and counters.
+ * Decryption and parsing are
+ * CPU-bound and can be spread across every core, while listeners, which may
+ * be slow (or may have to wait on the GUI), only hold up the delivery stage.
+ * If a stage is full, the datagram is dropped at that stage and the drop is
+ * counted by the stage's dispatcher.</p>
+ *
+ * <p>The server's pipeline is available from {@link SnodesServer#getPipeline}.
+ * Stages can be resized at any time:</p>
+ *
+ * <pre>
+ * ReceivePipeline pipeline = SnodesServer.getInstance().getPipeline();
+ * pipeline.setDispatcher(ReceivePipeline.Stage.PARSE, Dispatcher.newPooledDispatcher(8, 1024));
+ * </pre>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see Dispatcher
+ */
+@ThreadSafe
+public final class ReceivePipeline
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The number of processors available to the VM. */
+	private static final int CPUS = Runtime.getRuntime().availableProcessors();
+	
+	/** The dispatchers for each stage. */
+	private final Map<Stage, Dispatcher> stages;
+	
+	/** Creates a new pipeline with the default dispatchers. */
+	ReceivePipeline()
+	{
+		// Every receive shard can have a full ring of buffers waiting to be
+		// decrypted, and there are usually no more shards than processors.
+		final int DEPTH = CPUS * SnodesServer.RING_SIZE;
+		
+		this.stages = new EnumMap<Stage, Dispatcher>(Stage.class);
+		
+		stages.put(Stage.DECRYPT, Dispatcher.newPooledDispatcher(CPUS, DEPTH));
+		stages.put(Stage.PARSE, Dispatcher.newPooledDispatcher(CPUS, 4 * DEPTH));
+		stages.put(Stage.DELIVER, Dispatcher.newPooledDispatcher(2, 16 * DEPTH));
+	}
+	
+	/**
+	 * Sets the dispatcher for a stage. The stage's previous dispatcher is shut
+	 * down once the new one is in place; work that it has already accepted is
+	 * allowed to finish.
+	 *
+	 * @param stage
+	 *     The stage.
+	 * @param dispatcher
+	 *     The stage's new dispatcher.
+	 * @throws IllegalArgumentException
+	 *     If stage or dispatcher is null.
+	 */
+	public void setDispatcher(Stage stage, Dispatcher dispatcher) throws IllegalArgumentException
+	{
+		if (stage == null) throw new IllegalArgumentException("'stage' may not be null");
+		if (dispatcher == null) throw new IllegalArgumentException("'dispatcher' may not be null");
+		
+		Dispatcher old = null;
+		synchronized (stages) {
+			old = stages.put(stage, dispatcher);
+		}
+		old.shutdown();
+	}
+	
+	/**
+	 * Returns the dispatcher for a stage. The dispatcher can be queried for
+	 * the stage's queue depth and for the number of datagrams that the stage
+	 * has processed or dropped.
+	 *
+	 * @param stage
+	 *     The stage.
+	 * @return
+	 *     The stage's dispatcher.
+	 */
+	public Dispatcher getDispatcher(Stage stage)
+	{
+		synchronized (stages) {
+			return stages.get(stage);
+		}
+	}
+	
+	/**
+	 * Sends a received datagram into the pipeline. A slot is reserved for the
+	 * datagram in the connection's {@link Mailbox} right away, so the packets
+	 * from each peer are delivered in the order in which they arrived, even
+	 * though they are decrypted and parsed in parallel.
+	 *
+	 * <p>The datagram is decrypted in place and parsed straight out of its
+	 * buffer, so nothing is copied or allocated for it on the way through.</p>
+	 *
+	 * @param buf
+	 *     The datagram. The buffer belongs to the pipeline from now on, and
+	 *     is released back to its ring by the connection's mailbox once the
+	 *     packet has been delivered, or as soon as the datagram is dropped.
+	 *     If the ring runs low, the packet is copied out of the buffer once
+	 *     it has been parsed, and the buffer is released then.
+	 * @param ring
+	 *     The ring from which the buffer was taken.
+	 * @param conn
+	 *     The connection that sent the datagram.
+	 */
+	void submit(final ByteBuffer buf, BufferRing ring, final SnodesConnection conn)
+	{
+		final Mailbox.Slot slot = conn.getMailbox().reserve(buf, ring);
+		
+		Runnable decrypter = new Runnable() {
+			public void run() {
+				boolean decrypted = false;
+				
+				try {
+					Packet.decrypt(buf, conn.getKey());
+					decrypted = true;
+				} finally {
+					if (!decrypted) skip(slot, conn);
+				}
+				
+				parse(buf, conn, slot);
+			}
+		};
+		
+		if (!dispatch(Stage.DECRYPT, decrypter)) {
+			skip(slot, conn);
+		}
+	}
+	
+	/**
+	 * Schedules a decrypted datagram to be parsed.
+	 *
+	 * @param buf
+	 *     The decrypted datagram.
+	 * @param conn
+	 *     The connection that sent the datagram.
+	 * @param slot
+	 *     The datagram's slot in the connection's mailbox.
+	 */
+	private void parse(final ByteBuffer buf, final SnodesConnection conn, final Mailbox.Slot slot)
+	{
+		Runnable parser = new Runnable() {
+			public void run() {
+				Packet packet = null;
+				
+				try {
+					packet = Packet.parse(buf);
+				} finally {
+					if (packet == null) skip(slot, conn);
+				}
+				
+				conn.getMailbox().complete(slot, packet, getDispatcher(Stage.DELIVER));
+			}
+		};
+		
+		if (!dispatch(Stage.PARSE, parser)) {
+			skip(slot, conn);
+		}
+	}
+	
+	/**
+	 * Gives up on a datagram, so that the packets behind it in the
+	 * connection's mailbox can be delivered.
+	 *
+	 * @param slot
+	 *     The datagram's slot in the connection's mailbox.
+	 * @param conn
+	 *     The connection that sent the datagram.
+	 */
+	private void skip(Mailbox.Slot slot, SnodesConnection conn)
+	{
+		conn.getMailbox().skip(slot, getDispatcher(Stage.DELIVER));
+	}
+	
+	/**
+	 * Hands a task to a stage's dispatcher.
+	 *
+	 * @param stage
+	 *     The stage.
+	 * @param task
+	 *     The task.
+	 * @return
+	 *     true if the stage accepted the task.
+	 */
+	private boolean dispatch(Stage stage, Runnable task)
+	{
+		Dispatcher dispatcher = getDispatcher(stage);
+		
+		if (dispatcher.dispatch(task)) {
+			return true;
+		} else {
+			logger.finer("Dropped datagram at " + stage + ": " + dispatcher);
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns a string representation of every stage in the pipeline, such as:
+	 *
+	 * <pre>
+	 * ReceivePipeline{DECRYPT=PooledDispatcher[...], PARSE=..., DELIVER=...}
+	 * </pre>
+	 *
+	 * @return
+	 *     A string representation of the pipeline.
+	 */
+	@Override
+	public String toString()
+	{
+		synchronized (stages) {
+			return "ReceivePipeline" + stages;
+		}
+	}
+	
+	
+	/** The stages of the pipeline, in the order that datagrams pass through them. */
+	public enum Stage
+	{
+		/** The datagram is decrypted with the connection's current key. */
+		DECRYPT,
+		/** The decrypted datagram is parsed into a packet. */
+		PARSE,
+		/** The packet is handed to the connection's listeners, in order. */
+		DELIVER
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Keeps track of which segments of a file have been received, in the form
+ * that an {@link Message.Acknowledge Acknowledge} reports them: the number of
+ * leading segments that have all arrived, and the ranges of segments that
+ * have arrived after the first missing one.
+ *
+ * <p>The ranges are updated as each segment arrives, so adding a segment
+ * costs a lookup among the ranges rather than a scan of the whole file, and
+ * an acknowledgement only has to look at the ranges it reports. A receiver
+ * keeps one for each file it is downloading:</p>
+ *
+ * <pre>
+ * ReceivedSegments got = new ReceivedSegments(writer.getSegmentStatus(name));
+ * ...
+ * writer.writeSegment(name, data, seg);
+ * got.add(seg);
+ * transfer.acknowledge(seg, got);
+ * </pre>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see FileTransfer#acknowledge(int, ReceivedSegments)
+ */
+@ThreadSafe
+public final class ReceivedSegments
+{
+	/** The number of segments in the file. */
+	private final int segments;
+	/** The number of leading segments that have all been received. */
+	@GuardedBy("this")
+	private int received;
+	/** The ranges received after the first missing segment, by first segment, mapped to the segment after the last. */
+	@GuardedBy("this")
+	private final TreeMap<Integer, Integer> ranges;
+	
+	/**
+	 * Creates a new tracker with no segments received.
+	 *
+	 * @param segments
+	 *     The number of segments in the file.
+	 */
+	public ReceivedSegments(int segments)
+	{
+		this.segments = segments;
+		this.received = 0;
+		this.ranges = new TreeMap<Integer, Integer>();
+	}
+	
+	/**
+	 * Creates a new tracker from the status of every segment of a file, such
+	 * as a partial download that is being resumed.
+	 *
+	 * @param status
+	 *     For each segment of the file, true if it has been received, as
+	 *     {@link snodes.fs.FileInfo#segmentStatusArray} returns it.
+	 */
+	public ReceivedSegments(boolean[] status)
+	{
+		this(status.length);
+		
+		int i = 0;
+		while (i < status.length && status[i]) i++;
+		received = i;
+		
+		while (i < status.length) {
+			while (i < status.length && !status[i]) i++;
+			if (i >= status.length) break;
+			
+			int start = i;
+			while (i < status.length && status[i]) i++;
+			ranges.put(Integer.valueOf(start), Integer.valueOf(i));
+		}
+	}
+	
+	/**
+	 * Records that a segment has been received.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @return
+	 *     true if the segment had not been received before.
+	 */
+	public synchronized boolean add(int seg)
+	{
+		if (seg < received || seg >= segments) return false;
+		
+		Map.Entry<Integer, Integer> below = ranges.floorEntry(Integer.valueOf(seg));
+		if (below != null && below.getValue().intValue() > seg) return false;
+		
+		int start = seg;
+		int end = seg + 1;
+		
+		// Join the ranges on either side
+		if (below != null && below.getValue().intValue() == seg) {
+			start = below.getKey().intValue();
+			ranges.remove(below.getKey());
+		}
+		Integer above = ranges.remove(Integer.valueOf(end));
+		if (above != null) end = above.intValue();
+		
+		if (start == received) {
+			received = end;
+		} else {
+			ranges.put(Integer.valueOf(start), Integer.valueOf(end));
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of leading segments that have all been received.
+	 *
+	 * @return
+	 *     The number of segments, starting from segment 0, that have all
+	 *     been received.
+	 */
+	public synchronized int getReceived()
+	{
+		return received;
+	}
+	
+	/**
+	 * Returns true if every segment has been received.
+	 *
+	 * @return
+	 *     true if the file is complete.
+	 */
+	public synchronized boolean isComplete()
+	{
+		return received >= segments;
+	}
+	
+	/**
+	 * Returns the first ranges of segments received after the first missing
+	 * one, in the form {@link Message.Acknowledge#getRanges} returns them.
+	 *
+	 * @param max
+	 *     The most ranges to return.
+	 * @return
+	 *     Pairs of segment numbers: the first segment of each range,
+	 *     followed by the segment after its last one.
+	 */
+	synchronized int[] getRanges(int max)
+	{
+		int[] pairs = new int[2 * Math.min(max, ranges.size())];
+		Iterator<Map.Entry<Integer, Integer>> iter = ranges.entrySet().iterator();
+		
+		for (int i = 0; i < pairs.length; i += 2) {
+			Map.Entry<Integer, Integer> range = iter.next();
+			pairs[i] = range.getKey().intValue();
+			pairs[i + 1] = range.getValue().intValue();
+		}
+		return pairs;
+	}
+	
+	/**
+	 * Returns a string representation of the segments received, such as
+	 * "ReceivedSegments[received=2/12, ranges=3]".
+	 *
+	 * @return
+	 *     A string representation of the tracker.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder buf = new StringBuilder("ReceivedSegments");
+		buf.append("[received=").append(received).append("/").append(segments);
+		buf.append(", ranges=").append(ranges.size());
+		buf.append("]");
+		return new String(buf);
+	}
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+
+/**
+ * A way of encoding the data of a file segment for sending.
+ *
+ * <p>Each codec has an <em>encoding</em>, the number sent in a segment's
+ * Encoding property, and a name, which nodes list in their Compression
+ * property when they connect to say which codecs they can decode. A segment
+ * is only sent with a codec that the remote host has listed.</p>
+ *
+ * <p>The built-in codecs are {@link #IDENTITY}, which sends the bytes as
+ * they are; {@link #GZIP}, which older nodes understand; {@link #DEFLATE},
+ * which is gzip without its header and trailer; and {@link #ZERO}, which
+ * sends a segment of nothing but zero bytes without any data at all. Others
+ * may be {@link #register registered}, as long as the remote host has them
+ * too.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see FileTransfer#send(ByteBuffer, int, long)
+ */
+@ThreadSafe
+public abstract class SegmentCodec
+{
+	/** Sends bytes as they are. */
+	public static final SegmentCodec IDENTITY = new Identity();
+	/** Compresses bytes with gzip. */
+	public static final SegmentCodec GZIP = new Gzip();
+	/** Compresses bytes with raw deflate. */
+	public static final SegmentCodec DEFLATE = new Deflate();
+	/** Sends a segment of zero bytes as no data at all. */
+	public static final SegmentCodec ZERO = new Zero();
+	
+	/** The registered codecs, by encoding. */
+	private static final Map<Integer, SegmentCodec> codecs = new ConcurrentHashMap<Integer, SegmentCodec>();
+	
+	static {
+		register(IDENTITY);
+		register(GZIP);
+		register(DEFLATE);
+		register(ZERO);
+	}
+	
+	/**
+	 * The most idle deflaters and inflaters kept for reuse. Each holds native
+	 * zlib memory, so segments sent from short-lived threads share a few
+	 * rather than leaving one behind on every thread; any beyond this are
+	 * ended as soon as they have been used.
+	 */
+	static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	
+	/** Idle deflaters, which are reset between segments. */
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	/** Idle inflaters, which are reset between segments. */
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+	
+	/** The number sent in the Encoding property. */
+	private final int encoding;
+	/** The name listed in the Compression property. */
+	private final String name;
+	
+	/**
+	 * Creates a new codec.
+	 *
+	 * @param encoding
+	 *     The number sent in the Encoding property of segments encoded with
+	 *     this codec.
+	 * @param name
+	 *     The name listed in the Compression property. It must not contain
+	 *     spaces.
+	 */
+	protected SegmentCodec(int encoding, String name)
+	{
+		if (encoding < 0 || name == null || name.length() == 0 || name.indexOf(' ') >= 0) {
+			throw new IllegalArgumentException("Bad codec: " + encoding + " " + name);
+		}
+		this.encoding = encoding;
+		this.name = name;
+	}
+	
+	/**
+	 * Makes a codec available for sending and receiving segments.
+	 *
+	 * @param codec
+	 *     The codec.
+	 * @throws IllegalArgumentException
+	 *     If another codec has the same encoding or name.
+	 */
+	public static synchronized void register(SegmentCodec codec) throws IllegalArgumentException
+	{
+		for (SegmentCodec c : codecs.values()) {
+			if (c.encoding == codec.encoding || c.name.equals(codec.name)) {
+				throw new IllegalArgumentException(codec + " clashes with " + c);
+			}
+		}
+		codecs.put(Integer.valueOf(codec.encoding), codec);
+	}
+	
+	/**
+	 * Returns the codec for an encoding.
+	 *
+	 * @param encoding
+	 *     The Encoding property of a segment.
+	 * @return
+	 *     The codec, or null if there is none.
+	 */
+	public static SegmentCodec forEncoding(int encoding)
+	{
+		return codecs.get(Integer.valueOf(encoding));
+	}
+	
+	/**
+	 * Returns the names of every codec that can decode segments, other than
+	 * {@link #IDENTITY}, as they are listed in the Compression property.
+	 *
+	 * @return
+	 *     The names, separated by spaces, in order of encoding.
+	 */
+	static String names()
+	{
+		StringBuilder buf = new StringBuilder();
+		
+		for (SegmentCodec c : new TreeMap<Integer, SegmentCodec>(codecs).values()) {
+			if (c == IDENTITY) continue;
+			if (buf.length() > 0) buf.append(' ');
+			buf.append(c.name);
+		}
+		return new String(buf);
+	}
+	
+	/**
+	 * Returns the number sent in the Encoding property.
+	 *
+	 * @return
+	 *     The encoding.
+	 */
+	public final int getEncoding()
+	{
+		return encoding;
+	}
+	
+	/**
+	 * Returns the name listed in the Compression property.
+	 *
+	 * @return
+	 *     The name.
+	 */
+	public final String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Encodes a segment, giving up if the result would be too large.
+	 *
+	 * <p>The segment may be a view of a memory-mapped file or of a cache
+	 * outside the Java heap; codecs read it where it is, and do not copy it
+	 * into an array first.</p>
+	 *
+	 * @param data
+	 *     The segment's bytes. All of the remaining bytes are encoded, and the
+	 *     buffer's position is not changed.
+	 * @param level
+	 *     How hard to try, from {@link Deflater#BEST_SPEED} to
+	 *     {@link Deflater#BEST_COMPRESSION}. Codecs that do not compress
+	 *     ignore it.
+	 * @param limit
+	 *     The most bytes the encoded segment may take.
+	 * @return
+	 *     The encoded bytes, or null if the codec cannot encode the segment in
+	 *     at most <var>limit</var> bytes.
+	 * @throws IOException
+	 *     If the segment cannot be encoded.
+	 */
+	public abstract ByteBuffer encode(ByteBuffer data, int level, int limit) throws IOException;
+	
+	/**
+	 * Encodes a segment held in an array, giving up if the result would be
+	 * too large.
+	 *
+	 * @param bytes
+	 *     The segment's bytes.
+	 * @param level
+	 *     How hard to try.
+	 * @param limit
+	 *     The most bytes the encoded segment may take.
+	 * @return
+	 *     The encoded bytes, or null if the codec cannot encode the segment in
+	 *     at most <var>limit</var> bytes.
+	 * @throws IOException
+	 *     If the segment cannot be encoded.
+	 * @see #encode(ByteBuffer, int, int)
+	 */
+	public final ByteBuffer encode(byte[] bytes, int level, int limit) throws IOException
+	{
+		return encode(ByteBuffer.wrap(bytes), level, limit);
+	}
+	
+	/**
+	 * Decodes a received segment.
+	 *
+	 * @param data
+	 *     The segment's data, as sent. The buffer's position is not changed.
+	 * @param size
+	 *     The size of the segment, once decoded.
+	 * @return
+	 *     The segment's bytes.
+	 * @throws IOException
+	 *     If the data is corrupt, or does not decode to <var>size</var>
+	 *     bytes.
+	 */
+	public abstract ByteBuffer decode(ByteBuffer data, int size) throws IOException;
+	
+	@Override
+	public String toString()
+	{
+		return new String("SegmentCodec " + name + "[" + encoding + "]");
+	}
+	
+	/**
+	 * Returns true if every byte of a segment is zero.
+	 *
+	 * @param bytes
+	 *     The segment's bytes.
+	 * @return
+	 *     True if the segment is all zero bytes.
+	 */
+	static boolean isZero(byte[] bytes)
+	{
+		return isZero(ByteBuffer.wrap(bytes));
+	}
+	
+	/**
+	 * Returns true if every remaining byte of a segment is zero.
+	 *
+	 * @param data
+	 *     The segment's bytes. The buffer's position is not changed.
+	 * @return
+	 *     True if the segment is all zero bytes.
+	 */
+	static boolean isZero(ByteBuffer data)
+	{
+		// OR a word at a time; most segments fail within the first few.
+		int end = data.limit();
+		int i = data.position();
+		
+		for (; i + 8 <= end; i += 8) {
+			if (data.getLong(i) != 0L) return false;
+		}
+		for (; i < end; i++) {
+			if (data.get(i) != 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of idle deflaters and inflaters kept for reuse.
+	 *
+	 * @return
+	 *     The number of pooled deflaters plus the number of pooled inflaters.
+	 */
+	static int pooled()
+	{
+		return deflaters.size() + inflaters.size();
+	}
+	
+	/**
+	 * Deflates bytes with a pooled deflater.
+	 *
+	 * @param data
+	 *     The bytes. The buffer's position is not changed.
+	 * @param level
+	 *     The compression level.
+	 * @param out
+	 *     The buffer into which the deflated bytes are written.
+	 * @param off
+	 *     The offset at which to start writing.
+	 * @param limit
+	 *     The most bytes that may be written.
+	 * @return
+	 *     The number of bytes written, or -1 if they do not fit.
+	 */
+	private static int deflate(ByteBuffer data, int level, byte[] out, int off, int limit)
+	{
+		Deflater def = deflaters.poll();
+		if (def == null) def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		int n = 0;
+		
+		try {
+			def.setLevel(level);
+			def.setInput(data.duplicate());
+			def.finish();
+			while (!def.finished() && n < limit) {
+				n += def.deflate(out, off + n, limit - n);
+			}
+			return def.finished() ? n : -1;
+		} finally {
+			def.reset(); // Let go of the input
+			if (!deflaters.offer(def)) def.end();
+		}
+	}
+	
+	/**
+	 * Inflates raw deflate data with a pooled inflater.
+	 *
+	 * @param data
+	 *     The deflated bytes. The buffer's position is not changed.
+	 * @param size
+	 *     The number of bytes they inflate to.
+	 * @return
+	 *     The inflated bytes.
+	 * @throws IOException
+	 *     If the data is corrupt or inflates to the wrong size.
+	 */
+	private static byte[] inflate(ByteBuffer data, int size) throws IOException
+	{
+		byte[] in = null;
+		int off = 0;
+		int len = data.remaining();
+		byte[] out = new byte[size];
+		int n = 0;
+		
+		if (data.hasArray() && !data.isReadOnly()) {
+			in = data.array();
+			off = data.arrayOffset() + data.position();
+		} else {
+			in = new byte[len];
+			data.duplicate().get(in);
+		}
+		
+		Inflater inf = inflaters.poll();
+		if (inf == null) inf = new Inflater(true);
+		
+		inf.setInput(in, off, len);
+		try {
+			while (n < size && !inf.finished()) {
+				int got = inf.inflate(out, n, size - n);
+				if (got == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+				n += got;
+			}
+			// The data must end exactly where the segment does.
+			if (n < size || (!inf.finished() && inf.inflate(new byte[1]) > 0)) {
+				throw new EOFException("Segment does not inflate to " + size + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Segment is not valid deflate data: " + e.getMessage());
+		} finally {
+			inf.reset();
+			if (!inflaters.offer(inf)) inf.end();
+		}
+		return out;
+	}
+	
+	
+	/** Sends bytes as they are. */
+	private static final class Identity extends SegmentCodec
+	{
+		Identity()
+		{
+			super(FileTransfer.IDENTITY, "identity");
+		}
+		
+		@Override
+		public ByteBuffer encode(ByteBuffer data, int level, int limit)
+		{
+			return (data.remaining() <= limit) ? data.slice() : null;
+		}
+		
+		@Override
+		public ByteBuffer decode(ByteBuffer data, int size)
+		{
+			return data;
+		}
+	}
+	
+	
+	/** Compresses bytes with gzip, as older nodes expect. */
+	private static final class Gzip extends SegmentCodec
+	{
+		/** A gzip header: deflate, no flags, no time, unknown OS. */
+		private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+		/** The size of the gzip trailer. */
+		private static final int TRAILER = 8;
+		
+		Gzip()
+		{
+			super(FileTransfer.GZIP, "gzip");
+		}
+		
+		@Override
+		public ByteBuffer encode(ByteBuffer data, int level, int limit)
+		{
+			int room = limit - HEADER.length - TRAILER;
+			if (room <= 0) return null;
+			
+			byte[] out = new byte[limit];
+			int n = deflate(data, level, out, HEADER.length, room);
+			if (n < 0) return null;
+			
+			CRC32 crc = new CRC32();
+			crc.update(data.duplicate());
+			
+			ByteBuffer buf = ByteBuffer.wrap(out);
+			buf.put(HEADER);
+			buf.position(HEADER.length + n);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt((int) crc.getValue());
+			buf.putInt(data.remaining());
+			buf.flip();
+			return buf.order(ByteOrder.BIG_ENDIAN);
+		}
+		
+		@Override
+		public ByteBuffer decode(ByteBuffer data, int size) throws IOException
+		{
+			// Older nodes may send any valid gzip stream, so read it properly.
+			byte[] gzipped = new byte[data.remaining()];
+			byte[] bytes = new byte[size];
+			int read = 0;
+			
+			data.duplicate().get(gzipped);
+			InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+			
+			try {
+				while (read < size) {
+					int n = in.read(bytes, read, size - read);
+					if (n < 0) throw new EOFException("Segment is shorter than " + size + " bytes");
+					read += n;
+				}
+			} finally {
+				in.close();
+			}
+			
+			return ByteBuffer.wrap(bytes);
+		}
+	}
+	
+	
+	/** Compresses bytes with raw deflate, without gzip's framing. */
+	private static final class Deflate extends SegmentCodec
+	{
+		Deflate()
+		{
+			super(FileTransfer.DEFLATE, "deflate");
+		}
+		
+		@Override
+		public ByteBuffer encode(ByteBuffer data, int level, int limit)
+		{
+			byte[] out = new byte[Math.max(limit, 0)];
+			int n = deflate(data, level, out, 0, out.length);
+			return (n < 0) ? null : ByteBuffer.wrap(out, 0, n);
+		}
+		
+		@Override
+		public ByteBuffer decode(ByteBuffer data, int size) throws IOException
+		{
+			return ByteBuffer.wrap(inflate(data, size));
+		}
+	}
+	
+	
+	/** Sends a segment of zero bytes as no data. */
+	private static final class Zero extends SegmentCodec
+	{
+		Zero()
+		{
+			super(FileTransfer.ZERO, "zero");
+		}
+		
+		@Override
+		public ByteBuffer encode(ByteBuffer data, int level, int limit)
+		{
+			return isZero(data) ? ByteBuffer.allocate(0) : null;
+		}
+		
+		@Override
+		public ByteBuffer decode(ByteBuffer data, int size) throws IOException
+		{
+			if (data.hasRemaining()) throw new IOException("Zero segment has data");
+			return ByteBuffer.allocate(size);
+		}
+	}
+}
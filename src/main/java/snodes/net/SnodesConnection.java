@@ -30,14 +30,14 @@ import snodes.util.Base64;
 import net.jcip.annotations.GuardedBy;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -98,20 +98,40 @@ public class SnodesConnection
 	
 	/** The remote host. */
 	private InetAddress host;
+	/** The address to which packets for the remote host are sent. */
+	private InetSocketAddress target;
 	/** The passkey used to connect to the designated remote host. */
 	private Passkey passkey;
 	/** The key used to encrypt the session. */
-	private EncryptionKey encryptKey;
+	private volatile EncryptionKey encryptKey;
 	/** The connection's session ID number. */
-	private int id;
+	private volatile int id;
 	/** The set of file transfers used by this connection. */
-	private Map<String, FileTransfer> transfers;
+	private ConcurrentMap<String, FileTransfer> transfers;
 	/** The current chat with the remote host. */
 	private Chat chat;
 	/** The current status of the connection. */
-	private Status status;
+	private volatile Status status;
+	/** The format in which packets are sent once the connection is established. */
+	private volatile Packet.Format format;
+	/** The segment compression methods understood by the remote host. */
+	private volatile String compression;
+	/** The optional protocol features understood by the remote host. */
+	private volatile String features;
 	/** The connection's packet listeners. */
 	private Set<ListenerWrapper> listeners;
+	/**
+	 * The queue through which incoming packets are delivered, in order. It is
+	 * created on first use, so the connection is never handed out before its
+	 * constructor has finished.
+	 */
+	private volatile Mailbox mailbox;
+	/** Guards the creation of the mailbox. */
+	private final Object mailboxLock;
+	/** The limit on the rate at which packets are sent to the remote host. */
+	private final TokenBucket bucket;
+	/** The flow through which chat and control packets are sent. */
+	private final Transmitter.Flow control;
 	
 	/**
 	 * Creates a new connection to the specified host. The host can be specified
@@ -129,14 +149,22 @@ public class SnodesConnection
 	public SnodesConnection(String host) throws UnknownHostException
 	{
 		this.host = InetAddress.getByName(host);
+		this.target = new InetSocketAddress(this.host, SnodesServer.PORT);
 		
 		this.passkey = null;
 		this.encryptKey = null;
 		this.id = NO_ID;
-		this.transfers = new HashMap<String, FileTransfer>();
+		this.transfers = new ConcurrentHashMap<String, FileTransfer>();
 		this.chat = null;
 		this.status = Status.NEW;
-		this.listeners = new HashSet<ListenerWrapper>();
+		this.format = Packet.Format.TEXT;
+		this.compression = null;
+		this.features = null;
+		this.listeners = new CopyOnWriteArraySet<ListenerWrapper>();
+		this.mailbox = null;
+		this.mailboxLock = new Object();
+		this.bucket = new TokenBucket(0L);
+		this.control = new Transmitter.Flow(bucket, true);
 	}
 	
 	/**
@@ -155,7 +183,9 @@ public class SnodesConnection
 	 * Establishes a connection to the remote host.<p>
 	 *
 	 * This is merely a connection <em>request</em>, and could be denied or ignored
-	 * by the remote host.
+	 * by the remote host. The request lists the packet formats, segment
+	 * compression methods and optional features that this node understands,
+	 * so the remote host can pick the best ones for the session.
 	 *
 	 * @throws IOException
 	 *     If a connection cannot be established.
@@ -163,9 +193,7 @@ public class SnodesConnection
 	@GuardedBy("this")
 	public synchronized void connect() throws IOException
 	{
-		Packet packet = new Packet(Packet.Type.Connect);
-		packet.putProperty("Passkey", passkey.toString());
-		sendPacket(packet);
+		sendPacket(new Packet(new Message.Connect(passkey.toString(), Packet.Format.supported(), SegmentCodec.names(), FileTransfer.PARITY)));
 		status = Status.CONNECTING;
 	}
 	
@@ -208,11 +236,8 @@ public class SnodesConnection
 		if (encryptKey == null) throw new IllegalStateException("EncryptKey is null");
 		
 		String base64key = Base64.encodeBytes(encryptKey.toByteArray()); // Not gzipped!
-		Packet packet = new Packet(Packet.Type.AcceptConnection);
-		packet.putProperty("Passkey", passkey.toString());
-		packet.putProperty("Id", Integer.valueOf(id));
-		packet.putProperty("EncryptKey", base64key);
-		sendPacket(packet);
+		sendPacket(new Packet(new Message.AcceptConnection(passkey.toString(), id, base64key,
+			Packet.Format.supported(), SegmentCodec.names(), FileTransfer.PARITY)));
 	}
 	
 	/** Closes the connection to the remote host. */
@@ -220,12 +245,15 @@ public class SnodesConnection
 	public synchronized void disconnect()
 	{
 		try {
-			Packet packet = new Packet(Packet.Type.CloseConnection);
-			sendPacket(packet);
+			sendPacket(new Packet(new Message.CloseConnection()));
 		} catch (IOException e) {
 			logger.log(Level.INFO, "Cannot send disconnect packet", e);
 		} finally {
 			status = Status.NEW;
+			format = Packet.Format.TEXT;
+			compression = null;
+			features = null;
+			SnodesServer.getInstance().getReassembler().discard(this);
 		}
 	}
 	
@@ -242,8 +270,9 @@ public class SnodesConnection
 	{
 		FileTransfer transfer = transfers.get(file);
 		if (transfer == null) {
-			transfer = new FileTransfer(this, file);
-			transfers.put(file, transfer);
+			FileTransfer created = new FileTransfer(this, file);
+			transfer = transfers.putIfAbsent(file, created);
+			if (transfer == null) transfer = created;
 		}
 		return transfer;
 	}
@@ -307,9 +336,11 @@ public class SnodesConnection
 	 * conn.addListener(pfl, pff);
 	 * </pre>
 	 *
-	 * <p>Packet listeners are notified on the same thread as the connection, so
-	 * listeners should do their work as soon as possible, or spawn another thread
-	 * to do the work.</p>
+	 * <p>Packets are delivered to a connection's listeners one at a time, in the
+	 * order in which they were received. Listeners on different connections
+	 * may be notified at the same time, though, and a slow listener holds up
+	 * every packet behind it on its connection, so listeners should do their
+	 * work as soon as possible, or spawn another thread to do the work.</p>
 	 *
 	 * <p><em>There is no way to add a listener to a {@link FileTransfer}</em>, so
 	 * observers interested in file transfers must add listeners to this connection
@@ -328,6 +359,20 @@ public class SnodesConnection
 		listeners.add(new ListenerWrapper(listener, filter));
 	}
 	
+	/**
+	 * Unregisters a packet listener. The listener is no longer notified of
+	 * packets once this returns, unless it is being notified right now.
+	 *
+	 * @param listener
+	 *     The packet listener.
+	 */
+	public void removeListener(PacketListener listener)
+	{
+		for (ListenerWrapper lw : listeners) {
+			if (lw.listener == listener) listeners.remove(lw);
+		}
+	}
+	
 	/**
 	 * Returns the status of the connection.
 	 *
@@ -339,6 +384,18 @@ public class SnodesConnection
 		return status;
 	}
 	
+	/**
+	 * Returns the format in which packets are sent to the remote host. This is
+	 * {@link Packet.Format#TEXT} until the connection has been negotiated.
+	 *
+	 * @return
+	 *     The connection's packet format.
+	 */
+	public Packet.Format getFormat()
+	{
+		return format;
+	}
+	
 	/**
 	 * Returns the remote host associated with this connection.
 	 *
@@ -372,6 +429,46 @@ public class SnodesConnection
 		return (status == Status.AUTHORIZED ? encryptKey : passkey);
 	}
 	
+	/**
+	 * Limits the rate at which packets are sent to the remote host, so as not
+	 * to overrun its receive buffer. The limit is shared by every transfer
+	 * on the connection; chat and control packets count against it, but are
+	 * never held back by it.
+	 *
+	 * @param rate
+	 *     The rate, in bytes per second, or 0 for no limit.
+	 * @see SnodesServer#setRateLimit
+	 */
+	public void setRateLimit(long rate)
+	{
+		bucket.setRate(rate);
+		SnodesServer.getInstance().getTransmitter().limitsChanged();
+	}
+	
+	/**
+	 * Returns the limit on the rate at which packets are sent to the remote
+	 * host.
+	 *
+	 * @return
+	 *     The rate, in bytes per second, or 0 if there is no limit.
+	 */
+	public long getRateLimit()
+	{
+		return bucket.getRate();
+	}
+	
+	/**
+	 * Creates a flow through which a file transfer's segments are sent,
+	 * taking turns with the connection's other transfers.
+	 *
+	 * @return
+	 *     The new flow.
+	 */
+	Transmitter.Flow newFlow()
+	{
+		return new Transmitter.Flow(bucket, false);
+	}
+	
 	/**
 	 * Returns true if this object is equal to obj.
 	 *
@@ -425,20 +522,139 @@ public class SnodesConnection
 		return "SnodesConnection@" + host.getHostAddress();
 	}
 	
+	/**
+	 * Returns true if the remote host has said that it understands the given
+	 * segment compression method.
+	 *
+	 * @param method
+	 *     The compression method, such as "gzip".
+	 * @return
+	 *     true if the method may be used for segments sent to the remote host.
+	 */
+	boolean canCompress(String method)
+	{
+		return listed(compression, method);
+	}
+	
+	/**
+	 * Returns true if the remote host has said that it understands the given
+	 * optional protocol feature.
+	 *
+	 * @param feature
+	 *     The feature, such as {@link FileTransfer#PARITY "parity"}.
+	 * @return
+	 *     true if the feature may be used with the remote host.
+	 */
+	boolean hasFeature(String feature)
+	{
+		return listed(features, feature);
+	}
+	
+	/** Returns true if a word appears in a list separated by spaces. */
+	private static boolean listed(String list, String word)
+	{
+		if (list != null) {
+			for (String w : list.trim().split("\\s+")) {
+				if (w.equals(word)) return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the mailbox through which the connection's incoming packets are
+	 * delivered.
+	 *
+	 * @return
+	 *     The connection's mailbox.
+	 */
+	Mailbox getMailbox()
+	{
+		Mailbox m = mailbox;
+		if (m == null) {
+			synchronized (mailboxLock) {
+				m = mailbox;
+				if (m == null) {
+					m = new Mailbox(this);
+					mailbox = m;
+				}
+			}
+		}
+		return m;
+	}
+	
 	/**
 	 * Processes incoming packets.
 	 *
+	 * <p>This is only ever called by the connection's {@link Mailbox}, which
+	 * never delivers more than one packet at a time.</p>
+	 *
 	 * @param packet
 	 *     The packet.
 	 */
 	void processPacket(Packet packet)
-	{	
-		for (final ListenerWrapper lw : listeners) {
-			if (lw.filter.accept(packet.getType())) {
-				lw.listener.processPacket(this, packet);
+	{
+		if (packet.getType() == Packet.Type.TransferFile) {
+			Message.TransferFile msg = (Message.TransferFile) packet.getMessage();
+			if (msg.isFragment()) {
+				processFragment(msg);
+				return;
+			}
+		}
+		
+		// Both sides list their formats when connecting, so settle on one
+		// before anything is sent in reply.
+		switch (packet.getType()) {
+		case Connect:
+		{
+			Message.Connect msg = (Message.Connect) packet.getMessage();
+			format = Packet.Format.negotiate(msg.getFormats());
+			compression = msg.getCompression();
+			features = msg.getFeatures();
+			logger.fine("Using " + format.getVersion() + " with " + this);
+			break;
+		}
+		case AcceptConnection:
+		{
+			Message.AcceptConnection msg = (Message.AcceptConnection) packet.getMessage();
+			format = Packet.Format.negotiate(msg.getFormats());
+			compression = msg.getCompression();
+			features = msg.getFeatures();
+			logger.fine("Using " + format.getVersion() + " with " + this);
+			break;
+		}
+		case Acknowledge:
+		{
+			Message.Acknowledge msg = (Message.Acknowledge) packet.getMessage();
+			TransferWindow window = windowFor(msg.getShareName());
+			if (window != null) {
+				try {
+					window.acknowledged(msg);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Cannot send segments of " + msg.getShareName(), e);
+				}
 			}
+			break;
+		}
+		case RequestAgain:
+		{
+			Message.RequestAgain msg = (Message.RequestAgain) packet.getMessage();
+			TransferWindow window = windowFor(msg.getShareName());
+			if (window != null) {
+				try {
+					window.lost(msg.getSegment());
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Cannot resend segment of " + msg.getShareName(), e);
+				}
+			}
+			break;
+		}
+		default:
+			break;
 		}
 		
+		notifyListeners(packet);
+		
 		// If connection accepted, set flag to AUTHORIZED
 		if (packet.getType() == Packet.Type.AcceptConnection) {
 			status = Status.AUTHORIZED;
@@ -446,7 +662,81 @@ public class SnodesConnection
 	}
 	
 	/**
-	 * Sends a packet to the remote host via the writer's output stream.
+	 * Adds a fragment of a segment to the server's {@link Reassembler}. Once
+	 * every fragment of the segment has arrived, the listeners are notified
+	 * of the whole segment, as if it had come in a single packet.
+	 *
+	 * <p>The whole segment's data is in a shared buffer that is reused once
+	 * the listeners have returned, so listeners that hold on to the data
+	 * must copy it.</p>
+	 *
+	 * @param msg
+	 *     The fragment.
+	 */
+	private void processFragment(Message.TransferFile msg)
+	{
+		Reassembler reassembler = SnodesServer.getInstance().getReassembler();
+		Reassembler.Segment seg = null;
+		
+		try {
+			seg = reassembler.add(this, msg);
+		} catch (IllegalArgumentException e) {
+			logger.log(Level.FINE, "Dropping bad fragment from " + this, e);
+			return;
+		}
+		
+		if (seg == null) return; // Not all there yet
+		
+		try {
+			notifyListeners(new Packet(seg.getMessage()));
+		} finally {
+			reassembler.release(seg);
+		}
+	}
+	
+	/**
+	 * Notifies the listeners whose filters accept the packet.
+	 *
+	 * @param packet
+	 *     The packet.
+	 */
+	private void notifyListeners(Packet packet)
+	{
+		for (final ListenerWrapper lw : listeners) {
+			if (lw.filter.accept(packet.getType())) {
+				lw.listener.processPacket(this, packet);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the window through which a file is being sent to the remote
+	 * host, if any.
+	 *
+	 * @param file
+	 *     The name of the shared file.
+	 * @return
+	 *     The file's window, or null if it is not being sent with one.
+	 */
+	private TransferWindow windowFor(String file)
+	{
+		if (file == null) return null;
+		
+		FileTransfer transfer = transfers.get(file);
+		return (transfer != null) ? transfer.getWindow() : null;
+	}
+	
+	/**
+	 * Sends a packet to the remote host via the server's
+	 * {@link Transmitter}.
+	 *
+	 * <p>Connect and AcceptConnection packets are always sent as text, since
+	 * the remote host may not understand any other format; all other packets
+	 * are sent in the connection's negotiated {@link #getFormat format}.</p>
+	 *
+	 * <p>Packets are sent from the server's own port whenever the server is
+	 * running, through the connection's control flow, ahead of any queued
+	 * file segments.</p>
 	 *
 	 * @param packet
 	 *     The packet to send.
@@ -454,28 +744,45 @@ public class SnodesConnection
 	 *     If an I/O error occurs while sending the packet.
 	 */
 	void sendPacket(Packet packet) throws IOException
+	{
+		sendPacket(packet, control);
+	}
+	
+	/**
+	 * Sends a packet to the remote host through the given flow.
+	 *
+	 * <p>If the kernel's send buffer is full or a rate limit has been
+	 * reached, the packet is queued; if too many packets are already queued
+	 * in the flow, this waits until there is room.</p>
+	 *
+	 * @param packet
+	 *     The packet to send.
+	 * @param flow
+	 *     The flow, from {@link #newFlow}.
+	 * @throws IOException
+	 *     If an I/O error occurs while sending the packet.
+	 * @see Transmitter
+	 */
+	void sendPacket(Packet packet, Transmitter.Flow flow) throws IOException
 	{
 		if (packet == null) return;
 		
 		logger.fine("Attempting to send packet " + packet.getType() + "...");
 		logger.finest("Packet is:\n" + packet);
 		
-		DatagramSocket socket = new DatagramSocket();
-		DatagramPacket dgram = null;
 		byte[] bytes = null;
 		
 		switch (packet.getType()) {
 		case Connect:
 		case AcceptConnection:
-			bytes = packet.toByteArray(passkey);
+			bytes = packet.toByteArray(passkey, Packet.Format.TEXT);
 			break;
 		default:
-			bytes = packet.toByteArray(encryptKey);
+			bytes = packet.toByteArray(encryptKey, format);
 			break;
 		}
 		
-		dgram = new DatagramPacket(bytes, bytes.length, host, SnodesServer.PORT);
-		socket.send(dgram);
+		SnodesServer.getInstance().getTransmitter().send(ByteBuffer.wrap(bytes), target, flow);
 	}
 	
 	
@@ -24,12 +24,18 @@ package snodes.net;
 
 import net.jcip.annotations.GuardedBy;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,7 +55,7 @@ import java.util.logging.Logger;
  * server.start();
  * </pre>
  *
- * <p>The server runs in its own thread, and will be shut down automatically when
+ * <p>The server runs in its own threads, and will be shut down automatically when
  * the Java VM exits. There is no way to manually stop or restart the server.</p>
  *
  * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
@@ -69,29 +75,52 @@ public class SnodesServer
 	static final int UDP_REAL_MAX = 8192;
 	/** The maximum size of a UDP datagram sent via the Snodes protocol. */
 	static final int UDP_SNODES_MAX = UDP_REAL_MAX;
+	/** The number of receive buffers in the server's receive ring. */
+	static final int RING_SIZE = 64;
 	
 	/** The singleton instance of the server. */
 	private static SnodesServer singleton = null;
 	
-	/** The thread on which the server runs. */
-	private Thread thread;
+	/** The port on which the server listens, which is {@link #PORT} except in tests. */
+	private final int port;
+	/** The receive loops, one for each socket bound to the port. */
+	@GuardedBy("this")
+	private List<Shard> shards;
+	/** The number of receive loops to start. */
+	@GuardedBy("this")
+	private int shardCount;
 	/** The object responsible for tracking connections. */
 	private ConnectionManager connectionManager;
+	/** The stages that incoming datagrams pass through. */
+	private final ReceivePipeline pipeline;
+	/** Sends outgoing datagrams for every connection. */
+	private final Transmitter transmitter;
+	/** Puts fragmented segments from every connection back together. */
+	private final Reassembler reassembler;
 	
 	/** Creates a new instance of SnodesServer. */
 	private SnodesServer()
 	{
+		this(PORT);
+	}
+	
+	/**
+	 * Creates a server that listens on the given port. Only the
+	 * {@link #getInstance singleton} listens on {@link #PORT}, the port to
+	 * which every connection sends.
+	 *
+	 * @param port
+	 *     The port.
+	 */
+	SnodesServer(int port)
+	{
+		this.port = port;
 		connectionManager = null;
-		
-		Runnable runner = new Runnable() {
-			public void run() {
-				listen();
-			}
-		};
-		
-		thread = new Thread(runner, "Server Thread");
-		thread.setUncaughtExceptionHandler(new DefaultExceptionHandler());
-		thread.setDaemon(true); // Quit when Java VM exits
+		pipeline = new ReceivePipeline();
+		transmitter = new Transmitter();
+		reassembler = new Reassembler();
+		shards = null;
+		shardCount = 1;
 	}
 	
 	/**
@@ -110,99 +139,193 @@ public class SnodesServer
 	/**
 	 * Starts the server.<p>
 	 *
-	 * The server runs on its own thread and will terminate when the JVM exits.
+	 * The server runs on its own threads (one for each
+	 * {@link #setShards shard}) and will terminate when the JVM exits.
 	 *
 	 * @throws IllegalStateException
 	 *     If the server is already running.
 	 */
-	public void start() throws IllegalStateException
+	@GuardedBy("this")
+	public synchronized void start() throws IllegalStateException
 	{
-		if (thread.getState() == Thread.State.NEW) {
-			thread.start();
-		} else {
-			throw new IllegalStateException("Server already running");
+		if (shards != null) throw new IllegalStateException("Server already running");
+		
+		int count = shardCount;
+		if (count > 1 && !isReusePortSupported()) {
+			logger.warning("SO_REUSEPORT is not supported; starting 1 receive shard instead of " + count);
+			count = 1;
+		}
+		
+		shards = new ArrayList<Shard>(count);
+		for (int i = 0; i < count; i++) {
+			shards.add(new Shard(i, count > 1));
+		}
+		for (Shard shard : shards) {
+			shard.thread.start();
 		}
 	}
 	
-	/** Parses the packets from the network stream. */
-	private void listen()
+	/**
+	 * Stops the server's receive loops and waits for them to close their
+	 * sockets. The singleton is never stopped; this is for servers created
+	 * by tests.
+	 *
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting.
+	 */
+	@GuardedBy("this")
+	synchronized void stop() throws InterruptedException
 	{
-		try {
-			DatagramSocket socket = new DatagramSocket(PORT);
+		if (shards == null) return;
 		
-			logger.info("Starting server: OK");
-		
-			while (!thread.isInterrupted()) {
-				byte[] data = new byte[UDP_MAX];
-				
-				final DatagramPacket dgram = new DatagramPacket(data, UDP_MAX);
-				
-				try {
-					socket.receive(dgram);
-					
-					// Run the packet parser in an independent thread; this way,
-					// if the parser crashes (as it sometimes does), it won't
-					// take down the whole server with it.
-					Runnable parseRunner = new Runnable() {
-						public void run() {
-							processDatagram(dgram);
-						}
-					};
-					Thread parser = new Thread(parseRunner, "Packet Parser Thread");
-					parser.setUncaughtExceptionHandler(new DefaultExceptionHandler());
-					
-					parser.start();
-				} catch (IOException e) {
-					logger.warning("Server error: " + e.getMessage());
-				}
-				
-				Thread.yield(); // Let other threads execute
+		for (Shard shard : shards) {
+			shard.thread.interrupt(); // Also wakes the shard's selector
+		}
+		for (Shard shard : shards) {
+			shard.thread.join();
+		}
+		shards = null;
+	}
+	
+	/**
+	 * Returns the number of shards whose sockets are bound and receiving.
+	 * Shards bind their sockets on their own threads, so this may be less
+	 * than the number started for a moment after the server is started, or
+	 * for good if a socket cannot be bound.
+	 *
+	 * @return
+	 *     The number of shards that are listening on the port.
+	 */
+	@GuardedBy("this")
+	synchronized int getListeningShards()
+	{
+		int n = 0;
+		if (shards != null) {
+			for (Shard shard : shards) {
+				if (shard.listening) n++;
 			}
-			
-			logger.info("Stopping server: OK");
-		} catch (SocketException e) {
-			logger.log(Level.SEVERE, "Starting server: FAILED", e);
 		}
+		return n;
 	}
 	
 	/**
-	 * Processes an incoming datagram.
+	 * Sets the number of sockets on which the server receives datagrams. This
+	 * must be called before the server is {@link #start started}.
+	 *
+	 * <p>When more than one shard is requested, each shard binds its own socket
+	 * to {@link #PORT} with <tt>SO_REUSEPORT</tt> and runs its own receive loop
+	 * on its own thread. The operating system hashes each peer onto one of the
+	 * sockets, so the work of receiving datagrams is spread across cores while
+	 * datagrams from any one peer are always received, in order, by the same
+	 * shard. One shard per processor is a reasonable choice:</p>
+	 *
+	 * <pre>
+	 * server.setShards(Runtime.getRuntime().availableProcessors());
+	 * </pre>
+	 *
+	 * <p>If the platform does not support <tt>SO_REUSEPORT</tt>, the server
+	 * falls back to a single shard.</p>
 	 *
-	 * @param dgram
-	 *     The datagram.
+	 * @param count
+	 *     The number of shards.
+	 * @throws IllegalArgumentException
+	 *     If count is not positive.
+	 * @throws IllegalStateException
+	 *     If the server is already running.
 	 */
-	private void processDatagram(DatagramPacket dgram)
+	@GuardedBy("this")
+	public synchronized void setShards(int count) throws IllegalArgumentException, IllegalStateException
 	{
-		InetAddress host = dgram.getAddress();
-		byte[] data = dgram.getData();
-		int len = dgram.getLength();
-		Packet packet = null;
+		if (count < 1) throw new IllegalArgumentException("count must be positive: " + count);
+		if (shards != null) throw new IllegalStateException("Server already running");
 		
-		SnodesConnection conn = connectionManager.getConnection(host); // null if not validated
-		if (conn != null) {
-			packet = Packet.fromBytes(data, len, conn.getKey());
-			processPacket(packet, host);
-		}
+		shardCount = count;
 	}
 	
 	/**
-	 * Processes incoming packets.
+	 * Returns true if datagram sockets on this platform support
+	 * <tt>SO_REUSEPORT</tt>.
 	 *
-	 * @param packet
-	 *     The packet.
-	 * @param host
-	 *     The host that sent the packet.
+	 * @return
+	 *     true if <tt>SO_REUSEPORT</tt> can be used.
 	 */
-	private void processPacket(Packet packet, InetAddress host)
+	private static boolean isReusePortSupported()
 	{
-		SnodesConnection conn = connectionManager.getConnection(host);
-		if (conn != null) {
-			conn.processPacket(packet);
-		} else {
-			logger.warning("No destination for packet: " + host);
+		DatagramChannel channel = null;
+		
+		try {
+			channel = DatagramChannel.open();
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			close(channel);
 		}
 	}
 	
+	/**
+	 * Returns the pipeline through which incoming datagrams are processed.
+	 * The pipeline's stages can be resized, and queried for their queue
+	 * depths and for the number of datagrams they have processed or dropped.
+	 *
+	 * @return
+	 *     The server's receive pipeline.
+	 */
+	public ReceivePipeline getPipeline()
+	{
+		return pipeline;
+	}
+	
+	/**
+	 * Returns the object through which connections send their datagrams.
+	 * Once the server is running, datagrams are sent from the server's own
+	 * port.
+	 *
+	 * @return
+	 *     The server's transmitter.
+	 */
+	Transmitter getTransmitter()
+	{
+		return transmitter;
+	}
+	
+	/**
+	 * Limits the rate at which this node sends, to all remote hosts
+	 * together.
+	 *
+	 * @param rate
+	 *     The rate, in bytes per second, or 0 for no limit.
+	 * @see SnodesConnection#setRateLimit
+	 */
+	public void setRateLimit(long rate)
+	{
+		transmitter.setRateLimit(rate);
+	}
+	
+	/**
+	 * Returns the limit on the rate at which this node sends.
+	 *
+	 * @return
+	 *     The rate, in bytes per second, or 0 if there is no limit.
+	 */
+	public long getRateLimit()
+	{
+		return transmitter.getRateLimit();
+	}
+	
+	/**
+	 * Returns the object that puts fragmented segments back together. It is
+	 * shared by every connection, so that all of them together stay within
+	 * its memory budget.
+	 *
+	 * @return
+	 *     The server's reassembler.
+	 */
+	Reassembler getReassembler()
+	{
+		return reassembler;
+	}
+	
 	/**
 	 * Sets the object responsible for tracking connections. This object will be
 	 * queried for connection information.<p>
@@ -218,6 +341,190 @@ public class SnodesServer
 	}
 	
 	
+	/**
+	 * Closes a channel or selector, ignoring any errors.
+	 *
+	 * @param c
+	 *     The object to close. May be null.
+	 */
+	private static void close(Closeable c)
+	{
+		if (c == null) return;
+		
+		try {
+			c.close();
+		} catch (IOException e) {
+			// Ignore.
+		}
+	}
+	
+	
+	/**
+	 * A receive loop bound to its own socket on the server's port. Each shard has
+	 * its own selector, receive ring, and thread.
+	 */
+	private class Shard implements Runnable
+	{
+		/** The shard's index. */
+		private final int index;
+		/** True if the shard's socket should be bound with SO_REUSEPORT. */
+		private final boolean reusePort;
+		/** The buffers into which the shard receives datagrams. */
+		private final BufferRing ring;
+		/** The thread on which the shard runs. */
+		private final Thread thread;
+		/** True while the shard's socket is bound and being read. */
+		private volatile boolean listening;
+		
+		/**
+		 * Creates a new shard. The shard does not start until its thread is
+		 * started.
+		 *
+		 * @param index
+		 *     The shard's index.
+		 * @param reusePort
+		 *     True if the shard shares the port with other shards.
+		 */
+		private Shard(int index, boolean reusePort)
+		{
+			this.index = index;
+			this.reusePort = reusePort;
+			this.ring = new BufferRing(RING_SIZE, UDP_MAX);
+			this.thread = new Thread(this, index == 0 ? "Server Thread" : "Server Thread-" + index);
+			thread.setUncaughtExceptionHandler(new DefaultExceptionHandler());
+			thread.setDaemon(true); // Quit when Java VM exits
+			this.listening = false;
+		}
+		
+		/** Parses the packets from the network stream. */
+		public void run()
+		{
+			DatagramChannel channel = null;
+			Selector selector = null;
+			SelectionKey key = null;
+			
+			try {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false);
+				if (reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channel.bind(new InetSocketAddress(port));
+				selector = Selector.open();
+				key = channel.register(selector, SelectionKey.OP_READ);
+				
+				// Wakes the selector once a buffer is free again, if the ring
+				// ran out and reading had to stop.
+				final Selector waker = selector;
+				Runnable resume = new Runnable() {
+					public void run() {
+						waker.wakeup();
+					}
+				};
+				
+				// The first shard's channel is also used to send datagrams, so
+				// replies come from the port on which we listen.
+				if (index == 0) transmitter.attach(key);
+				
+				listening = true;
+				logger.info("Starting server (shard " + index + "): OK");
+				
+				while (!thread.isInterrupted()) {
+					try {
+						if (selector.select() > 0) {
+							selector.selectedKeys().clear();
+							if (key.isWritable()) flush();
+							if (key.isReadable()) receive(channel, key, resume);
+						}
+						if ((key.interestOps() & SelectionKey.OP_READ) == 0 && ring.available() > 0) {
+							key.interestOpsOr(SelectionKey.OP_READ);
+						}
+					} catch (IOException e) {
+						logger.warning("Server error: " + e.getMessage());
+					}
+				}
+				
+				logger.info("Stopping server (shard " + index + "): OK");
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Starting server (shard " + index + "): FAILED", e);
+			} finally {
+				listening = false;
+				if (key != null) transmitter.detach(key);
+				close(selector);
+				close(channel);
+			}
+		}
+		
+		/**
+		 * Sends the transmitter's queued datagrams. A failure to send is only
+		 * logged, so that it cannot keep the shard from receiving.
+		 */
+		private void flush()
+		{
+			try {
+				transmitter.flush();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot send queued datagrams (shard " + index + ")", e);
+			}
+		}
+		
+		/**
+		 * Reads every datagram that is waiting on the channel. Each datagram is
+		 * read into a buffer from the shard's receive ring and handed off to the
+		 * receive pipeline, which returns the buffer to the ring once it is done
+		 * with it.
+		 *
+		 * <p>This runs on the same thread that sends the transmitter's queued
+		 * datagrams, so it never waits for a buffer. If the ring runs out, the
+		 * shard stops reading from the channel until a buffer is released, and
+		 * the datagrams wait in the kernel's receive buffer (or are dropped by
+		 * the kernel, if it fills up) in the meantime.</p>
+		 *
+		 * @param channel
+		 *     The channel from which to read.
+		 * @param key
+		 *     The channel's selection key.
+		 * @param resume
+		 *     Run once a buffer is free again, if the ring runs out.
+		 * @throws IOException
+		 *     If an I/O error occurs.
+		 */
+		private void receive(DatagramChannel channel, SelectionKey key, Runnable resume) throws IOException
+		{
+			while (true) {
+				ByteBuffer buf = ring.tryAcquire(resume);
+				if (buf == null) {
+					logger.finer("Receive ring is full; pausing shard " + index);
+					key.interestOpsAnd(~SelectionKey.OP_READ);
+					return;
+				}
+				
+				SocketAddress addr = null;
+				
+				try {
+					addr = channel.receive(buf);
+				} finally {
+					if (addr == null) ring.release(buf);
+				}
+				
+				if (addr == null) return; // Nothing left to read
+				
+				buf.flip();
+				InetAddress host = ((InetSocketAddress) addr).getAddress();
+				
+				SnodesConnection conn = connectionManager.getConnection(host); // null if not validated
+				if (conn != null) {
+					// The rest of the work happens on the pipeline's threads;
+					// this way, if the parser crashes (as it sometimes does),
+					// it won't take down the whole server with it.
+					pipeline.submit(buf, ring, conn);
+				} else {
+					ring.release(buf);
+					logger.finer("No destination for packet: " + host);
+				}
+			}
+		}
+	}
+	
+	
 	/** Default exception handler for uncaught exceptions. */
 	private static class DefaultExceptionHandler implements Thread.UncaughtExceptionHandler
 	{
@@ -0,0 +1,861 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import snodes.fs.MerkleTree;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * Downloads one shared file from several remote hosts at once.
+ *
+ * <p>Each segment is requested from one {@link #addPeer peer} at a time with a
+ * RequestAgain packet, which every sender answers by sending that segment.
+ * Every peer is kept busy with a few requests at once, and the number of
+ * requests it is given grows with the rate at which it has been delivering
+ * segments and with its round-trip time, so a fast peer ends up sending many
+ * more segments than a slow one. A request that is not answered in time is
+ * handed to another peer; a peer that keeps failing to answer, or that sends
+ * a segment whose checksum is wrong, is dropped, and its outstanding segments
+ * go back to the others.</p>
+ *
+ * <p>Once every missing segment has been requested, the download enters
+ * <em>endgame</em>: peers with room to spare ask for the segments still
+ * outstanding with other peers too, so the last few segments are not held up
+ * by the slowest peer. Whichever copy arrives first is kept.</p>
+ *
+ * <p>If peers send {@link FileTransfer#setParity parity} segments, a segment
+ * that is lost on the way is rebuilt from its group's parity as soon as
+ * the rest of the group has arrived, rather than waiting for it to time out
+ * and be requested again. Parity is ignored once a {@link #setRoot root} is
+ * set, since rebuilt segments come without a proof.</p>
+ *
+ * <p>For example, to download a file from two hosts into the downloads
+ * directory:</p>
+ *
+ * <pre>
+ * final FileWrite writer = FileWrite.getInstance();
+ * writer.readyFile(name, segSize, segments);
+ *
+ * SwarmDownload swarm = new SwarmDownload(name, writer.getSegmentStatus(name), new SwarmDownload.Sink() {
+ *     public void write(int seg, ByteBuffer data) throws IOException {
+ *         writer.writeSegment(name, data, seg);
+ *     }
+ * });
+ * swarm.addPeer(conn1);
+ * swarm.addPeer(conn2);
+ * swarm.start();
+ * swarm.await(0);
+ * </pre>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+public final class SwarmDownload
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The number of requests a new peer is given. */
+	static final int INITIAL_DEPTH = 2;
+	/** The most requests a peer may be given at once. */
+	static final int MAX_DEPTH = 64;
+	/** How long to wait for a segment before anything is known about a peer. */
+	static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+	/** The shortest time to wait for a segment. */
+	static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+	/** The longest time to wait for a segment. */
+	static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+	/** The number of failures in a row after which a peer is dropped. */
+	static final int MAX_FAILURES = 4;
+	/** How often outstanding requests are checked, in milliseconds. */
+	static final long TICK = 250L;
+	
+	/** The name of the shared file. */
+	private final String shareName;
+	/** The number of segments in the file. */
+	private final int segments;
+	/** Where received segments are written. */
+	private final Sink sink;
+	/** Receives segments from every peer. */
+	private final Receiver receiver;
+	/** The segments that have been written. */
+	@GuardedBy("this")
+	private final BitSet have;
+	/** The segments that have been requested from at least one peer. */
+	@GuardedBy("this")
+	private final BitSet requested;
+	/** The peers, by connection. */
+	@GuardedBy("this")
+	private final Map<SnodesConnection, Peer> peers;
+	/** The timer that checks outstanding requests. */
+	@GuardedBy("this")
+	private ScheduledFuture<?> ticker;
+	/** The number of segments that arrived more than once. */
+	@GuardedBy("this")
+	private long duplicates;
+	/** True once the download has started. */
+	@GuardedBy("this")
+	private boolean started;
+	/** True once every segment has been written or the download was cancelled. */
+	@GuardedBy("this")
+	private boolean done;
+	/** The root of the file's hash tree, if known. */
+	private volatile byte[] root;
+	/** Rebuilds lost segments from parity. */
+	private final ParityDecoder decoder;
+	
+	/**
+	 * Creates a new download. Nothing is requested until it is
+	 * {@link #start started}.
+	 *
+	 * @param shareName
+	 *     The name of the shared file.
+	 * @param status
+	 *     For each segment of the file, true if it has already been written,
+	 *     as {@link snodes.fs.FileInfo#segmentStatusArray} returns it. Only
+	 *     the other segments are downloaded.
+	 * @param sink
+	 *     Where received segments are written.
+	 */
+	public SwarmDownload(String shareName, boolean[] status, Sink sink)
+	{
+		this.shareName = shareName;
+		this.segments = status.length;
+		this.sink = sink;
+		this.receiver = new Receiver();
+		this.have = new BitSet(segments);
+		this.requested = new BitSet(segments);
+		this.peers = new LinkedHashMap<SnodesConnection, Peer>();
+		this.ticker = null;
+		this.duplicates = 0L;
+		this.started = false;
+		this.done = false;
+		this.root = null;
+		this.decoder = new ParityDecoder();
+		
+		for (int i = 0; i < segments; i++) {
+			if (status[i]) have.set(i);
+		}
+	}
+	
+	/**
+	 * Sets the root of the file's hash tree, as given by the remote host's
+	 * {@link Message.ConfirmFileRequest#getRoot ConfirmFileRequest}. From
+	 * then on, every segment must carry a proof that matches the root;
+	 * segments that do not are treated as corrupt, whichever peer sent them.
+	 * Without a root, segments are only checked against their CRC-32, which
+	 * catches damage in transit but not a peer with the wrong file.
+	 *
+	 * @param root
+	 *     The root hash.
+	 */
+	public void setRoot(byte[] root)
+	{
+		this.root = root.clone();
+	}
+	
+	/**
+	 * Adds a remote host from which to download segments. Peers may be added
+	 * at any time, even after the download has started.
+	 *
+	 * @param conn
+	 *     A connection to a host that has the whole file.
+	 */
+	public void addPeer(SnodesConnection conn)
+	{
+		List<Request> toSend = null;
+		
+		synchronized (this) {
+			if (done || peers.containsKey(conn)) return;
+			
+			peers.put(conn, new Peer(conn.createTransfer(shareName)));
+			conn.addListener(receiver, receiver);
+			if (started) toSend = assign();
+		}
+		
+		send(toSend);
+	}
+	
+	/**
+	 * Stops downloading from a remote host. Its outstanding segments are
+	 * requested from the other peers.
+	 *
+	 * @param conn
+	 *     The connection.
+	 */
+	public void removePeer(SnodesConnection conn)
+	{
+		List<Request> toSend = null;
+		
+		synchronized (this) {
+			if (!drop(conn)) return;
+			toSend = assign();
+		}
+		
+		send(toSend);
+	}
+	
+	/**
+	 * Starts requesting segments.
+	 *
+	 * @throws IllegalStateException
+	 *     If the download has already started.
+	 */
+	public void start() throws IllegalStateException
+	{
+		List<Request> toSend = null;
+		
+		synchronized (this) {
+			if (started) throw new IllegalStateException("Download already started");
+			started = true;
+			
+			if (have.cardinality() >= segments) {
+				finish();
+				return;
+			}
+			
+			Runnable task = new Runnable() {
+				public void run() {
+					tick();
+				}
+			};
+			ticker = TransferWindow.timer.scheduleWithFixedDelay(task, TICK, TICK, TimeUnit.MILLISECONDS);
+			toSend = assign();
+		}
+		
+		send(toSend);
+	}
+	
+	/**
+	 * Stops the download. Segments that have already been requested may still
+	 * arrive, but are ignored.
+	 */
+	public void cancel()
+	{
+		synchronized (this) {
+			finish();
+		}
+	}
+	
+	/**
+	 * Handles a segment from a peer.
+	 *
+	 * @param conn
+	 *     The connection on which the segment arrived.
+	 * @param msg
+	 *     The segment.
+	 */
+	private void received(SnodesConnection conn, Message.TransferFile msg)
+	{
+		int seg = msg.getSegment();
+		ByteBuffer data = null;
+		
+		if (msg.isParity()) {
+			receivedParity(conn, msg);
+			return;
+		}
+		
+		synchronized (this) {
+			if (done || seg < 0 || seg >= segments) return;
+			if (have.get(seg)) {
+				duplicates++;
+				return;
+			}
+		}
+		
+		boolean valid = false;
+		try {
+			data = FileTransfer.getSegmentData(msg);
+			byte[] r = root;
+			valid = (r == null)
+				? checksum(data) == msg.getHash()
+				: MerkleTree.verify(r, segments, seg, data, msg.getProof());
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Bad segment " + seg + " of " + shareName + " from " + conn, e);
+		} catch (IllegalArgumentException e) {
+			logger.log(Level.FINE, "Bad proof for segment " + seg + " of " + shareName + " from " + conn, e);
+		}
+		
+		if (!valid) {
+			logger.info("Dropping " + conn + " from download of " + shareName + ": segment " + seg + " is corrupt");
+			removePeer(conn);
+			return;
+		}
+		
+		// Segments may be written by several peers' threads at once, but
+		// never the same segment twice.
+		synchronized (this) {
+			if (done || have.get(seg)) {
+				duplicates++;
+				return;
+			}
+			have.set(seg);
+		}
+		
+		boolean written = write(seg, data);
+		ParityDecoder.Segment rebuilt = (written && root == null) ? decoder.add(msg, data) : null;
+		
+		settle(conn, seg, written, data.remaining());
+		if (rebuilt != null) rebuilt(rebuilt);
+	}
+	
+	/**
+	 * Handles a parity segment from a peer.
+	 *
+	 * @param conn
+	 *     The connection on which the segment arrived.
+	 * @param msg
+	 *     The parity segment.
+	 */
+	private void receivedParity(SnodesConnection conn, Message.TransferFile msg)
+	{
+		if (root != null) return;
+		synchronized (this) {
+			if (done) return;
+		}
+		
+		boolean valid = false;
+		ByteBuffer data = null;
+		try {
+			data = FileTransfer.getSegmentData(msg);
+			valid = checksum(data) == msg.getHash();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Bad parity segment " + msg.getSegment() + " of " + shareName + " from " + conn, e);
+		}
+		
+		if (!valid) {
+			logger.info("Dropping " + conn + " from download of " + shareName + ": parity segment is corrupt");
+			removePeer(conn);
+			return;
+		}
+		
+		ParityDecoder.Segment rebuilt = decoder.add(msg, data);
+		if (rebuilt != null) rebuilt(rebuilt);
+	}
+	
+	/**
+	 * Writes a segment that was rebuilt from parity. No peer is credited
+	 * with it, but any outstanding requests for it are forgotten.
+	 *
+	 * @param rebuilt
+	 *     The segment.
+	 */
+	private void rebuilt(ParityDecoder.Segment rebuilt)
+	{
+		int seg = rebuilt.getSegment();
+		ByteBuffer data = rebuilt.getData();
+		
+		synchronized (this) {
+			if (done || seg >= segments || have.get(seg)) return;
+			have.set(seg);
+		}
+		
+		logger.fine("Rebuilt segment " + seg + " of " + shareName + " from parity");
+		settle(null, seg, write(seg, data), data.remaining());
+	}
+	
+	/** Writes a segment that has been claimed in {@link #have}, returning true if it was written. */
+	private boolean write(int seg, ByteBuffer data)
+	{
+		try {
+			sink.write(seg, data.duplicate());
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write segment " + seg + " of " + shareName, e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Updates the download once a segment has been written, or has failed to
+	 * be, and hands out more requests.
+	 *
+	 * @param conn
+	 *     The peer that sent the segment, or null if it was rebuilt.
+	 * @param seg
+	 *     The segment number.
+	 * @param written
+	 *     true if the segment was written.
+	 * @param bytes
+	 *     The size of the segment.
+	 */
+	private void settle(SnodesConnection conn, int seg, boolean written, int bytes)
+	{
+		List<Request> toSend = null;
+		
+		synchronized (this) {
+			if (!written) {
+				have.clear(seg);
+				requested.clear(seg);
+			}
+			
+			long now = System.nanoTime();
+			for (Peer p : peers.values()) {
+				Long sentAt = p.outstanding.remove(Integer.valueOf(seg));
+				if (sentAt != null && written && p.transfer.getConnection() == conn) {
+					p.delivered(now, now - sentAt.longValue(), bytes);
+				}
+			}
+			
+			if (have.cardinality() >= segments) {
+				finish();
+				return;
+			}
+			toSend = assign();
+		}
+		
+		send(toSend);
+	}
+	
+	/** Hands requests that took too long to other peers. This is run by the timer. */
+	private void tick()
+	{
+		List<Request> toSend = null;
+		
+		synchronized (this) {
+			if (done) return;
+			
+			long now = System.nanoTime();
+			List<SnodesConnection> dead = new ArrayList<SnodesConnection>();
+			
+			for (Peer p : peers.values()) {
+				Iterator<Map.Entry<Integer, Long>> iter = p.outstanding.entrySet().iterator();
+				boolean failed = false;
+				
+				while (iter.hasNext()) {
+					Map.Entry<Integer, Long> entry = iter.next();
+					if (now - entry.getValue().longValue() < p.timeout()) continue;
+					
+					iter.remove();
+					if (!requestedElsewhere(entry.getKey().intValue())) requested.clear(entry.getKey().intValue());
+					failed = true;
+				}
+				
+				if (failed && p.failed() >= MAX_FAILURES) dead.add(p.transfer.getConnection());
+			}
+			
+			for (SnodesConnection conn : dead) {
+				logger.info("Dropping " + conn + " from download of " + shareName + ": not responding");
+				drop(conn);
+			}
+			
+			toSend = assign();
+		}
+		
+		send(toSend);
+	}
+	
+	/**
+	 * Gives every peer as many requests as it has room for: missing segments
+	 * that no one has been asked for first, and then, in endgame, segments
+	 * that other peers have not sent yet.
+	 */
+	@GuardedBy("this")
+	private List<Request> assign()
+	{
+		List<Request> toSend = new ArrayList<Request>();
+		if (done || !started || peers.isEmpty()) return toSend;
+		
+		long now = System.nanoTime();
+		int next = nextUnrequested(0);
+		boolean progress = true;
+		
+		// Deal requests out one at a time, so that every peer with room gets
+		// some of the earliest segments.
+		while (next >= 0 && progress) {
+			progress = false;
+			for (Peer p : peers.values()) {
+				if (next < 0) break;
+				if (p.outstanding.size() >= p.depth()) continue;
+				
+				p.outstanding.put(Integer.valueOf(next), Long.valueOf(now));
+				requested.set(next);
+				toSend.add(new Request(p, next));
+				next = nextUnrequested(next + 1);
+				progress = true;
+			}
+		}
+		
+		if (next < 0 && peers.size() > 1) {
+			// Endgame: there is nothing left that nobody has been asked
+			// for, so idle peers race the others for what is outstanding.
+			for (Peer p : peers.values()) {
+				for (int i = have.nextClearBit(0); i < segments && p.outstanding.size() < p.depth(); i = have.nextClearBit(i + 1)) {
+					Integer key = Integer.valueOf(i);
+					if (p.outstanding.containsKey(key)) continue;
+					
+					p.outstanding.put(key, Long.valueOf(now));
+					toSend.add(new Request(p, i));
+				}
+			}
+		}
+		
+		return toSend;
+	}
+	
+	/** Returns the first missing segment from the given one on that no one has been asked for, or -1. */
+	@GuardedBy("this")
+	private int nextUnrequested(int from)
+	{
+		for (int i = have.nextClearBit(from); i < segments; i = have.nextClearBit(i + 1)) {
+			if (!requested.get(i)) return i;
+		}
+		return -1;
+	}
+	
+	/** Returns true if some peer has an outstanding request for the segment. */
+	@GuardedBy("this")
+	private boolean requestedElsewhere(int seg)
+	{
+		Integer key = Integer.valueOf(seg);
+		for (Peer p : peers.values()) {
+			if (p.outstanding.containsKey(key)) return true;
+		}
+		return false;
+	}
+	
+	/** Removes a peer, freeing its outstanding segments. Returns false if it was not a peer. */
+	@GuardedBy("this")
+	private boolean drop(SnodesConnection conn)
+	{
+		Peer p = peers.remove(conn);
+		if (p == null) return false;
+		
+		conn.removeListener(receiver);
+		for (Integer seg : p.outstanding.keySet()) {
+			if (!requestedElsewhere(seg.intValue())) requested.clear(seg.intValue());
+		}
+		p.outstanding.clear();
+		return true;
+	}
+	
+	/** Marks the download as done, stopping the timer and leaving every peer. */
+	@GuardedBy("this")
+	private void finish()
+	{
+		if (done) return;
+		
+		done = true;
+		if (ticker != null) ticker.cancel(false);
+		ticker = null;
+		for (SnodesConnection conn : peers.keySet()) {
+			conn.removeListener(receiver);
+		}
+		notifyAll();
+		logger.fine("Finished downloading " + shareName + " (" + duplicates + " duplicate segments)");
+	}
+	
+	/** Sends requests. This is done without holding the download's lock, since sending can block. */
+	private void send(List<Request> toSend)
+	{
+		if (toSend == null) return;
+		
+		for (Request r : toSend) {
+			try {
+				r.peer.transfer.request(r.segment);
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Cannot request segment " + r.segment + " from " + r.peer.transfer.getConnection(), e);
+			}
+		}
+	}
+	
+	/** Returns the CRC-32 of a segment's bytes. */
+	private static long checksum(ByteBuffer data)
+	{
+		CRC32 crc = new CRC32();
+		ByteBuffer buf = data.duplicate();
+		
+		if (buf.hasArray()) {
+			crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		} else {
+			byte[] bytes = new byte[buf.remaining()];
+			buf.get(bytes);
+			crc.update(bytes, 0, bytes.length);
+		}
+		return crc.getValue();
+	}
+	
+	/**
+	 * Waits until every segment has been written or the download has been
+	 * cancelled.
+	 *
+	 * @param millis
+	 *     The longest time to wait, in milliseconds, or 0 to wait forever.
+	 * @return
+	 *     true if the download is done.
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting.
+	 */
+	public synchronized boolean await(long millis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + millis;
+		
+		while (!done) {
+			long left = (millis == 0L) ? 0L : deadline - System.currentTimeMillis();
+			if (millis != 0L && left <= 0L) break;
+			wait(left);
+		}
+		return done;
+	}
+	
+	/**
+	 * Returns true if the download is done, either because every segment has
+	 * been written or because it was cancelled.
+	 *
+	 * @return
+	 *     true if the download is done.
+	 */
+	public synchronized boolean isDone()
+	{
+		return done;
+	}
+	
+	/**
+	 * Returns the number of segments that have been written, including those
+	 * that had been before the download started.
+	 *
+	 * @return
+	 *     The number of segments written.
+	 */
+	public synchronized int getCompleted()
+	{
+		return have.cardinality();
+	}
+	
+	/**
+	 * Returns the connections from which segments are being downloaded.
+	 *
+	 * @return
+	 *     The current peers.
+	 */
+	public synchronized SnodesConnection[] getPeers()
+	{
+		return peers.keySet().toArray(new SnodesConnection[0]);
+	}
+	
+	/**
+	 * Returns the rate at which a peer has been sending segments.
+	 *
+	 * @param conn
+	 *     The peer's connection.
+	 * @return
+	 *     The peer's throughput, in bytes per second, or 0 if it is not a peer
+	 *     or has not sent anything yet.
+	 */
+	public synchronized long getThroughput(SnodesConnection conn)
+	{
+		Peer p = peers.get(conn);
+		return (p != null) ? (long) (p.rate * TimeUnit.SECONDS.toNanos(1)) : 0L;
+	}
+	
+	/**
+	 * Returns the segments that have been requested from a peer and have not
+	 * arrived yet.
+	 *
+	 * @param conn
+	 *     The peer's connection.
+	 * @return
+	 *     The peer's outstanding segments, in order, or an empty array if it
+	 *     is not a peer.
+	 */
+	public synchronized int[] getOutstanding(SnodesConnection conn)
+	{
+		Peer p = peers.get(conn);
+		if (p == null) return new int[0];
+		
+		int[] segs = new int[p.outstanding.size()];
+		int i = 0;
+		for (Integer seg : p.outstanding.keySet()) {
+			segs[i++] = seg.intValue();
+		}
+		Arrays.sort(segs);
+		return segs;
+	}
+	
+	/**
+	 * Returns a string representation of the download.
+	 *
+	 * @return
+	 *     A string representation of the download.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder buf = new StringBuilder("SwarmDownload");
+		buf.append(" <").append(shareName).append(">");
+		buf.append("[have=").append(have.cardinality()).append("/").append(segments);
+		buf.append(", peers=").append(peers.size());
+		buf.append(", duplicates=").append(duplicates);
+		buf.append(", rebuilt=").append(decoder.getRecovered());
+		buf.append("]");
+		return new String(buf);
+	}
+	
+	
+	/** Writes the segments of a download. */
+	public interface Sink
+	{
+		/**
+		 * Writes a segment. Each segment is written exactly once, but
+		 * different segments may be written by different threads at once.
+		 *
+		 * @param seg
+		 *     The segment number.
+		 * @param data
+		 *     The segment's bytes. The buffer may be reused once this returns,
+		 *     so it must be copied if it is kept.
+		 * @throws IOException
+		 *     If the segment cannot be written. It is requested again.
+		 */
+		void write(int seg, ByteBuffer data) throws IOException;
+	}
+	
+	
+	/** Passes the file's segments from every peer to the download. */
+	private final class Receiver implements PacketListener, PacketFilter
+	{
+		public boolean accept(Packet.Type type)
+		{
+			return type == Packet.Type.TransferFile;
+		}
+		
+		public void processPacket(SnodesConnection conn, Packet packet)
+		{
+			Message.TransferFile msg = (Message.TransferFile) packet.getMessage();
+			if (shareName.equals(msg.getShareName())) received(conn, msg);
+		}
+	}
+	
+	
+	/** A request for a segment from a peer. */
+	private static final class Request
+	{
+		private final Peer peer;
+		private final int segment;
+		
+		private Request(Peer peer, int segment)
+		{
+			this.peer = peer;
+			this.segment = segment;
+		}
+	}
+	
+	
+	/** What is known about a peer. */
+	private static final class Peer
+	{
+		/** The transfer through which segments are requested. */
+		private final FileTransfer transfer;
+		/** The outstanding requests, and the times at which they were sent. */
+		private final Map<Integer, Long> outstanding;
+		/** The smoothed time between requesting and receiving a segment, in nanoseconds. */
+		private long latency;
+		/** The shortest time between requesting and receiving a segment, in nanoseconds. */
+		private long minLatency;
+		/** The smoothed rate at which segments arrive, in bytes per nanosecond. */
+		private double rate;
+		/** The smoothed size of a segment, in bytes. */
+		private double segBytes;
+		/** The time at which the last segment arrived, in nanoseconds. */
+		private long lastArrival;
+		/** The number of requests in a row that were not answered in time. */
+		private int failures;
+		
+		private Peer(FileTransfer transfer)
+		{
+			this.transfer = transfer;
+			this.outstanding = new HashMap<Integer, Long>();
+			this.latency = 0L;
+			this.minLatency = Long.MAX_VALUE;
+			this.rate = 0.0;
+			this.segBytes = 0.0;
+			this.lastArrival = 0L;
+			this.failures = 0;
+		}
+		
+		/** Records a segment of the given size that took the given time to arrive. */
+		private void delivered(long now, long elapsed, int bytes)
+		{
+			elapsed = Math.max(elapsed, 1L);
+			latency = (latency == 0L) ? elapsed : (7 * latency + elapsed) / 8;
+			minLatency = Math.min(minLatency, elapsed);
+			segBytes = (segBytes == 0.0) ? bytes : 0.875 * segBytes + 0.125 * bytes;
+			
+			// While several requests are outstanding, segments arrive more
+			// often than once per round trip; the gap between them is what
+			// the peer can really deliver.
+			long gap = (lastArrival == 0L) ? elapsed : Math.max(Math.min(now - lastArrival, elapsed), 1L);
+			double sample = (double) bytes / gap;
+			rate = (rate == 0.0) ? sample : 0.875 * rate + 0.125 * sample;
+			lastArrival = now;
+			failures = 0;
+		}
+		
+		/** Records a request that was not answered in time, returning the failures in a row. */
+		private int failed()
+		{
+			return ++failures;
+		}
+		
+		/**
+		 * Returns the number of requests that the peer should have
+		 * outstanding: twice the segments it can deliver in its shortest
+		 * round trip, so that it never sits idle waiting for the next request.
+		 */
+		private int depth()
+		{
+			if (failures > 0) return 1;
+			if (rate == 0.0 || segBytes == 0.0) return INITIAL_DEPTH;
+			
+			int want = (int) Math.ceil(2.0 * rate * minLatency / segBytes);
+			return Math.max(INITIAL_DEPTH, Math.min(MAX_DEPTH, want));
+		}
+		
+		/** Returns how long to wait for a segment from the peer. */
+		private long timeout()
+		{
+			if (latency == 0L) return INITIAL_TIMEOUT;
+			return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, 4 * latency));
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Decodes packets in the text SFXP/1.0 format.
+ *
+ * <p>The decoder walks the packet's bytes in place, whether they are in a
+ * heap buffer or a direct one. Packet types and
+ * well-known property names are matched without creating strings, ints and
+ * longs are read straight from their digits into the packet's
+ * {@link Message}, and string values are not decoded at all: each is stored
+ * as a {@link Raw view} of its bytes, and only turned into a
+ * <code>String</code> if somebody asks for it. A segment's Data is therefore
+ * never copied while the packet is parsed.</p>
+ *
+ * <p>Quoted values may span several lines, as long Base64 values do; the
+ * value ends on the first line that ends with a quote.</p>
+ *
+ * <p>Text packets are encoded by {@link Packet#toString}.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+final class TextCodec
+{
+	/** Every packet type, in order. */
+	private static final Packet.Type[] TYPES = Packet.Type.values();
+	
+	// Don't create instances of this class
+	private TextCodec() {}
+	
+	/**
+	 * Decodes a packet.
+	 *
+	 * @param buf
+	 *     The unencrypted packet data. All of the remaining bytes are decoded,
+	 *     but the buffer's position is not changed. String values in the
+	 *     packet refer to the buffer's contents, so it must not be modified
+	 *     afterwards.
+	 * @return
+	 *     The decoded packet.
+	 * @throws IllegalArgumentException
+	 *     If the packet is in an invalid format.
+	 */
+	static Packet decode(ByteBuffer buf) throws IllegalArgumentException
+	{
+		// The bytes are read in place with absolute gets, so direct
+		// receive buffers are parsed without being copied first.
+		int pos = buf.position();
+		int end = buf.limit();
+		
+		// The first line is the type, optionally followed by the version.
+		// Sometimes the version is cut off, so it is ignored. - mpd
+		int eol = endOfLine(buf, pos, end);
+		int typeEnd = indexOf(buf, pos, eol, (byte) ' ');
+		Packet packet = new Packet(type(buf, pos, typeEnd < 0 ? trimEnd(buf, pos, eol) : typeEnd));
+		Message message = packet.getMessage();
+		
+		pos = nextLine(buf, eol, end);
+		
+		while (pos < end) {
+			eol = endOfLine(buf, pos, end);
+			int start = trimStart(buf, pos, eol);
+			
+			if (start == eol) { // Skip empty lines
+				pos = nextLine(buf, eol, end);
+				continue;
+			}
+			
+			int colon = indexOf(buf, start, eol, (byte) ':');
+			if (colon < 0) throw new IllegalArgumentException("Missing colon: " + string(buf, start, eol));
+			
+			int id = Property.id(buf, start, colon);
+			int valueStart = trimStart(buf, colon + 1, eol);
+			int valueEnd = trimEnd(buf, valueStart, eol);
+			
+			if (valueStart == valueEnd) throw new IllegalArgumentException("Missing value: " + string(buf, start, colon));
+			
+			if (buf.get(valueStart) == '"') { // Strings are quoted
+				// Keep reading lines until one ends with the closing quote
+				while (valueEnd - valueStart < 2 || buf.get(valueEnd - 1) != '"') {
+					if (eol >= end) throw new IllegalArgumentException("Unterminated string: " + string(buf, start, colon));
+					eol = endOfLine(buf, nextLine(buf, eol, end), end);
+					valueEnd = trimEnd(buf, valueStart, eol);
+				}
+				
+				Raw value = new Raw(buf, valueStart + 1, valueEnd - valueStart - 2, true);
+				if (!message.setRaw(id, value)) {
+					packet.putExtraProperty(string(buf, start, colon), value);
+				}
+			} else if (buf.get(valueEnd - 1) == 'L') { // If it's not a string, it can only be an int or a long
+				long value = number(buf, valueStart, valueEnd - 1, Long.MIN_VALUE, Long.MAX_VALUE);
+				if (!message.setNumber(id, value)) {
+					packet.putExtraProperty(string(buf, start, colon), Long.valueOf(value));
+				}
+			} else {
+				int value = (int) number(buf, valueStart, valueEnd, Integer.MIN_VALUE, Integer.MAX_VALUE);
+				if (!message.setNumber(id, value)) {
+					packet.putExtraProperty(string(buf, start, colon), Integer.valueOf(value));
+				}
+			}
+			
+			pos = nextLine(buf, eol, end);
+		}
+		
+		return packet;
+	}
+	
+	/** Returns the packet type named by the given bytes. */
+	private static Packet.Type type(ByteBuffer bytes, int start, int end)
+	{
+		for (Packet.Type type : TYPES) {
+			if (Property.matches(bytes, start, end, type.name())) return type;
+		}
+		throw new IllegalArgumentException(string(bytes, start, end));
+	}
+	
+	/** Reads a decimal number, checking that it is within the given range. */
+	private static long number(ByteBuffer bytes, int start, int end, long min, long max)
+	{
+		boolean negative = (start < end && bytes.get(start) == '-');
+		int i = negative ? start + 1 : start;
+		long n = 0L;
+		
+		if (i == end) throw new IllegalArgumentException("Not a number: " + string(bytes, start, end));
+		
+		// Accumulate negatively, since |min| > max
+		for (; i < end; i++) {
+			int digit = bytes.get(i) - '0';
+			if (digit < 0 || digit > 9 || n < (min + digit) / 10) {
+				throw new IllegalArgumentException("Not a number: " + string(bytes, start, end));
+			}
+			n = n * 10 - digit;
+		}
+		
+		if (!negative) {
+			if (n < -max) throw new IllegalArgumentException("Not a number: " + string(bytes, start, end));
+			n = -n;
+		}
+		
+		return n;
+	}
+	
+	/** Returns the index of the first b in the range, or -1. */
+	private static int indexOf(ByteBuffer bytes, int start, int end, byte b)
+	{
+		for (int i = start; i < end; i++) {
+			if (bytes.get(i) == b) return i;
+		}
+		return -1;
+	}
+	
+	/** Returns the index of the end of the line that starts at start. */
+	private static int endOfLine(ByteBuffer bytes, int start, int end)
+	{
+		int i = start;
+		while (i < end && bytes.get(i) != '\n' && bytes.get(i) != '\r') i++;
+		return i;
+	}
+	
+	/** Returns the start of the line after the one that ends at eol. */
+	private static int nextLine(ByteBuffer bytes, int eol, int end)
+	{
+		if (eol < end && bytes.get(eol) == '\r') eol++;
+		if (eol < end && bytes.get(eol) == '\n') eol++;
+		return eol;
+	}
+	
+	/** Skips leading whitespace, like {@link String#trim}. */
+	private static int trimStart(ByteBuffer bytes, int start, int end)
+	{
+		while (start < end && (bytes.get(start) & 0xff) <= ' ') start++;
+		return start;
+	}
+	
+	/** Skips trailing whitespace, like {@link String#trim}. */
+	private static int trimEnd(ByteBuffer bytes, int start, int end)
+	{
+		while (end > start && (bytes.get(end - 1) & 0xff) <= ' ') end--;
+		return end;
+	}
+	
+	/** Decodes the given bytes, for names and error messages. */
+	private static String string(ByteBuffer bytes, int start, int end)
+	{
+		ByteBuffer b = bytes.duplicate();
+		b.limit(end);
+		b.position(start);
+		return Packet.CHARSET.decode(b).toString();
+	}
+}
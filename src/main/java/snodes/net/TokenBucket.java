@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the rate at which bytes are sent.
+ *
+ * <p>The bucket fills with tokens at the configured rate, one per byte, up to
+ * a burst of {@value #BURST_MILLIS} milliseconds' worth (but never less than
+ * {@value #MIN_BURST} bytes). A datagram may be sent whenever the bucket is
+ * not empty; its size is then taken out, which may leave the bucket in debt,
+ * so datagrams larger than the burst are still sent and the long-run rate is
+ * exact.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class TokenBucket
+{
+	/** The most time a full bucket lets through at once, in milliseconds. */
+	static final long BURST_MILLIS = 50L;
+	/** The smallest burst, in bytes. */
+	static final long MIN_BURST = 2L * SnodesServer.UDP_SNODES_MAX;
+	
+	/** The rate, in bytes per second, or 0 for no limit. */
+	@GuardedBy("this")
+	private long rate;
+	/** The most tokens the bucket holds. */
+	@GuardedBy("this")
+	private long burst;
+	/** The tokens in the bucket, which may be negative. */
+	@GuardedBy("this")
+	private double tokens;
+	/** When the bucket was last filled, in nanoseconds. */
+	@GuardedBy("this")
+	private long filled;
+	
+	/**
+	 * Creates a new bucket.
+	 *
+	 * @param rate
+	 *     The rate, in bytes per second, or 0 for no limit.
+	 */
+	TokenBucket(long rate)
+	{
+		this.filled = System.nanoTime();
+		setRate(rate);
+		this.tokens = burst;
+	}
+	
+	/**
+	 * Changes the rate.
+	 *
+	 * @param rate
+	 *     The rate, in bytes per second, or 0 for no limit.
+	 */
+	synchronized void setRate(long rate)
+	{
+		if (rate < 0) throw new IllegalArgumentException("Negative rate: " + rate);
+		
+		refill(System.nanoTime());
+		this.rate = rate;
+		this.burst = Math.max(rate * BURST_MILLIS / 1000L, MIN_BURST);
+		this.tokens = Math.min(tokens, burst);
+	}
+	
+	/**
+	 * Returns the rate.
+	 *
+	 * @return
+	 *     The rate, in bytes per second, or 0 if there is no limit.
+	 */
+	synchronized long getRate()
+	{
+		return rate;
+	}
+	
+	/**
+	 * Returns how long to wait before anything may be sent.
+	 *
+	 * @param now
+	 *     The current time, from {@link System#nanoTime}.
+	 * @return
+	 *     The wait, in nanoseconds, or 0 if a datagram may be sent now.
+	 */
+	synchronized long delay(long now)
+	{
+		if (rate == 0) return 0L;
+		
+		refill(now);
+		if (tokens > 0.0) return 0L;
+		return (long) Math.ceil((1.0 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+	
+	/**
+	 * Takes the tokens for a datagram that has been sent.
+	 *
+	 * @param bytes
+	 *     The size of the datagram.
+	 * @param now
+	 *     The current time, from {@link System#nanoTime}.
+	 */
+	synchronized void take(int bytes, long now)
+	{
+		if (rate == 0) return;
+		
+		refill(now);
+		tokens -= bytes;
+	}
+	
+	/** Adds the tokens earned since the bucket was last filled. */
+	@GuardedBy("this")
+	private void refill(long now)
+	{
+		long elapsed = now - filled;
+		if (elapsed <= 0) return;
+		
+		filled = now;
+		if (rate > 0) {
+			tokens = Math.min(burst, tokens + (double) rate * elapsed / TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return new String("TokenBucket[rate=" + rate + ", tokens=" + (long) tokens + "/" + burst + "]");
+	}
+}
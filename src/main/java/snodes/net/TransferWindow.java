@@ -0,0 +1,796 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Sends a whole file over a {@link FileTransfer}, keeping several segments in
+ * flight at once.
+ *
+ * <p>Sending one segment and waiting to hear about it before sending the
+ * next leaves the link idle for a full round trip per segment. A window
+ * instead sends up to {@link #getWindow} segments before it has heard
+ * anything, and sends another each time the remote host
+ * {@link FileTransfer#acknowledge acknowledges} one. The window starts small
+ * and grows as segments are acknowledged (quickly at first, then by about one
+ * segment per round trip), so a transfer finds out how much the link can carry
+ * without flooding it. When the remote host asks for a segment again, the
+ * segment is assumed to have been lost to congestion: it is resent and the
+ * window is halved. A segment that has been neither acknowledged nor asked
+ * for within the retransmission timeout is resent too, and the window starts
+ * over from a single segment. The timeout follows the round-trip times
+ * measured from acknowledgements. The timers of every window share a single
+ * thread, so segments are resent from threads of their own; a connection
+ * that is slow to take them only holds up its own window.</p>
+ *
+ * <p>Acknowledgements may also list the ranges of segments the remote host has
+ * received past the first one it is missing. The segments in the holes
+ * between those ranges that were sent well before a segment that has
+ * arrived are resent at once, and only they are, so a long file with
+ * scattered losses costs a few acknowledgements instead of one RequestAgain
+ * per lost segment.</p>
+ *
+ * <p>Windows are created with {@link FileTransfer#send(TransferWindow.Source)};
+ * the connection passes the remote host's Acknowledge and RequestAgain packets
+ * for the file to the transfer's window. For example, to send a shared file
+ * in response to a request:</p>
+ *
+ * <pre>
+ * final FileRead reader = FileRead.getInstance();
+ * final String name = ft.getFilename();
+ * final File file = ...;
+ *
+ * TransferWindow window = ft.send(new TransferWindow.Source() {
+ *     public int getSegments() throws IOException { return reader.fileSegments(name); }
+ *     public long getSize() { return file.length(); }
+ *     public ByteBuffer read(int seg) throws IOException { return reader.readSegmentBuffer(name, seg); }
+ * });
+ * </pre>
+ *
+ * <p>The receiving side writes each segment as it arrives and acknowledges it
+ * with {@link FileTransfer#acknowledge(int, ReceivedSegments)}, giving it the
+ * segments received so far.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ * @see FileTransfer#send(TransferWindow.Source)
+ * @see FileTransfer#acknowledge
+ */
+@ThreadSafe
+public final class TransferWindow
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The number of segments sent before anything has been acknowledged. */
+	static final int INITIAL_WINDOW = 4;
+	/** The largest number of segments that may be in flight. */
+	static final int MAX_WINDOW = 256;
+	/** The smallest window to which a loss shrinks the window. */
+	static final int MIN_WINDOW = 2;
+	/** The retransmission timeout before any round trip has been measured. */
+	static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+	/** The shortest retransmission timeout. */
+	static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+	/** The longest retransmission timeout. */
+	static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+	
+	/** The most resends that may be in progress at once, across every window. */
+	static final int MAX_RESENDS = 1024;
+	
+	/** Runs the retransmission timers of every window, and other transfer timers. */
+	static final ScheduledExecutorService timer = createTimer();
+	
+	/**
+	 * Sends the segments that the timer decides to resend. Sending can wait
+	 * on a connection's rate limit or a full queue, and the timer is shared
+	 * by every window and download, so it never sends anything itself.
+	 */
+	private static final Dispatcher resender = Dispatcher.newThreadPerTaskDispatcher(MAX_RESENDS);
+	
+	/** The transfer over which segments are sent. */
+	private final FileTransfer transfer;
+	/** Where the segments come from. */
+	private final Source source;
+	/** The number of segments in the file. */
+	@GuardedBy("this")
+	private int segments;
+	/** The size of the file, in bytes. */
+	@GuardedBy("this")
+	private long size;
+	/** The segments that have been acknowledged. */
+	@GuardedBy("this")
+	private final BitSet acked;
+	/** The segments that have been sent but not acknowledged. */
+	@GuardedBy("this")
+	private final BitSet inFlight;
+	/** The segments whose timeout expired, waiting to be resent. */
+	@GuardedBy("this")
+	private final BitSet queued;
+	/** The segments that have been sent more than once. */
+	@GuardedBy("this")
+	private final BitSet resent;
+	/** The times, in nanoseconds, at which in-flight segments were last sent. */
+	@GuardedBy("this")
+	private long[] sentAt;
+	/** The number of segments in flight. */
+	@GuardedBy("this")
+	private int flying;
+	/** The next segment that has never been sent. */
+	@GuardedBy("this")
+	private int next;
+	/** The congestion window, in segments. */
+	@GuardedBy("this")
+	private double window;
+	/** The window above which it grows by one segment per round trip. */
+	@GuardedBy("this")
+	private double threshold;
+	/** The window is not shrunk again for losses of segments below this. */
+	@GuardedBy("this")
+	private int recovery;
+	/** The smoothed round-trip time, in nanoseconds, or 0 if unmeasured. */
+	@GuardedBy("this")
+	private long srtt;
+	/** The round-trip time's mean deviation, in nanoseconds. */
+	@GuardedBy("this")
+	private long rttvar;
+	/** The retransmission timeout, in nanoseconds. */
+	@GuardedBy("this")
+	private long timeout;
+	/** The latest time at which a segment acknowledged by the current acknowledgement was sent. */
+	@GuardedBy("this")
+	private long delivered;
+	/** The pending retransmission timer, if any. */
+	@GuardedBy("this")
+	private ScheduledFuture<?> pending;
+	/** The number of segments that have been resent. */
+	@GuardedBy("this")
+	private long retransmits;
+	/** True while the window's timed-out segments are being resent. */
+	@GuardedBy("this")
+	private boolean resending;
+	/** True once every segment has been acknowledged or the window was cancelled. */
+	@GuardedBy("this")
+	private boolean done;
+	
+	/**
+	 * Creates a new window.
+	 *
+	 * @param transfer
+	 *     The transfer over which segments are sent.
+	 * @param source
+	 *     Where the segments come from.
+	 */
+	TransferWindow(FileTransfer transfer, Source source)
+	{
+		this.transfer = transfer;
+		this.source = source;
+		this.segments = 0;
+		this.size = 0L;
+		this.acked = new BitSet();
+		this.inFlight = new BitSet();
+		this.queued = new BitSet();
+		this.resent = new BitSet();
+		this.sentAt = new long[0];
+		this.flying = 0;
+		this.next = 0;
+		this.window = INITIAL_WINDOW;
+		this.threshold = MAX_WINDOW;
+		this.recovery = 0;
+		this.srtt = 0L;
+		this.rttvar = 0L;
+		this.timeout = INITIAL_TIMEOUT;
+		this.delivered = Long.MIN_VALUE;
+		this.pending = null;
+		this.retransmits = 0L;
+		this.resending = false;
+		this.done = false;
+	}
+	
+	/** Creates the timer shared by every window. */
+	private static ScheduledExecutorService createTimer()
+	{
+		ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Retransmit Timer Thread");
+				t.setDaemon(true); // Quit when Java VM exits
+				return t;
+			}
+		});
+		exec.setRemoveOnCancelPolicy(true);
+		return exec;
+	}
+	
+	/**
+	 * Sends the first window of segments.
+	 *
+	 * @throws IOException
+	 *     If the file cannot be read or the segments cannot be sent.
+	 */
+	void start() throws IOException
+	{
+		start(System.nanoTime());
+	}
+	
+	/**
+	 * Sends the first window of segments at the given time.
+	 *
+	 * @param now
+	 *     The current time, from {@link System#nanoTime}.
+	 * @throws IOException
+	 *     If the file cannot be read or the segments cannot be sent.
+	 */
+	void start(long now) throws IOException
+	{
+		int n = source.getSegments();
+		long sz = source.getSize();
+		
+		synchronized (this) {
+			segments = n;
+			size = sz;
+			sentAt = new long[n];
+			if (n == 0) finish();
+		}
+		
+		logger.fine("Sending " + n + " segments of " + transfer);
+		send(fill(now));
+	}
+	
+	/**
+	 * Stops sending. Segments that are already in flight are not recalled.
+	 */
+	public void cancel()
+	{
+		synchronized (this) {
+			finish();
+		}
+	}
+	
+	/**
+	 * Handles an acknowledgement from the remote host.
+	 *
+	 * @param msg
+	 *     The acknowledgement.
+	 * @throws IOException
+	 *     If the segments that it makes room for cannot be sent.
+	 */
+	void acknowledged(Message.Acknowledge msg) throws IOException
+	{
+		acknowledged(msg, System.nanoTime());
+	}
+	
+	/**
+	 * Handles an acknowledgement from the remote host that arrived at the
+	 * given time.
+	 *
+	 * @param msg
+	 *     The acknowledgement.
+	 * @param now
+	 *     The time it arrived, from {@link System#nanoTime}.
+	 * @throws IOException
+	 *     If the segments that it makes room for cannot be sent.
+	 */
+	void acknowledged(Message.Acknowledge msg, long now) throws IOException
+	{
+		List<Integer> toSend = new ArrayList<Integer>();
+		
+		synchronized (this) {
+			if (done) return;
+			
+			int seg = msg.getSegment();
+			int received = Math.min(msg.getReceived(), segments);
+			int[] ranges = msg.getRanges();
+			
+			if (seg >= 0 && seg < segments && inFlight.get(seg) && !resent.get(seg)) {
+				// Karn's rule: only segments sent once give an unambiguous
+				// round-trip time.
+				sample(now - sentAt[seg]);
+			}
+			
+			delivered = Long.MIN_VALUE;
+			int newlyAcked = ack(seg);
+			for (int i = acked.nextClearBit(0); i < received; i = acked.nextClearBit(i + 1)) {
+				newlyAcked += ack(i);
+			}
+			for (int r = 0; r + 1 < ranges.length; r += 2) {
+				int end = Math.min(ranges[r + 1], segments);
+				for (int i = Math.max(ranges[r], 0); i < end; i++) {
+					newlyAcked += ack(i);
+				}
+			}
+			grow(newlyAcked);
+			
+			if (acked.cardinality() >= segments) {
+				finish();
+				return;
+			}
+			
+			// A segment that was sent a while before one that has now
+			// arrived is a hole in the receiver's ranges, and has been lost.
+			// It is resent right away, and will not be again until a
+			// segment sent after the resend arrives.
+			if (newlyAcked > 0 && delivered != Long.MIN_VALUE) {
+				long reorder = srtt / 4;
+				for (int i = inFlight.nextSetBit(0); i >= 0; i = inFlight.nextSetBit(i + 1)) {
+					if (sentAt[i] + reorder < delivered) {
+						reduce(i);
+						markResent(i, now);
+						toSend.add(Integer.valueOf(i));
+					}
+				}
+				if (!toSend.isEmpty()) {
+					logger.finer(transfer + " resending " + toSend.size() + " holes");
+				}
+			}
+			
+			toSend.addAll(fill(now));
+		}
+		
+		send(toSend);
+	}
+	
+	/**
+	 * Handles a request from the remote host to resend a segment, which means
+	 * that the segment was lost.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @throws IOException
+	 *     If the segment cannot be sent.
+	 */
+	void lost(int seg) throws IOException
+	{
+		lost(seg, System.nanoTime());
+	}
+	
+	/**
+	 * Handles a request from the remote host to resend a segment that
+	 * arrived at the given time.
+	 *
+	 * @param seg
+	 *     The segment number.
+	 * @param now
+	 *     The time the request arrived, from {@link System#nanoTime}.
+	 * @throws IOException
+	 *     If the segment cannot be sent.
+	 */
+	void lost(int seg, long now) throws IOException
+	{
+		List<Integer> toSend = new ArrayList<Integer>(1);
+		
+		synchronized (this) {
+			if (done || seg < 0 || seg >= next || acked.get(seg)) return;
+			
+			reduce(seg);
+			markResent(seg, now);
+			schedule();
+			toSend.add(Integer.valueOf(seg));
+		}
+		
+		send(toSend);
+	}
+	
+	/** Halves the window for a lost segment, unless it already has been for this loss. */
+	@GuardedBy("this")
+	private void reduce(int seg)
+	{
+		// Everything sent before the last loss was sent with the old,
+		// larger window, so losing some of it is no news.
+		if (seg >= recovery) {
+			threshold = Math.max(window / 2, MIN_WINDOW);
+			window = threshold;
+			recovery = next;
+			logger.finer(transfer + " lost segment " + seg + "; window is now " + (int) window);
+		}
+	}
+	
+	/**
+	 * Resends every in-flight segment whose retransmission timeout has expired.
+	 * This is run by the timer, which hands the sending itself to
+	 * {@link #resender}.
+	 *
+	 * @param now
+	 *     The current time, from {@link System#nanoTime}.
+	 */
+	void expire(long now)
+	{
+		List<Integer> toSend = null;
+		
+		synchronized (this) {
+			pending = null;
+			if (done) return;
+			
+			int expired = 0;
+			for (int i = inFlight.nextSetBit(0); i >= 0; i = inFlight.nextSetBit(i + 1)) {
+				if (now - sentAt[i] >= timeout) {
+					inFlight.clear(i);
+					flying--;
+					queued.set(i);
+					expired++;
+				}
+			}
+			
+			if (expired > 0) {
+				// Nothing at all got through, so start over from the bottom
+				// and wait longer next time. The expired segments are resent
+				// as the window opens up again.
+				threshold = Math.max(window / 2, MIN_WINDOW);
+				window = 1;
+				recovery = next;
+				timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+				logger.finer(transfer + " timed out on " + expired + " segments");
+			}
+			
+			// A resend that is still going picks up the expired segments
+			// once it gets through the ones it has.
+			if (resending) {
+				schedule();
+				return;
+			}
+			
+			toSend = fill(now);
+			schedule();
+			if (toSend.isEmpty()) return;
+			resending = true;
+		}
+		
+		final List<Integer> segs = toSend;
+		Runnable task = new Runnable() {
+			public void run() {
+				resend(segs);
+			}
+		};
+		
+		if (!resender.dispatch(task)) {
+			// The segments stay in flight, so they time out and are tried again.
+			logger.fine("Too many resends in progress; deferring " + segs.size() + " segments of " + transfer);
+			synchronized (this) {
+				resending = false;
+			}
+		}
+	}
+	
+	/**
+	 * Sends segments for the timer, and then whatever the window has room for
+	 * afterwards, until there is nothing left to send. Only one resend per
+	 * window runs at a time.
+	 *
+	 * @param segs
+	 *     The segments to send first.
+	 */
+	private void resend(List<Integer> segs)
+	{
+		boolean finished = false;
+		
+		try {
+			while (true) {
+				try {
+					send(segs);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Cannot resend segments of " + transfer, e);
+				}
+				
+				synchronized (this) {
+					segs = fill(System.nanoTime());
+					if (segs.isEmpty()) {
+						resending = false;
+						finished = true;
+						return;
+					}
+				}
+			}
+		} finally {
+			// Let the timer start another resend if this one crashed.
+			if (!finished) {
+				synchronized (this) {
+					resending = false;
+				}
+			}
+		}
+	}
+	
+	/** Marks a segment as acknowledged, returning 1 if it was not before. */
+	@GuardedBy("this")
+	private int ack(int seg)
+	{
+		if (seg < 0 || seg >= segments || acked.get(seg)) return 0;
+		
+		acked.set(seg);
+		queued.clear(seg);
+		if (inFlight.get(seg)) {
+			delivered = Math.max(delivered, sentAt[seg]);
+			inFlight.clear(seg);
+			flying--;
+		}
+		return 1;
+	}
+	
+	/** Grows the window for newly acknowledged segments. */
+	@GuardedBy("this")
+	private void grow(int n)
+	{
+		for (int i = 0; i < n; i++) {
+			if (window < threshold) {
+				window += 1;         // Slow start: doubles every round trip
+			} else {
+				window += 1 / window; // One more segment every round trip
+			}
+		}
+		window = Math.min(window, MAX_WINDOW);
+	}
+	
+	/** Adds a round-trip time to the estimate, as in RFC 6298. */
+	@GuardedBy("this")
+	private void sample(long rtt)
+	{
+		if (srtt == 0L) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, srtt + 4 * rttvar));
+	}
+	
+	/**
+	 * Picks the segments that fit in the window and marks them as in flight.
+	 * Segments whose timeout expired go first, then segments that have never
+	 * been sent.
+	 *
+	 * @param now
+	 *     The current time, from {@link System#nanoTime}.
+	 */
+	@GuardedBy("this")
+	private List<Integer> fill(long now)
+	{
+		List<Integer> toSend = new ArrayList<Integer>();
+		
+		for (int i = queued.nextSetBit(0); !done && i >= 0 && flying < (int) window; i = queued.nextSetBit(i + 1)) {
+			markResent(i, now);
+			toSend.add(Integer.valueOf(i));
+		}
+		
+		while (!done && next < segments && flying < (int) window) {
+			toSend.add(Integer.valueOf(next));
+			inFlight.set(next);
+			sentAt[next] = now;
+			flying++;
+			next++;
+		}
+		
+		if (!toSend.isEmpty()) schedule();
+		return toSend;
+	}
+	
+	/** Starts the retransmission timer, unless it is already running. */
+	@GuardedBy("this")
+	private void schedule()
+	{
+		if (done || pending != null || flying == 0) return;
+		
+		Runnable task = new Runnable() {
+			public void run() {
+				expire(System.nanoTime());
+			}
+		};
+		
+		pending = timer.schedule(task, timeout, TimeUnit.NANOSECONDS);
+	}
+	
+	/** Marks the window as done and stops its timer. */
+	@GuardedBy("this")
+	private void finish()
+	{
+		if (done) return;
+		
+		done = true;
+		if (pending != null) pending.cancel(false);
+		pending = null;
+		notifyAll();
+		logger.fine("Finished sending " + transfer + " (" + retransmits + " segments resent)");
+	}
+	
+	/** Marks a segment as being in flight again. */
+	@GuardedBy("this")
+	private void markResent(int seg, long now)
+	{
+		queued.clear(seg);
+		if (!inFlight.get(seg)) {
+			inFlight.set(seg);
+			flying++;
+		}
+		resent.set(seg);
+		sentAt[seg] = now;
+		retransmits++;
+	}
+	
+	/**
+	 * Reads and sends segments. This is done without holding the window's
+	 * lock, since both can block.
+	 */
+	private void send(List<Integer> segs) throws IOException
+	{
+		long sz;
+		
+		synchronized (this) {
+			sz = size;
+		}
+		
+		for (Integer seg : segs) {
+			transfer.send(source.read(seg.intValue()), seg.intValue(), sz);
+		}
+	}
+	
+	/**
+	 * Waits until every segment has been acknowledged or the window has been
+	 * cancelled.
+	 *
+	 * @param millis
+	 *     The longest time to wait, in milliseconds, or 0 to wait forever.
+	 * @return
+	 *     true if the window is done.
+	 * @throws InterruptedException
+	 *     If the calling thread is interrupted while waiting.
+	 */
+	public synchronized boolean await(long millis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + millis;
+		
+		while (!done) {
+			long left = (millis == 0L) ? 0L : deadline - System.currentTimeMillis();
+			if (millis != 0L && left <= 0L) break;
+			wait(left);
+		}
+		return done;
+	}
+	
+	/**
+	 * Returns true if the window is done, either because every segment has
+	 * been acknowledged or because it was cancelled.
+	 *
+	 * @return
+	 *     true if the window is done.
+	 */
+	public synchronized boolean isDone()
+	{
+		return done;
+	}
+	
+	/**
+	 * Returns the number of segments that have been acknowledged.
+	 *
+	 * @return
+	 *     The number of acknowledged segments.
+	 */
+	public synchronized int getAcknowledged()
+	{
+		return acked.cardinality();
+	}
+	
+	/**
+	 * Returns the current congestion window.
+	 *
+	 * @return
+	 *     The largest number of segments that may currently be in flight.
+	 */
+	public synchronized int getWindow()
+	{
+		return (int) window;
+	}
+	
+	/**
+	 * Returns the smoothed round-trip time.
+	 *
+	 * @return
+	 *     The round-trip time, in milliseconds, or 0 if none has been measured.
+	 */
+	public synchronized long getRoundTripTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(srtt);
+	}
+	
+	/**
+	 * Returns the number of segments that have been resent.
+	 *
+	 * @return
+	 *     The number of retransmissions.
+	 */
+	public synchronized long getRetransmits()
+	{
+		return retransmits;
+	}
+	
+	/**
+	 * Returns a string representation of the window.
+	 *
+	 * @return
+	 *     A string representation of the window.
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder buf = new StringBuilder("TransferWindow");
+		buf.append("[acked=").append(acked.cardinality()).append("/").append(segments);
+		buf.append(", inFlight=").append(flying).append("/").append((int) window);
+		buf.append(", rtt=").append(getRoundTripTime()).append("ms");
+		buf.append(", retransmits=").append(retransmits);
+		buf.append("]");
+		return new String(buf);
+	}
+	
+	
+	/** Supplies the segments of a file to a window. */
+	public interface Source
+	{
+		/**
+		 * Returns the number of segments in the file.
+		 *
+		 * @return
+		 *     The number of segments.
+		 * @throws IOException
+		 *     If the file cannot be read.
+		 */
+		int getSegments() throws IOException;
+		
+		/**
+		 * Returns the size of the file.
+		 *
+		 * @return
+		 *     The size of the file, in bytes.
+		 * @throws IOException
+		 *     If the file cannot be read.
+		 */
+		long getSize() throws IOException;
+		
+		/**
+		 * Reads a segment of the file. The segment may be a read-only view of
+		 * a memory-mapped file; it is only read, and is not kept once it has
+		 * been sent.
+		 *
+		 * @param seg
+		 *     The segment number.
+		 * @return
+		 *     A buffer of the segment's bytes.
+		 * @throws IOException
+		 *     If the segment cannot be read.
+		 */
+		ByteBuffer read(int seg) throws IOException;
+	}
+}
@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2007-2008 Michael Dippery <michael@monkey-robot.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package snodes.net;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Sends datagrams for every connection over a single, long-lived channel.
+ *
+ * <p>Once the server has started, datagrams are sent from the same channel on
+ * which the server receives them, so they come from {@link SnodesServer#PORT}.
+ * Until then, a private channel is opened the first time a datagram is sent,
+ * and datagrams are written to it on the caller's thread.</p>
+ *
+ * <p>Every datagram belongs to a {@link Flow}: each connection has one for
+ * its chat and control packets, and each file transfer has one for its
+ * segments. With the server's channel, sending never blocks on the network.
+ * A datagram is written straight to the channel if nothing is waiting ahead
+ * of it and the rate limits allow it; otherwise it is queued in its flow, and
+ * the queues are flushed as soon as the channel becomes writable again or the
+ * limits allow more to be sent.</p>
+ *
+ * <p>Queued control packets always go first. Segments are then taken from
+ * the transfers' flows in turn by deficit round robin: on each turn, a flow
+ * may send about {@value #QUANTUM} bytes for each unit of its
+ * {@link Flow#setWeight weight}, so a large transfer cannot starve a small
+ * one, and no transfer can hold up a chat message by more than a datagram.</p>
+ *
+ * <p>Two kinds of {@link TokenBucket rate limit} apply: one per connection,
+ * shared by all of its flows, so that a remote host's receive buffer is not
+ * overrun; and one on everything sent, so that the node stays within its
+ * uplink. A flow whose connection is over its limit is skipped without
+ * holding up the others. Control packets are never held back by the limits,
+ * but they are counted against them.</p>
+ *
+ * <p>The queues hold at most {@value #MAX_QUEUED_BYTES} bytes in all, and
+ * {@value #MAX_FLOW_BYTES} bytes of segments for any one flow. Callers that
+ * try to send segments while either is full wait until there is room, which
+ * slows the producers down to the rate at which their datagrams actually
+ * leave.</p>
+ *
+ * <p>A datagram that the channel refuses outright (because its destination
+ * is unreachable or not allowed, say) is dropped and counted, and sending
+ * goes on with the next one, so one bad destination cannot hold up every
+ * other connection. Only a full kernel buffer makes a datagram wait.</p>
+ *
+ * @author <a href="mailto:michael@monkey-robot.com">Michael Dippery</a>
+ * @version 0.1
+ */
+@ThreadSafe
+final class Transmitter
+{
+	/** The class logger. */
+	private static final Logger logger = Logger.getLogger("snodes.net");
+	
+	/** The maximum number of bytes that may be waiting to be sent. */
+	static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+	/** The maximum number of bytes that may be waiting in a single flow. */
+	static final int MAX_FLOW_BYTES = 512 * 1024;
+	/** The bytes a flow of weight 1 may send on each turn. */
+	static final int QUANTUM = SnodesServer.UDP_SNODES_MAX;
+	
+	/**
+	 * Flushes the queues when the rate limits allow. This has a thread of its
+	 * own because senders on the other timers may be waiting for the flush.
+	 */
+	private static final ScheduledExecutorService pacer = createPacer();
+	
+	/** The channel on which datagrams are sent. */
+	@GuardedBy("this")
+	private DatagramChannel channel;
+	/** The channel's registration with the server's selector, if any. */
+	@GuardedBy("this")
+	private SelectionKey key;
+	/** Control flows with datagrams waiting. */
+	@GuardedBy("this")
+	private final Deque<Flow> urgent;
+	/** Segment flows with datagrams waiting, in round-robin order. */
+	@GuardedBy("this")
+	private final Deque<Flow> active;
+	/** The limit on everything sent. */
+	private final TokenBucket bucket;
+	/** Flushes the queues once the rate limits allow more to be sent. */
+	@GuardedBy("this")
+	private ScheduledFuture<?> wakeup;
+	/** When {@link #wakeup} will run, in nanoseconds. */
+	@GuardedBy("this")
+	private long wakeAt;
+	/** The number of bytes in the queue. */
+	@GuardedBy("this")
+	private int queuedBytes;
+	/** The number of datagrams that have been sent. */
+	@GuardedBy("this")
+	private long sent;
+	/** The number of datagrams that the channel refused and that were dropped. */
+	@GuardedBy("this")
+	private long dropped;
+	/** The number of times a sender had to wait for the queue to drain. */
+	@GuardedBy("this")
+	private long stalls;
+	/** The number of times sending was paused by a rate limit. */
+	@GuardedBy("this")
+	private long throttles;
+	
+	/** Creates a new transmitter with no channel. */
+	Transmitter()
+	{
+		this.channel = null;
+		this.key = null;
+		this.urgent = new ArrayDeque<Flow>();
+		this.active = new ArrayDeque<Flow>();
+		this.bucket = new TokenBucket(0L);
+		this.wakeup = null;
+		this.wakeAt = 0L;
+		this.queuedBytes = 0;
+		this.sent = 0L;
+		this.dropped = 0L;
+		this.stalls = 0L;
+		this.throttles = 0L;
+	}
+	
+	/** Creates the pacing timer. */
+	private static ScheduledExecutorService createPacer()
+	{
+		ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Transmit Pacing Thread");
+				t.setDaemon(true); // Quit when Java VM exits
+				return t;
+			}
+		});
+		exec.setRemoveOnCancelPolicy(true);
+		return exec;
+	}
+	
+	/**
+	 * Sends datagrams on the given channel from now on. The channel must be in
+	 * non-blocking mode and registered with a selector that calls
+	 * {@link #flush} whenever the key is writable.
+	 *
+	 * @param key
+	 *     The channel's selection key.
+	 */
+	@GuardedBy("this")
+	synchronized void attach(SelectionKey key)
+	{
+		DatagramChannel old = channel;
+		
+		this.key = key;
+		this.channel = (DatagramChannel) key.channel();
+		
+		if (old != null && old != channel) {
+			try {
+				old.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+		}
+		
+		if (queuedBytes > 0) wantWrite(true);
+	}
+	
+	/**
+	 * Stops using the channel registered with the given key. A private channel
+	 * is opened the next time a datagram is sent.
+	 *
+	 * @param key
+	 *     The key previously passed to {@link #attach}.
+	 */
+	@GuardedBy("this")
+	synchronized void detach(SelectionKey key)
+	{
+		if (this.key == key) {
+			this.key = null;
+			this.channel = null;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Limits the rate at which everything is sent.
+	 *
+	 * @param rate
+	 *     The rate, in bytes per second, or 0 for no limit.
+	 */
+	void setRateLimit(long rate)
+	{
+		bucket.setRate(rate);
+		limitsChanged();
+	}
+	
+	/**
+	 * Flushes the queues as soon as possible, since a rate limit has changed
+	 * and datagrams held back by it may be sendable now.
+	 */
+	@GuardedBy("this")
+	synchronized void limitsChanged()
+	{
+		if (queuedBytes > 0 && channel != null && key != null) wake(System.nanoTime());
+	}
+	
+	/**
+	 * Returns the limit on the rate at which everything is sent.
+	 *
+	 * @return
+	 *     The rate, in bytes per second, or 0 if there is no limit.
+	 */
+	long getRateLimit()
+	{
+		return bucket.getRate();
+	}
+	
+	/**
+	 * Sends a datagram, or queues it in its flow if it cannot be sent right
+	 * away. If the queue is full, this waits for it to drain, unless the
+	 * datagram is a control packet.
+	 *
+	 * @param data
+	 *     The datagram. The buffer must not be modified afterwards.
+	 * @param target
+	 *     The address to which the datagram is sent.
+	 * @param flow
+	 *     The flow to which the datagram belongs.
+	 * @throws IOException
+	 *     If the datagram cannot be sent, or if the calling thread is
+	 *     interrupted while waiting for the queue to drain.
+	 */
+	@GuardedBy("this")
+	synchronized void send(ByteBuffer data, SocketAddress target, Flow flow) throws IOException
+	{
+		int len = data.remaining();
+		boolean stalled = false;
+		
+		try {
+			while (key != null && !flow.control && flow.bytes > 0
+				&& (queuedBytes + len > MAX_QUEUED_BYTES || flow.bytes + len > MAX_FLOW_BYTES)) {
+				if (!stalled) stalls++;
+				stalled = true;
+				wait();
+			}
+			
+			if (key == null) {
+				sendDirect(data, target, flow);
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send");
+		}
+		
+		if (flow.queue.isEmpty()) (flow.control ? urgent : active).addLast(flow);
+		flow.queue.addLast(new Datagram(data, target));
+		flow.bytes += len;
+		queuedBytes += len;
+		drain();
+	}
+	
+	/**
+	 * Sends as many queued datagrams as the kernel and the rate limits will
+	 * take. This is called by the server's selector whenever the channel is
+	 * writable, and by a timer whenever the rate limits allow more to be
+	 * sent.
+	 *
+	 * @throws IOException
+	 *     If an I/O error occurs.
+	 */
+	@GuardedBy("this")
+	synchronized void flush() throws IOException
+	{
+		if (channel == null) return;
+		drain();
+	}
+	
+	/** Flushes the queues when woken by the pacing timer. */
+	@GuardedBy("this")
+	private synchronized void paced() throws IOException
+	{
+		wakeup = null;
+		flush();
+	}
+	
+	/**
+	 * Returns the number of bytes waiting to be sent.
+	 *
+	 * @return
+	 *     The number of queued bytes.
+	 */
+	@GuardedBy("this")
+	synchronized int getQueuedBytes()
+	{
+		return queuedBytes;
+	}
+	
+	/**
+	 * Returns the number of datagrams that have been sent.
+	 *
+	 * @return
+	 *     The number of datagrams sent.
+	 */
+	@GuardedBy("this")
+	synchronized long getSent()
+	{
+		return sent;
+	}
+	
+	/**
+	 * Returns the number of datagrams that were dropped because the channel
+	 * refused to send them.
+	 *
+	 * @return
+	 *     The number of datagrams dropped.
+	 */
+	@GuardedBy("this")
+	synchronized long getDropped()
+	{
+		return dropped;
+	}
+	
+	/**
+	 * Returns the number of times a sender had to wait because the queue was
+	 * full.
+	 *
+	 * @return
+	 *     The number of stalled sends.
+	 */
+	@GuardedBy("this")
+	synchronized long getStalls()
+	{
+		return stalls;
+	}
+	
+	/**
+	 * Returns the number of times sending was paused because every flow with
+	 * datagrams waiting was over a rate limit.
+	 *
+	 * @return
+	 *     The number of pauses.
+	 */
+	@GuardedBy("this")
+	synchronized long getThrottles()
+	{
+		return throttles;
+	}
+	
+	/**
+	 * Sends queued datagrams, control packets first, then segments by
+	 * deficit round robin, until the queues are empty, the kernel's buffer is
+	 * full, or the rate limits call for a pause.
+	 */
+	@GuardedBy("this")
+	private void drain() throws IOException
+	{
+		long now = System.nanoTime();
+		long wake = Long.MAX_VALUE;
+		int before = queuedBytes;
+		int skipped = 0;  // Flows passed over since something was last sent
+		int credited = 0; // Of those, the ones that were short of credit
+		
+		try {
+			while (!urgent.isEmpty()) {
+				Flow flow = urgent.peekFirst();
+				if (!transmit(flow, now)) return;
+				if (flow.queue.isEmpty()) urgent.removeFirst();
+			}
+			
+			while (!active.isEmpty()) {
+				if (skipped >= active.size()) {
+					// Every flow has been passed over. If only rate limits
+					// held them back, wait for those; a flow that was short
+					// of credit gets more on its next turn, so go around again.
+					if (credited == 0) break;
+					skipped = 0;
+					credited = 0;
+				}
+				
+				long global = bucket.delay(now);
+				if (global > 0L) {
+					wake = now + global;
+					break;
+				}
+				
+				Flow flow = active.peekFirst();
+				Datagram dgram = flow.queue.peekFirst();
+				int len = dgram.data.remaining();
+				boolean full = false;
+				
+				if (!flow.turn) {
+					// Unused credit carries over, but not without bound
+					flow.deficit = Math.min(flow.deficit + flow.quantum(), 2L * flow.quantum());
+					flow.turn = true;
+					full = (flow.deficit == 2L * flow.quantum());
+				}
+				
+				// A datagram larger than the most credit a flow can save up is
+				// sent at the start of a turn with full credit, leaving the
+				// flow in debt for its next turns; otherwise it would never go.
+				if (len > flow.deficit && !full) {
+					flow.turn = false;
+					active.addLast(active.removeFirst());
+					skipped++;
+					credited++;
+					continue;
+				}
+				
+				long own = flow.bucket.delay(now);
+				if (own > 0L) {
+					// Let the other connections' flows go first. The flow
+					// keeps its turn, so it finishes it once it may send again.
+					wake = Math.min(wake, now + own);
+					active.addLast(active.removeFirst());
+					skipped++;
+					continue;
+				}
+				
+				flow.deficit -= len;
+				if (!transmit(flow, now)) return;
+				skipped = 0;
+				credited = 0;
+				
+				if (flow.queue.isEmpty()) {
+					flow.deficit = 0L;
+					flow.turn = false;
+					active.removeFirst();
+				}
+			}
+		} finally {
+			if (queuedBytes != before) notifyAll();
+		}
+		
+		// Either everything has been sent, or the rate limits say to wait.
+		wantWrite(false);
+		if (!active.isEmpty()) {
+			throttles++;
+			wake(wake);
+		}
+	}
+	
+	/**
+	 * Sends the first datagram of a flow and takes its tokens. A datagram
+	 * that the channel refuses is dropped, and counts as handled.
+	 *
+	 * @return
+	 *     False if the kernel's buffer is full.
+	 */
+	@GuardedBy("this")
+	private boolean transmit(Flow flow, long now)
+	{
+		Datagram dgram = flow.queue.peekFirst();
+		int len = dgram.data.remaining();
+		
+		try {
+			if (channel.send(dgram.data, dgram.target) == 0) {
+				wantWrite(true);
+				return false;
+			}
+		} catch (IOException e) {
+			// Left at the head of its flow, it would fail again on every
+			// flush and hold up everything queued behind it.
+			flow.queue.removeFirst();
+			flow.bytes -= len;
+			queuedBytes -= len;
+			dropped++;
+			logger.log(Level.INFO, "Dropping datagram to " + dgram.target, e);
+			return true;
+		}
+		
+		flow.queue.removeFirst();
+		flow.bytes -= len;
+		queuedBytes -= len;
+		flow.bucket.take(len, now);
+		bucket.take(len, now);
+		sent++;
+		return true;
+	}
+	
+	/** Makes sure the queues are flushed by the given time. */
+	@GuardedBy("this")
+	private void wake(long when)
+	{
+		if (when == Long.MAX_VALUE) return;
+		if (wakeup != null && !wakeup.isDone() && wakeAt <= when) return;
+		
+		if (wakeup != null) wakeup.cancel(false);
+		
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					paced();
+				} catch (IOException e) {
+					logger.log(Level.INFO, "Cannot send queued datagrams", e);
+				}
+			}
+		};
+		wakeAt = when;
+		wakeup = pacer.schedule(task, Math.max(when - System.nanoTime(), 0L), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the channel on which to send, opening a private one if the
+	 * server has not attached its own.
+	 */
+	@GuardedBy("this")
+	private DatagramChannel channel() throws IOException
+	{
+		if (channel == null) {
+			logger.fine("Opening send channel");
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+		}
+		return channel;
+	}
+	
+	/**
+	 * Sends a datagram when no selector is watching the channel. Nobody will
+	 * say when the private channel becomes writable, so this sends anything
+	 * left in the queues first, then backs off briefly each time the kernel's
+	 * buffer is full or a rate limit is reached.
+	 */
+	@GuardedBy("this")
+	private void sendDirect(ByteBuffer data, SocketAddress target, Flow flow) throws IOException, InterruptedException
+	{
+		DatagramChannel ch = channel();
+		
+		while (queuedBytes > 0) {
+			drain();
+			if (queuedBytes > 0) wait(1L);
+		}
+		
+		int len = data.remaining();
+		long delay = 0L;
+		while (!flow.control && (delay = Math.max(bucket.delay(System.nanoTime()), flow.bucket.delay(System.nanoTime()))) > 0L) {
+			TimeUnit.NANOSECONDS.timedWait(this, delay);
+		}
+		
+		while (ch.send(data, target) == 0) {
+			wait(1L);
+		}
+		
+		long now = System.nanoTime();
+		flow.bucket.take(len, now);
+		bucket.take(len, now);
+		sent++;
+	}
+	
+	/**
+	 * Turns the selector's interest in writability on or off.
+	 *
+	 * @param on
+	 *     True if the selector should watch for writability.
+	 */
+	@GuardedBy("this")
+	private void wantWrite(boolean on)
+	{
+		if (key == null || !key.isValid()) return;
+		
+		// The server thread turns OP_READ on and off for the same key, so the
+		// bit is changed atomically.
+		if (on) {
+			int ops = key.interestOpsOr(SelectionKey.OP_WRITE);
+			if ((ops & SelectionKey.OP_WRITE) == 0) key.selector().wakeup();
+		} else {
+			key.interestOpsAnd(~SelectionKey.OP_WRITE);
+		}
+	}
+	
+	
+	/**
+	 * A stream of datagrams that are sent in order, and take turns with
+	 * other flows. Each connection has a flow for its control packets, and
+	 * each file transfer one for its segments. Apart from its weight, a flow
+	 * is only touched while holding the transmitter's lock.
+	 */
+	static final class Flow
+	{
+		/** The rate limit of the flow's connection. */
+		private final TokenBucket bucket;
+		/** True for control packets, which go before everything else. */
+		private final boolean control;
+		/** The flow's share of the bandwidth, relative to other flows. */
+		private volatile int weight;
+		/** Datagrams waiting to be sent. */
+		private final Deque<Datagram> queue;
+		/** The number of bytes waiting to be sent. */
+		private int bytes;
+		/** The bytes the flow may still send before its turn is over. */
+		private long deficit;
+		/** True if the flow's turn has started. */
+		private boolean turn;
+		
+		/**
+		 * Creates a new flow.
+		 *
+		 * @param bucket
+		 *     The rate limit of the flow's connection.
+		 * @param control
+		 *     True if the flow carries control packets.
+		 */
+		Flow(TokenBucket bucket, boolean control)
+		{
+			this.bucket = bucket;
+			this.control = control;
+			this.weight = 1;
+			this.queue = new ArrayDeque<Datagram>();
+			this.bytes = 0;
+			this.deficit = 0L;
+			this.turn = false;
+		}
+		
+		/**
+		 * Sets the flow's share of the bandwidth. A flow of weight 2 sends
+		 * twice as much as a flow of weight 1 when both have datagrams waiting.
+		 *
+		 * @param weight
+		 *     The weight, from 1 to 64.
+		 */
+		void setWeight(int weight)
+		{
+			if (weight < 1 || weight > 64) throw new IllegalArgumentException("Bad weight: " + weight);
+			this.weight = weight;
+		}
+		
+		/**
+		 * Returns the flow's share of the bandwidth.
+		 *
+		 * @return
+		 *     The weight.
+		 */
+		int getWeight()
+		{
+			return weight;
+		}
+		
+		/** Returns the bytes the flow may send on each turn. */
+		private long quantum()
+		{
+			return (long) QUANTUM * weight;
+		}
+	}
+	
+	
+	/** A datagram waiting to be sent. */
+	private static final class Datagram
+	{
+		private final ByteBuffer data;
+		private final SocketAddress target;
+		
+		private Datagram(ByteBuffer data, SocketAddress target)
+		{
+			this.data = data;
+			this.target = target;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * TestFileRead
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestFileRead
+{
+	private static final String ALIAS = "TestFileRead";
+	private static final int SEG = 1000;
+	
+	private File dir;
+	private File file;
+	private String name;
+	private byte[] contents;
+	private FileRead reader;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = Files.createTempDirectory("snodes").toFile();
+		file = new File(dir, "file");
+		name = ALIAS + File.separator + file.getName();
+		contents = write(2 * SEG + SEG / 2, 0);
+		
+		RootShares.getInstance().addFolder(ALIAS, dir.getPath());
+		reader = FileRead.getInstance();
+		reader.setSegmentSize(SEG);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		reader.closeFile(name);
+		reader.setSegmentSize(FileRead.DEFAULT_SEGMENT_SIZE);
+		reader.setMapThreshold(FileRead.DEFAULT_MAP_THRESHOLD);
+		RootShares.getInstance().removeFolder(ALIAS);
+		file.delete();
+		dir.delete();
+	}
+	
+	/** Fills the file with a pattern, returning what was written. */
+	private byte[] write(int length, int seed) throws Exception
+	{
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) bytes[i] = (byte) (i * 31 + seed);
+		Files.write(file.toPath(), bytes);
+		return bytes;
+	}
+	
+	private byte[] expected(int seg)
+	{
+		return Arrays.copyOfRange(contents, seg * SEG, Math.min(contents.length, (seg + 1) * SEG));
+	}
+	
+	private static byte[] bytes(ByteBuffer buf)
+	{
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return bytes;
+	}
+	
+	// Tests that every segment is read, including the short last one
+	@Test
+	public void testReadSegment() throws Exception
+	{
+		assertEquals(3, reader.fileSegments(name));
+		for (int seg = 0; seg < 3; seg++) {
+			assertArrayEquals("Segment " + seg, expected(seg), reader.readSegment(name, seg));
+		}
+		assertEquals(SEG / 2, reader.readSegment(name, 2).length);
+	}
+	
+	// Tests that reading past the end of the file fails
+	@Test(expected = EOFException.class)
+	public void testEOF() throws Exception
+	{
+		reader.readSegment(name, 3);
+	}
+	
+	// Tests that files outside the shares cannot be read
+	@Test(expected = FileNotFoundException.class)
+	public void testNotShared() throws Exception
+	{
+		reader.readSegment("NotShared" + File.separator + "file", 0);
+	}
+	
+	// Tests that mapped files read the same as other files
+	@Test
+	public void testMapped() throws Exception
+	{
+		reader.setMapThreshold(0L);
+		for (int seg = 0; seg < 3; seg++) {
+			assertArrayEquals("Segment " + seg, expected(seg), reader.readSegment(name, seg));
+			
+			ByteBuffer buf = reader.readSegmentBuffer(name, seg);
+			assertTrue(buf.isReadOnly());
+			assertTrue(buf.isDirect());
+			assertArrayEquals("Segment " + seg, expected(seg), bytes(buf));
+			assertArrayEquals("Segment " + seg, expected(seg), bytes(reader.mapSegment(name, seg)));
+		}
+	}
+	
+	// Tests that unmapped files can be read as buffers too
+	@Test
+	public void testReadSegmentBuffer() throws Exception
+	{
+		reader.setMapThreshold(Long.MAX_VALUE);
+		ByteBuffer buf = reader.readSegmentBuffer(name, 1);
+		assertTrue(buf.isReadOnly());
+		assertArrayEquals(expected(1), bytes(buf));
+	}
+	
+	// Tests that a file that changes is read again rather than served from the cache
+	@Test
+	public void testModified() throws Exception
+	{
+		assertArrayEquals(expected(0), reader.readSegment(name, 0));
+		assertArrayEquals(expected(0), reader.readSegment(name, 0));
+		
+		contents = write(SEG + 1, 7);
+		file.setLastModified(file.lastModified() + 2000L);
+		assertArrayEquals(expected(0), reader.readSegment(name, 0));
+		assertEquals(2, reader.fileSegments(name));
+	}
+	
+	// Tests that many threads can read the same file at once
+	@Test(timeout = 10000)
+	public void testConcurrentReads() throws Exception
+	{
+		final AtomicInteger failures = new AtomicInteger(0);
+		Thread[] threads = new Thread[8];
+		
+		for (int i = 0; i < threads.length; i++) {
+			final int first = i % 3;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 100; j++) {
+							int seg = (first + j) % 3;
+							if (!Arrays.equals(expected(seg), reader.readSegment(name, seg))) {
+								failures.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+		
+		assertEquals(0, failures.get());
+	}
+	
+	// Tests that only segment sizes from 1 to MAX_SEGMENT_SIZE are accepted
+	@Test
+	public void testSetSegmentSize()
+	{
+		assertEquals(FileRead.MAX_SEGMENT_SIZE, reader.setSegmentSize(FileRead.MAX_SEGMENT_SIZE));
+		assertEquals(1, reader.setSegmentSize(1));
+		assertEquals(1, reader.setSegmentSize(0));
+		assertEquals(1, reader.setSegmentSize(-1));
+		assertEquals(1, reader.setSegmentSize(FileRead.MAX_SEGMENT_SIZE + 1));
+		assertEquals(1, reader.getSegmentSize());
+	}
+	
+	// Tests that a bad map threshold is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadMapThreshold()
+	{
+		reader.setMapThreshold(-1L);
+	}
+}
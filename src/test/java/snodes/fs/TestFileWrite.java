@@ -0,0 +1,206 @@
+/*
+ * TestFileWrite
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestFileWrite
+{
+	private static final int SEG = 1024;
+	private static final int SEGMENTS = 4;
+	
+	private String name;
+	private File save;
+	private File journal;
+	private FileWrite writer;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		name = "TestFileWrite-" + System.nanoTime();
+		save = new File(PathManager.getManager().getDataDirectory(), name);
+		journal = SegmentJournal.journalFor(save);
+		writer = FileWrite.getInstance();
+		writer.readyFile(name, SEG, SEGMENTS);
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		writer.closeFile(name);
+		writer.setSyncPolicy(FileWrite.SyncPolicy.ON_COMPLETION);
+		writer.setSyncInterval(FileWrite.DEFAULT_SYNC_INTERVAL);
+		save.delete();
+		journal.delete();
+	}
+	
+	private static byte[] segment(int seg)
+	{
+		byte[] bytes = new byte[SEG];
+		Arrays.fill(bytes, (byte) (seg + 1));
+		return bytes;
+	}
+	
+	/** Returns the segments that the journal on the disk records. */
+	private boolean[] journaled() throws IOException
+	{
+		SegmentJournal j = new SegmentJournal(journal, SEG, SEGMENTS);
+		try {
+			return j.getStatus();
+		} finally {
+			j.close();
+		}
+	}
+	
+	private static boolean[] status(int... segs)
+	{
+		boolean[] status = new boolean[SEGMENTS];
+		for (int seg : segs) status[seg] = true;
+		return status;
+	}
+	
+	private static void assertStatus(boolean[] expected, boolean[] actual)
+	{
+		assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+	}
+	
+	// Tests that a complete download has every segment in place and no journal
+	@Test
+	public void testComplete() throws Exception
+	{
+		for (int seg = SEGMENTS - 1; seg >= 0; seg--) {
+			assertFalse(writer.isFileDone(name));
+			writer.writeSegment(name, segment(seg), seg);
+		}
+		
+		assertTrue(writer.isFileDone(name));
+		assertEquals(-1, writer.nextSegmentNeeded(name));
+		assertFalse(journal.exists());
+		
+		byte[] contents = Files.readAllBytes(save.toPath());
+		assertEquals(SEGMENTS * SEG, contents.length);
+		for (int i = 0; i < contents.length; i++) assertEquals(i / SEG + 1, contents[i]);
+	}
+	
+	// Tests that a segment is journaled as soon as it is written when data is only synced on completion
+	@Test
+	public void testOnCompletion() throws Exception
+	{
+		writer.setSyncPolicy(FileWrite.SyncPolicy.ON_COMPLETION);
+		writer.writeSegment(name, segment(1), 1);
+		assertStatus(status(1), journaled());
+	}
+	
+	// Tests that a segment is journaled as soon as it is written when data is never synced
+	@Test
+	public void testNever() throws Exception
+	{
+		writer.setSyncPolicy(FileWrite.SyncPolicy.NEVER);
+		writer.writeSegment(name, segment(2), 2);
+		assertStatus(status(2), journaled());
+	}
+	
+	// Tests that segments are only journaled once their data has been synced
+	@Test
+	public void testPeriodic() throws Exception
+	{
+		writer.setSyncPolicy(FileWrite.SyncPolicy.PERIODIC);
+		writer.setSyncInterval(2 * SEG);
+		
+		writer.writeSegment(name, segment(0), 0);
+		assertStatus(status(), journaled());
+		assertStatus(status(0), writer.getSegmentStatus(name));
+		
+		writer.writeSegment(name, segment(1), 1);
+		assertStatus(status(0, 1), journaled());
+		
+		writer.writeSegment(name, segment(2), 2);
+		assertStatus(status(0, 1), journaled());
+		
+		// Closing syncs what is left.
+		writer.closeFile(name);
+		assertStatus(status(0, 1, 2), journaled());
+	}
+	
+	// Tests that asynchronous writes follow the sync policy too
+	@Test(timeout = 5000)
+	public void testPeriodicAsync() throws Exception
+	{
+		writer.setSyncPolicy(FileWrite.SyncPolicy.PERIODIC);
+		writer.setSyncInterval(2 * SEG);
+		
+		Future<Void> f0 = writer.writeSegmentAsync(name, ByteBuffer.wrap(segment(0)), 0);
+		Future<Void> f1 = writer.writeSegmentAsync(name, ByteBuffer.wrap(segment(1)), 1);
+		f0.get();
+		f1.get();
+		assertStatus(status(0, 1), journaled());
+		
+		writer.writeSegmentAsync(name, ByteBuffer.wrap(segment(3)), 3).get();
+		assertStatus(status(0, 1), journaled());
+		writer.closeFile(name);
+		assertStatus(status(0, 1, 3), journaled());
+	}
+	
+	// Tests that a closed download resumes with the segments it had
+	@Test
+	public void testResume() throws Exception
+	{
+		writer.writeSegment(name, segment(0), 0);
+		writer.writeSegment(name, segment(2), 2);
+		writer.closeFile(name);
+		
+		writer.readyFile(name, SEG, SEGMENTS);
+		assertStatus(status(0, 2), writer.getSegmentStatus(name));
+		assertEquals(1, writer.nextSegmentNeeded(name));
+		
+		writer.writeSegment(name, segment(1), 1);
+		writer.writeSegment(name, segment(3), 3);
+		assertTrue(writer.isFileDone(name));
+		assertFalse(journal.exists());
+	}
+	
+	// Tests that a segment cannot be written twice
+	@Test(expected = IOException.class)
+	public void testDuplicate() throws Exception
+	{
+		writer.writeSegment(name, segment(0), 0);
+		writer.writeSegment(name, segment(0), 0);
+	}
+	
+	// Tests that a segment of the wrong size is refused
+	@Test(expected = IOException.class)
+	public void testWrongSize() throws Exception
+	{
+		writer.writeSegment(name, new byte[SEG - 1], 0);
+	}
+	
+	// Tests that a closed download takes no more segments
+	@Test(expected = IOException.class)
+	public void testClosed() throws Exception
+	{
+		writer.closeFile(name);
+		writer.writeSegmentAsync(name, ByteBuffer.wrap(segment(0)), 0);
+	}
+	
+	// Tests that a sync interval of nothing is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadSyncInterval()
+	{
+		writer.setSyncInterval(0L);
+	}
+}
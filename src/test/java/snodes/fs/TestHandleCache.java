@@ -0,0 +1,191 @@
+/*
+ * TestHandleCache
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestHandleCache
+{
+	private File dir;
+	private File a, b, c;
+	private HandleCache cache;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = Files.createTempDirectory("snodes").toFile();
+		a = file("a");
+		b = file("b");
+		c = file("c");
+		cache = new HandleCache(2, 0L);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		cache.closeAll();
+		a.delete();
+		b.delete();
+		c.delete();
+		dir.delete();
+	}
+	
+	private File file(String name) throws Exception
+	{
+		File f = new File(dir, name);
+		Files.write(f.toPath(), name.getBytes("US-ASCII"));
+		return f;
+	}
+	
+	// Tests that a file is opened once and shared by every handle to it
+	@Test
+	public void testReuse() throws Exception
+	{
+		HandleCache.Handle first = cache.acquire(a);
+		HandleCache.Handle second = cache.acquire(a);
+		assertSame(first, second);
+		assertEquals(1L, cache.getMisses());
+		assertEquals(1L, cache.getHits());
+		
+		first.release();
+		assertTrue(second.channel().isOpen());
+		second.release();
+		assertTrue(second.channel().isOpen());
+		assertEquals(1, cache.getOpen());
+	}
+	
+	// Tests that the least recently used file is closed to make room
+	@Test
+	public void testEviction() throws Exception
+	{
+		HandleCache.Handle ha = cache.acquire(a);
+		ha.release();
+		HandleCache.Handle hb = cache.acquire(b);
+		hb.release();
+		
+		// Using a makes b the least recently used.
+		cache.acquire(a).release();
+		HandleCache.Handle hc = cache.acquire(c);
+		hc.release();
+		
+		assertEquals(2, cache.getOpen());
+		assertEquals(1L, cache.getEvictions());
+		assertTrue(ha.channel().isOpen());
+		assertFalse(hb.channel().isOpen());
+		assertTrue(hc.channel().isOpen());
+	}
+	
+	// Tests that a file in use is not closed to make room until it is released
+	@Test
+	public void testEvictionWhileHeld() throws Exception
+	{
+		cache.setCapacity(1);
+		HandleCache.Handle ha = cache.acquire(a);
+		HandleCache.Handle hb = cache.acquire(b);
+		
+		assertEquals(2, cache.getOpen());
+		assertTrue(ha.channel().isOpen());
+		assertTrue(hb.channel().isOpen());
+		
+		ha.release();
+		assertEquals(1, cache.getOpen());
+		assertFalse(ha.channel().isOpen());
+		assertTrue(hb.channel().isOpen());
+		
+		ByteBuffer buf = ByteBuffer.allocate(1);
+		hb.channel().read(buf, 0L);
+		assertEquals('b', buf.get(0));
+		hb.release();
+	}
+	
+	// Tests that closing a file in use waits until it is released
+	@Test
+	public void testCloseWhileHeld() throws Exception
+	{
+		HandleCache.Handle ha = cache.acquire(a);
+		cache.close(a);
+		assertEquals(0, cache.getOpen());
+		assertTrue(ha.channel().isOpen());
+		
+		ha.release();
+		assertFalse(ha.channel().isOpen());
+		
+		HandleCache.Handle again = cache.acquire(a);
+		assertNotSame(ha, again);
+		again.release();
+	}
+	
+	// Tests that the sweeper closes idle files, but not files in use
+	@Test
+	public void testSweep() throws Exception
+	{
+		HandleCache.Handle ha = cache.acquire(a);
+		ha.release();
+		HandleCache.Handle hb = cache.acquire(b);
+		
+		cache.sweep();
+		assertEquals(2, cache.getOpen());
+		
+		cache.setIdleTimeout(1L);
+		Thread.sleep(20);
+		cache.sweep();
+		assertEquals(1, cache.getOpen());
+		assertFalse(ha.channel().isOpen());
+		assertTrue(hb.channel().isOpen());
+		
+		hb.release();
+		Thread.sleep(20);
+		cache.sweep();
+		assertEquals(0, cache.getOpen());
+		assertFalse(hb.channel().isOpen());
+	}
+	
+	// Tests that a handle maps parts of its file
+	@Test
+	public void testMap() throws Exception
+	{
+		HandleCache.Handle ha = cache.acquire(a);
+		try {
+			ByteBuffer buf = ha.map(0L, 1, ha.channel().size());
+			assertEquals('a', buf.get(buf.position()));
+		} finally {
+			ha.release();
+		}
+	}
+	
+	// Tests that a handle cannot be released twice
+	@Test(expected = IllegalStateException.class)
+	public void testDoubleRelease() throws Exception
+	{
+		HandleCache.Handle ha = cache.acquire(a);
+		ha.release();
+		ha.release();
+	}
+	
+	// Tests that a missing file cannot be opened
+	@Test(expected = FileNotFoundException.class)
+	public void testMissing() throws Exception
+	{
+		cache.acquire(new File(dir, "missing"));
+	}
+	
+	// Tests that a capacity of less than one file is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadCapacity()
+	{
+		cache.setCapacity(0);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * TestMerkleTree
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestMerkleTree
+{
+	// Tests that an empty file has the hash of an empty leaf as its root
+	@Test
+	public void testEmptyRoot() throws Exception
+	{
+		byte[] expected = MessageDigest.getInstance(MerkleTree.ALGORITHM).digest(new byte[] { 0 });
+		File file = File.createTempFile("snodes", ".empty");
+		
+		try {
+			assertArrayEquals(expected, MerkleTree.build(file, 1000).getRoot());
+		} finally {
+			file.delete();
+		}
+		assertArrayEquals(expected, MerkleTree.fromLeaves(new byte[0], 1000).getRoot());
+		assertFalse(MerkleTree.verify(expected, 0, 0, ByteBuffer.allocate(0), ByteBuffer.allocate(0)));
+	}
+	
+	// Tests that the empty root cannot be changed through the copy that is returned
+	@Test
+	public void testEmptyRootCopy()
+	{
+		MerkleTree tree = MerkleTree.fromLeaves(new byte[0], 1000);
+		tree.getRoot()[0] ^= 1;
+		assertArrayEquals(MerkleTree.hashSegment(ByteBuffer.allocate(0)), tree.getRoot());
+	}
+	
+	// Tests that the root of a single segment is its leaf
+	@Test
+	public void testSingleSegment()
+	{
+		byte[] leaf = MerkleTree.hashSegment(ByteBuffer.wrap("snodes".getBytes()));
+		MerkleTree tree = MerkleTree.fromLeaves(leaf, 1000);
+		
+		assertArrayEquals(leaf, tree.getRoot());
+		assertTrue(MerkleTree.verify(leaf, 1, 0, ByteBuffer.wrap("snodes".getBytes()), ByteBuffer.allocate(0)));
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * TestSegmentCache
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestSegmentCache
+{
+	private static final int CAPACITY = 64 * 1024;
+	private static final int SIZE = 1000;
+	
+	private SegmentCache cache;
+	
+	@Before
+	public void setUp()
+	{
+		cache = new SegmentCache(CAPACITY);
+	}
+	
+	private static ByteBuffer value(int fill)
+	{
+		byte[] bytes = new byte[SIZE];
+		Arrays.fill(bytes, (byte) fill);
+		return ByteBuffer.wrap(bytes);
+	}
+	
+	private static byte[] contents(SegmentCache.Entry entry)
+	{
+		ByteBuffer buf = entry.buffer();
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		return bytes;
+	}
+	
+	// Tests that a cached value can be read back
+	@Test
+	public void testHit()
+	{
+		assertNull(cache.acquire("a"));
+		assertTrue(cache.put("a", value(1)));
+		
+		SegmentCache.Entry entry = cache.acquire("a");
+		assertNotNull(entry);
+		assertArrayEquals(value(1).array(), contents(entry));
+		assertTrue(entry.buffer().isReadOnly());
+		entry.release();
+		
+		assertEquals(1L, cache.getHits());
+		assertEquals(1L, cache.getMisses());
+		assertEquals(0.5, cache.getHitRatio(), 0.001);
+	}
+	
+	// Tests that once the cache is full, a key asked for only once is turned away
+	@Test
+	public void testAdmission()
+	{
+		for (int i = 0; cache.getSize() < CAPACITY; i++) {
+			assertNull(cache.acquire(i));
+			assertTrue(cache.put(i, value(i)));
+		}
+		int entries = cache.getEntries();
+		
+		assertNull(cache.acquire("once"));
+		assertFalse(cache.put("once", value(2)));
+		assertEquals(entries, cache.getEntries());
+		
+		assertNull(cache.acquire("once"));
+		assertTrue(cache.put("once", value(2)));
+		assertTrue(cache.getSize() <= CAPACITY);
+	}
+	
+	// Tests that a value that is already cached is not replaced
+	@Test
+	public void testDuplicate()
+	{
+		assertTrue(cache.put("a", value(1)));
+		assertFalse(cache.put("a", value(2)));
+		
+		SegmentCache.Entry entry = cache.acquire("a");
+		assertArrayEquals(value(1).array(), contents(entry));
+		entry.release();
+	}
+	
+	// Tests that an evicted entry stays valid until it is released
+	@Test
+	public void testPinned()
+	{
+		assertTrue(cache.put("a", value(1)));
+		SegmentCache.Entry entry = cache.acquire("a");
+		cache.invalidate("a");
+		assertNull(cache.acquire("a"));
+		
+		// The new value must not be given the held entry's buffer.
+		assertTrue(cache.put("b", value(2)));
+		assertArrayEquals(value(1).array(), contents(entry));
+		entry.release();
+		
+		// Now it may be.
+		cache.invalidate("b");
+		assertTrue(cache.put("c", value(3)));
+		SegmentCache.Entry c = cache.acquire("c");
+		assertArrayEquals(value(3).array(), contents(c));
+		c.release();
+	}
+	
+	// Tests that an entry cannot be released twice
+	@Test(expected = IllegalStateException.class)
+	public void testDoubleRelease()
+	{
+		cache.put("a", value(1));
+		SegmentCache.Entry entry = cache.acquire("a");
+		entry.release();
+		entry.release();
+	}
+	
+	// Tests that the cache never holds more than its capacity
+	@Test
+	public void testCapacity()
+	{
+		for (int i = 0; i < 1000; i++) {
+			SegmentCache.Entry entry = cache.acquire(i % 100);
+			if (entry != null) entry.release();
+			else cache.put(i % 100, value(i));
+			assertTrue(cache.getSize() <= CAPACITY);
+		}
+		
+		cache.setCapacity(CAPACITY / 4);
+		assertTrue(cache.getSize() <= CAPACITY / 4);
+		cache.clear();
+		assertEquals(0, cache.getEntries());
+		assertEquals(0L, cache.getSize());
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * TestSegmentJournal
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestSegmentJournal
+{
+	private File dir;
+	private File file;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = Files.createTempDirectory("snodes").toFile();
+		file = SegmentJournal.journalFor(new File(dir, "download"));
+	}
+	
+	@After
+	public void tearDown()
+	{
+		file.delete();
+		dir.delete();
+	}
+	
+	// Tests that a journal is named after its download
+	@Test
+	public void testJournalFor()
+	{
+		assertEquals(new File(dir, "download" + SegmentJournal.SUFFIX), file);
+	}
+	
+	// Tests that a reopened journal resumes from the segments it recorded
+	@Test
+	public void testResume() throws Exception
+	{
+		SegmentJournal journal = new SegmentJournal(file, 1024, 20);
+		assertFalse(journal.isMarked(0));
+		journal.mark(0);
+		journal.mark(9);
+		journal.mark(19);
+		journal.close();
+		
+		journal = new SegmentJournal(file, 1024, 20);
+		boolean[] status = journal.getStatus();
+		assertEquals(20, status.length);
+		for (int i = 0; i < status.length; i++) {
+			assertEquals(i == 0 || i == 9 || i == 19, status[i]);
+		}
+		journal.close();
+	}
+	
+	// Tests that a journal written for another layout is cleared
+	@Test
+	public void testStale() throws Exception
+	{
+		SegmentJournal journal = new SegmentJournal(file, 1024, 20);
+		journal.mark(3);
+		journal.close();
+		
+		journal = new SegmentJournal(file, 2048, 20);
+		assertFalse(journal.isMarked(3));
+		journal.close();
+		
+		journal = new SegmentJournal(file, 1024, 20);
+		journal.mark(3);
+		journal.close();
+		journal = new SegmentJournal(file, 1024, 21);
+		assertFalse(journal.isMarked(3));
+		journal.close();
+	}
+	
+	// Tests that a closed journal ignores marks and forces
+	@Test
+	public void testClosed() throws Exception
+	{
+		SegmentJournal journal = new SegmentJournal(file, 1024, 8);
+		journal.mark(1);
+		journal.close();
+		journal.mark(2);
+		journal.force();
+		journal.close();
+		
+		journal = new SegmentJournal(file, 1024, 8);
+		assertTrue(journal.isMarked(1));
+		assertFalse(journal.isMarked(2));
+		journal.close();
+	}
+	
+	// Tests that a deleted journal is gone
+	@Test
+	public void testDelete() throws Exception
+	{
+		SegmentJournal journal = new SegmentJournal(file, 1024, 8);
+		journal.mark(1);
+		journal.delete();
+		journal.mark(2);
+		
+		journal = new SegmentJournal(file, 1024, 8);
+		assertFalse(journal.isMarked(1));
+		journal.close();
+	}
+	
+	// Tests that segments outside the download are refused
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfRange() throws Exception
+	{
+		SegmentJournal journal = new SegmentJournal(file, 1024, 8);
+		try {
+			journal.mark(8);
+		} finally {
+			journal.close();
+		}
+	}
+	
+	// Tests that a bad layout is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadLayout() throws Exception
+	{
+		new SegmentJournal(file, 0, 8);
+	}
+}
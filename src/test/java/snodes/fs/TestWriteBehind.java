@@ -0,0 +1,276 @@
+/*
+ * TestWriteBehind
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestWriteBehind
+{
+	private static final int SEG = 1024;
+	
+	private File dir;
+	private File save;
+	private File other;
+	private CountingChannel channel;
+	private FileChannel otherChannel;
+	/** Holds up the writing thread while it records a segment of other. */
+	private CountDownLatch gate;
+	/** Counted down once the writing thread is held up. */
+	private CountDownLatch held;
+	/** The segments recorded, in order. */
+	private List<Integer> committed;
+	/** The segment whose recording fails, if any. */
+	private volatile int failing;
+	private WriteBehind writeBehind;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = Files.createTempDirectory("snodes").toFile();
+		save = new File(dir, "save");
+		other = new File(dir, "other");
+		channel = new CountingChannel(new RandomAccessFile(save, "rw").getChannel());
+		otherChannel = new RandomAccessFile(other, "rw").getChannel();
+		gate = new CountDownLatch(0);
+		held = new CountDownLatch(1);
+		committed = Collections.synchronizedList(new ArrayList<Integer>());
+		failing = -1;
+		
+		writeBehind = new WriteBehind(new WriteBehind.Committer() {
+			public void committed(File file, int seg, int bytes) throws IOException {
+				if (file.equals(other)) {
+					held.countDown();
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					return;
+				}
+				if (seg == failing) throw new IOException("Cannot record " + seg);
+				committed.add(seg);
+			}
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		gate.countDown();
+		writeBehind.flush();
+		channel.close();
+		otherChannel.close();
+		save.delete();
+		other.delete();
+		dir.delete();
+	}
+	
+	private static ByteBuffer segment(int seg)
+	{
+		byte[] bytes = new byte[SEG];
+		Arrays.fill(bytes, (byte) seg);
+		return ByteBuffer.wrap(bytes);
+	}
+	
+	/** Queues a segment of the other file, and waits until the writing thread is held up recording it. */
+	private void holdWriter() throws Exception
+	{
+		gate = new CountDownLatch(1);
+		writeBehind.submit(other, otherChannel, 0, 0L, segment(0));
+		held.await();
+	}
+	
+	// Tests that segments queued out of order are written in one run, in order
+	@Test(timeout = 5000)
+	public void testCoalesce() throws Exception
+	{
+		holdWriter();
+		
+		int[] order = { 3, 1, 0, 2 };
+		Future<?>[] futures = new Future<?>[order.length];
+		for (int i = 0; i < order.length; i++) {
+			futures[i] = writeBehind.submit(save, channel, order[i], (long) order[i] * SEG, segment(order[i]));
+		}
+		gate.countDown();
+		for (Future<?> f : futures) f.get();
+		
+		assertEquals(1, channel.writes);
+		assertEquals(Arrays.asList(0, 1, 2, 3), committed);
+		
+		ByteBuffer contents = ByteBuffer.allocate(4 * SEG);
+		channel.read(contents, 0L);
+		for (int i = 0; i < 4 * SEG; i++) assertEquals(i / SEG, contents.get(i));
+	}
+	
+	// Tests that a submit waits while the queue's budget is spent
+	@Test(timeout = 5000)
+	public void testBudget() throws Exception
+	{
+		writeBehind.setLimit(SEG);
+		holdWriter();
+		
+		final AtomicBoolean queued = new AtomicBoolean(false);
+		Thread submitter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeBehind.submit(save, channel, 0, 0L, segment(0));
+					queued.set(true);
+				} catch (Exception e) {
+					// Leave queued false.
+				}
+			}
+		});
+		submitter.start();
+		
+		while (submitter.getState() != Thread.State.WAITING) Thread.sleep(5);
+		assertFalse(queued.get());
+		assertEquals(SEG, writeBehind.getQueued());
+		
+		gate.countDown();
+		submitter.join();
+		assertTrue(queued.get());
+		writeBehind.flush();
+		assertEquals(0L, writeBehind.getQueued());
+	}
+	
+	// Tests that a segment that cannot be recorded fails its future
+	@Test(timeout = 5000)
+	public void testCommitFailure() throws Exception
+	{
+		failing = 1;
+		Future<Void> good = writeBehind.submit(save, channel, 0, 0L, segment(0));
+		Future<Void> bad = writeBehind.submit(save, channel, 1, SEG, segment(1));
+		
+		good.get();
+		try {
+			bad.get();
+			fail("Segment 1 was recorded");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+	
+	// Tests that a failed write fails the future of every segment in its run
+	@Test(timeout = 5000)
+	public void testWriteFailure() throws Exception
+	{
+		holdWriter();
+		channel.failing = true;
+		Future<Void> first = writeBehind.submit(save, channel, 0, 0L, segment(0));
+		Future<Void> second = writeBehind.submit(save, channel, 1, SEG, segment(1));
+		gate.countDown();
+		
+		for (Future<Void> f : Arrays.asList(first, second)) {
+			try {
+				f.get();
+				fail("Segment was written");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+		assertTrue(committed.isEmpty());
+		writeBehind.flush();
+		assertEquals(0L, writeBehind.getQueued());
+	}
+	
+	// Tests that a file being closed takes no more segments until it is opened again
+	@Test(timeout = 5000)
+	public void testClosed() throws Exception
+	{
+		writeBehind.submit(save, channel, 0, 0L, segment(0)).get();
+		writeBehind.close(save);
+		
+		try {
+			writeBehind.submit(save, channel, 1, SEG, segment(1));
+			fail("Segment queued for a closed file");
+		} catch (IOException e) {
+			// Expected.
+		}
+		
+		writeBehind.open(save);
+		writeBehind.submit(save, channel, 1, SEG, segment(1)).get();
+		assertEquals(Arrays.asList(0, 1), committed);
+		
+		channel.close();
+		try {
+			writeBehind.submit(save, channel, 2, 2L * SEG, segment(2));
+			fail("Segment queued for a closed channel");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+	
+	// Tests that the same segment cannot be queued twice
+	@Test(timeout = 5000, expected = IOException.class)
+	public void testDuplicate() throws Exception
+	{
+		holdWriter();
+		writeBehind.submit(save, channel, 0, 0L, segment(0));
+		writeBehind.submit(save, channel, 0, 0L, segment(0));
+	}
+	
+	
+	/** A file channel that counts gathering writes, and can be made to fail them. */
+	private static final class CountingChannel extends FileChannel
+	{
+		private final FileChannel channel;
+		private volatile int writes;
+		private volatile boolean failing;
+		
+		private CountingChannel(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+		
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+		{
+			writes++;
+			if (failing) throw new IOException("Disk full");
+			return channel.write(srcs, offset, length);
+		}
+		
+		public int read(ByteBuffer dst) throws IOException { return channel.read(dst); }
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return channel.read(dsts, offset, length); }
+		public int write(ByteBuffer src) throws IOException { return channel.write(src); }
+		public long position() throws IOException { return channel.position(); }
+		public FileChannel position(long pos) throws IOException { channel.position(pos); return this; }
+		public long size() throws IOException { return channel.size(); }
+		public FileChannel truncate(long size) throws IOException { channel.truncate(size); return this; }
+		public void force(boolean metaData) throws IOException { channel.force(metaData); }
+		public long transferTo(long pos, long count, WritableByteChannel target) throws IOException { return channel.transferTo(pos, count, target); }
+		public long transferFrom(ReadableByteChannel src, long pos, long count) throws IOException { return channel.transferFrom(src, pos, count); }
+		public int read(ByteBuffer dst, long pos) throws IOException { return channel.read(dst, pos); }
+		public int write(ByteBuffer src, long pos) throws IOException { return channel.write(src, pos); }
+		public MappedByteBuffer map(MapMode mode, long pos, long size) throws IOException { return channel.map(mode, pos, size); }
+		public FileLock lock(long pos, long size, boolean shared) throws IOException { return channel.lock(pos, size, shared); }
+		public FileLock tryLock(long pos, long size, boolean shared) throws IOException { return channel.tryLock(pos, size, shared); }
+		protected void implCloseChannel() throws IOException { channel.close(); }
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * ManualDispatcher
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/** A dispatcher whose tasks only run when a test runs them. */
+final class ManualDispatcher extends Dispatcher
+{
+	private final List<Runnable> tasks = new ArrayList<Runnable>();
+	private volatile boolean rejecting = false;
+	
+	ManualDispatcher(int limit)
+	{
+		super(limit);
+	}
+	
+	protected synchronized void execute(Runnable task) throws RejectedExecutionException
+	{
+		if (rejecting) throw new RejectedExecutionException("Rejecting");
+		tasks.add(task);
+	}
+	
+	public void shutdown()
+	{
+		rejecting = true;
+	}
+	
+	/** Sets whether new tasks are turned away. */
+	void setRejecting(boolean rejecting)
+	{
+		this.rejecting = rejecting;
+	}
+	
+	/** Returns the number of tasks waiting to run. */
+	synchronized int waiting()
+	{
+		return tasks.size();
+	}
+	
+	/** Runs the oldest task, returning false if there are none. */
+	boolean runNext()
+	{
+		Runnable task = null;
+		synchronized (this) {
+			if (tasks.isEmpty()) return false;
+			task = tasks.remove(0);
+		}
+		task.run();
+		return true;
+	}
+	
+	/** Runs the newest task, returning false if there are none. */
+	boolean runNewest()
+	{
+		Runnable task = null;
+		synchronized (this) {
+			if (tasks.isEmpty()) return false;
+			task = tasks.remove(tasks.size() - 1);
+		}
+		task.run();
+		return true;
+	}
+	
+	/** Runs tasks, including any they dispatch, until there are none left. */
+	void runAll()
+	{
+		while (runNext());
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * TestBufferRing
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestBufferRing
+{
+	// Tests that every buffer can be taken once, and comes back cleared
+	@Test
+	public void testAcquireRelease()
+	{
+		BufferRing ring = new BufferRing(2, 32);
+		ByteBuffer a = ring.tryAcquire(null);
+		ByteBuffer b = ring.tryAcquire(null);
+		
+		assertNotNull(a);
+		assertNotNull(b);
+		assertNotSame(a, b);
+		assertTrue(a.isDirect());
+		assertEquals(32, a.capacity());
+		assertNull(ring.tryAcquire(null));
+		assertEquals(0, ring.available());
+		
+		a.put((byte) 1).flip();
+		ring.release(a);
+		assertEquals(1, ring.available());
+		
+		ByteBuffer again = ring.tryAcquire(null);
+		assertSame(a, again);
+		assertEquals(0, again.position());
+		assertEquals(32, again.limit());
+	}
+	
+	// Tests that the task given when the ring is empty runs once, on the next release
+	@Test
+	public void testResume()
+	{
+		final AtomicInteger resumed = new AtomicInteger(0);
+		Runnable resume = new Runnable() {
+			public void run() {
+				resumed.incrementAndGet();
+			}
+		};
+		
+		BufferRing ring = new BufferRing(1, 32);
+		ByteBuffer buf = ring.tryAcquire(resume);
+		assertNotNull(buf);
+		assertNull(ring.tryAcquire(resume));
+		assertEquals(0, resumed.get());
+		
+		ring.release(buf);
+		assertEquals(1, resumed.get());
+		
+		ring.release(ring.tryAcquire(null));
+		assertEquals(1, resumed.get());
+	}
+	
+	// Tests that the ring is low once fewer than a quarter of its buffers are free
+	@Test
+	public void testLow()
+	{
+		BufferRing ring = new BufferRing(8, 16);
+		ByteBuffer[] taken = new ByteBuffer[7];
+		
+		for (int i = 0; i < 6; i++) taken[i] = ring.tryAcquire(null);
+		assertFalse(ring.isLow());
+		taken[6] = ring.tryAcquire(null);
+		assertTrue(ring.isLow());
+		
+		ring.release(taken[6]);
+		assertFalse(ring.isLow());
+	}
+	
+	// Tests that releasing null does nothing
+	@Test
+	public void testReleaseNull()
+	{
+		BufferRing ring = new BufferRing(2, 16);
+		ring.release(null);
+		assertEquals(2, ring.available());
+		assertEquals(2, ring.size());
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * TestDispatcher
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestDispatcher
+{
+	private ManualDispatcher dispatcher;
+	private AtomicInteger runs;
+	private Runnable task;
+	
+	@Before
+	public void setUp()
+	{
+		dispatcher = new ManualDispatcher(3);
+		runs = new AtomicInteger(0);
+		task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+	}
+	
+	// Tests that no more than the limit of tasks are in flight, and the rest are dropped
+	@Test
+	public void testLimit()
+	{
+		for (int i = 0; i < 3; i++) assertTrue(dispatcher.dispatch(task));
+		assertFalse(dispatcher.dispatch(task));
+		
+		assertEquals(3, dispatcher.getInFlight());
+		assertEquals(3, dispatcher.getQueueDepth());
+		assertEquals(3, dispatcher.getPeakInFlight());
+		assertEquals(3L, dispatcher.getDispatched());
+		assertEquals(1L, dispatcher.getDropped());
+		
+		dispatcher.runNext();
+		assertEquals(1, runs.get());
+		assertEquals(2, dispatcher.getInFlight());
+		assertTrue(dispatcher.dispatch(task));
+		
+		while (dispatcher.runNext());
+		assertEquals(4, runs.get());
+		assertEquals(0, dispatcher.getInFlight());
+		assertEquals(3, dispatcher.getPeakInFlight());
+	}
+	
+	// Tests that a task that crashes is counted and gives its place back
+	@Test
+	public void testFailure()
+	{
+		dispatcher.dispatch(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("Crash");
+			}
+		});
+		dispatcher.runNext();
+		
+		assertEquals(1L, dispatcher.getFailed());
+		assertEquals(0, dispatcher.getInFlight());
+	}
+	
+	// Tests that a task the executor turns away is dropped and gives its place back
+	@Test
+	public void testRejected()
+	{
+		dispatcher.setRejecting(true);
+		assertFalse(dispatcher.dispatch(task));
+		
+		assertEquals(1L, dispatcher.getDropped());
+		assertEquals(0L, dispatcher.getDispatched());
+		assertEquals(0, dispatcher.getInFlight());
+	}
+	
+	// Tests that the pooled dispatcher holds tasks in flight to its limit
+	@Test(timeout = 5000)
+	public void testPooled() throws Exception
+	{
+		Dispatcher pooled = Dispatcher.newPooledDispatcher(2, 4);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		Runnable blocked = new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					// Finish.
+				}
+			}
+		};
+		
+		try {
+			for (int i = 0; i < 4; i++) assertTrue(pooled.dispatch(blocked));
+			assertFalse(pooled.dispatch(blocked));
+			
+			started.await();
+			assertEquals(4, pooled.getInFlight());
+			assertEquals(2, pooled.getQueueDepth());
+			
+			gate.countDown();
+			while (pooled.getInFlight() > 0) Thread.sleep(5);
+			assertEquals(4L, pooled.getDispatched());
+			assertEquals(1L, pooled.getDropped());
+		} finally {
+			pooled.shutdown();
+		}
+	}
+	
+	// Tests that a dispatcher that is shut down takes no more tasks
+	@Test
+	public void testShutdown()
+	{
+		Dispatcher threads = Dispatcher.newThreadPerTaskDispatcher(1);
+		threads.shutdown();
+		assertFalse(threads.dispatch(task));
+		assertEquals(1L, threads.getDropped());
+	}
+	
+	// Tests that a limit of less than one task is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadLimit()
+	{
+		Dispatcher.newPooledDispatcher(1, 0);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * TestMailbox
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestMailbox
+{
+	private SnodesConnection conn;
+	private Mailbox mailbox;
+	private ManualDispatcher deliver;
+	private BufferRing ring;
+	private List<String> received;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		conn = new SnodesConnection("127.0.0.1");
+		mailbox = conn.getMailbox();
+		deliver = new ManualDispatcher(4);
+		ring = new BufferRing(8, 16);
+		received = Collections.synchronizedList(new ArrayList<String>());
+		
+		conn.addListener(new PacketListener() {
+			public void processPacket(SnodesConnection c, Packet packet) {
+				String text = ((Message.ChatMessage) packet.getMessage()).getMessage();
+				if (text.equals("crash")) throw new IllegalStateException("Listener crashed");
+				received.add(text);
+			}
+		}, new PacketFilter() {
+			public boolean accept(Packet.Type type) {
+				return type == Packet.Type.ChatMessage;
+			}
+		});
+	}
+	
+	private Mailbox.Slot reserve()
+	{
+		return mailbox.reserve(ring.tryAcquire(null), ring);
+	}
+	
+	private static Packet chat(String text)
+	{
+		return new Packet(new Message.ChatMessage(9, text));
+	}
+	
+	// Tests that packets are delivered in the order their slots were reserved
+	@Test
+	public void testOrder()
+	{
+		Mailbox.Slot first = reserve();
+		Mailbox.Slot second = reserve();
+		Mailbox.Slot third = reserve();
+		
+		mailbox.complete(third, chat("third"), deliver);
+		mailbox.complete(second, chat("second"), deliver);
+		assertEquals(0, deliver.waiting());
+		
+		mailbox.complete(first, chat("first"), deliver);
+		assertEquals(1, deliver.waiting());
+		deliver.runAll();
+		
+		assertEquals(Arrays.asList("first", "second", "third"), received);
+		assertEquals(0, mailbox.size());
+		assertEquals(8, ring.available());
+	}
+	
+	// Tests that delivery stops at the first slot that is not ready, and resumes once it is
+	@Test
+	public void testGap()
+	{
+		Mailbox.Slot first = reserve();
+		Mailbox.Slot second = reserve();
+		Mailbox.Slot third = reserve();
+		
+		mailbox.complete(first, chat("first"), deliver);
+		mailbox.complete(third, chat("third"), deliver);
+		deliver.runAll();
+		assertEquals(Arrays.asList("first"), received);
+		assertEquals(2, mailbox.size());
+		
+		mailbox.complete(second, chat("second"), deliver);
+		deliver.runAll();
+		assertEquals(Arrays.asList("first", "second", "third"), received);
+	}
+	
+	// Tests that a skipped slot releases its buffer at once and does not hold up the rest
+	@Test
+	public void testSkip()
+	{
+		Mailbox.Slot first = reserve();
+		Mailbox.Slot second = reserve();
+		
+		mailbox.complete(second, chat("second"), deliver);
+		mailbox.skip(first, deliver);
+		assertEquals(7, ring.available());
+		
+		deliver.runAll();
+		assertEquals(Arrays.asList("second"), received);
+		assertEquals(8, ring.available());
+	}
+	
+	// Tests that a packet gives its buffer back as soon as it is parsed once the ring runs low
+	@Test
+	public void testLowRing()
+	{
+		BufferRing small = new BufferRing(4, 256);
+		Mailbox.Slot[] slots = new Mailbox.Slot[4];
+		ByteBuffer first = small.tryAcquire(null);
+		slots[0] = mailbox.reserve(first, small);
+		for (int i = 1; i < slots.length; i++) slots[i] = mailbox.reserve(small.tryAcquire(null), small);
+		assertTrue(small.isLow());
+		
+		first.put(BinaryCodec.encode(chat("hello"))).flip();
+		mailbox.complete(slots[0], Packet.parse(first), deliver);
+		assertEquals(1, small.available());
+		
+		// The buffer is reused before the packet is delivered
+		ByteBuffer reused = small.tryAcquire(null);
+		assertSame(first, reused);
+		while (reused.hasRemaining()) reused.put((byte) 0);
+		
+		deliver.runAll();
+		assertEquals(Arrays.asList("hello"), received);
+		
+		for (int i = 1; i < slots.length; i++) mailbox.skip(slots[i], deliver);
+		small.release(reused);
+		assertEquals(4, small.available());
+	}
+	
+	// Tests that a slot is only resolved once
+	@Test
+	public void testResolveTwice()
+	{
+		Mailbox.Slot slot = reserve();
+		mailbox.complete(slot, chat("once"), deliver);
+		mailbox.skip(slot, deliver);
+		deliver.runAll();
+		
+		assertEquals(Arrays.asList("once"), received);
+		assertEquals(8, ring.available());
+	}
+	
+	// Tests that a listener that crashes does not stop delivery
+	@Test
+	public void testListenerCrash()
+	{
+		Mailbox.Slot first = reserve();
+		Mailbox.Slot second = reserve();
+		mailbox.complete(first, chat("crash"), deliver);
+		mailbox.complete(second, chat("second"), deliver);
+		deliver.runAll();
+		
+		assertEquals(Arrays.asList("second"), received);
+		assertEquals(8, ring.available());
+	}
+	
+	// Tests that packets are delivered on the calling thread when the dispatcher is full
+	@Test
+	public void testFullDispatcher()
+	{
+		deliver.setRejecting(true);
+		mailbox.complete(reserve(), chat("first"), deliver);
+		assertEquals(Arrays.asList("first"), received);
+	}
+	
+	// Tests that a connection never gets two of its packets at once
+	@Test(timeout = 10000)
+	public void testOneAtATime() throws Exception
+	{
+		final AtomicInteger inside = new AtomicInteger(0);
+		final AtomicInteger overlaps = new AtomicInteger(0);
+		final int COUNT = 200;
+		final CountDownLatch done = new CountDownLatch(COUNT);
+		
+		conn.addListener(new PacketListener() {
+			public void processPacket(SnodesConnection c, Packet packet) {
+				if (inside.incrementAndGet() > 1) overlaps.incrementAndGet();
+				Thread.yield();
+				inside.decrementAndGet();
+				done.countDown();
+			}
+		}, new PacketFilter() {
+			public boolean accept(Packet.Type type) {
+				return true;
+			}
+		});
+		
+		final Dispatcher pool = Dispatcher.newPooledDispatcher(4, 64);
+		final List<Mailbox.Slot> slots = new ArrayList<Mailbox.Slot>();
+		for (int i = 0; i < COUNT; i++) slots.add(mailbox.reserve(ByteBuffer.allocate(1), null));
+		
+		try {
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++) {
+				final int start = t;
+				threads[t] = new Thread(new Runnable() {
+					public void run() {
+						for (int i = start; i < COUNT; i += 4) {
+							mailbox.complete(slots.get(i), chat("packet " + i), pool);
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread t : threads) t.join();
+			done.await();
+		} finally {
+			pool.shutdown();
+		}
+		
+		assertEquals(0, overlaps.get());
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < COUNT; i++) expected.add("packet " + i);
+		assertEquals(expected, received);
+	}
+}
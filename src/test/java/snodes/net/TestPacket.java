@@ -0,0 +1,448 @@
+/*
+ * TestPacket
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import snodes.crypto.EncryptionKey;
+import snodes.crypto.Key;
+import snodes.crypto.Passkey;
+import snodes.fs.MerkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestPacket
+{
+	// Tests that a packet survives being encoded and decoded in the binary format
+	@Test
+	public void testBinaryRoundTrip()
+	{
+		Packet packet = new Packet(Packet.Type.TransferFile);
+		packet.putProperty("Id", Integer.valueOf(-42));
+		packet.putProperty("TotalSize", Long.valueOf(5000000000L));
+		packet.putProperty("ShareName", "Music/caf\u00e9.mp3");
+		packet.putProperty("Data", new byte[] { 0, 1, 2, (byte) 0xff });
+		packet.putProperty("NotWellKnown", Integer.valueOf(7));
+		
+		byte[] raw = BinaryCodec.encode(packet);
+		// Trailing cipher padding must be ignored
+		byte[] padded = new byte[raw.length + 5];
+		System.arraycopy(raw, 0, padded, 0, raw.length);
+		
+		Packet copy = Packet.parse(padded, padded.length);
+		
+		assertEquals(Packet.Type.TransferFile, copy.getType());
+		assertEquals(Integer.valueOf(-42), copy.getProperty("Id"));
+		assertEquals(Long.valueOf(5000000000L), copy.getProperty("TotalSize"));
+		assertEquals("Music/caf\u00e9.mp3", copy.getProperty("ShareName"));
+		assertArrayEquals(new byte[] { 0, 1, 2, (byte) 0xff }, (byte[]) copy.getProperty("Data"));
+		assertEquals(Integer.valueOf(7), copy.getProperty("NotWellKnown"));
+	}
+	
+	// Tests that received datagrams are decrypted and parsed in place, with either key
+	@Test
+	public void testDecryptInPlace() throws Exception
+	{
+		Key[] keys = { new Passkey("secret"), new EncryptionKey(new byte[32]) };
+		
+		for (Key key : keys) {
+			Packet packet = new Packet(new Message.ChatMessage(9, "hello"));
+			byte[] encrypted = packet.toByteArray(key, Packet.Format.BINARY);
+			ByteBuffer buf = ByteBuffer.allocateDirect(SnodesServer.UDP_MAX);
+			buf.put(encrypted).flip();
+			
+			Packet copy = Packet.fromBuffer(buf, key);
+			
+			assertEquals(Packet.Type.ChatMessage, copy.getType());
+			assertEquals("hello", ((Message.ChatMessage) copy.getMessage()).getMessage());
+			assertEquals(0, buf.position());
+			assertEquals(encrypted.length, buf.limit());
+		}
+	}
+	
+	// Tests that both formats parse straight out of a direct buffer, with values left as views of it
+	@Test
+	public void testDirectBuffer() throws Exception
+	{
+		Packet packet = new Packet(Packet.Type.ChatMessage);
+		packet.putProperty("Id", Integer.valueOf(3));
+		packet.putProperty("Message", "hello");
+		packet.putProperty("NotWellKnown", Long.valueOf(-7L));
+		
+		byte[][] formats = { BinaryCodec.encode(packet), packet.toString().getBytes(Packet.ENCODING) };
+		for (byte[] raw : formats) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(raw.length + 8);
+			buf.position(8);
+			buf.put(raw).flip().position(8);
+			
+			Packet copy = Packet.parse(buf);
+			
+			assertEquals(Packet.Type.ChatMessage, copy.getType());
+			assertEquals(Integer.valueOf(3), copy.getProperty("Id"));
+			assertEquals(Long.valueOf(-7L), copy.getProperty("NotWellKnown"));
+			assertEquals(8, buf.position());
+			
+			// The value was not copied out of the buffer
+			ByteBuffer view = copy.getBuffer("Message");
+			assertTrue(view.isDirect());
+			assertEquals(5, view.remaining());
+			assertEquals('h', view.get(0));
+		}
+	}
+	
+	// Tests that text packets are still recognized
+	@Test
+	public void testTextRoundTrip() throws Exception
+	{
+		Packet packet = new Packet(Packet.Type.ChatMessage);
+		packet.putProperty("Id", Integer.valueOf(3));
+		packet.putProperty("Message", "hello");
+		
+		byte[] raw = packet.toString().getBytes(Packet.ENCODING);
+		Packet copy = Packet.parse(raw, raw.length);
+		
+		assertEquals(Packet.Type.ChatMessage, copy.getType());
+		assertEquals(Integer.valueOf(3), copy.getProperty("Id"));
+		assertEquals("hello", copy.getProperty("Message"));
+	}
+	
+	// Tests that quoted values may span lines and that cipher padding is ignored
+	@Test
+	public void testTextMultiLineValue() throws Exception
+	{
+		String text = "TransferFile SFXP/1.0\nSegment: 2\nTotalSize: -5000000000L\nData: \"TWFu\nIGlz\"\n\u0003\u0003\u0003";
+		byte[] raw = text.getBytes(Packet.ENCODING);
+		Packet packet = Packet.parse(raw, raw.length);
+		
+		assertEquals(Packet.Type.TransferFile, packet.getType());
+		assertEquals(Integer.valueOf(2), packet.getProperty("Segment"));
+		assertEquals(Long.valueOf(-5000000000L), packet.getProperty("TotalSize"));
+		assertEquals("TWFu\nIGlz", packet.getProperty("Data"));
+		assertEquals(9, packet.getBuffer("Data").remaining());
+	}
+	
+	// Tests that out-of-range numbers are rejected
+	@Test
+	public void testTextOverflow() throws Exception
+	{
+		byte[] raw = "ChatMessage SFXP/1.0\nId: 2147483648".getBytes(Packet.ENCODING);
+		
+		try {
+			Packet.parse(raw, raw.length);
+			fail("2147483648 parsed as an int");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	// Tests that typed messages survive both formats
+	@Test
+	public void testTypedMessage() throws Exception
+	{
+		byte[] data = { 5, 4, 3, 2, 1 };
+		Packet packet = new Packet(new Message.TransferFile(9, "a.txt", 1L << 40, 5, 3, 0xffffffffL, FileTransfer.IDENTITY, ByteBuffer.wrap(data)));
+		byte[] binary = BinaryCodec.encode(packet);
+		byte[] text = packet.toString().getBytes(Packet.ENCODING);
+		
+		for (Packet copy : new Packet[] { Packet.parse(binary, binary.length), Packet.parse(text, text.length) }) {
+			Message.TransferFile msg = (Message.TransferFile) copy.getMessage();
+			ByteBuffer copied = FileTransfer.getSegmentData(msg);
+			byte[] bytes = new byte[copied.remaining()];
+			copied.get(bytes);
+			
+			assertEquals(9, msg.getId());
+			assertEquals("a.txt", msg.getShareName());
+			assertEquals(1L << 40, msg.getTotalSize());
+			assertEquals(5, msg.getSegmentSize());
+			assertEquals(3, msg.getSegment());
+			assertEquals(0xffffffffL, msg.getHash());
+			assertArrayEquals(data, bytes);
+			assertEquals(Integer.valueOf(3), copy.getProperty("Segment"));
+		}
+	}
+	
+	// Tests that parity is advertised as a feature rather than a compression method
+	@Test
+	public void testFeatures() throws Exception
+	{
+		Packet packet = new Packet(new Message.Connect("secret", Packet.Format.supported(), SegmentCodec.names(), FileTransfer.PARITY));
+		byte[] text = packet.toString().getBytes(Packet.ENCODING);
+		Message.Connect msg = (Message.Connect) Packet.parse(text, text.length).getMessage();
+		
+		assertEquals("parity", msg.getFeatures());
+		assertEquals(SegmentCodec.names(), msg.getCompression());
+		
+		SnodesConnection conn = new SnodesConnection("127.0.0.1");
+		conn.processPacket(new Packet(msg));
+		assertTrue(conn.hasFeature(FileTransfer.PARITY));
+		assertFalse(conn.canCompress(FileTransfer.PARITY));
+		assertTrue(conn.canCompress(SegmentCodec.DEFLATE.getName()));
+		assertNull(new Message.Connect("secret", null, null).getFeatures());
+	}
+	
+	// Tests that acknowledgements survive both formats
+	@Test
+	public void testAcknowledge() throws Exception
+	{
+		Packet packet = new Packet(new Message.Acknowledge(9, "a.txt", 7, 5));
+		byte[] binary = BinaryCodec.encode(packet);
+		byte[] text = packet.toString().getBytes(Packet.ENCODING);
+		
+		for (Packet copy : new Packet[] { Packet.parse(binary, binary.length), Packet.parse(text, text.length) }) {
+			Message.Acknowledge msg = (Message.Acknowledge) copy.getMessage();
+			
+			assertEquals(Packet.Type.Acknowledge, copy.getType());
+			assertEquals("a.txt", msg.getShareName());
+			assertEquals(7, msg.getSegment());
+			assertEquals(5, msg.getReceived());
+		}
+	}
+	
+	// Tests that the received ranges are sent as varint pairs in both codecs
+	@Test
+	public void testSelectiveAcknowledge() throws Exception
+	{
+		boolean[] status = { true, true, false, true, true, true, false, false, true, false, true, true };
+		Packet packet = new Packet(new Message.Acknowledge(9, "a.txt", 10, new ReceivedSegments(status)));
+		byte[] binary = BinaryCodec.encode(packet);
+		byte[] text = packet.toString().getBytes(Packet.ENCODING);
+		
+		assertArrayEquals(new byte[] { 1, 3, 2, 1, 1, 2 }, (byte[]) packet.getProperty("Ranges"));
+		assertTrue(packet.toString().contains("Ranges: \"AQMCAQEC\""));
+		for (Packet copy : new Packet[] { Packet.parse(binary, binary.length), Packet.parse(text, text.length) }) {
+			Message.Acknowledge msg = (Message.Acknowledge) copy.getMessage();
+			
+			assertEquals(2, msg.getReceived());
+			assertArrayEquals(new int[] { 3, 6, 8, 9, 10, 12 }, msg.getRanges());
+		}
+		assertEquals(0, new Message.Acknowledge(9, "a.txt", 1, new ReceivedSegments(new boolean[] { true, true })).getRanges().length);
+	}
+	
+	// Tests that only the first ranges are sent, and that empty ranges are rejected
+	@Test
+	public void testAcknowledgeRangeLimits() throws Exception
+	{
+		ReceivedSegments got = new ReceivedSegments(100000);
+		for (int seg = 1; seg < 100000; seg += 2) got.add(seg);
+		Packet packet = new Packet(new Message.Acknowledge(9, "a.txt", 99999, got));
+		byte[] binary = BinaryCodec.encode(packet);
+		
+		int[] ranges = ((Message.Acknowledge) Packet.parse(binary, binary.length).getMessage()).getRanges();
+		assertEquals(2 * Message.Acknowledge.MAX_RANGES, ranges.length);
+		assertEquals(2 * Message.Acknowledge.MAX_RANGES - 1, ranges[ranges.length - 2]);
+		assertTrue("Ack too large: " + binary.length, binary.length < 1000);
+		
+		Packet bad = new Packet(new Message.Acknowledge(9, "a.txt", 1, 0));
+		bad.putProperty("Ranges", new byte[] { 1, 0 });
+		byte[] b = BinaryCodec.encode(bad);
+		try {
+			((Message.Acknowledge) Packet.parse(b, b.length).getMessage()).getRanges();
+			fail("Empty range accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	// Tests that segment proofs survive both codecs and check against the root
+	@Test
+	public void testHashTreeProof() throws Exception
+	{
+		byte[][] segs = new byte[5][];
+		byte[] leaves = new byte[segs.length * MerkleTree.HASH_SIZE];
+		for (int i = 0; i < segs.length; i++) {
+			segs[i] = new byte[100 + i];
+			java.util.Arrays.fill(segs[i], (byte) i);
+			System.arraycopy(MerkleTree.hashSegment(ByteBuffer.wrap(segs[i])), 0, leaves, i * MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+		}
+		MerkleTree tree = MerkleTree.fromLeaves(leaves, 100);
+		byte[] root = tree.getRoot();
+		
+		Packet confirm = new Packet(new Message.ConfirmFileRequest(9, "a.txt", 510, 100, 5, root));
+		byte[] text = confirm.toString().getBytes(Packet.ENCODING);
+		assertArrayEquals(root, ((Message.ConfirmFileRequest) Packet.parse(text, text.length).getMessage()).getRoot());
+		
+		for (int i = 0; i < segs.length; i++) {
+			Message.TransferFile msg = new Message.TransferFile(9, "a.txt", 510, segs[i].length, i, 0L,
+				FileTransfer.IDENTITY, ByteBuffer.wrap(segs[i])).withProof(tree.getProof(i));
+			byte[] binary = BinaryCodec.encode(new Packet(msg));
+			text = new Packet(msg).toString().getBytes(Packet.ENCODING);
+			
+			for (Packet copy : new Packet[] { Packet.parse(binary, binary.length), Packet.parse(text, text.length) }) {
+				Message.TransferFile got = (Message.TransferFile) copy.getMessage();
+				assertTrue(MerkleTree.verify(root, 5, i, got.getData(), got.getProof()));
+				assertFalse(MerkleTree.verify(root, 5, (i + 1) % 5, got.getData(), got.getProof()));
+			}
+		}
+	}
+	
+	// Tests that every codec decodes what it encodes, and gives up when it must
+	@Test
+	public void testSegmentCodecs() throws Exception
+	{
+		byte[] text = new byte[10000];
+		byte[] noise = new byte[10000];
+		for (int i = 0; i < text.length; i++) text[i] = (byte) "snodes ".charAt(i % 7);
+		new java.util.Random(7).nextBytes(noise);
+		
+		for (SegmentCodec codec : new SegmentCodec[] { SegmentCodec.GZIP, SegmentCodec.DEFLATE }) {
+			ByteBuffer enc = codec.encode(text, 1, 1000);
+			assertNotNull(codec.getName(), enc);
+			assertEquals(ByteBuffer.wrap(text), codec.decode(enc.asReadOnlyBuffer(), text.length));
+			assertNull(codec.getName(), codec.encode(noise, 1, 9000));
+		}
+		assertEquals(0, SegmentCodec.ZERO.encode(new byte[5000], 1, 0).remaining());
+		assertNull(SegmentCodec.ZERO.encode(text, 1, 0));
+		assertEquals(ByteBuffer.allocate(5000), SegmentCodec.ZERO.decode(ByteBuffer.allocate(0), 5000));
+		assertEquals("gzip deflate zero", SegmentCodec.names());
+		
+		CodecChooser chooser = new CodecChooser();
+		assertEquals(CodecChooser.NONE, chooser.level(noise));
+		assertTrue(chooser.level(text) != CodecChooser.NONE);
+		chooser.result(false);
+		assertEquals(CodecChooser.NONE, chooser.level(text));
+		assertTrue(chooser.level(text) != CodecChooser.NONE);
+	}
+	
+	// Tests that segments sent from many short-lived threads share a bounded pool of zlib objects
+	@Test(timeout=10000)
+	public void testCodecPool() throws Exception
+	{
+		final byte[] text = new byte[10000];
+		for (int i = 0; i < text.length; i++) text[i] = (byte) "snodes ".charAt(i % 7);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[4 * SegmentCodec.POOL_SIZE + 4];
+		
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						ByteBuffer enc = SegmentCodec.DEFLATE.encode(text, 1, 1000);
+						assertEquals(ByteBuffer.wrap(text), SegmentCodec.DEFLATE.decode(enc, text.length));
+					} catch (Throwable t) {
+						synchronized (errors) { errors.add(t); }
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+		
+		assertTrue("Codec failed: " + errors, errors.isEmpty());
+		assertTrue(SegmentCodec.pooled() > 0);
+		assertTrue(SegmentCodec.pooled() <= 2 * SegmentCodec.POOL_SIZE);
+	}
+	
+	// Tests that fragments are put back together in any order
+	@Test
+	public void testReassemble() throws Exception
+	{
+		byte[] data = new byte[20000];
+		new java.util.Random(7).nextBytes(data);
+		Message.TransferFile msg = new Message.TransferFile(9, "a.txt", 20000, 20000, 4, 0L, FileTransfer.IDENTITY, ByteBuffer.wrap(data));
+		SnodesConnection conn = new SnodesConnection("127.0.0.1");
+		Reassembler reassembler = new Reassembler();
+		Reassembler.Segment seg = null;
+		int stride = 6667;
+		
+		for (int i : new int[] { 2, 0, 0, 1 }) {
+			ByteBuffer piece = ByteBuffer.wrap(data, i * stride, Math.min(stride, data.length - i * stride)).slice();
+			byte[] binary = BinaryCodec.encode(new Packet(msg.fragment(i, 3, data.length, piece)));
+			Message.TransferFile frag = (Message.TransferFile) Packet.parse(binary, binary.length).getMessage();
+			
+			assertTrue(frag.isFragment());
+			assertNull(seg);
+			seg = reassembler.add(conn, frag);
+		}
+		
+		assertNotNull(seg);
+		assertFalse(seg.getMessage().isFragment());
+		assertEquals(4, seg.getMessage().getSegment());
+		
+		ByteBuffer whole = FileTransfer.getSegmentData(seg.getMessage());
+		byte[] bytes = new byte[whole.remaining()];
+		whole.get(bytes);
+		assertArrayEquals(data, bytes);
+		assertEquals(0, reassembler.getPending());
+		reassembler.release(seg);
+	}
+	
+	// Tests that a lost segment is rebuilt from its group's parity
+	@Test
+	public void testParity() throws Exception
+	{
+		long size = 44;
+		byte[][] segs = new byte[5][];
+		for (int i = 0; i < segs.length; i++) {
+			segs[i] = new byte[(i < 4) ? 10 : 4];
+			for (int j = 0; j < segs[i].length; j++) segs[i][j] = (byte) (31 * i + j);
+		}
+		
+		ParityEncoder encoder = new ParityEncoder(3);
+		ParityDecoder decoder = new ParityDecoder();
+		List<ParityEncoder.Parity> parity = new ArrayList<ParityEncoder.Parity>();
+		for (int i = 0; i < segs.length; i++) {
+			ParityEncoder.Parity p = encoder.add(i, segs[i], size);
+			if (p != null) parity.add(p);
+			assertNull(encoder.add(i, segs[i], size));
+		}
+		assertEquals(2, parity.size());
+		assertEquals(3, parity.get(0).members);
+		assertEquals(2, parity.get(1).members);
+		
+		// Lose segments 1 and 4
+		for (int i : new int[] { 0, 2, 3 }) {
+			Message.TransferFile msg = new Message.TransferFile(0, "f", size, segs[i].length, i, 0L,
+				FileTransfer.IDENTITY, ByteBuffer.wrap(segs[i])).withParity(3);
+			assertNull(decoder.add(msg, ByteBuffer.wrap(segs[i])));
+		}
+		for (ParityEncoder.Parity p : parity) {
+			Message.TransferFile msg = new Message.TransferFile(0, "f", size, p.bytes.length, -1 - p.group, 0L,
+				FileTransfer.IDENTITY, ByteBuffer.wrap(p.bytes)).withParity(p.members);
+			assertTrue(msg.isParity());
+			
+			ParityDecoder.Segment rebuilt = decoder.add(msg, ByteBuffer.wrap(p.bytes));
+			assertNotNull(rebuilt);
+			int seg = (p.group == 0) ? 1 : 4;
+			assertEquals(seg, rebuilt.getSegment());
+			
+			ByteBuffer data = rebuilt.getData();
+			byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			assertArrayEquals(segs[seg], bytes);
+		}
+		assertEquals(2, decoder.getRecovered());
+	}
+	
+	// Tests that segments from older nodes, which do not send an encoding, are gunzipped
+	@Test
+	public void testLegacySegment() throws Exception
+	{
+		String data = snodes.util.Base64.encodeBytes("hello, world".getBytes(Packet.ENCODING), snodes.util.Base64.GZIP);
+		byte[] text = ("TransferFile SFXP/1.0\nSegmentSize: 12\nData: \"" + data + "\"").getBytes(Packet.ENCODING);
+		Message.TransferFile msg = (Message.TransferFile) Packet.parse(text, text.length).getMessage();
+		ByteBuffer bytes = FileTransfer.getSegmentData(msg);
+		
+		assertEquals(FileTransfer.GZIP, msg.getEncoding());
+		assertEquals("hello, world", Packet.CHARSET.decode(bytes).toString());
+	}
+	
+	// Tests that the best common format is chosen
+	@Test
+	public void testNegotiate()
+	{
+		assertEquals(Packet.Format.TEXT, Packet.Format.negotiate(null));
+		assertEquals(Packet.Format.TEXT, Packet.Format.negotiate("SFXP/1.0"));
+		assertEquals(Packet.Format.BINARY, Packet.Format.negotiate("SFXP/1.0 SFXP/2.0"));
+		assertEquals(Packet.Format.BINARY, Packet.Format.negotiate(Packet.Format.supported()));
+		assertEquals(Packet.Format.TEXT, Packet.Format.negotiate("SFXP/9.0"));
+	}
+}
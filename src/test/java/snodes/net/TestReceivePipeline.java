@@ -0,0 +1,167 @@
+/*
+ * TestReceivePipeline
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestReceivePipeline
+{
+	private ReceivePipeline pipeline;
+	private ManualDispatcher decrypt, parse, deliver;
+	private BufferRing ring;
+	private SnodesConnection conn;
+	private List<String> received;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		pipeline = new ReceivePipeline();
+		decrypt = new ManualDispatcher(4);
+		parse = new ManualDispatcher(4);
+		deliver = new ManualDispatcher(4);
+		pipeline.setDispatcher(ReceivePipeline.Stage.DECRYPT, decrypt);
+		pipeline.setDispatcher(ReceivePipeline.Stage.PARSE, parse);
+		pipeline.setDispatcher(ReceivePipeline.Stage.DELIVER, deliver);
+		
+		ring = new BufferRing(4, SnodesServer.UDP_SNODES_MAX);
+		received = Collections.synchronizedList(new ArrayList<String>());
+		
+		conn = new SnodesConnection("127.0.0.1");
+		conn.authenticate("secret");
+		conn.addListener(new PacketListener() {
+			public void processPacket(SnodesConnection c, Packet packet) {
+				received.add(((Message.ChatMessage) packet.getMessage()).getMessage());
+			}
+		}, new PacketFilter() {
+			public boolean accept(Packet.Type type) {
+				return type == Packet.Type.ChatMessage;
+			}
+		});
+	}
+	
+	/** Receives a chat message into a buffer from the ring, as a shard would. */
+	private ByteBuffer datagram(String text) throws Exception
+	{
+		byte[] bytes = new Packet(new Message.ChatMessage(9, text)).toByteArray(conn.getKey(), Packet.Format.BINARY);
+		ByteBuffer buf = ring.tryAcquire(null);
+		assertNotNull(buf);
+		buf.put(bytes);
+		buf.flip();
+		return buf;
+	}
+	
+	// Tests that a datagram is handed from stage to stage, and its buffer released once delivered
+	@Test
+	public void testStages() throws Exception
+	{
+		pipeline.submit(datagram("hello"), ring, conn);
+		assertEquals(1, decrypt.waiting());
+		assertEquals(0, parse.waiting());
+		assertEquals(3, ring.available());
+		
+		decrypt.runNext();
+		assertEquals(1, parse.waiting());
+		assertEquals(0, deliver.waiting());
+		
+		parse.runNext();
+		assertEquals(1, deliver.waiting());
+		assertTrue(received.isEmpty());
+		assertEquals(3, ring.available());
+		
+		deliver.runNext();
+		assertEquals(Arrays.asList("hello"), received);
+		assertEquals(4, ring.available());
+		assertEquals(0, conn.getMailbox().size());
+	}
+	
+	// Tests that packets are delivered on the parsing thread when the delivery stage is full
+	@Test
+	public void testDeliverOverflow() throws Exception
+	{
+		deliver.setRejecting(true);
+		pipeline.submit(datagram("hello"), ring, conn);
+		decrypt.runAll();
+		parse.runAll();
+		
+		assertEquals(Arrays.asList("hello"), received);
+		assertEquals(1L, deliver.getDropped());
+		assertEquals(4, ring.available());
+	}
+	
+	// Tests that a datagram dropped by a full stage does not hold up the ones behind it
+	@Test
+	public void testDropped() throws Exception
+	{
+		decrypt.setRejecting(true);
+		pipeline.submit(datagram("lost"), ring, conn);
+		assertEquals(4, ring.available());
+		
+		decrypt.setRejecting(false);
+		pipeline.submit(datagram("hello"), ring, conn);
+		decrypt.runAll();
+		parse.runAll();
+		deliver.runAll();
+		
+		assertEquals(Arrays.asList("hello"), received);
+		assertEquals(4, ring.available());
+	}
+	
+	// Tests that a datagram that cannot be decrypted is skipped
+	@Test
+	public void testBadDatagram() throws Exception
+	{
+		ByteBuffer bad = ring.tryAcquire(null);
+		bad.put(new byte[] { 1, 2, 3 });
+		bad.flip();
+		
+		pipeline.submit(bad, ring, conn);
+		pipeline.submit(datagram("hello"), ring, conn);
+		decrypt.runAll();
+		parse.runAll();
+		deliver.runAll();
+		
+		assertEquals(Arrays.asList("hello"), received);
+		assertEquals(1L, decrypt.getFailed());
+		assertEquals(4, ring.available());
+	}
+	
+	// Tests that datagrams finished out of order are delivered in the order they arrived
+	@Test
+	public void testOrder() throws Exception
+	{
+		for (int i = 0; i < 3; i++) pipeline.submit(datagram("packet " + i), ring, conn);
+		decrypt.runAll();
+		
+		// Parse them backwards.
+		parse.runNewest();
+		parse.runNewest();
+		assertEquals(0, deliver.waiting());
+		assertEquals(3, conn.getMailbox().size());
+		
+		parse.runNewest();
+		assertEquals(1, deliver.waiting());
+		deliver.runAll();
+		
+		assertEquals(Arrays.asList("packet 0", "packet 1", "packet 2"), received);
+	}
+	
+	// Tests that stages cannot be given no dispatcher
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullDispatcher()
+	{
+		pipeline.setDispatcher(ReceivePipeline.Stage.PARSE, null);
+	}
+}
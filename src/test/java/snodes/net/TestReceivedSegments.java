@@ -0,0 +1,67 @@
+/*
+ * TestReceivedSegments
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestReceivedSegments
+{
+	// Tests that ranges are joined as segments arrive
+	@Test
+	public void testAdd()
+	{
+		ReceivedSegments got = new ReceivedSegments(12);
+		assertTrue(got.add(3));
+		assertTrue(got.add(5));
+		assertTrue(got.add(4));
+		assertTrue(got.add(8));
+		assertFalse(got.add(4));
+		assertFalse(got.add(12));
+		
+		assertEquals(0, got.getReceived());
+		assertArrayEquals(new int[] { 3, 6, 8, 9 }, got.getRanges(10));
+		assertArrayEquals(new int[] { 3, 6 }, got.getRanges(1));
+	}
+	
+	// Tests that the leading count absorbs the ranges it reaches
+	@Test
+	public void testReceived()
+	{
+		ReceivedSegments got = new ReceivedSegments(6);
+		got.add(1);
+		got.add(2);
+		got.add(4);
+		got.add(0);
+		
+		assertEquals(3, got.getReceived());
+		assertArrayEquals(new int[] { 4, 5 }, got.getRanges(10));
+		assertFalse(got.isComplete());
+		
+		got.add(5);
+		got.add(3);
+		assertEquals(6, got.getReceived());
+		assertEquals(0, got.getRanges(10).length);
+		assertTrue(got.isComplete());
+	}
+	
+	// Tests that the initial state is taken from the segment status
+	@Test
+	public void testStatus()
+	{
+		boolean[] status = { true, true, false, true, true, true, false, false, true, false, true, true };
+		ReceivedSegments got = new ReceivedSegments(status);
+		
+		assertEquals(2, got.getReceived());
+		assertArrayEquals(new int[] { 3, 6, 8, 9, 10, 12 }, got.getRanges(10));
+		
+		got.add(2);
+		assertEquals(6, got.getReceived());
+		assertArrayEquals(new int[] { 8, 9, 10, 12 }, got.getRanges(10));
+	}
+}
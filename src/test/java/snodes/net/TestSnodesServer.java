@@ -0,0 +1,214 @@
+/*
+ * TestSnodesServer
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestSnodesServer
+{
+	private SnodesServer server;
+	private SnodesConnection conn;
+	private DatagramChannel peer;
+	private InetSocketAddress address;
+	private List<String> received;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		
+		// Find a free port for the server
+		DatagramChannel probe = DatagramChannel.open();
+		probe.bind(new InetSocketAddress(loopback, 0));
+		int port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+		probe.close();
+		
+		address = new InetSocketAddress(loopback, port);
+		server = new SnodesServer(port);
+		received = Collections.synchronizedList(new ArrayList<String>());
+		
+		conn = new SnodesConnection(loopback.getHostAddress());
+		conn.authenticate("secret");
+		conn.addListener(new PacketListener() {
+			public void processPacket(SnodesConnection c, Packet packet) {
+				received.add(((Message.ChatMessage) packet.getMessage()).getMessage());
+			}
+		}, new PacketFilter() {
+			public boolean accept(Packet.Type type) {
+				return type == Packet.Type.ChatMessage;
+			}
+		});
+		
+		server.setConnectionManager(new ConnectionManager() {
+			public SnodesConnection getConnection(InetAddress host) {
+				return host.isLoopbackAddress() ? conn : null;
+			}
+		});
+		
+		peer = DatagramChannel.open();
+		peer.bind(new InetSocketAddress(loopback, 0));
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		server.stop();
+		peer.close();
+	}
+	
+	/** Sends a chat message to the server until it arrives, since the server starts on its own thread. */
+	private void deliver(DatagramChannel from, String text) throws Exception
+	{
+		byte[] bytes = new Packet(new Message.ChatMessage(9, text)).toByteArray(conn.getKey(), Packet.Format.BINARY);
+		long deadline = System.currentTimeMillis() + 5000L;
+		
+		while (!received.contains(text)) {
+			if (System.currentTimeMillis() > deadline) fail("Never received " + text);
+			from.send(ByteBuffer.wrap(bytes), address);
+			Thread.sleep(20L);
+		}
+	}
+	
+	/** Waits until the given number of shards have bound their sockets. */
+	private void awaitListening(int count) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (server.getListeningShards() < count) {
+			if (System.currentTimeMillis() > deadline) fail("Only " + server.getListeningShards() + " shards listening");
+			Thread.sleep(10L);
+		}
+	}
+	
+	/** Returns true if another socket can be bound to the server's port with SO_REUSEPORT. */
+	private boolean canShare() throws Exception
+	{
+		DatagramChannel other = DatagramChannel.open();
+		try {
+			other.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			other.bind(address);
+			return true;
+		} catch (java.io.IOException e) {
+			return false;
+		} finally {
+			other.close();
+		}
+	}
+	
+	// Tests that a shard receives datagrams and hands them through the pipeline to the connection
+	@Test(timeout = 10000)
+	public void testReceive() throws Exception
+	{
+		server.start();
+		deliver(peer, "hello");
+		deliver(peer, "again");
+		assertTrue(received.indexOf("hello") < received.indexOf("again"));
+	}
+	
+	// Tests that a server cannot be started twice
+	@Test(timeout = 10000, expected = IllegalStateException.class)
+	public void testStartTwice() throws Exception
+	{
+		server.start();
+		server.start();
+	}
+	
+	// Tests that the server stops receiving and frees its port once stopped
+	@Test(timeout = 10000)
+	public void testStop() throws Exception
+	{
+		server.start();
+		deliver(peer, "hello");
+		server.stop();
+		
+		DatagramChannel rebind = DatagramChannel.open();
+		try {
+			rebind.bind(address);
+		} finally {
+			rebind.close();
+		}
+	}
+	
+	// Tests that every shard binds its own socket to the port with SO_REUSEPORT
+	@Test(timeout = 10000)
+	public void testShards() throws Exception
+	{
+		DatagramChannel probe = DatagramChannel.open();
+		boolean supported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		probe.close();
+		if (!supported) return; // The server falls back to one shard
+		
+		server.setShards(3);
+		server.start();
+		awaitListening(3);
+		assertEquals(3, server.getListeningShards());
+		assertTrue("Port not shared", canShare());
+	}
+	
+	// Tests that datagrams from many peers all arrive, whichever shard receives them
+	@Test(timeout = 20000)
+	public void testShardedReceive() throws Exception
+	{
+		server.setShards(3);
+		server.start();
+		
+		List<DatagramChannel> peers = new ArrayList<DatagramChannel>();
+		try {
+			for (int i = 0; i < 8; i++) {
+				DatagramChannel p = DatagramChannel.open();
+				p.bind(new InetSocketAddress(address.getAddress(), 0));
+				peers.add(p);
+			}
+			for (int i = 0; i < peers.size(); i++) {
+				deliver(peers.get(i), "peer " + i);
+			}
+		} finally {
+			for (DatagramChannel p : peers) p.close();
+		}
+		assertEquals(8, received.size());
+	}
+	
+	// Tests that a single shard keeps the port to itself
+	@Test(timeout = 10000)
+	public void testSingleShard() throws Exception
+	{
+		server.start();
+		awaitListening(1);
+		assertFalse("Port shared", canShare());
+	}
+	
+	// Tests that the shards can be counted only while they are listening
+	@Test(timeout = 10000)
+	public void testListeningShards() throws Exception
+	{
+		assertEquals(0, server.getListeningShards());
+		server.start();
+		awaitListening(1);
+		server.stop();
+		assertEquals(0, server.getListeningShards());
+	}
+	
+	// Tests that the shard count cannot be changed once the server is running
+	@Test(timeout = 10000, expected = IllegalStateException.class)
+	public void testSetShardsRunning() throws Exception
+	{
+		server.start();
+		server.setShards(2);
+	}
+}
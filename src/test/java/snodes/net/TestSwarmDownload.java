@@ -0,0 +1,193 @@
+/*
+ * TestSwarmDownload
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestSwarmDownload
+{
+	private SnodesConnection a, b;
+	private SwarmDownload swarm;
+	private List<Integer> written;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		a = connection("127.0.0.1", 1);
+		b = connection("127.0.0.2", 2);
+		written = Collections.synchronizedList(new ArrayList<Integer>());
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if (swarm != null) swarm.cancel();
+	}
+	
+	/** Returns an authorized connection to the given host. Connections are told apart by their session IDs. */
+	private static SnodesConnection connection(String host, int id) throws Exception
+	{
+		SnodesConnection conn = new SnodesConnection(host);
+		conn.authenticate("secret");
+		conn.authorize(id, new byte[32]);
+		return conn;
+	}
+	
+	/** Creates a download of a file, recording the segments written. */
+	private SwarmDownload download(boolean[] status)
+	{
+		return new SwarmDownload("file", status, new SwarmDownload.Sink() {
+			public void write(int seg, ByteBuffer data) {
+				written.add(Integer.valueOf(seg));
+			}
+		});
+	}
+	
+	/** Delivers a segment from a peer, as its connection would. */
+	private static void deliver(SnodesConnection conn, int seg, boolean corrupt)
+	{
+		byte[] bytes = new byte[64];
+		bytes[0] = (byte) seg;
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		long hash = corrupt ? crc.getValue() ^ 1L : crc.getValue();
+		
+		Message.TransferFile msg = new Message.TransferFile(1, "file", 64L * 8, bytes.length, seg, hash,
+			FileTransfer.IDENTITY, ByteBuffer.wrap(bytes));
+		conn.processPacket(new Packet(msg));
+	}
+	
+	/** Returns true if the array holds the value. */
+	private static boolean contains(int[] segs, int seg)
+	{
+		for (int s : segs) {
+			if (s == seg) return true;
+		}
+		return false;
+	}
+	
+	// Tests that the first requests are dealt out in turn to every peer
+	@Test
+	public void testAssign() throws Exception
+	{
+		swarm = download(new boolean[8]);
+		swarm.addPeer(a);
+		swarm.addPeer(b);
+		assertEquals(0, swarm.getOutstanding(a).length);
+		
+		swarm.start();
+		assertArrayEquals(new int[] { 0, 2 }, swarm.getOutstanding(a));
+		assertArrayEquals(new int[] { 1, 3 }, swarm.getOutstanding(b));
+	}
+	
+	// Tests that segments that were already written are not requested
+	@Test
+	public void testSkipWritten() throws Exception
+	{
+		boolean[] status = new boolean[8];
+		status[0] = true;
+		status[2] = true;
+		swarm = download(status);
+		swarm.addPeer(a);
+		swarm.addPeer(b);
+		swarm.start();
+		
+		assertArrayEquals(new int[] { 1, 4 }, swarm.getOutstanding(a));
+		assertArrayEquals(new int[] { 3, 5 }, swarm.getOutstanding(b));
+		assertEquals(2, swarm.getCompleted());
+	}
+	
+	// Tests that a delivered segment is written and the peer is given another request
+	@Test
+	public void testDeliver() throws Exception
+	{
+		swarm = download(new boolean[8]);
+		swarm.addPeer(a);
+		swarm.addPeer(b);
+		swarm.start();
+		
+		deliver(a, 0, false);
+		assertEquals(Collections.singletonList(Integer.valueOf(0)), written);
+		int[] out = swarm.getOutstanding(a);
+		assertFalse(contains(out, 0));
+		assertTrue(contains(out, 2));
+		assertTrue(contains(out, 4));
+		assertTrue(swarm.getThroughput(a) > 0L);
+		assertEquals(0L, swarm.getThroughput(b));
+	}
+	
+	// Tests that idle peers race the others for the last segments, and only the first copy is kept
+	@Test
+	public void testEndgame() throws Exception
+	{
+		swarm = download(new boolean[4]);
+		swarm.addPeer(a);
+		swarm.addPeer(b);
+		swarm.start();
+		assertArrayEquals(new int[] { 0, 2 }, swarm.getOutstanding(a));
+		assertArrayEquals(new int[] { 1, 3 }, swarm.getOutstanding(b));
+		
+		deliver(a, 0, false);
+		assertTrue(contains(swarm.getOutstanding(a), 1));
+		
+		deliver(b, 1, false);
+		assertFalse(contains(swarm.getOutstanding(a), 1));
+		
+		deliver(a, 1, false);
+		assertEquals(2, written.size());
+		assertFalse(swarm.isDone());
+	}
+	
+	// Tests that a peer that sends a corrupt segment is dropped and its requests go to the others
+	@Test
+	public void testCorrupt() throws Exception
+	{
+		swarm = download(new boolean[8]);
+		swarm.addPeer(a);
+		swarm.addPeer(b);
+		swarm.start();
+		
+		deliver(b, 1, true);
+		assertEquals(0, written.size());
+		assertArrayEquals(new SnodesConnection[] { a }, swarm.getPeers());
+		assertEquals(0, swarm.getOutstanding(b).length);
+		
+		// Segments sent by the dropped peer are ignored
+		deliver(b, 3, false);
+		assertEquals(0, written.size());
+		
+		deliver(a, 0, false);
+		assertTrue(contains(swarm.getOutstanding(a), 1));
+	}
+	
+	// Tests that the download is done once every segment has been written
+	@Test(timeout=5000)
+	public void testDone() throws Exception
+	{
+		swarm = download(new boolean[3]);
+		swarm.addPeer(a);
+		swarm.start();
+		
+		for (int i = 0; i < 3; i++) {
+			assertFalse(swarm.isDone());
+			deliver(a, i, false);
+		}
+		assertTrue(swarm.await(0));
+		assertEquals(3, swarm.getCompleted());
+		assertEquals(3, written.size());
+	}
+}
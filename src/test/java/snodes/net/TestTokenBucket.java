@@ -0,0 +1,115 @@
+/*
+ * TestTokenBucket
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestTokenBucket
+{
+	private static final long RATE = 1000000L; // 1 MB/s
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	// Tests that a bucket without a rate never holds anything back
+	@Test
+	public void testUnlimited()
+	{
+		TokenBucket bucket = new TokenBucket(0L);
+		long now = System.nanoTime();
+		
+		bucket.take(100 * 1048576, now);
+		assertEquals(0L, bucket.delay(now));
+	}
+	
+	// Tests that a full burst can be sent at once, and then the sender must wait
+	@Test
+	public void testBurst()
+	{
+		TokenBucket bucket = new TokenBucket(RATE);
+		long now = System.nanoTime();
+		long burst = RATE * TokenBucket.BURST_MILLIS / 1000L;
+		
+		assertEquals(0L, bucket.delay(now));
+		bucket.take((int) burst - 1, now);
+		assertEquals(0L, bucket.delay(now));
+		bucket.take(1, now);
+		assertTrue(bucket.delay(now) > 0L);
+		
+		// A millisecond buys a thousand bytes.
+		assertEquals(0L, bucket.delay(now + MILLI));
+	}
+	
+	// Tests that a sender that overdraws waits until the debt is paid off
+	@Test
+	public void testDebt()
+	{
+		TokenBucket bucket = new TokenBucket(RATE);
+		long now = System.nanoTime();
+		long burst = RATE * TokenBucket.BURST_MILLIS / 1000L;
+		
+		bucket.take((int) burst + 10000, now);
+		long delay = bucket.delay(now);
+		assertTrue("Delay " + delay, delay > 10L * MILLI && delay <= 11L * MILLI);
+		assertTrue(bucket.delay(now + 9L * MILLI) > 0L);
+		assertEquals(0L, bucket.delay(now + delay));
+	}
+	
+	// Tests that unused tokens pile up no further than the burst
+	@Test
+	public void testIdle()
+	{
+		TokenBucket bucket = new TokenBucket(RATE);
+		long now = System.nanoTime();
+		long burst = RATE * TokenBucket.BURST_MILLIS / 1000L;
+		
+		now += TimeUnit.SECONDS.toNanos(10);
+		bucket.take((int) burst, now);
+		assertTrue(bucket.delay(now) > 0L);
+	}
+	
+	// Tests that a sender held to the rate sends no more than the rate over time
+	@Test
+	public void testRate()
+	{
+		TokenBucket bucket = new TokenBucket(RATE);
+		long start = System.nanoTime();
+		long now = start;
+		long end = start + TimeUnit.SECONDS.toNanos(1);
+		long sent = 0L;
+		long burst = RATE * TokenBucket.BURST_MILLIS / 1000L;
+		
+		while (true) {
+			now += bucket.delay(now);
+			if (now >= end) break;
+			bucket.take(1000, now);
+			sent += 1000;
+		}
+		
+		assertTrue("Sent " + sent, sent >= RATE && sent <= RATE + burst + 1000);
+	}
+	
+	// Tests that small rates still allow a couple of full datagrams at once
+	@Test
+	public void testMinimumBurst()
+	{
+		TokenBucket bucket = new TokenBucket(1000L);
+		long now = System.nanoTime();
+		
+		bucket.take((int) TokenBucket.MIN_BURST - 1, now);
+		assertEquals(0L, bucket.delay(now));
+	}
+	
+	// Tests that a negative rate is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRate()
+	{
+		new TokenBucket(-1L);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * TestTransferWindow
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestTransferWindow
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	private SnodesConnection conn;
+	private FileTransfer transfer;
+	private TransferWindow window;
+	private List<Integer> reads;
+	private long base;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		conn = new SnodesConnection("127.0.0.1");
+		conn.authenticate("secret");
+		conn.authorize(1, new byte[32]);
+		transfer = new FileTransfer(conn, "file");
+		reads = Collections.synchronizedList(new ArrayList<Integer>());
+		// Far enough ahead that the real timer never finds anything expired
+		base = System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if (window != null) window.cancel();
+	}
+	
+	/** Starts a window over a file of the given number of segments. */
+	private void start(final int segments) throws Exception
+	{
+		window = new TransferWindow(transfer, new TransferWindow.Source() {
+			public int getSegments() { return segments; }
+			public long getSize() { return segments * 16L; }
+			public ByteBuffer read(int seg) {
+				reads.add(Integer.valueOf(seg));
+				return ByteBuffer.wrap(new byte[] { (byte) seg, 1, 2, 3, 4, 5, 6, 7 });
+			}
+		});
+		window.start(base);
+	}
+	
+	/** Acknowledges a segment and every segment before it. */
+	private void ack(int seg, long at) throws Exception
+	{
+		window.acknowledged(new Message.Acknowledge(1, "file", seg, seg + 1), base + at);
+	}
+	
+	/** Returns the segments read so far. */
+	private List<Integer> reads()
+	{
+		synchronized (reads) {
+			return new ArrayList<Integer>(reads);
+		}
+	}
+	
+	// Tests that the first window of segments is sent at once
+	@Test
+	public void testInitialWindow() throws Exception
+	{
+		start(20);
+		assertEquals(TransferWindow.INITIAL_WINDOW, window.getWindow());
+		assertEquals(Arrays.asList(0, 1, 2, 3), reads());
+		assertEquals(0L, window.getRetransmits());
+	}
+	
+	// Tests that each acknowledged segment grows the window by one during slow start
+	@Test
+	public void testSlowStart() throws Exception
+	{
+		start(20);
+		ack(0, 10 * MS);
+		assertEquals(5, window.getWindow());
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), reads());
+		assertEquals(10L, window.getRoundTripTime());
+		
+		ack(2, 20 * MS);
+		assertEquals(7, window.getWindow());
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), reads());
+	}
+	
+	// Tests that a lost segment is resent and halves the window, but only once per loss
+	@Test
+	public void testLost() throws Exception
+	{
+		start(20);
+		ack(0, 10 * MS);
+		assertEquals(5, window.getWindow());
+		
+		window.lost(2, base + 20 * MS);
+		assertEquals(2, window.getWindow());
+		assertEquals(1L, window.getRetransmits());
+		assertEquals(Integer.valueOf(2), reads().get(reads().size() - 1));
+		
+		// Sent before the first loss was noticed, so no news
+		window.lost(3, base + 21 * MS);
+		assertEquals(2, window.getWindow());
+		assertEquals(2L, window.getRetransmits());
+	}
+	
+	// Tests that the holes between acknowledged ranges are resent, but not segments sent since
+	@Test
+	public void testHoles() throws Exception
+	{
+		start(20);
+		ack(0, 10 * MS); // Sends 4 and 5 at 10 ms
+		reads.clear();
+		
+		ReceivedSegments status = new ReceivedSegments(20);
+		status.add(0);
+		status.add(5);
+		window.acknowledged(new Message.Acknowledge(1, "file", 5, status), base + 20 * MS);
+		
+		List<Integer> got = reads();
+		assertTrue("Hole not resent: " + got, got.containsAll(Arrays.asList(1, 2, 3)));
+		assertFalse("Segment 4 resent: " + got, got.contains(Integer.valueOf(4)));
+		assertEquals(3L, window.getRetransmits());
+		assertEquals(3, window.getWindow());
+	}
+	
+	// Tests that a timeout starts over from one segment and doubles the timeout
+	@Test
+	public void testTimeout() throws Exception
+	{
+		start(20);
+		
+		window.expire(base + TransferWindow.INITIAL_TIMEOUT - 1);
+		assertEquals(TransferWindow.INITIAL_WINDOW, window.getWindow());
+		assertEquals(0L, window.getRetransmits());
+		
+		long first = base + TransferWindow.INITIAL_TIMEOUT;
+		window.expire(first);
+		assertEquals(1, window.getWindow());
+		assertEquals(1L, window.getRetransmits());
+		
+		// The resent segment now has twice as long
+		window.expire(first + TransferWindow.INITIAL_TIMEOUT * 3 / 2);
+		assertEquals(1L, window.getRetransmits());
+		assertFalse(window.isDone());
+	}
+	
+	// Tests that the round trip of a resent segment is not measured
+	@Test
+	public void testKarn() throws Exception
+	{
+		start(20);
+		window.lost(0, base + 5 * MS);
+		window.acknowledged(new Message.Acknowledge(1, "file", 0, 4), base + 50 * MS);
+		assertEquals(0L, window.getRoundTripTime());
+		
+		// Segment 4 was first sent when the acknowledgement made room for it
+		ack(4, 80 * MS);
+		assertEquals(30L, window.getRoundTripTime());
+	}
+	
+	// Tests that the window is done once every segment has been acknowledged
+	@Test(timeout=5000)
+	public void testDone() throws Exception
+	{
+		start(3);
+		assertFalse(window.isDone());
+		ack(2, 10 * MS);
+		assertTrue(window.await(0));
+		assertEquals(3, window.getAcknowledged());
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * TestTransmitter
+ * Spaghetti Nodes Unit Testing
+ * Author: Michael Dippery <michael@monkey-robot.com>
+ */
+
+package snodes.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TestTransmitter
+{
+	private Selector selector;
+	private DatagramChannel channel;
+	private DatagramChannel sink;
+	private SocketAddress target;
+	private Transmitter transmitter;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(new InetSocketAddress(loopback, 0));
+		
+		sink = DatagramChannel.open();
+		sink.configureBlocking(false);
+		sink.bind(new InetSocketAddress(loopback, 0));
+		target = sink.getLocalAddress();
+		
+		transmitter = new Transmitter();
+		transmitter.attach(channel.register(selector, SelectionKey.OP_READ));
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		channel.close();
+		sink.close();
+		selector.close();
+	}
+	
+	// Tests that a datagram larger than a flow can ever save up for is still sent
+	@Test(timeout = 5000)
+	public void testLargeDatagram() throws Exception
+	{
+		Transmitter.Flow flow = new Transmitter.Flow(new TokenBucket(0L), false);
+		byte[] data = new byte[20 * 1024];
+		data[data.length - 1] = 42;
+		
+		transmitter.send(ByteBuffer.wrap(data), target, flow);
+		
+		assertEquals(1L, transmitter.getSent());
+		assertEquals(0, transmitter.getQueuedBytes());
+		
+		ByteBuffer got = receive();
+		assertEquals(data.length, got.remaining());
+		assertEquals(42, got.get(data.length - 1));
+	}
+	
+	/** Returns an address that the channel refuses to send to, since broadcasting is off. */
+	private SocketAddress refused() throws Exception
+	{
+		return new InetSocketAddress(InetAddress.getByName("255.255.255.255"), 9);
+	}
+	
+	// Tests that a datagram the channel refuses is dropped, and does not hold up the next one
+	@Test(timeout = 5000)
+	public void testRefused() throws Exception
+	{
+		Transmitter.Flow flow = new Transmitter.Flow(new TokenBucket(0L), false);
+		
+		transmitter.send(ByteBuffer.wrap(new byte[] { 'x' }), refused(), flow);
+		assertEquals(1L, transmitter.getDropped());
+		assertEquals(0, transmitter.getQueuedBytes());
+		
+		transmitter.send(ByteBuffer.wrap(new byte[] { 'y' }), target, flow);
+		assertEquals(1L, transmitter.getSent());
+		assertEquals('y', receive().get(0));
+		
+		transmitter.flush();
+		assertEquals(1L, transmitter.getDropped());
+	}
+	
+	// Tests that a refused datagram queued ahead of others is dropped once the queue is flushed
+	@Test(timeout = 5000)
+	public void testRefusedQueued() throws Exception
+	{
+		Transmitter.Flow flow = new Transmitter.Flow(new TokenBucket(0L), false);
+		
+		hold();
+		transmitter.send(ByteBuffer.wrap(new byte[] { 'x' }), refused(), flow);
+		queue(flow, 'a', 2, 100);
+		assertEquals(201, transmitter.getQueuedBytes());
+		
+		assertEquals("aa", release(2));
+		assertEquals(1L, transmitter.getDropped());
+		assertEquals(0, transmitter.getQueuedBytes());
+	}
+	
+	/**
+	 * Spends the transmitter's whole burst and stops it refilling, so that
+	 * what is sent next is queued until {@link #release} is called.
+	 */
+	private void hold() throws Exception
+	{
+		transmitter.setRateLimit(1L);
+		Transmitter.Flow flow = new Transmitter.Flow(new TokenBucket(0L), false);
+		transmitter.send(ByteBuffer.wrap(new byte[(int) TokenBucket.MIN_BURST + 1]), target, flow);
+		assertEquals(TokenBucket.MIN_BURST + 1, (long) receive().remaining());
+	}
+	
+	/** Lifts the rate limit set by {@link #hold}, and returns the tags of the next datagrams to arrive. */
+	private String release(int count) throws Exception
+	{
+		transmitter.setRateLimit(0L);
+		
+		StringBuilder tags = new StringBuilder();
+		for (int i = 0; i < count; i++) tags.append((char) receive().get(0));
+		return tags.toString();
+	}
+	
+	/** Queues datagrams tagged with a letter. */
+	private void queue(Transmitter.Flow flow, char tag, int count, int size) throws Exception
+	{
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[size];
+			data[0] = (byte) tag;
+			transmitter.send(ByteBuffer.wrap(data), target, flow);
+		}
+	}
+	
+	// Tests that flows with datagrams waiting take turns
+	@Test(timeout = 5000)
+	public void testFairness() throws Exception
+	{
+		Transmitter.Flow a = new Transmitter.Flow(new TokenBucket(0L), false);
+		Transmitter.Flow b = new Transmitter.Flow(new TokenBucket(0L), false);
+		
+		hold();
+		queue(a, 'a', 8, 5000);
+		queue(b, 'b', 8, 5000);
+		assertEquals(16 * 5000, transmitter.getQueuedBytes());
+		assertTrue(transmitter.getThrottles() > 0L);
+		
+		String order = release(16);
+		int as = 0, bs = 0;
+		for (int i = 0; i < 12; i++) {
+			if (order.charAt(i) == 'a') as++;
+			else bs++;
+			assertTrue(order, Math.abs(as - bs) <= 2);
+		}
+		assertEquals(0, transmitter.getQueuedBytes());
+	}
+	
+	// Tests that a flow of twice the weight sends twice as much
+	@Test(timeout = 5000)
+	public void testWeight() throws Exception
+	{
+		Transmitter.Flow a = new Transmitter.Flow(new TokenBucket(0L), false);
+		Transmitter.Flow b = new Transmitter.Flow(new TokenBucket(0L), false);
+		a.setWeight(2);
+		
+		hold();
+		queue(a, 'a', 12, 2000);
+		queue(b, 'b', 12, 2000);
+		
+		String order = release(24);
+		int as = 0;
+		for (int i = 0; i < 12; i++) {
+			if (order.charAt(i) == 'a') as++;
+		}
+		assertTrue(order, as >= 7 && as <= 9);
+	}
+	
+	// Tests that control datagrams go before queued data
+	@Test(timeout = 5000)
+	public void testControlFirst() throws Exception
+	{
+		Transmitter.Flow data = new Transmitter.Flow(new TokenBucket(0L), false);
+		Transmitter.Flow control = new Transmitter.Flow(new TokenBucket(0L), true);
+		
+		hold();
+		queue(data, 'd', 3, 1000);
+		queue(control, 'c', 1, 100);
+		
+		assertEquals("cddd", release(4));
+	}
+	
+	// Tests that a weight outside 1 to 64 is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadWeight()
+	{
+		new Transmitter.Flow(new TokenBucket(0L), false).setWeight(65);
+	}
+	
+	/** Waits for the next datagram to arrive at the sink. */
+	private ByteBuffer receive() throws Exception
+	{
+		ByteBuffer buf = ByteBuffer.allocate(SnodesServer.UDP_MAX);
+		long deadline = System.currentTimeMillis() + 2000L;
+		
+		while (sink.receive(buf) == null) {
+			if (System.currentTimeMillis() > deadline) fail("Nothing was received");
+			Thread.sleep(1L);
+		}
+		buf.flip();
+		return buf;
+	}
+}